@@ -0,0 +1,89 @@
+package com.jerry.busappbackend.service;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.jerry.busappbackend.exception.InvalidGeoJsonException;
+import com.jerry.busappbackend.model.BusTrip;
+import com.jerry.busappbackend.util.BenchmarkData;
+import com.jerry.busappbackend.util.Dictionaries;
+import com.jerry.busappbackend.util.SyntheticDataGenerator;
+import com.jerry.busappbackend.util.TripIndex;
+
+/**
+ * Time to render the trips of a published line as GeoJSON, see {@link GeoJsonBuilder}. Lines differ in the
+ * number of vehicles serving them and the number of days of data:<br></br>
+ * - small: 2 vehicles, 1 day<br></br>
+ * - medium: 20 vehicles, 1 day<br></br>
+ * - huge: 60 vehicles, 3 days<br></br>
+ * <br></br>
+ * Each line is rendered with its points in every storage mode, see
+ * {@link com.jerry.busappbackend.util.TripPointStorage}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class GeoJsonRenderBenchmark {
+
+    @Param({ "small", "medium", "huge" })
+    String line;
+
+    @Param({ "heap", "off-heap", "compressed" })
+    String storage;
+
+    private final GeoJsonBuilder geoJsonBuilder = new GeoJsonBuilder(-1);
+    private List<BusTrip> trips;
+
+    @Setup
+    public void setUp() throws IOException {
+        int vehicles;
+        int days;
+        switch (this.line) {
+            case "small" -> { vehicles = 2; days = 1; }
+            case "medium" -> { vehicles = 20; days = 1; }
+            case "huge" -> { vehicles = 60; days = 3; }
+            default -> throw new IllegalArgumentException("Unknown line size: " + this.line);
+        }
+        SyntheticDataGenerator.Config config = new SyntheticDataGenerator.Config(
+            BenchmarkData.SEED, 1, vehicles, days, LocalDate.of(2017, 6, 1), 30, 0.02, 0.05, Long.MAX_VALUE);
+
+        BusTripDataProvider provider = new BusTripDataProvider();
+        this.trips = provider.constructTripsFromRecords(
+            provider.groupRecordsByCompositeKey(BenchmarkData.parse(config)), TripIndex.builder(Dictionaries.current().getPublishedLineNames()), TripIndex.builder(Dictionaries.current().getVehicleRefs()));
+        BenchmarkData.storePoints(this.trips, this.storage);
+    }
+
+    /**
+     * Streaming render, as used by the response cache.
+     */
+    @Benchmark
+    public byte[] render() {
+        return this.geoJsonBuilder.render(this.trips);
+    }
+
+    /**
+     * Render to a string and validate against the GeoJSON schema.
+     */
+    @Benchmark
+    public String build() throws InvalidGeoJsonException, JsonProcessingException {
+        return this.geoJsonBuilder.build(this.trips);
+    }
+}
@@ -0,0 +1,62 @@
+package com.jerry.busappbackend.service;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jerry.busappbackend.entity.BusRecordEntity;
+import com.jerry.busappbackend.model.BusTrip;
+import com.jerry.busappbackend.service.BusTripDataProvider.CompositeKey;
+import com.jerry.busappbackend.util.BenchmarkData;
+import com.jerry.busappbackend.util.Dictionaries;
+import com.jerry.busappbackend.util.SyntheticDataGenerator;
+import com.jerry.busappbackend.util.TripIndex;
+
+/**
+ * Time to turn parsed records into trips, see {@link BusTripDataProvider#groupRecordsByCompositeKey} and
+ * {@link BusTripDataProvider#constructTripsFromRecords}. Sessionizing sorts the groups in place, so it is
+ * measured together with the grouping that creates them, and its own cost is the difference of the two scores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class TripConstructionBenchmark {
+
+    @Param({ "100000", "1000000" })
+    long rows;
+
+    private final BusTripDataProvider provider = new BusTripDataProvider();
+    private List<BusRecordEntity> records;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.records = BenchmarkData.parse(SyntheticDataGenerator.Config.forRows(this.rows, BenchmarkData.SEED));
+    }
+
+    @Benchmark
+    public Map<CompositeKey, List<BusRecordEntity>> group() {
+        return this.provider.groupRecordsByCompositeKey(this.records);
+    }
+
+    @Benchmark
+    public List<BusTrip> groupAndSessionize() {
+        Map<CompositeKey, List<BusRecordEntity>> busRecordsMap = this.provider.groupRecordsByCompositeKey(this.records);
+        return this.provider.constructTripsFromRecords(busRecordsMap, TripIndex.builder(Dictionaries.current().getPublishedLineNames()), TripIndex.builder(Dictionaries.current().getVehicleRefs()));
+    }
+}
@@ -0,0 +1,55 @@
+package com.jerry.busappbackend.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import com.jerry.busappbackend.entity.BusRecordEntity;
+import com.jerry.busappbackend.model.BusTrip;
+
+/**
+ * Synthetic raw data for the benchmarks, see {@link SyntheticDataGenerator}. The same seed is used everywhere,
+ * so every run of a benchmark measures the same data.
+ */
+public class BenchmarkData {
+    public static final long SEED = 42;
+
+    private BenchmarkData() {}
+
+    /**
+     * Writes a raw data file to a temporary file, to be deleted by the caller.
+     */
+    public static Path createFile(SyntheticDataGenerator.Config config) throws IOException {
+        Path path = Files.createTempFile("bus-app-benchmark-", ".csv");
+        SyntheticDataGenerator.generate(config, path);
+        return path;
+    }
+
+    /**
+     * Generates a raw data file and parses it with the mapped engine.
+     *
+     * @return The parsed records, in file order.
+     */
+    public static List<BusRecordEntity> parse(SyntheticDataGenerator.Config config) throws IOException {
+        Path path = createFile(config);
+        try {
+            CsvParser parser = new CsvParser(path.toString(), 0, "mapped", 0);
+            parser.timer = new Timer();
+            return parser.parse();
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * Moves the points of trips into a storage mode, see {@link TripPointStorage}.
+     *
+     * @param storage The value of {@code app.data.points.storage}.
+     */
+    public static void storePoints(List<BusTrip> trips, String storage) {
+        TripPointStorage pointStorage = new TripPointStorage(storage, 64 << 20);
+        pointStorage.timer = new Timer();
+        pointStorage.store(trips);
+    }
+}
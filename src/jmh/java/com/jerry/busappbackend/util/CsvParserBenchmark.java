@@ -0,0 +1,61 @@
+package com.jerry.busappbackend.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jerry.busappbackend.entity.BusRecordEntity;
+
+/**
+ * Time to clean and parse a raw data file with each engine, see {@link CsvParser#parse()}. The throughput in
+ * rows per second is {@code rows} divided by the score.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class CsvParserBenchmark {
+
+    @Param({ "mapped", "opencsv" })
+    String engine;
+
+    @Param({ "100000", "1000000" })
+    long rows;
+
+    private Path rawDataPath;
+    private CsvParser parser;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.rawDataPath = BenchmarkData.createFile(SyntheticDataGenerator.Config.forRows(this.rows, BenchmarkData.SEED));
+        this.parser = new CsvParser(this.rawDataPath.toString(), 0, this.engine, 0);
+        this.parser.timer = new Timer();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(this.rawDataPath);
+    }
+
+    @Benchmark
+    public List<BusRecordEntity> parse() {
+        return this.parser.parse();
+    }
+}
@@ -3,6 +3,7 @@ package com.jerry.busappbackend;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -17,6 +18,9 @@ public class BusAppBackendApplication implements CommandLineRunner {
 	@Autowired
 	private Timer timer;
 
+	@Value("${spring.threads.virtual.enabled:false}")
+	private boolean virtualThreads;
+
 	public BusAppBackendApplication() {
 	}
 
@@ -30,5 +34,13 @@ public class BusAppBackendApplication implements CommandLineRunner {
 		logger.info("Elapsed Time: " + timer.getElapsedTime());
 		logger.info("\n" + MemoryTracker.getAllMemory());
 		logger.info(MemoryTracker.stopTracking(memoryID));
+
+		// Spring Boot only switches to virtual threads on Java 21 and later, and ignores the property otherwise
+		if (virtualThreads && Runtime.version().feature() < 21) {
+			logger.warn("spring.threads.virtual.enabled is set, but virtual threads need Java 21 or later, running on Java "
+				+ Runtime.version() + ". Requests are served by the platform thread pool.");
+		} else {
+			logger.info("Requests are served by " + (virtualThreads ? "virtual threads" : "the platform thread pool"));
+		}
 	}
 }
@@ -5,8 +5,11 @@ import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import com.jerry.busappbackend.filter.DatasetPinningFilter;
+import com.jerry.busappbackend.filter.RequestMetricsInterceptor;
 import com.jerry.busappbackend.filter.RequestResponseLoggingFilter;
 
 @Configuration
@@ -15,6 +18,12 @@ public class WebMvcConfig implements WebMvcConfigurer {
     @Autowired
     private RequestResponseLoggingFilter requestResponseLoggingFilter;
 
+    @Autowired
+    private DatasetPinningFilter datasetPinningFilter;
+
+    @Autowired
+    private RequestMetricsInterceptor requestMetricsInterceptor;
+
     @Override
     public void addCorsMappings(CorsRegistry registry) {
         registry.addMapping("/**")
@@ -22,6 +31,11 @@ public class WebMvcConfig implements WebMvcConfigurer {
             .allowedOrigins("http://localhost:5173");
     }
 
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(requestMetricsInterceptor);
+    }
+
     @Bean
     FilterRegistrationBean<RequestResponseLoggingFilter> loggingFilter() {
         FilterRegistrationBean<RequestResponseLoggingFilter> registrationBean = new FilterRegistrationBean<>();
@@ -31,4 +45,14 @@ public class WebMvcConfig implements WebMvcConfigurer {
 
         return registrationBean;
     }
+
+    @Bean
+    FilterRegistrationBean<DatasetPinningFilter> pinningFilter() {
+        FilterRegistrationBean<DatasetPinningFilter> registrationBean = new FilterRegistrationBean<>();
+
+        registrationBean.setFilter(datasetPinningFilter);
+        registrationBean.addUrlPatterns("/*");
+
+        return registrationBean;
+    }
 }
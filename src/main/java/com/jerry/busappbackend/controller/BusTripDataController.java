@@ -1,41 +1,98 @@
 package com.jerry.busappbackend.controller;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.jerry.busappbackend.exception.InsufficientMemoryException;
 import com.jerry.busappbackend.exception.InvalidGeoJsonException;
+import com.jerry.busappbackend.exception.RenderRejectedException;
 import com.jerry.busappbackend.model.BusTrip;
 import com.jerry.busappbackend.service.BusTripDataProvider;
+import com.jerry.busappbackend.service.DatasetReloadService;
 import com.jerry.busappbackend.service.GeoJsonBuilder;
+import com.jerry.busappbackend.service.GeoJsonBuilder.SequenceFormat;
+import com.jerry.busappbackend.service.GeoJsonResponseCache;
+import com.jerry.busappbackend.service.GeoJsonResponseCache.QueryType;
+import com.jerry.busappbackend.service.GeoJsonValidator;
+import com.jerry.busappbackend.service.MetricsExporter;
+import com.jerry.busappbackend.service.RenderBulkhead;
+import com.jerry.busappbackend.service.VectorTileService;
+import com.jerry.busappbackend.util.RequestTimings;
+import com.jerry.busappbackend.util.RequestTimings.Phase;
+import com.jerry.busappbackend.util.TripSimplifier;
 
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
 /**
  * Controller for handling all bus trip-related data requests.
  * <p>
  * This controller provides endpoints for fetching bus trip data,
  * such as lists of published line names, vehicle references, and detailed trip information
- * in GeoJSON format.
+ * in GeoJSON format. GeoJSON responses carry an ETag, and requests with a matching If-None-Match
+ * header are answered with a 304 without anything being rendered.
+ * <p>
+ * GeoJSON endpoints take an optional {@code zoom} (map zoom level) or {@code tolerance} (maximum error in degrees
+ * of longitude) parameter, which selects a path simplification precomputed by {@link TripSimplifier}.
+ * <p>
+ * GeoJSON endpoints also take an optional {@code format}: "geojson" (default) for a FeatureCollection, or "ndjson"
+ * or "geojsonseq" to stream a feature per line, see {@link SequenceFormat}. Sequences can be paged with
+ * {@code limit} and {@code after}, the cursor of the next page being sent in a Link header.
  */
 @RestController
 public class BusTripDataController {
     private static final Logger logger = LogManager.getLogger(BusTripDataController.class);
 
+    private static final String VECTOR_TILE_MEDIA_TYPE = "application/vnd.mapbox-vector-tile";
+    private static final String PROMETHEUS_MEDIA_TYPE = "text/plain;version=0.0.4;charset=utf-8";
+
     @Autowired
     BusTripDataProvider dataProvider;
     
     @Autowired
     GeoJsonBuilder geoJsonBuilder;
 
+    @Autowired
+    GeoJsonResponseCache responseCache;
+
+    @Autowired
+    GeoJsonValidator geoJsonValidator;
+
+    @Autowired
+    TripSimplifier tripSimplifier;
+
+    @Autowired
+    VectorTileService vectorTileService;
+
+    @Autowired
+    DatasetReloadService reloadService;
+
+    @Autowired
+    MetricsExporter metricsExporter;
+
+    @Autowired
+    RenderBulkhead renderBulkhead;
+
     /**
      * Dummy endpoint to match with remote API that frontend originally uses.
      * 
@@ -74,53 +131,456 @@ public class BusTripDataController {
     }
 
     /**
-     * Fetches bus trip data by vehicle reference and returns it in GeoJSON format.
+     * Retrieves the hit, miss and eviction counts and the size of the response cache, to help size it.
      * 
-     * @param vehicleRef The vehicle reference to query.
      * @param request The HTTP request object.
-     * @return A {@link ResponseEntity} containing the GeoJSON data or an error message.
+     * @return The statistics of the response cache.
      */
-    @GetMapping(value = "getBusTripByVehRef/{vehicleRef}", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<String> getBusTripByVehRef(@PathVariable String vehicleRef, HttpServletRequest request) {
-        List<BusTrip> trips = dataProvider.getTripByVehicleRef(vehicleRef);
+    @GetMapping(value = "/cacheStats", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String, Long> getCacheStats(HttpServletRequest request) {
+        return responseCache.getStats();
+    }
+
+    /**
+     * Retrieves the request and loading latencies, record, trip and cache counters, and heap usage, in the
+     * Prometheus text format, see {@link MetricsExporter}.
+     * 
+     * @param request The HTTP request object.
+     * @return The metrics of the application.
+     */
+    @GetMapping(value = "/metrics", produces = PROMETHEUS_MEDIA_TYPE)
+    public String getMetrics(HttpServletRequest request) {
+        return metricsExporter.export();
+    }
+
+    /**
+     * Starts reloading the data in the background, from another raw data file or the current one. The current
+     * data keeps being served until the new data has been loaded. Only available when
+     * {@code app.data.reload.enabled} is set.
+     * 
+     * @param file The name of the raw data file to load, which must be in {@code app.data.reload.directory},
+     * the current file if omitted.
+     * @param request The HTTP request object.
+     * @return 202 with the reload status if the reload was started, 404 if reloads are disabled, 400 if the file
+     * is not in the data directory, 409 if a reload is already running, or 503 if the new data would not fit in
+     * the heap.
+     */
+    @PostMapping(value = "/admin/reload", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, Object>> reload(@RequestParam(required = false) String file, HttpServletRequest request) {
+        if (!reloadService.isEnabled()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("error", "Reloading is disabled"));
+        }
         try {
-            String geoJson = geoJsonBuilder.build(trips);
-            return ResponseEntity.ok().body(geoJson);
-        } catch (InvalidGeoJsonException e) {
-            logger.error(
-                "Invalid GeoJson was created for: " + vehicleRef + 
-                "\n" + e
-            );
-            return ResponseEntity.internalServerError().body("There was an error");
-        } catch (JsonProcessingException e) {
-            logger.error(e);
-            return ResponseEntity.internalServerError().body("There was an error");
+            reloadService.startReload(file);
+            return ResponseEntity.accepted().body(reloadService.getStatus());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", e.getMessage()));
+        } catch (InsufficientMemoryException e) {
+            logger.warn("Refused reload: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(Map.of("error", e.getMessage()));
         }
     }
-    
+
+    /**
+     * Retrieves whether a reload is running, the raw data file and dataset version being served, and the
+     * outcome of the latest reload.
+     * 
+     * @param request The HTTP request object.
+     * @return The reload status.
+     */
+    @GetMapping(value = "/admin/reload", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String, Object> getReloadStatus(HttpServletRequest request) {
+        return reloadService.getStatus();
+    }
+
     /**
-     * Fetches bus trip data by vehicle reference and returns it in GeoJSON format.
+     * Fetches bus trip data by vehicle reference and streams it to the client in GeoJSON format.
      * 
      * @param vehicleRef The vehicle reference to query.
+     * @param zoom The zoom level of the map, to simplify paths for.
+     * @param tolerance The maximum error of simplified paths, in degrees of longitude, if no zoom is given.
+     * @param format The output format, "geojson", "ndjson" or "geojsonseq".
+     * @param limit The maximum number of features to stream, sequence formats only.
+     * @param after The cursor of the page to stream, from the Link header of the previous page, sequence formats only.
      * @param request The HTTP request object.
-     * @return A {@link ResponseEntity} containing the GeoJSON data or an error message.
+     * @param response The HTTP response the GeoJSON data or an error message is written to.
+     * @throws IOException If the response could not be written.
+     */
+    @GetMapping(value = "getBusTripByVehRef/{vehicleRef}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public void getBusTripByVehRef(
+        @PathVariable String vehicleRef,
+        @RequestParam(required = false) Integer zoom,
+        @RequestParam(required = false) Double tolerance,
+        @RequestParam(defaultValue = GeoJsonResponseCache.FORMAT_GEOJSON) String format,
+        @RequestParam(required = false) Integer limit,
+        @RequestParam(required = false) String after,
+        HttpServletRequest request,
+        HttpServletResponse response
+    ) throws IOException {
+        int level = tripSimplifier.getLevel(zoom, tolerance);
+        writeGeoJson(vehicleRef, level, format, limit, after, () -> responseCache.getGeoJson(QueryType.VEHICLE_REF, vehicleRef, level),
+            () -> dataProvider.getTripByVehicleRef(vehicleRef), request, response);
+    }
+    
+    /**
+     * Fetches bus trip data by published line name and streams it to the client in GeoJSON format.
+     * 
+     * @param publishedLineName The published line name to query.
+     * @param zoom The zoom level of the map, to simplify paths for.
+     * @param tolerance The maximum error of simplified paths, in degrees of longitude, if no zoom is given.
+     * @param format The output format, "geojson", "ndjson" or "geojsonseq".
+     * @param limit The maximum number of features to stream, sequence formats only.
+     * @param after The cursor of the page to stream, from the Link header of the previous page, sequence formats only.
+     * @param request The HTTP request object.
+     * @param response The HTTP response the GeoJSON data or an error message is written to.
+     * @throws IOException If the response could not be written.
      */
     @GetMapping(value = "/getBusTripByPubLineName/{publishedLineName}", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<String> getBusTripByPubLineName(@PathVariable String publishedLineName, HttpServletRequest request) {
-        List<BusTrip> trips = dataProvider.getTripByPublishedLineName(publishedLineName);
+    public void getBusTripByPubLineName(
+        @PathVariable String publishedLineName,
+        @RequestParam(required = false) Integer zoom,
+        @RequestParam(required = false) Double tolerance,
+        @RequestParam(defaultValue = GeoJsonResponseCache.FORMAT_GEOJSON) String format,
+        @RequestParam(required = false) Integer limit,
+        @RequestParam(required = false) String after,
+        HttpServletRequest request,
+        HttpServletResponse response
+    ) throws IOException {
+        int level = tripSimplifier.getLevel(zoom, tolerance);
+        writeGeoJson(publishedLineName, level, format, limit, after, () -> responseCache.getGeoJson(QueryType.PUBLISHED_LINE_NAME, publishedLineName, level),
+            () -> dataProvider.getTripByPublishedLineName(publishedLineName), request, response);
+    }
+
+    /**
+     * Fetches the bus trips active at any time within a time window, optionally only those of a published line,
+     * and streams them to the client in GeoJSON format, ordered by start time. These responses are not cached.
+     * 
+     * @param from Start of the time window, e.g. 2017-06-01T07:00:00.
+     * @param to End of the time window, e.g. 2017-06-01T09:00:00.
+     * @param publishedLineName The published line name to query, all lines if omitted.
+     * @param zoom The zoom level of the map, to simplify paths for.
+     * @param tolerance The maximum error of simplified paths, in degrees of longitude, if no zoom is given.
+     * @param format The output format, "geojson", "ndjson" or "geojsonseq".
+     * @param limit The maximum number of features to stream, sequence formats only.
+     * @param after The cursor of the page to stream, from the Link header of the previous page, sequence formats only.
+     * @param request The HTTP request object.
+     * @param response The HTTP response the GeoJSON data or an error message is written to.
+     * @throws IOException If the response could not be written.
+     */
+    @GetMapping(value = "/getBusTripByTimeWindow", produces = MediaType.APPLICATION_JSON_VALUE)
+    public void getBusTripByTimeWindow(
+        @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+        @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+        @RequestParam(required = false) String publishedLineName,
+        @RequestParam(required = false) Integer zoom,
+        @RequestParam(required = false) Double tolerance,
+        @RequestParam(defaultValue = GeoJsonResponseCache.FORMAT_GEOJSON) String format,
+        @RequestParam(required = false) Integer limit,
+        @RequestParam(required = false) String after,
+        HttpServletRequest request,
+        HttpServletResponse response
+    ) throws IOException {
+        if (from.isAfter(to)) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "from must not be after to");
+            return;
+        }
+        String query = from + "/" + to + (publishedLineName == null ? "" : " " + publishedLineName);
+        writeGeoJson(query, tripSimplifier.getLevel(zoom, tolerance), format, limit, after, null,
+            () -> dataProvider.getTripByTimeWindow(from, to, publishedLineName), request, response);
+    }
+
+    /**
+     * Fetches the bus trips whose path passes through a bounding box, e.g. the viewport of a map, and streams
+     * them to the client in GeoJSON format. These responses are not cached.
+     * 
+     * @param minLongitude West edge of the box.
+     * @param minLatitude South edge of the box.
+     * @param maxLongitude East edge of the box.
+     * @param maxLatitude North edge of the box.
+     * @param from Start of an optional time window, given together with to.
+     * @param to End of an optional time window, given together with from.
+     * @param clip Whether to only return the parts of trips passing through the box, as separate features.
+     * Clipped parts are always returned in full detail.
+     * @param zoom The zoom level of the map, to simplify paths for.
+     * @param tolerance The maximum error of simplified paths, in degrees of longitude, if no zoom is given.
+     * @param format The output format, "geojson", "ndjson" or "geojsonseq".
+     * @param limit The maximum number of features to stream, sequence formats only.
+     * @param after The cursor of the page to stream, from the Link header of the previous page, sequence formats only.
+     * @param request The HTTP request object.
+     * @param response The HTTP response the GeoJSON data or an error message is written to.
+     * @throws IOException If the response could not be written.
+     */
+    @GetMapping(value = "/getBusTripByBoundingBox", produces = MediaType.APPLICATION_JSON_VALUE)
+    public void getBusTripByBoundingBox(
+        @RequestParam double minLongitude,
+        @RequestParam double minLatitude,
+        @RequestParam double maxLongitude,
+        @RequestParam double maxLatitude,
+        @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+        @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+        @RequestParam(defaultValue = "false") boolean clip,
+        @RequestParam(required = false) Integer zoom,
+        @RequestParam(required = false) Double tolerance,
+        @RequestParam(defaultValue = GeoJsonResponseCache.FORMAT_GEOJSON) String format,
+        @RequestParam(required = false) Integer limit,
+        @RequestParam(required = false) String after,
+        HttpServletRequest request,
+        HttpServletResponse response
+    ) throws IOException {
+        if (minLongitude > maxLongitude || minLatitude > maxLatitude) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "Minimum longitude and latitude must not be greater than the maximum");
+            return;
+        }
+        if ((from == null) != (to == null) || (from != null && from.isAfter(to))) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "from and to must be given together, and from must not be after to");
+            return;
+        }
+        String query = "[" + minLongitude + ", " + minLatitude + ", " + maxLongitude + ", " + maxLatitude + "]"
+            + (from == null ? "" : " " + from + "/" + to);
+        writeGeoJson(query, tripSimplifier.getLevel(zoom, tolerance), format, limit, after, null,
+            () -> dataProvider.getTripByBoundingBox(minLongitude, minLatitude, maxLongitude, maxLatitude, from, to, clip),
+            request, response);
+    }
+
+    /**
+     * Fetches the paths of all trips passing through a Web Mercator tile as a Mapbox Vector Tile, with a
+     * "trips" layer of line features. Tiles without trips are empty.
+     * 
+     * @param z The zoom level.
+     * @param x The column of the tile, counting from the west.
+     * @param y The row of the tile, counting from the north.
+     * @param request The HTTP request, checked for an If-None-Match header.
+     * @param response The HTTP response the tile or an error message is written to.
+     * @throws IOException If the response could not be written.
+     */
+    @GetMapping(value = "/tiles/{z}/{x}/{y}", produces = VECTOR_TILE_MEDIA_TYPE)
+    public void getTile(@PathVariable int z, @PathVariable int x, @PathVariable int y, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!vectorTileService.isValidTile(z, x, y)) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "No such tile: " + z + "/" + x + "/" + y);
+            return;
+        }
+
+        RequestTimings.enter(Phase.LOOKUP);
+        String etag = responseCache.getETag(VectorTileService.FORMAT_MVT);
+        response.setHeader(HttpHeaders.ETAG, etag);
+        if (GeoJsonResponseCache.matchesETag(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag)) {
+            response.setStatus(HttpStatus.NOT_MODIFIED.value());
+            return;
+        }
+
+        response.setContentType(VECTOR_TILE_MEDIA_TYPE);
+        byte[] tile;
+        try {
+            tile = vectorTileService.getTile(z, x, y);
+        } catch (RenderRejectedException e) {
+            // Timed out waiting for the same tile rendered by another request
+            sendRejected(z + "/" + x + "/" + y, e, response);
+            return;
+        }
+        RequestTimings.enter(Phase.WRITE);
+        writeBody(tile, response);
+    }
+
+    /**
+     * Writes the GeoJSON for the trips matching a query. The client's copy is revalidated first, then the
+     * response is served from the response cache. If the cache is disabled, the response is streamed straight
+     * to the servlet output stream, unless it is to be validated, which needs the whole response.
+     * Sequence formats are always streamed, see {@link #writeGeoJsonSequence}.
+     * If rendering or writing fails before any of the payload is committed, an error response is sent instead,
+     * and requests that have to render while the {@link RenderBulkhead} is full are answered with a 503.
+     * 
+     * @param query The value that was queried, used for logging.
+     * @param level The simplification level to write the trips at.
+     * @param format The name of the output format.
+     * @param limit The maximum number of features to write, or null for all of them.
+     * @param after The cursor of the page to write, or null for the first page.
+     * @param cached Gets the response from the response cache, or null if the response is not cached.
+     * @param trips Gets the trips to write.
+     * @param request The HTTP request, checked for an If-None-Match header.
+     * @param response The HTTP response to write to.
+     * @throws IOException If the error response could not be written.
+     */
+    private void writeGeoJson(
+        String query,
+        int level,
+        String format,
+        Integer limit,
+        String after,
+        CachedResponse cached,
+        Supplier<List<BusTrip>> trips,
+        HttpServletRequest request,
+        HttpServletResponse response
+    ) throws IOException {
+        SequenceFormat sequenceFormat = SequenceFormat.fromName(format);
+        if (sequenceFormat == null && !format.equals(GeoJsonResponseCache.FORMAT_GEOJSON)) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "Unknown format: " + format);
+            return;
+        }
+        if (sequenceFormat == null && (limit != null || after != null)) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "limit and after are only supported by the ndjson and geojsonseq formats");
+            return;
+        }
+        if (limit != null && limit <= 0) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "limit must be positive");
+            return;
+        }
+
+        RequestTimings.enter(Phase.LOOKUP);
+        String etag = responseCache.getETag(responseCache.getGeoJsonFormat(format, level));
+        response.setHeader(HttpHeaders.ETAG, etag);
+        if (GeoJsonResponseCache.matchesETag(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag)) {
+            response.setStatus(HttpStatus.NOT_MODIFIED.value());
+            return;
+        }
+
+        if (sequenceFormat != null) {
+            writeGeoJsonSequence(query, level, sequenceFormat, limit, after, trips, request, response);
+            return;
+        }
+
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
         try {
-            String geoJson = geoJsonBuilder.build(trips);
-            return ResponseEntity.ok().body(geoJson);
+            if (cached != null && responseCache.isEnabled()) {
+                byte[] body = cached.get();
+                RequestTimings.enter(Phase.WRITE);
+                writeBody(body, response);
+            } else if (geoJsonValidator.shouldValidate()) {
+                List<BusTrip> results = trips.get();
+                byte[] body;
+                try (RenderBulkhead.Permit permit = renderBulkhead.acquire()) {
+                    RequestTimings.enter(Phase.RENDER);
+                    body = geoJsonBuilder.render(results, level);
+                    RequestTimings.enter(Phase.VALIDATE);
+                    geoJsonValidator.validate(body, query);
+                }
+                RequestTimings.enter(Phase.WRITE);
+                writeBody(body, response);
+            } else {
+                List<BusTrip> results = trips.get();
+                try (RenderBulkhead.Permit permit = renderBulkhead.acquire()) {
+                    // Rendered as it is written
+                    RequestTimings.enter(Phase.WRITE);
+                    geoJsonBuilder.write(results, level, response.getOutputStream());
+                }
+            }
+        } catch (RenderRejectedException e) {
+            sendRejected(query, e, response);
         } catch (InvalidGeoJsonException e) {
-            logger.error(
-                "Invalid GeoJson was created for: " + publishedLineName + 
-                "\n" + e
-            );
-            return ResponseEntity.internalServerError().body("There was an error");
-        } catch (JsonProcessingException e) {
-            logger.error(e);
-            return ResponseEntity.internalServerError().body("There was an error");
+            // Already logged by the validator, nothing has been written
+            response.reset();
+            response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+            response.getWriter().write("There was an error");
+        } catch (IOException e) {
+            logger.error("Failed to write GeoJson for: " + query, e);
+            if (response.isCommitted()) {
+                throw e;
+            }
+            response.reset();
+            response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+            response.getWriter().write("There was an error");
         }
     }
-    
+
+    /**
+     * Streams a page of the trips matching a query as a sequence of features, one per line, in chunks.
+     * Nothing is cached or validated, and memory use does not grow with the number of trips written.<br></br>
+     * <br></br>
+     * Cursors hold the position of the next page and the dataset version, as the results of a query may
+     * change with the data. A cursor from another dataset version is answered with a 410, after which the
+     * client starts again from the first page.
+     * 
+     * @param query The value that was queried, used for logging.
+     * @param level The simplification level to write the trips at.
+     * @param format The sequence format to write.
+     * @param limit The maximum number of features to write, or null for all of them.
+     * @param after The cursor of the page to write, or null for the first page.
+     * @param trips Gets the trips to write.
+     * @param request The HTTP request, used to link to the next page.
+     * @param response The HTTP response to write to.
+     * @throws IOException If the error response could not be written.
+     */
+    private void writeGeoJsonSequence(
+        String query,
+        int level,
+        SequenceFormat format,
+        Integer limit,
+        String after,
+        Supplier<List<BusTrip>> trips,
+        HttpServletRequest request,
+        HttpServletResponse response
+    ) throws IOException {
+        int from = 0;
+        if (after != null) {
+            String decoded;
+            try {
+                decoded = new String(Base64.getUrlDecoder().decode(after), StandardCharsets.UTF_8);
+                from = Integer.parseInt(decoded.substring(0, decoded.indexOf(':')));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                response.sendError(HttpStatus.BAD_REQUEST.value(), "Invalid cursor: " + after);
+                return;
+            }
+            if (from < 0) {
+                response.sendError(HttpStatus.BAD_REQUEST.value(), "Invalid cursor: " + after);
+                return;
+            }
+            if (!decoded.substring(decoded.indexOf(':') + 1).equals(dataProvider.getDatasetVersion())) {
+                response.sendError(HttpStatus.GONE.value(), "The data has changed since the cursor was issued, request the first page again");
+                return;
+            }
+        }
+
+        List<BusTrip> results = trips.get();
+        from = Math.min(from, results.size());
+        int to = limit == null ? results.size() : (int) Math.min((long) from + limit, results.size());
+        if (to < results.size()) {
+            String cursor = Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((to + ":" + dataProvider.getDatasetVersion()).getBytes(StandardCharsets.UTF_8));
+            String next = ServletUriComponentsBuilder.fromRequest(request).replaceQueryParam("after", cursor).toUriString();
+            response.setHeader(HttpHeaders.LINK, "<" + next + ">; rel=\"next\"");
+        }
+
+        response.setContentType(format.getMediaType());
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        try (RenderBulkhead.Permit permit = renderBulkhead.acquire()) {
+            RequestTimings.enter(Phase.WRITE);
+            geoJsonBuilder.writeSequence(results.subList(from, to), level, format, response.getOutputStream());
+        } catch (RenderRejectedException e) {
+            sendRejected(query, e, response);
+        } catch (IOException e) {
+            logger.error("Failed to write " + format.getName() + " for: " + query, e);
+            if (response.isCommitted()) {
+                throw e;
+            }
+            response.reset();
+            response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+            response.getWriter().write("There was an error");
+        }
+    }
+
+    /**
+     * Gets a response from the response cache.
+     */
+    @FunctionalInterface
+    private interface CachedResponse {
+        byte[] get() throws InvalidGeoJsonException;
+    }
+
+    /**
+     * Sheds a request the {@link RenderBulkhead} has no room for, with a 503 and a Retry-After header. Nothing
+     * has been written when a request is rejected.
+     */
+    private void sendRejected(String query, RenderRejectedException e, HttpServletResponse response) throws IOException {
+        logger.warn("Rejected render of " + query + ": " + e.getMessage());
+        response.reset();
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(renderBulkhead.getRetryAfterSeconds()));
+        response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value(), "Too many responses are being rendered, retry later");
+    }
+
+    private void writeBody(byte[] body, HttpServletResponse response) throws IOException {
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
 }
@@ -1,25 +1,39 @@
 package com.jerry.busappbackend.entity;
 
 import java.time.LocalDateTime;
+import java.util.function.Function;
 
+import com.jerry.busappbackend.util.Dictionaries;
+import com.jerry.busappbackend.util.StringDictionary;
+import com.opencsv.bean.AbstractBeanField;
 import com.opencsv.bean.CsvBindByName;
+import com.opencsv.bean.CsvCustomBindByName;
 import com.opencsv.bean.CsvDate;
 
+/**
+ * A single row of the raw data file.
+ * <p>
+ * The string columns with few distinct values are stored as codes into the {@link Dictionaries#current() current} dictionaries,
+ * the string getters and setters decode and encode them.
+ */
 public class BusRecordEntity implements Comparable<BusRecordEntity> {
+    /** Code of a null string value */
+    public static final int NULL_CODE = -1;
+
     @CsvBindByName(column = "DirectionRef")
     private int directionRef;
 
-    @CsvBindByName(column = "PublishedLineName")
-    private String publishedLineName;
+    @CsvCustomBindByName(column = "PublishedLineName", converter = PublishedLineNameCodeConverter.class)
+    private int publishedLineNameCode = NULL_CODE;
 
-    @CsvBindByName(column = "VehicleRef")
-    private String vehicleRef;
+    @CsvCustomBindByName(column = "VehicleRef", converter = VehicleRefCodeConverter.class)
+    private int vehicleRefCode = NULL_CODE;
 
-    @CsvBindByName(column = "OriginName")
-    private String originName;
+    @CsvCustomBindByName(column = "OriginName", converter = StopNameCodeConverter.class)
+    private int originNameCode = NULL_CODE;
 
-    @CsvBindByName(column = "DestinationName")
-    private String destinationName;
+    @CsvCustomBindByName(column = "DestinationName", converter = StopNameCodeConverter.class)
+    private int destinationNameCode = NULL_CODE;
 
     @CsvBindByName(column = "VehicleLocation.Latitude")
     private double vehicleLocationLatitude;
@@ -27,8 +41,8 @@ public class BusRecordEntity implements Comparable<BusRecordEntity> {
     @CsvBindByName(column = "VehicleLocation.Longitude")
     private double vehicleLocationLongitude;
 
-    @CsvBindByName(column = "ArrivalProximityText")
-    private String arrivalProximityText;
+    @CsvCustomBindByName(column = "ArrivalProximityText", converter = ArrivalProximityTextCodeConverter.class)
+    private int arrivalProximityTextCode = NULL_CODE;
 
     @CsvBindByName(column = "DistanceFromStop")
     private Integer distanceFromStop;
@@ -48,35 +62,67 @@ public class BusRecordEntity implements Comparable<BusRecordEntity> {
     }
 
     public String getPublishedLineName() {
-        return this.publishedLineName;
+        return decode(Dictionaries.current().getPublishedLineNames(), this.publishedLineNameCode);
     }
 
     public void setPublishedLineName(String publishedLineName) {
-        this.publishedLineName = publishedLineName;
+        this.publishedLineNameCode = encode(Dictionaries.current().getPublishedLineNames(), publishedLineName);
+    }
+
+    public int getPublishedLineNameCode() {
+        return this.publishedLineNameCode;
+    }
+
+    public void setPublishedLineNameCode(int publishedLineNameCode) {
+        this.publishedLineNameCode = publishedLineNameCode;
     }
 
     public String getVehicleRef() {
-        return this.vehicleRef;
+        return decode(Dictionaries.current().getVehicleRefs(), this.vehicleRefCode);
     }
 
     public void setVehicleRef(String vehicleRef) {
-        this.vehicleRef = vehicleRef;
+        this.vehicleRefCode = encode(Dictionaries.current().getVehicleRefs(), vehicleRef);
+    }
+
+    public int getVehicleRefCode() {
+        return this.vehicleRefCode;
+    }
+
+    public void setVehicleRefCode(int vehicleRefCode) {
+        this.vehicleRefCode = vehicleRefCode;
     }
 
     public String getOriginName() {
-        return this.originName;
+        return decode(Dictionaries.current().getStopNames(), this.originNameCode);
     }
 
     public void setOriginName(String originName) {
-        this.originName = originName;
+        this.originNameCode = encode(Dictionaries.current().getStopNames(), originName);
+    }
+
+    public int getOriginNameCode() {
+        return this.originNameCode;
+    }
+
+    public void setOriginNameCode(int originNameCode) {
+        this.originNameCode = originNameCode;
     }
 
     public String getDestinationName() {
-        return this.destinationName;
+        return decode(Dictionaries.current().getStopNames(), this.destinationNameCode);
     }
 
     public void setDestinationName(String destinationName) {
-        this.destinationName = destinationName;
+        this.destinationNameCode = encode(Dictionaries.current().getStopNames(), destinationName);
+    }
+
+    public int getDestinationNameCode() {
+        return this.destinationNameCode;
+    }
+
+    public void setDestinationNameCode(int destinationNameCode) {
+        this.destinationNameCode = destinationNameCode;
     }
 
     public double getVehicleLocationLatitude() {
@@ -96,11 +142,19 @@ public class BusRecordEntity implements Comparable<BusRecordEntity> {
     }
 
     public String getArrivalProximityText() {
-        return this.arrivalProximityText;
+        return decode(Dictionaries.ARRIVAL_PROXIMITY_TEXTS, this.arrivalProximityTextCode);
     }
 
     public void setArrivalProximityText(String arrivalProximityText) {
-        this.arrivalProximityText = arrivalProximityText;
+        this.arrivalProximityTextCode = encode(Dictionaries.ARRIVAL_PROXIMITY_TEXTS, arrivalProximityText);
+    }
+
+    public int getArrivalProximityTextCode() {
+        return this.arrivalProximityTextCode;
+    }
+
+    public void setArrivalProximityTextCode(int arrivalProximityTextCode) {
+        this.arrivalProximityTextCode = arrivalProximityTextCode;
     }
 
     public Integer getDistanceFromStop() {
@@ -122,6 +176,59 @@ public class BusRecordEntity implements Comparable<BusRecordEntity> {
     // ========================================================
 
 
+    // ============================ Dictionary encoding ============================
+
+    private static int encode(StringDictionary dictionary, String value) {
+        return value == null ? NULL_CODE : dictionary.encode(value);
+    }
+
+    private static String decode(StringDictionary dictionary, int code) {
+        return code == NULL_CODE ? null : dictionary.decode(code);
+    }
+
+    /**
+     * Binds a column read by OpenCSV to its code in a dictionary of the {@link Dictionaries#current() current} set.
+     */
+    private abstract static class DictionaryCodeConverter extends AbstractBeanField<BusRecordEntity, String> {
+        private final Function<Dictionaries, StringDictionary> dictionary;
+
+        DictionaryCodeConverter(Function<Dictionaries, StringDictionary> dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        protected Object convert(String value) {
+            return encode(this.dictionary.apply(Dictionaries.current()), value);
+        }
+    }
+
+    public static class PublishedLineNameCodeConverter extends DictionaryCodeConverter {
+        public PublishedLineNameCodeConverter() {
+            super(Dictionaries::getPublishedLineNames);
+        }
+    }
+
+    public static class VehicleRefCodeConverter extends DictionaryCodeConverter {
+        public VehicleRefCodeConverter() {
+            super(Dictionaries::getVehicleRefs);
+        }
+    }
+
+    public static class StopNameCodeConverter extends DictionaryCodeConverter {
+        public StopNameCodeConverter() {
+            super(Dictionaries::getStopNames);
+        }
+    }
+
+    public static class ArrivalProximityTextCodeConverter extends DictionaryCodeConverter {
+        public ArrivalProximityTextCodeConverter() {
+            super(dictionaries -> Dictionaries.ARRIVAL_PROXIMITY_TEXTS);
+        }
+    }
+
+    // ========================================================
+
+
     // ============================ Overrides ============================
     @Override
     public int compareTo(BusRecordEntity o) {
@@ -0,0 +1,7 @@
+package com.jerry.busappbackend.exception;
+
+public class InsufficientMemoryException extends RuntimeException {
+    public InsufficientMemoryException(String message) {
+        super(message);
+    }
+}
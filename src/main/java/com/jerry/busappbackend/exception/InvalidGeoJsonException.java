@@ -10,6 +10,10 @@ public class InvalidGeoJsonException extends Exception {
         super();
     }
 
+    public InvalidGeoJsonException(String message) {
+        super(message);
+    }
+
     public InvalidGeoJsonException(Set<ValidationMessage> validationMessages, JsonNode invalidNode) {
         super(buildExceptionMessage(validationMessages, invalidNode));
     }
@@ -0,0 +1,7 @@
+package com.jerry.busappbackend.exception;
+
+public class RenderRejectedException extends RuntimeException {
+    public RenderRejectedException(String message) {
+        super(message);
+    }
+}
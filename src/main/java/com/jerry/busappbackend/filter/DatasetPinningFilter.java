@@ -0,0 +1,37 @@
+package com.jerry.busappbackend.filter;
+
+import java.io.IOException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.jerry.busappbackend.service.BusTripDataProvider;
+
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+
+/**
+ * Pins the dataset being served for the duration of each request, see {@link BusTripDataProvider#pin()}, so that
+ * e.g. the ETag and the body of a response come from the same dataset, and reloads wait for the request.
+ */
+@Component
+public class DatasetPinningFilter implements Filter {
+
+    @Autowired
+    BusTripDataProvider dataProvider;
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain filterChain) throws IOException, ServletException {
+        boolean pinned = dataProvider.pin();
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            if (pinned) {
+                dataProvider.unpin();
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.jerry.busappbackend.filter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Passes a response straight through to the client, counting the bytes written and keeping a copy of at most
+ * the first {@code maxCapturedBytes} of them for the request log. Unlike {@code ContentCachingResponseWrapper},
+ * nothing is held back, so the memory used does not grow with the size of the response, and streamed responses
+ * are still streamed. Characters written through the writer are captured as characters, and counted once each.
+ */
+class PayloadCapturingResponseWrapper extends HttpServletResponseWrapper {
+
+    private final int maxCapturedBytes;
+
+    private byte[] capturedBytes = new byte[0];
+    private int numCapturedBytes;
+    private StringBuilder capturedChars;
+    private long numWritten;
+    private boolean truncated;
+
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+
+    /**
+     * @param response The response to write to.
+     * @param maxCapturedBytes The maximum number of bytes, or characters, to capture, 0 to only count them.
+     */
+    PayloadCapturingResponseWrapper(HttpServletResponse response, int maxCapturedBytes) {
+        super(response);
+        this.maxCapturedBytes = maxCapturedBytes;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (this.outputStream == null) {
+            this.outputStream = new CapturingOutputStream(super.getOutputStream());
+        }
+        return this.outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (this.writer == null) {
+            this.capturedChars = new StringBuilder();
+            this.writer = new PrintWriter(new CapturingWriter(super.getWriter()));
+        }
+        return this.writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (this.writer != null) {
+            this.writer.flush();
+        }
+        super.flushBuffer();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        discardCaptured();
+    }
+
+    @Override
+    public void resetBuffer() {
+        super.resetBuffer();
+        discardCaptured();
+    }
+
+    /**
+     * @return The number of bytes, or characters if the writer was used, written to the response.
+     */
+    long getNumWritten() {
+        return this.numWritten;
+    }
+
+    /**
+     * @return Whether more was written than was captured.
+     */
+    boolean isTruncated() {
+        return this.truncated;
+    }
+
+    /**
+     * @return The captured bytes, or null if the writer was used.
+     */
+    byte[] getCapturedBytes() {
+        return this.capturedChars == null ? Arrays.copyOf(this.capturedBytes, this.numCapturedBytes) : null;
+    }
+
+    /**
+     * @return The captured characters, or null if the output stream was used.
+     */
+    String getCapturedChars() {
+        return this.capturedChars == null ? null : this.capturedChars.toString();
+    }
+
+    // ================== UTILS ==================
+
+    private void discardCaptured() {
+        this.numCapturedBytes = 0;
+        if (this.capturedChars != null) {
+            this.capturedChars.setLength(0);
+        }
+        this.numWritten = 0;
+        this.truncated = false;
+    }
+
+    private void captureBytes(byte[] bytes, int offset, int length) {
+        this.numWritten += length;
+        int numCaptured = Math.min(length, this.maxCapturedBytes - this.numCapturedBytes);
+        if (numCaptured < length) {
+            this.truncated = true;
+        }
+        if (numCaptured <= 0) {
+            return;
+        }
+        if (this.numCapturedBytes + numCaptured > this.capturedBytes.length) {
+            int capacity = (int) Math.min(this.maxCapturedBytes, Math.max(256L, 2L * (this.numCapturedBytes + numCaptured)));
+            this.capturedBytes = Arrays.copyOf(this.capturedBytes, capacity);
+        }
+        System.arraycopy(bytes, offset, this.capturedBytes, this.numCapturedBytes, numCaptured);
+        this.numCapturedBytes += numCaptured;
+    }
+
+    private void captureChars(char[] chars, int offset, int length) {
+        this.numWritten += length;
+        int numCaptured = Math.min(length, this.maxCapturedBytes - this.capturedChars.length());
+        if (numCaptured < length) {
+            this.truncated = true;
+        }
+        if (numCaptured > 0) {
+            this.capturedChars.append(chars, offset, numCaptured);
+        }
+    }
+
+    private class CapturingOutputStream extends ServletOutputStream {
+        private final ServletOutputStream delegate;
+        private final byte[] single = new byte[1];
+
+        CapturingOutputStream(ServletOutputStream delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.delegate.write(b);
+            this.single[0] = (byte) b;
+            captureBytes(this.single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            this.delegate.write(bytes, offset, length);
+            captureBytes(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.delegate.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return this.delegate.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+            this.delegate.setWriteListener(listener);
+        }
+    }
+
+    private class CapturingWriter extends Writer {
+        private final Writer delegate;
+
+        CapturingWriter(Writer delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            this.delegate.write(chars, offset, length);
+            captureChars(chars, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.delegate.close();
+        }
+    }
+}
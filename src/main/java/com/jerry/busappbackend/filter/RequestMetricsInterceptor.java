@@ -0,0 +1,52 @@
+package com.jerry.busappbackend.filter;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import com.jerry.busappbackend.util.MetricsRegistry;
+import com.jerry.busappbackend.util.MetricsRegistry.Timing;
+import com.jerry.busappbackend.util.RequestTimings;
+import com.jerry.busappbackend.util.RequestTimings.Phase;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Records the time each controller method takes to handle a request, and the time the request spent in each
+ * phase, see {@link RequestTimings}, in the {@link MetricsRegistry}.
+ */
+@Component
+public class RequestMetricsInterceptor implements HandlerInterceptor {
+    private static final String START_ATTRIBUTE = RequestMetricsInterceptor.class.getName() + ".start";
+
+    @Autowired
+    MetricsRegistry metrics;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        request.setAttribute(START_ATTRIBUTE, System.nanoTime());
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception exception) {
+        Object start = request.getAttribute(START_ATTRIBUTE);
+        if (!(handler instanceof HandlerMethod handlerMethod) || start == null) {
+            return;
+        }
+        metrics.record(Timing.REQUEST, handlerMethod.getMethod().getName(), System.nanoTime() - (Long) start);
+
+        RequestTimings timings = RequestTimings.current();
+        if (timings == null || !timings.hasPhases()) {
+            return;
+        }
+        for (Phase phase : Phase.values()) {
+            long nanos = timings.getNanos(phase);
+            if (nanos > 0) {
+                metrics.record(Timing.REQUEST_PHASE, phase.getName(), nanos);
+            }
+        }
+    }
+}
@@ -1,13 +1,24 @@
 package com.jerry.busappbackend.filter;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
-import org.springframework.web.util.ContentCachingResponseWrapper;
 
+import com.jerry.busappbackend.util.RequestTimings;
+import com.jerry.busappbackend.util.RequestTimings.Phase;
+
+import jakarta.annotation.PreDestroy;
 import jakarta.servlet.Filter;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
@@ -16,30 +27,190 @@ import jakarta.servlet.ServletResponse;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
+/**
+ * Logs a line for every request once its response has been written, with its status, size and timings,
+ * see {@link RequestTimings}, as {@code key=value} fields.
+ * <p>
+ * The payload of a sample of the responses is logged too, truncated to a maximum size. Responses are never
+ * held back, the first bytes are copied as they are written, see {@link PayloadCapturingResponseWrapper}.
+ * Logging every payload in full is a debugging mode, as it holds a copy of every response in memory.<br></br>
+ * <br></br>
+ * Lines are formatted and written on a single background thread, so requests never wait on the log. If the
+ * log falls behind and its queue fills up, lines are dropped and counted instead.<br></br>
+ * <br></br>
+ * Configuration:<br></br>
+ * - {@code app.logging.requests.payload-sample-rate}: Fraction of the responses whose payload is logged<br></br>
+ * - {@code app.logging.requests.max-payload-bytes}: Maximum number of bytes of a payload that are logged<br></br>
+ * - {@code app.logging.requests.full-payload}: Whether the payload of every response is logged in full<br></br>
+ * - {@code app.logging.requests.queue-capacity}: Number of lines that can wait to be logged<br></br>
+ */
 @Component
 public class RequestResponseLoggingFilter implements Filter {
-    
+
     private final Logger logger = LogManager.getLogger(RequestResponseLoggingFilter.class);
-    
+
+    private final double payloadSampleRate;
+    private final int maxPayloadBytes;
+    private final boolean fullPayload;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong numDropped = new AtomicLong();
+
+    public RequestResponseLoggingFilter(
+        @Value("${app.logging.requests.payload-sample-rate:0.01}") double payloadSampleRate,
+        @Value("${app.logging.requests.max-payload-bytes:1024}") int maxPayloadBytes,
+        @Value("${app.logging.requests.full-payload:false}") boolean fullPayload,
+        @Value("${app.logging.requests.queue-capacity:4096}") int queueCapacity
+    ) {
+        if (payloadSampleRate < 0 || payloadSampleRate > 1) {
+            throw new IllegalArgumentException("Payload sample rate must be between 0 and 1: " + payloadSampleRate);
+        }
+        if (maxPayloadBytes < 0) {
+            throw new IllegalArgumentException("Maximum payload bytes must not be negative: " + maxPayloadBytes);
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Request log queue capacity must be positive: " + queueCapacity);
+        }
+        this.payloadSampleRate = payloadSampleRate;
+        this.maxPayloadBytes = maxPayloadBytes;
+        this.fullPayload = fullPayload;
+        if (fullPayload) {
+            logger.warn("Logging the full payload of every response, this is slow and holds every response in memory");
+        }
+
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+            runnable -> {
+                Thread thread = new Thread(runnable, "request-log");
+                thread.setDaemon(true);
+                return thread;
+            },
+            (runnable, executor) -> this.numDropped.incrementAndGet()
+        );
+    }
+
     @Override
     public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain filterChain) throws IOException, ServletException {
-        String transactionId = UUID.randomUUID().toString();
+        if (!logger.isInfoEnabled()) {
+            // Still timed for the metrics
+            RequestTimings.start();
+            try {
+                filterChain.doFilter(servletRequest, servletResponse);
+            } finally {
+                RequestTimings.finish();
+            }
+            return;
+        }
+
+        // Not UUID.randomUUID(), which draws from the shared SecureRandom on every request
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String transactionId = new UUID(random.nextLong(), random.nextLong()).toString();
 
         HttpServletRequest request = (HttpServletRequest) servletRequest;
         HttpServletResponse response = (HttpServletResponse) servletResponse;
         response.setHeader("X-Transaction-ID", transactionId);
 
-        ContentCachingResponseWrapper wrappedResponse = new ContentCachingResponseWrapper(response);
-        logger.info(transactionId + " [Request] [" + request.getMethod() + " " + request.getRequestURI() + "] [" + request.getRemoteAddr() + "]");
-        filterChain.doFilter(request, wrappedResponse);
+        int maxCapturedBytes = 0;
+        if (this.fullPayload) {
+            maxCapturedBytes = Integer.MAX_VALUE;
+        } else if (this.payloadSampleRate > 0 && random.nextDouble() < this.payloadSampleRate) {
+            maxCapturedBytes = this.maxPayloadBytes;
+        }
+        PayloadCapturingResponseWrapper wrappedResponse = new PayloadCapturingResponseWrapper(response, maxCapturedBytes);
+
+        RequestTimings.start();
+        try {
+            filterChain.doFilter(request, wrappedResponse);
+            wrappedResponse.flushBuffer();
+        } finally {
+            RequestTimings timings = RequestTimings.finish();
+            LogEntry entry = new LogEntry(
+                transactionId,
+                request.getMethod(),
+                request.getRequestURI(),
+                request.getRemoteAddr(),
+                response.getStatus(),
+                wrappedResponse.getNumWritten(),
+                timings,
+                maxCapturedBytes > 0,
+                wrappedResponse.getCapturedBytes(),
+                wrappedResponse.getCapturedChars(),
+                wrappedResponse.getCharacterEncoding(),
+                wrappedResponse.isTruncated()
+            );
+            this.executor.execute(() -> log(entry));
+        }
+    }
+
+    @PreDestroy
+    private void stop() throws InterruptedException {
+        // Lines already queued are still logged
+        this.executor.shutdown();
+        this.executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    // ================== UTILS ==================
+
+    /**
+     * Everything logged about a request, taken from the request thread as is, to be formatted on the log thread.
+     */
+    private record LogEntry(
+        String transactionId,
+        String method,
+        String uri,
+        String remoteAddress,
+        int status,
+        long numWritten,
+        RequestTimings timings,
+        boolean sampled,
+        byte[] payloadBytes,
+        String payloadChars,
+        String characterEncoding,
+        boolean truncated
+    ) {}
 
-        byte[] responseData = wrappedResponse.getContentAsByteArray();
-        String responseBody = new String(responseData, wrappedResponse.getCharacterEncoding());
+    private void log(LogEntry entry) {
+        StringBuilder line = new StringBuilder(256)
+            .append("transactionId=").append(entry.transactionId())
+            .append(" method=").append(entry.method())
+            .append(" uri=").append(entry.uri())
+            .append(" remote=").append(entry.remoteAddress())
+            .append(" status=").append(entry.status())
+            .append(" bytes=").append(entry.numWritten());
+        appendMillis(line, "totalMs", entry.timings().getTotalNanos());
+        if (entry.timings().hasPhases()) {
+            for (Phase phase : Phase.values()) {
+                appendMillis(line, phase.getName() + "Ms", entry.timings().getNanos(phase));
+            }
+        }
+
+        long dropped = this.numDropped.getAndSet(0);
+        if (dropped > 0) {
+            line.append(" droppedLines=").append(dropped);
+        }
+
+        if (!entry.sampled()) {
+            logger.info(line.toString());
+            return;
+        }
+        String payload = entry.payloadChars() != null
+            ? entry.payloadChars()
+            : new String(entry.payloadBytes(), getCharset(entry.characterEncoding()));
+        line.append(" truncated=").append(entry.truncated()).append('\n')
+            .append("================ PAYLOAD START ================\n")
+            .append(payload).append('\n')
+            .append("================= PAYLOAD END =================\n");
+        logger.info(line.toString());
+    }
+
+    private static void appendMillis(StringBuilder line, String key, long nanos) {
+        line.append(' ').append(key).append('=').append(String.format("%.3f", nanos / 1e6));
+    }
 
-        logger.info(transactionId + " [Response] [" + wrappedResponse.getStatus() + "]\n" + 
-        "================ PAYLOAD START ================\n" +
-        "{}\n" + 
-        "================= PAYLOAD END =================\n", responseBody);
-        wrappedResponse.copyBodyToResponse();
+    private static Charset getCharset(String characterEncoding) {
+        try {
+            return characterEncoding == null ? StandardCharsets.ISO_8859_1 : Charset.forName(characterEncoding);
+        } catch (IllegalArgumentException e) {
+            return StandardCharsets.ISO_8859_1;
+        }
     }
 }
@@ -1,35 +1,46 @@
 package com.jerry.busappbackend.model;
 
 import java.time.LocalDateTime;
-import java.util.Arrays;
+import java.time.ZoneOffset;
 import java.util.List;
 
 import com.jerry.busappbackend.entity.BusRecordEntity;
 import com.jerry.busappbackend.util.Columns;
+import com.jerry.busappbackend.util.Dictionaries;
 
 /**
  * Represents a bus trip constructed from a series of bus record entities. This model encapsulates
  * details about a specific bus route segment, including the vehicle, route, and timestamps
  * associated with its journey, as well as detailed geographic coordinates for the trip.
  * <p>
- * This class provides methods to access properties such as the line name, vehicle reference,
- * direction, origin and destination names, start and end times, and detailed coordinates
- * of each point along the trip's path.
+ * The points of the trip are stored column by column in primitive arrays:<br></br>
+ * - Longitude and latitude as doubles<br></br>
+ * - Expected arrival time as epoch seconds (UTC)<br></br>
+ * - Distance from the next stop as an int<br></br>
+ * - Arrival proximity text as a code into {@link Dictionaries#ARRIVAL_PROXIMITY_TEXTS}<br></br>
+ * <p>
+ * The columns are created on the heap, and may then be moved by
+ * {@link com.jerry.busappbackend.util.TripPointStorage}, e.g. outside the heap, before the trip is served.
+ * <p>
+ * No display strings are held, they are produced when the trip is serialized.
  */
 public class BusTrip {
+    // Object header and fields of a trip, and the header of each of its arrays
+    private static final long TRIP_OVERHEAD_BYTES = 64;
+    private static final long ARRAY_OVERHEAD_BYTES = 16;
+
     private final String publishedLineName;
     private final String vehicleRef;
     private final int directionRef;
- 
+
     private final String originName;
     private final String destinationName;
 
-    private final LocalDateTime startTime;
-    private final LocalDateTime endTime;
+    private TripPoints points;
+
+    // Indexes of the points kept at each simplification level, null where every point is kept
+    private int[][] simplifiedPoints;
 
-    private final double[][] coords;
-    private final String[][] allPointInfo;
-    
     /**
      * Constructs a new BusTrip object based on a list of BusRecordEntity objects.
      * Each record is assumed to be part of the same trip. The constructor aggregates
@@ -39,63 +50,191 @@ public class BusTrip {
      * @throws IllegalArgumentException if tripRecords is empty
      */
     public BusTrip(List<BusRecordEntity> tripRecords) {
+        if (tripRecords.isEmpty()) {
+            throw new IllegalArgumentException("A trip must have at least one record");
+        }
         BusRecordEntity firstRecord = tripRecords.get(0);
-        
+
         this.publishedLineName = firstRecord.getPublishedLineName();
         this.vehicleRef = firstRecord.getVehicleRef();
         this.directionRef = firstRecord.getDirectionRef();
         this.originName = firstRecord.getOriginName();
         this.destinationName = firstRecord.getDestinationName();
-        this.startTime = tripRecords.get(0).getExpectedArrivalTime();
-        this.endTime = tripRecords.get(tripRecords.size() - 1).getExpectedArrivalTime();
 
         int numRecords = tripRecords.size();
 
-        coords = new double[numRecords][2];
-        allPointInfo = new String[8 + (numRecords * 4)][2];
-
-        allPointInfo[0][0] = "VehicleRef";
-        allPointInfo[0][1] = this.vehicleRef;
-
-        allPointInfo[1][0] = "PublishedLineName";
-        allPointInfo[1][1] = this.publishedLineName;
+        double[] longitudes = new double[numRecords];
+        double[] latitudes = new double[numRecords];
+        long[] arrivalTimes = new long[numRecords];
+        int[] distancesFromStop = new int[numRecords];
+        short[] arrivalProximityCodes = new short[numRecords];
 
-        allPointInfo[2][0] = "DirectionRef";
-        allPointInfo[2][1] = this.directionRef + "";
-
-        allPointInfo[3][0] = "OriginName";
-        allPointInfo[3][1] = this.originName;
+        for (int i = 0; i < numRecords; i++) {
+            BusRecordEntity record = tripRecords.get(i);
 
-        allPointInfo[4][0] = "DestinationName";
-        allPointInfo[4][1] = this.destinationName;
+            longitudes[i] = record.getVehicleLocationLongitude();
+            latitudes[i] = record.getVehicleLocationLatitude();
+            arrivalTimes[i] = record.getExpectedArrivalTime().toEpochSecond(ZoneOffset.UTC);
+            distancesFromStop[i] = record.getDistanceFromStop();
+            arrivalProximityCodes[i] = (short) record.getArrivalProximityTextCode();
+        }
+        this.points = new HeapTripPoints(longitudes, latitudes, arrivalTimes, distancesFromStop, arrivalProximityCodes);
+    }
 
-        allPointInfo[5][0] = "StartTime";
-        allPointInfo[5][1] = this.startTime.toString();
+    /**
+     * Constructs a new BusTrip object from its point columns, e.g. when restoring a trip from a snapshot.
+     * The arrays are used as is and must all have the same, non zero, length.
+     *
+     * @param arrivalTimes Expected arrival times as epoch seconds (UTC).
+     * @param arrivalProximityTexts Codes returned by {@link #encodeArrivalProximityText(String)}.
+     */
+    public BusTrip(
+        String publishedLineName,
+        String vehicleRef,
+        int directionRef,
+        String originName,
+        String destinationName,
+        double[] longitudes,
+        double[] latitudes,
+        long[] arrivalTimes,
+        int[] distancesFromStop,
+        short[] arrivalProximityTexts
+    ) {
+        if (longitudes.length == 0) {
+            throw new IllegalArgumentException("A trip must have at least one point");
+        }
+        this.publishedLineName = publishedLineName;
+        this.vehicleRef = vehicleRef;
+        this.directionRef = directionRef;
+        this.originName = originName;
+        this.destinationName = destinationName;
+        this.points = new HeapTripPoints(longitudes, latitudes, arrivalTimes, distancesFromStop, arrivalProximityTexts);
+    }
 
-        allPointInfo[6][0] = "EndTime";
-        allPointInfo[6][1] = this.endTime.toString();
+    /**
+     * Creates a trip made up of a range of this trip's points, e.g. the part of the trip within an area.
+     *
+     * @param fromPoint The first point of the range.
+     * @param toPoint The last point of the range, inclusive.
+     * @return A new trip with the same details and the points of the range, without simplified paths.
+     */
+    public BusTrip slice(int fromPoint, int toPoint) {
+        if (fromPoint < 0 || toPoint >= getNumPoints() || fromPoint > toPoint) {
+            throw new IndexOutOfBoundsException("Range [" + fromPoint + ", " + toPoint + "] out of bounds for length " + getNumPoints());
+        }
+        int numPoints = toPoint - fromPoint + 1;
+        double[] longitudes = new double[numPoints];
+        double[] latitudes = new double[numPoints];
+        long[] arrivalTimes = new long[numPoints];
+        int[] distancesFromStop = new int[numPoints];
+        short[] arrivalProximityCodes = new short[numPoints];
+        PointCursor cursor = cursor();
+        for (int point = 0; point < numPoints; point++) {
+            cursor.moveTo(fromPoint + point);
+            longitudes[point] = cursor.getLongitude();
+            latitudes[point] = cursor.getLatitude();
+            arrivalTimes[point] = cursor.getArrivalTime();
+            distancesFromStop[point] = cursor.getDistanceFromStop();
+            arrivalProximityCodes[point] = cursor.getArrivalProximityCode();
+        }
 
-        allPointInfo[7][0] = "NumOfPoints";
-        allPointInfo[7][1] = this.coords.length + "";
+        return new BusTrip(
+            this.publishedLineName,
+            this.vehicleRef,
+            this.directionRef,
+            this.originName,
+            this.destinationName,
+            longitudes,
+            latitudes,
+            arrivalTimes,
+            distancesFromStop,
+            arrivalProximityCodes
+        );
+    }
 
-        for (int i = 0; i < numRecords; i++) {
-            BusRecordEntity record = tripRecords.get(i);
+    /**
+     * Creates a trip made up of this trip's points and the points of more records of the same trip, e.g. records
+     * received after the trip was created. Points are merged by expected arrival time, with this trip's points
+     * first when times are equal.
+     *
+     * @param tripRecords The records to add, sorted by expected arrival time.
+     * @return A new trip with the same details and the merged points, without simplified paths.
+     */
+    public BusTrip extend(List<BusRecordEntity> tripRecords) {
+        BusTrip added = new BusTrip(tripRecords);
+        int numPoints = getNumPoints() + added.getNumPoints();
+        double[] longitudes = new double[numPoints];
+        double[] latitudes = new double[numPoints];
+        long[] arrivalTimes = new long[numPoints];
+        int[] distancesFromStop = new int[numPoints];
+        short[] arrivalProximityCodes = new short[numPoints];
+
+        PointCursor existing = cursor();
+        PointCursor adding = added.cursor();
+        existing.moveTo(0);
+        adding.moveTo(0);
+        int i = 0;
+        int j = 0;
+        for (int point = 0; point < numPoints; point++) {
+            PointCursor source;
+            if (j == added.getNumPoints() || (i < getNumPoints() && existing.getArrivalTime() <= adding.getArrivalTime())) {
+                source = existing;
+                i++;
+            } else {
+                source = adding;
+                j++;
+            }
+            longitudes[point] = source.getLongitude();
+            latitudes[point] = source.getLatitude();
+            arrivalTimes[point] = source.getArrivalTime();
+            distancesFromStop[point] = source.getDistanceFromStop();
+            arrivalProximityCodes[point] = source.getArrivalProximityCode();
+            if (source == existing && i < getNumPoints()) {
+                existing.moveTo(i);
+            } else if (source == adding && j < added.getNumPoints()) {
+                adding.moveTo(j);
+            }
+        }
 
-            coords[i][0] = record.getVehicleLocationLongitude(); // long
-            coords[i][1] = record.getVehicleLocationLatitude(); // lat
-            
-            this.allPointInfo[i * 4 + 8][0] = "Point " + (i + 1) + " geom";
-            this.allPointInfo[i * 4 + 8][1] = "MyLatLong(longitude=" + record.getVehicleLocationLongitude() + ", latitude=" + record.getVehicleLocationLatitude() + ")";
+        return new BusTrip(
+            this.publishedLineName,
+            this.vehicleRef,
+            this.directionRef,
+            this.originName,
+            this.destinationName,
+            longitudes,
+            latitudes,
+            arrivalTimes,
+            distancesFromStop,
+            arrivalProximityCodes
+        );
+    }
 
-            this.allPointInfo[(i * 4) + 9][0] = "Point " + (i + 1) + " arrival";
-            this.allPointInfo[(i * 4) + 9][1] = record.getArrivalProximityText();
+    /**
+     * @param text An arrival proximity text, e.g. "approaching", may be null.
+     * @return The code of the text in {@link Dictionaries#ARRIVAL_PROXIMITY_TEXTS}, or
+     * {@link BusRecordEntity#NULL_CODE} if the text is null.
+     */
+    public static short encodeArrivalProximityText(String text) {
+        return text == null ? BusRecordEntity.NULL_CODE : (short) Dictionaries.ARRIVAL_PROXIMITY_TEXTS.encode(text);
+    }
 
-            this.allPointInfo[(i * 4) + 10][0] = "Point " + (i + 1) + " dist from stop";
-            this.allPointInfo[(i * 4) + 10][1] = record.getDistanceFromStop() + ""; 
+    /**
+     * @param code A code returned by {@link #encodeArrivalProximityText(String)}.
+     * @return The arrival proximity text of the code, or null if the code is {@link BusRecordEntity#NULL_CODE}.
+     */
+    static String decodeArrivalProximityText(short code) {
+        return code == BusRecordEntity.NULL_CODE ? null : Dictionaries.ARRIVAL_PROXIMITY_TEXTS.decode(code);
+    }
 
-            this.allPointInfo[(i * 4) + 11][0] = "Point " + (i + 1) + " time";
-            this.allPointInfo[(i * 4) + 11][1] = record.getExpectedArrivalTime().toString();
-        }
+    /**
+     * Formats epoch seconds (UTC) the same way as {@link LocalDateTime#toString()}, e.g. "2017-06-01T07:13:42".
+     *
+     * @param epochSecond The time to format.
+     * @return The formatted time.
+     */
+    public static String formatTime(long epochSecond) {
+        return LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC).toString();
     }
 
     public String getPublishedLineName() {
@@ -122,56 +261,149 @@ public class BusTrip {
 
 
     public LocalDateTime getStartTime() {
-        return this.startTime;
+        return LocalDateTime.ofEpochSecond(getStartEpochSecond(), 0, ZoneOffset.UTC);
     }
 
     public LocalDateTime getEndTime() {
-        return this.endTime;
+        return LocalDateTime.ofEpochSecond(getEndEpochSecond(), 0, ZoneOffset.UTC);
     }
 
-    public double[][] getCoords() {
-        return this.coords;
+    public long getStartEpochSecond() {
+        return this.points.getArrivalTime(0);
     }
 
-    public String[][] getAllPointInfo() {
-        return this.allPointInfo;
+    public long getEndEpochSecond() {
+        return this.points.getArrivalTime(this.points.size() - 1);
     }
 
+    public int getNumPoints() {
+        return this.points.size();
+    }
 
-    private String coordToString() {
-        StringBuilder result = new StringBuilder();
-        result.append("[\n"); 
-        for (double[] coord : coords) {
-            result.append("\t" + Arrays.toString(coord) + "\n");
+    public double getLongitude(int point) {
+        return this.points.getLongitude(point);
+    }
+
+    public double getLatitude(int point) {
+        return this.points.getLatitude(point);
+    }
+
+    /**
+     * @return The expected arrival time of a point as epoch seconds (UTC).
+     */
+    public long getArrivalTime(int point) {
+        return this.points.getArrivalTime(point);
+    }
+
+    public int getDistanceFromStop(int point) {
+        return this.points.getDistanceFromStop(point);
+    }
+
+    public String getArrivalProximityText(int point) {
+        return decodeArrivalProximityText(getArrivalProximityCode(point));
+    }
+
+    /**
+     * @return The code of a point's arrival proximity text, see {@link #encodeArrivalProximityText(String)}.
+     */
+    public short getArrivalProximityCode(int point) {
+        return this.points.getArrivalProximityCode(point);
+    }
+
+    /**
+     * @return A cursor over the points of this trip, to read them in order. Reading points in order through a
+     * cursor is cheaper than by index when the points are compressed.
+     */
+    public PointCursor cursor() {
+        return this.points.cursor();
+    }
+
+    TripPoints getPoints() {
+        return this.points;
+    }
+
+    /**
+     * @param points The same points in another storage, set before the trip is served.
+     */
+    void setPoints(TripPoints points) {
+        if (points.size() != this.points.size()) {
+            throw new IllegalArgumentException("Expected " + this.points.size() + " points, got " + points.size());
         }
-        result.append("]\n");
-        return result.toString();
+        this.points = points;
     }
 
-    private String pointInfoToString() {
-        StringBuilder result = new StringBuilder();
-        for (String[] pointInfo : allPointInfo) {
-            result.append(Arrays.toString(pointInfo) + "\n");
+    /**
+     * @param simplifiedPoints The indexes of the points kept at each simplification level, see
+     * {@link com.jerry.busappbackend.util.TripSimplifier}. A level may be null if it keeps every point.
+     */
+    public void setSimplifiedPoints(int[][] simplifiedPoints) {
+        this.simplifiedPoints = simplifiedPoints;
+    }
+
+    /**
+     * @param level A simplification level, or {@link com.jerry.busappbackend.util.TripSimplifier#FULL_DETAIL}.
+     * @return The indexes of the points kept at the level, in order, or null if every point is kept.
+     */
+    public int[] getSimplifiedPoints(int level) {
+        int[][] levels = this.simplifiedPoints;
+        if (level < 0 || levels == null || level >= levels.length) {
+            return null;
         }
+        return levels[level];
+    }
 
-        
-        return result.substring(0, result.length() - 1);
+    /**
+     * Estimates the heap retained by this trip, excluding the strings shared with other trips and points stored
+     * outside the heap, see {@link #getOffHeapBytes()}.
+     *
+     * @return The estimated size in bytes.
+     */
+    public long estimateRetainedBytes() {
+        long bytes = TRIP_OVERHEAD_BYTES + this.points.estimateHeapBytes();
+        int[][] levels = this.simplifiedPoints;
+        if (levels != null) {
+            bytes += ARRAY_OVERHEAD_BYTES + (long) levels.length * Long.BYTES;
+            for (int[] level : levels) {
+                if (level != null) {
+                    bytes += ARRAY_OVERHEAD_BYTES + (long) level.length * Integer.BYTES;
+                }
+            }
+        }
+        return bytes;
     }
-    
+
+    /**
+     * @return The native memory taken by this trip's points outside the heap, in bytes.
+     */
+    public long getOffHeapBytes() {
+        return this.points.getOffHeapBytes();
+    }
+
+
+    private String pointsToString() {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < getNumPoints(); i++) {
+            result.append("\t[" + getLongitude(i) + ", " + getLatitude(i) + "] " +
+                getArrivalProximityText(i) + ", " +
+                getDistanceFromStop(i) + ", " +
+                formatTime(getArrivalTime(i)) + "\n");
+        }
+        return result.toString();
+    }
+
 
     @Override
     public String toString() {
         return (
-            "\n\n\n ================================================\n" + 
+            "\n\n\n ================================================\n" +
             Columns.VehicleRef.getColumnName() + ": " + this.vehicleRef + "\n" +
             Columns.PublishedLineName.getColumnName() + ": " + this.publishedLineName + "\n" +
             Columns.DirectionRef.getColumnName() + ": " + this.directionRef + "\n" +
             Columns.OriginName.getColumnName() + ": " + this.originName + "\n" +
             Columns.DestinationName.getColumnName() + ": " + this.destinationName + "\n" +
-            "Start time: " + this.startTime + "\n" +
-            "End time: " + this.endTime + "\n" +
-            "Coords: \n" + coordToString() +
-            pointInfoToString()            
+            "Start time: " + getStartTime() + "\n" +
+            "End time: " + getEndTime() + "\n" +
+            "Points: \n" + pointsToString()
         );
     }
 }
@@ -0,0 +1,252 @@
+package com.jerry.busappbackend.model;
+
+import java.util.Arrays;
+
+/**
+ * Points compressed into a byte array, using that consecutive points of a trip are close in space and time.
+ * <p>
+ * Each value is stored as a zig-zag encoded varint:<br></br>
+ * - Longitude and latitude as fixed-point integers of 1e-6 degrees (~0.1m), so coordinates are rounded to
+ * 6 decimals<br></br>
+ * - Arrival time as epoch seconds<br></br>
+ * - Distance from the next stop<br></br>
+ * - Arrival proximity code, which is stored as is<br></br>
+ * <br></br>
+ * Points are stored one after another in blocks of {@link #BLOCK_SIZE}. The first point of a block is stored
+ * with its values, and the other points with the difference from the previous point, which mostly takes 1 or 2
+ * bytes per value, so a point takes ~8 bytes rather than 30. A point is read by decoding its block up to the
+ * point, or by a {@link #cursor()}, which only decodes each point once when moving forward.
+ */
+public final class CompressedTripPoints implements TripPoints {
+    static final int BLOCK_SIZE = 16;
+    private static final double FIXED_POINT_SCALE = 1e6;
+
+    // Object header and fields, and the headers of the arrays
+    private static final long OBJECT_OVERHEAD_BYTES = 32;
+    private static final long ARRAY_OVERHEAD_BYTES = 16;
+
+    private final byte[] data;
+    // Offset in the data of the first point of each block
+    private final int[] blockOffsets;
+    private final int size;
+
+    private CompressedTripPoints(byte[] data, int[] blockOffsets, int size) {
+        this.data = data;
+        this.blockOffsets = blockOffsets;
+        this.size = size;
+    }
+
+    /**
+     * Compresses the points of a trip. The trip must not be served yet, as its points are replaced without
+     * synchronization.
+     *
+     * @param trip The trip, whose points are kept as they are until it is compressed.
+     */
+    public static void store(BusTrip trip) {
+        if (!(trip.getPoints() instanceof CompressedTripPoints)) {
+            trip.setPoints(encode(trip.getPoints()));
+        }
+    }
+
+    static CompressedTripPoints encode(TripPoints points) {
+        int size = points.size();
+        Writer writer = new Writer(size * 10);
+        int[] blockOffsets = new int[(size + BLOCK_SIZE - 1) / BLOCK_SIZE];
+
+        long previousLongitude = 0;
+        long previousLatitude = 0;
+        long previousTime = 0;
+        long previousDistance = 0;
+        for (int i = 0; i < size; i++) {
+            long longitude = toFixedPoint(points.getLongitude(i));
+            long latitude = toFixedPoint(points.getLatitude(i));
+            long time = points.getArrivalTime(i);
+            long distance = points.getDistanceFromStop(i);
+            if (i % BLOCK_SIZE == 0) {
+                blockOffsets[i / BLOCK_SIZE] = writer.size;
+                previousLongitude = 0;
+                previousLatitude = 0;
+                previousTime = 0;
+                previousDistance = 0;
+            }
+            writer.writeSigned(longitude - previousLongitude);
+            writer.writeSigned(latitude - previousLatitude);
+            writer.writeSigned(time - previousTime);
+            writer.writeSigned(distance - previousDistance);
+            writer.writeUnsigned(points.getArrivalProximityCode(i) & 0xFFFF);
+            previousLongitude = longitude;
+            previousLatitude = latitude;
+            previousTime = time;
+            previousDistance = distance;
+        }
+        return new CompressedTripPoints(Arrays.copyOf(writer.buffer, writer.size), blockOffsets, size);
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public double getLongitude(int point) {
+        return decode(point).getLongitude();
+    }
+
+    @Override
+    public double getLatitude(int point) {
+        return decode(point).getLatitude();
+    }
+
+    @Override
+    public long getArrivalTime(int point) {
+        return decode(point).getArrivalTime();
+    }
+
+    @Override
+    public int getDistanceFromStop(int point) {
+        return decode(point).getDistanceFromStop();
+    }
+
+    @Override
+    public short getArrivalProximityCode(int point) {
+        return decode(point).getArrivalProximityCode();
+    }
+
+    @Override
+    public PointCursor cursor() {
+        return new Cursor();
+    }
+
+    @Override
+    public long estimateHeapBytes() {
+        return OBJECT_OVERHEAD_BYTES + 2 * ARRAY_OVERHEAD_BYTES + this.data.length + (long) this.blockOffsets.length * Integer.BYTES;
+    }
+
+    @Override
+    public long getOffHeapBytes() {
+        return 0;
+    }
+
+    // ================== UTILS ==================
+
+    private PointCursor decode(int point) {
+        PointCursor cursor = new Cursor();
+        cursor.moveTo(point);
+        return cursor;
+    }
+
+    private static long toFixedPoint(double degrees) {
+        return Math.round(degrees * FIXED_POINT_SCALE);
+    }
+
+    /**
+     * Decodes the points in order, from the start of a block when moving to another block or backwards.
+     */
+    private final class Cursor extends PointCursor {
+        private int point = -1;
+        private int offset;
+        private long longitude;
+        private long latitude;
+        private long time;
+        private long distance;
+        private int proximityCode;
+
+        @Override
+        public void moveTo(int point) {
+            if (point < 0 || point >= size) {
+                throw new IndexOutOfBoundsException("Point " + point + " out of bounds for length " + size);
+            }
+            if (point < this.point || point / BLOCK_SIZE != this.point / BLOCK_SIZE || this.point < 0) {
+                int block = point / BLOCK_SIZE;
+                this.offset = blockOffsets[block];
+                this.point = block * BLOCK_SIZE;
+                this.longitude = 0;
+                this.latitude = 0;
+                this.time = 0;
+                this.distance = 0;
+                readPoint();
+            }
+            while (this.point < point) {
+                this.point++;
+                readPoint();
+            }
+        }
+
+        private void readPoint() {
+            this.longitude += readSigned();
+            this.latitude += readSigned();
+            this.time += readSigned();
+            this.distance += readSigned();
+            this.proximityCode = (int) readUnsigned();
+        }
+
+        private long readSigned() {
+            long value = readUnsigned();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readUnsigned() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[this.offset++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        @Override
+        public double getLongitude() {
+            return this.longitude / FIXED_POINT_SCALE;
+        }
+
+        @Override
+        public double getLatitude() {
+            return this.latitude / FIXED_POINT_SCALE;
+        }
+
+        @Override
+        public long getArrivalTime() {
+            return this.time;
+        }
+
+        @Override
+        public int getDistanceFromStop() {
+            return (int) this.distance;
+        }
+
+        @Override
+        public short getArrivalProximityCode() {
+            return (short) this.proximityCode;
+        }
+    }
+
+    /**
+     * Growable buffer of varints.
+     */
+    private static final class Writer {
+        private byte[] buffer;
+        private int size;
+
+        Writer(int capacity) {
+            this.buffer = new byte[Math.max(16, capacity)];
+        }
+
+        void writeSigned(long value) {
+            writeUnsigned((value << 1) ^ (value >> 63));
+        }
+
+        void writeUnsigned(long value) {
+            if (this.size + 10 > this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+            }
+            while ((value & ~0x7FL) != 0) {
+                this.buffer[this.size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            this.buffer[this.size++] = (byte) value;
+        }
+    }
+}
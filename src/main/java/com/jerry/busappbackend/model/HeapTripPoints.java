@@ -0,0 +1,68 @@
+package com.jerry.busappbackend.model;
+
+/**
+ * Points stored column by column in primitive arrays on the heap, the default storage mode.
+ */
+final class HeapTripPoints implements TripPoints {
+    private static final long OBJECT_OVERHEAD_BYTES = 32;
+    private static final long ARRAY_OVERHEAD_BYTES = 16;
+    private static final int NUM_ARRAYS = 5;
+    static final int BYTES_PER_POINT = Double.BYTES * 2 + Long.BYTES + Integer.BYTES + Short.BYTES;
+
+    final double[] longitudes;
+    final double[] latitudes;
+    final long[] arrivalTimes;
+    final int[] distancesFromStop;
+    final short[] arrivalProximityCodes;
+
+    /**
+     * The arrays are used as is and must all have the same length.
+     */
+    HeapTripPoints(double[] longitudes, double[] latitudes, long[] arrivalTimes, int[] distancesFromStop, short[] arrivalProximityCodes) {
+        this.longitudes = longitudes;
+        this.latitudes = latitudes;
+        this.arrivalTimes = arrivalTimes;
+        this.distancesFromStop = distancesFromStop;
+        this.arrivalProximityCodes = arrivalProximityCodes;
+    }
+
+    @Override
+    public int size() {
+        return this.longitudes.length;
+    }
+
+    @Override
+    public double getLongitude(int point) {
+        return this.longitudes[point];
+    }
+
+    @Override
+    public double getLatitude(int point) {
+        return this.latitudes[point];
+    }
+
+    @Override
+    public long getArrivalTime(int point) {
+        return this.arrivalTimes[point];
+    }
+
+    @Override
+    public int getDistanceFromStop(int point) {
+        return this.distancesFromStop[point];
+    }
+
+    @Override
+    public short getArrivalProximityCode(int point) {
+        return this.arrivalProximityCodes[point];
+    }
+
+    @Override
+    public long estimateHeapBytes() {
+        return OBJECT_OVERHEAD_BYTES + NUM_ARRAYS * ARRAY_OVERHEAD_BYTES + (long) size() * BYTES_PER_POINT;
+    }
+
+    @Override
+    public long getOffHeapBytes() {
+        return 0;
+    }
+}
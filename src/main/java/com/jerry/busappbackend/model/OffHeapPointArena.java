@@ -0,0 +1,64 @@
+package com.jerry.busappbackend.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates the points of trips outside the heap, in direct byte buffers of a fixed size ("chunks"), filled one
+ * trip after another. Points outside the heap are not copied or scanned by the garbage collector, and do not
+ * count towards the heap size.
+ * <p>
+ * The arena only keeps the chunk being filled. A full chunk is referenced by the trips in it, and its memory is
+ * released once all of them have been collected, e.g. after a reload. The space of a trip replaced by ingest,
+ * when it is extended, is only released with the rest of its chunk.<br></br>
+ * <br></br>
+ * Direct buffers count against {@code -XX:MaxDirectMemorySize}, which defaults to the maximum heap size.
+ */
+public class OffHeapPointArena {
+    private final int chunkBytes;
+    private ByteBuffer chunk;
+    private int chunkUsed;
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    /**
+     * @param chunkBytes The size of each chunk. Trips larger than a chunk get a chunk of their own.
+     */
+    public OffHeapPointArena(int chunkBytes) {
+        if (chunkBytes < HeapTripPoints.BYTES_PER_POINT) {
+            throw new IllegalArgumentException("Off-heap chunks must hold at least one point: " + chunkBytes);
+        }
+        this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * Moves the points of a trip into the arena. The trip must not be served yet, as its points are replaced
+     * without synchronization.
+     *
+     * @param trip The trip, whose points are kept on the heap until it is stored.
+     */
+    public synchronized void store(BusTrip trip) {
+        TripPoints points = trip.getPoints();
+        if (points instanceof OffHeapTripPoints) {
+            return;
+        }
+
+        int regionBytes = OffHeapTripPoints.getRegionBytes(points.size());
+        if (this.chunk == null || this.chunkUsed + regionBytes > this.chunk.capacity()) {
+            this.chunk = ByteBuffer.allocateDirect(Math.max(this.chunkBytes, regionBytes)).order(ByteOrder.nativeOrder());
+            this.chunkUsed = 0;
+            this.allocatedBytes.addAndGet(this.chunk.capacity());
+        }
+        trip.setPoints(OffHeapTripPoints.write(points, this.chunk, this.chunkUsed));
+        // Keep regions 8 byte aligned for the doubles and longs of the next trip
+        this.chunkUsed += (regionBytes + 7) & ~7;
+    }
+
+    /**
+     * @return The bytes of all chunks allocated since the arena was created, including chunks that have
+     * been released since.
+     */
+    public long getAllocatedBytes() {
+        return this.allocatedBytes.get();
+    }
+}
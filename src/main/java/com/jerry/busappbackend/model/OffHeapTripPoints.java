@@ -0,0 +1,110 @@
+package com.jerry.busappbackend.model;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Points stored outside the heap, in a region of a chunk of an {@link OffHeapPointArena}. The region holds the
+ * columns one after the other: longitudes, latitudes, arrival times, distances and arrival proximity codes.
+ * Reads use absolute positions, so the chunk can be read by any number of threads.
+ */
+final class OffHeapTripPoints implements TripPoints {
+    // Object header and fields, the chunk is shared with other trips
+    private static final long OBJECT_OVERHEAD_BYTES = 32;
+
+    private final ByteBuffer chunk;
+    private final int size;
+    private final int longitudeOffset;
+    private final int latitudeOffset;
+    private final int arrivalTimeOffset;
+    private final int distanceOffset;
+    private final int proximityCodeOffset;
+
+    /**
+     * @param chunk The chunk holding the points.
+     * @param offset The offset of the trip's region in the chunk.
+     * @param size The number of points.
+     */
+    OffHeapTripPoints(ByteBuffer chunk, int offset, int size) {
+        this.chunk = chunk;
+        this.size = size;
+        this.longitudeOffset = offset;
+        this.latitudeOffset = this.longitudeOffset + size * Double.BYTES;
+        this.arrivalTimeOffset = this.latitudeOffset + size * Double.BYTES;
+        this.distanceOffset = this.arrivalTimeOffset + size * Long.BYTES;
+        this.proximityCodeOffset = this.distanceOffset + size * Integer.BYTES;
+    }
+
+    /**
+     * @return The bytes of the region of a trip with a number of points.
+     */
+    static int getRegionBytes(int size) {
+        return size * HeapTripPoints.BYTES_PER_POINT;
+    }
+
+    /**
+     * Copies points into a region of a chunk.
+     *
+     * @return The points in the region.
+     */
+    static OffHeapTripPoints write(TripPoints points, ByteBuffer chunk, int offset) {
+        OffHeapTripPoints result = new OffHeapTripPoints(chunk, offset, points.size());
+        for (int i = 0; i < points.size(); i++) {
+            chunk.putDouble(result.longitudeOffset + i * Double.BYTES, points.getLongitude(i));
+            chunk.putDouble(result.latitudeOffset + i * Double.BYTES, points.getLatitude(i));
+            chunk.putLong(result.arrivalTimeOffset + i * Long.BYTES, points.getArrivalTime(i));
+            chunk.putInt(result.distanceOffset + i * Integer.BYTES, points.getDistanceFromStop(i));
+            chunk.putShort(result.proximityCodeOffset + i * Short.BYTES, points.getArrivalProximityCode(i));
+        }
+        return result;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public double getLongitude(int point) {
+        return this.chunk.getDouble(this.longitudeOffset + checkIndex(point) * Double.BYTES);
+    }
+
+    @Override
+    public double getLatitude(int point) {
+        return this.chunk.getDouble(this.latitudeOffset + checkIndex(point) * Double.BYTES);
+    }
+
+    @Override
+    public long getArrivalTime(int point) {
+        return this.chunk.getLong(this.arrivalTimeOffset + checkIndex(point) * Long.BYTES);
+    }
+
+    @Override
+    public int getDistanceFromStop(int point) {
+        return this.chunk.getInt(this.distanceOffset + checkIndex(point) * Integer.BYTES);
+    }
+
+    @Override
+    public short getArrivalProximityCode(int point) {
+        return this.chunk.getShort(this.proximityCodeOffset + checkIndex(point) * Short.BYTES);
+    }
+
+    @Override
+    public long estimateHeapBytes() {
+        return OBJECT_OVERHEAD_BYTES;
+    }
+
+    @Override
+    public long getOffHeapBytes() {
+        return getRegionBytes(this.size);
+    }
+
+    /**
+     * Keeps reads within the trip's region, the chunk itself only checks its own bounds.
+     */
+    private int checkIndex(int point) {
+        if (point < 0 || point >= this.size) {
+            throw new IndexOutOfBoundsException("Point " + point + " out of bounds for length " + this.size);
+        }
+        return point;
+    }
+}
@@ -0,0 +1,84 @@
+package com.jerry.busappbackend.model;
+
+/**
+ * Reads the points of a trip one after another, see {@link BusTrip#cursor()}. Moving to the next point is
+ * cheap in every storage mode, while compressed points are otherwise decoded from the start of their block,
+ * so serializers read points through a cursor rather than by index.
+ * <p>
+ * A cursor is not thread safe. It can move to any point, but moving backwards may decode points again.
+ */
+public abstract class PointCursor {
+
+    /**
+     * Moves the cursor to a point, e.g. to the next point of a simplified path.
+     *
+     * @param point The index of the point.
+     * @throws IndexOutOfBoundsException If the trip has no such point.
+     */
+    public abstract void moveTo(int point);
+
+    public abstract double getLongitude();
+
+    public abstract double getLatitude();
+
+    /**
+     * @return The expected arrival time of the point as epoch seconds (UTC).
+     */
+    public abstract long getArrivalTime();
+
+    public abstract int getDistanceFromStop();
+
+    /**
+     * @return The code of the point's arrival proximity text, see {@link BusTrip#encodeArrivalProximityText(String)}.
+     */
+    public abstract short getArrivalProximityCode();
+
+    public String getArrivalProximityText() {
+        return BusTrip.decodeArrivalProximityText(getArrivalProximityCode());
+    }
+
+    /**
+     * Cursor over points that can be read by index at no extra cost.
+     */
+    static final class Indexed extends PointCursor {
+        private final TripPoints points;
+        private int point = -1;
+
+        Indexed(TripPoints points) {
+            this.points = points;
+        }
+
+        @Override
+        public void moveTo(int point) {
+            if (point < 0 || point >= this.points.size()) {
+                throw new IndexOutOfBoundsException("Point " + point + " out of bounds for length " + this.points.size());
+            }
+            this.point = point;
+        }
+
+        @Override
+        public double getLongitude() {
+            return this.points.getLongitude(this.point);
+        }
+
+        @Override
+        public double getLatitude() {
+            return this.points.getLatitude(this.point);
+        }
+
+        @Override
+        public long getArrivalTime() {
+            return this.points.getArrivalTime(this.point);
+        }
+
+        @Override
+        public int getDistanceFromStop() {
+            return this.points.getDistanceFromStop(this.point);
+        }
+
+        @Override
+        public short getArrivalProximityCode() {
+            return this.points.getArrivalProximityCode(this.point);
+        }
+    }
+}
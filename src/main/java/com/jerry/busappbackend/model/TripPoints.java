@@ -0,0 +1,40 @@
+package com.jerry.busappbackend.model;
+
+/**
+ * The points of a trip, in time order, as stored by one of the storage modes of
+ * {@link com.jerry.busappbackend.util.TripPointStorage}. Implementations are immutable.
+ */
+interface TripPoints {
+
+    int size();
+
+    double getLongitude(int point);
+
+    double getLatitude(int point);
+
+    /**
+     * @return The expected arrival time of a point as epoch seconds (UTC).
+     */
+    long getArrivalTime(int point);
+
+    int getDistanceFromStop(int point);
+
+    short getArrivalProximityCode(int point);
+
+    /**
+     * @return A cursor over the points, positioned before the first point.
+     */
+    default PointCursor cursor() {
+        return new PointCursor.Indexed(this);
+    }
+
+    /**
+     * @return The estimated heap retained by the points, in bytes.
+     */
+    long estimateHeapBytes();
+
+    /**
+     * @return The native memory taken by the points outside the heap, in bytes.
+     */
+    long getOffHeapBytes();
+}
@@ -1,20 +1,40 @@
 package com.jerry.busappbackend.service;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 
 import com.jerry.busappbackend.entity.BusRecordEntity;
 import com.jerry.busappbackend.model.BusTrip;
 import com.jerry.busappbackend.util.CsvParser;
+import com.jerry.busappbackend.util.Dictionaries;
+import com.jerry.busappbackend.util.MappedCsvParser;
+import com.jerry.busappbackend.util.MetricsRegistry;
+import com.jerry.busappbackend.util.MetricsRegistry.Counter;
+import com.jerry.busappbackend.util.MetricsRegistry.Timing;
+import com.jerry.busappbackend.util.SnapshotStore;
+import com.jerry.busappbackend.util.StringDictionary;
+import com.jerry.busappbackend.util.TripIndex;
+import com.jerry.busappbackend.util.TripPointStorage;
+import com.jerry.busappbackend.util.TripSimplifier;
+import com.jerry.busappbackend.util.TripSpatialIndex;
 import com.jerry.busappbackend.util.Timer;
 
 import jakarta.annotation.PostConstruct;
@@ -32,64 +52,553 @@ import jakarta.annotation.PostConstruct;
  *  belong to another trip)
  * 
  * BusTrip objects will be created and stored, and can be queried using either published line name 
- * or vehicle reference. 
+ * or vehicle reference, by the time window they are active in, optionally within a published line, or by
+ * the area they pass through, optionally within a time window.
+ * Grouping and the indexes work on the codes of the generation's {@link Dictionaries}
+ * rather than on strings.
+ * 
+ * The trips and indexes are held in an immutable {@link TripDataset}. Records received after start up are
+ * added with {@link #ingest(List)}, which publishes a new dataset, so readers never lock.
+ * 
+ * Everything loaded from a raw data file makes up a generation, which {@link #reload} replaces with one loaded
+ * from another file. A request {@link #pin() pins} the dataset it starts with, so it is served from a single
+ * dataset throughout, and a replaced generation is released once the requests pinning it have completed.
  * 
  * @author Jerry
  */
 @Service
 public class BusTripDataProvider {
+    private static final Logger logger = LogManager.getLogger(BusTripDataProvider.class);
+
     private final long TRIP_WINDOW = 25;
+
+    // The time and spatial indexes are rebuilt once more than this many trips, or this fraction of the
+    // trips, are unindexed after ingesting
+    private static final int MIN_UNINDEXED_TRIPS = 1024;
+    private static final int UNINDEXED_TRIPS_FRACTION = 16;
+
+    private static final Comparator<String> NULLS_FIRST = Comparator.nullsFirst(Comparator.naturalOrder());
     
-    private List<BusRecordEntity> busRecords; 
-    private Map<String, List<BusRecordEntity>> busRecordsMap;
+    // The generation being served, replaced as a whole on reload
+    private volatile Generation generation;
+
+    // The generation and dataset pinned by the request being handled on the thread, if any
+    private final ThreadLocal<Pin> pins = new ThreadLocal<>();
 
-    // Maps each search param (key of each map) to their trips, by referencing its index
-    // in the "trips" ArrayList
-    private HashMap<String, List<Integer>> pubLineNameToTripIndex = new HashMap<>();
-    private HashMap<String, List<Integer>> vehRefToTripIndex = new HashMap<>();
+    // Serializes ingests and reloads
+    private final Object updateLock = new Object();
 
-    private List<BusTrip> trips;
+    /**
+     * Published after records have been ingested, or the data has been reloaded, and the new dataset is
+     * being served.
+     *
+     * @param dataset The new dataset.
+     * @param previousVersion The version of the dataset it replaced.
+     * @param changedTrips The trips opened or extended by an ingest, or null if all of the data was replaced.
+     */
+    public record DatasetUpdatedEvent(TripDataset dataset, String previousVersion, List<BusTrip> changedTrips) {
+        public String version() {
+            return this.dataset.getVersion();
+        }
+    }
+
+    /**
+     * Published when a reloaded dataset has been loaded, before it is swapped in, so caches can be prepared for
+     * it. Listeners are called on the reloading thread, and the swap waits for them.
+     *
+     * @param dataset The dataset about to be served.
+     */
+    public record DatasetLoadedEvent(TripDataset dataset) {}
+
+    /**
+     * The data loaded from one raw data file, and the records ingested into it since. Fields other than the
+     * dataset and the reader count are only used under the update lock.
+     */
+    private static class Generation {
+        final long number;
+        final Path rawDataPath;
+        // Identifies the loaded raw data, the dataset version also counts the ingested batches
+        final String baseVersion;
+        // The dictionaries the records of the generation are encoded with, released with it
+        final Dictionaries dictionaries;
+        // Estimated heap retained by the trips and the dictionaries when the generation was loaded
+        final long retainedBytes;
+        // The trips and indexes being served, replaced as a whole on every ingest, null once released
+        volatile TripDataset dataset;
+        // Number of requests pinning the generation
+        final AtomicInteger readers = new AtomicInteger();
+
+        // Offset of the first row of the raw data file that has not been ingested
+        long rawDataSize;
+        long numIngestedBatches = 0;
+        HashMap<CompositeKey, Integer> latestTripByKey;
+
+        Generation(long number, Path rawDataPath, String baseVersion, Dictionaries dictionaries, long retainedBytes,
+                   TripDataset dataset, long rawDataSize) {
+            this.number = number;
+            this.rawDataPath = rawDataPath;
+            this.baseVersion = baseVersion;
+            this.dictionaries = dictionaries;
+            this.retainedBytes = retainedBytes;
+            this.dataset = dataset;
+            this.rawDataSize = rawDataSize;
+        }
+    }
+
+    private record Pin(Generation generation, TripDataset dataset) {}
 
     @Autowired
     CsvParser parser;
 
+    @Autowired
+    SnapshotStore snapshotStore;
+
+    @Autowired
+    TripSimplifier tripSimplifier;
+
+    @Autowired
+    TripPointStorage pointStorage;
+
+    @Autowired
+    ApplicationEventPublisher eventPublisher;
+
     @Autowired
     Timer timer;
+
+    @Autowired
+    MetricsRegistry metrics;
     
     public BusTripDataProvider() {}
 
     /**
-     * Initializes data from the parsed records by first doing a preliminary 
+     * Initializes data from the snapshot of a previous run if it matches the raw data file, otherwise
+     * from the parsed records, after which a new snapshot is written.
      * This method is automatically invoked after the service is instantiated and dependencies are injected.
      */
     @PostConstruct
     private void initialiseData() {
-        this.busRecords = this.parser.parse();
-        this.busRecordsMap = this.groupRecordsByCompositeKey();
-        this.trips = this.constructTripsFromRecords();
+        this.generation = this.loadGeneration(1);
+    }
+
+    /**
+     * Loads the raw data file the parser is set to from its snapshot, or by parsing it and writing a snapshot.
+     * The records are encoded with the current {@link Dictionaries}, which the generation keeps.
+     *
+     * @param number The number of the generation.
+     * @return The loaded generation.
+     */
+    private Generation loadGeneration(long number) {
+        Dictionaries dictionaries = Dictionaries.current();
+        List<BusTrip> trips;
+        TripIndex pubLineNameToTripIndex;
+        TripIndex vehRefToTripIndex;
+        long rawDataSize;
+        byte[] fingerprint;
+
+        long phaseStart = System.nanoTime();
+        Optional<SnapshotStore.Snapshot> snapshot = this.snapshotStore.load();
+        phaseStart = this.metrics.recordSince(Timing.LOAD_PHASE, "snapshot_load", phaseStart);
+        if (snapshot.isPresent()) {
+            trips = snapshot.get().getTrips();
+            pubLineNameToTripIndex = snapshot.get().getPubLineNameToTripIndex();
+            vehRefToTripIndex = snapshot.get().getVehRefToTripIndex();
+            // Rows appended after the snapshot's rows were parsed are ingested from there
+            rawDataSize = snapshot.get().getRawDataSize();
+            fingerprint = snapshot.get().getRawDataFingerprint();
+        } else {
+            // The records are only kept until the trips have been built
+            // Rows are cleaned in the same streaming pass as they are parsed
+            List<BusRecordEntity> busRecords = this.parser.parse();
+            // The snapshot and the dataset version describe the parsed rows, not rows appended since
+            rawDataSize = this.parser.getParsedSize();
+            fingerprint = this.fingerprintRawData(rawDataSize);
+            phaseStart = this.metrics.recordSince(Timing.LOAD_PHASE, "parse", phaseStart);
+            this.metrics.increment(Counter.LOADED_RECORDS, busRecords.size());
+            Map<CompositeKey, List<BusRecordEntity>> busRecordsMap = this.groupRecordsByCompositeKey(busRecords);
+            phaseStart = this.metrics.recordSince(Timing.LOAD_PHASE, "group", phaseStart);
+            TripIndex.Builder lineIndexBuilder = TripIndex.builder(dictionaries.getPublishedLineNames());
+            TripIndex.Builder vehicleIndexBuilder = TripIndex.builder(dictionaries.getVehicleRefs());
+            trips = this.constructTripsFromRecords(busRecordsMap, lineIndexBuilder, vehicleIndexBuilder);
+            pubLineNameToTripIndex = lineIndexBuilder.build();
+            vehRefToTripIndex = vehicleIndexBuilder.build();
+            phaseStart = this.metrics.recordSince(Timing.LOAD_PHASE, "sessionize", phaseStart);
+            if (fingerprint != null) {
+                this.snapshotStore.save(new SnapshotStore.Snapshot(trips, pubLineNameToTripIndex, vehRefToTripIndex, rawDataSize, fingerprint));
+            }
+            phaseStart = this.metrics.recordSince(Timing.LOAD_PHASE, "snapshot_save", phaseStart);
+        }
+        this.pointStorage.store(trips);
+        phaseStart = this.metrics.recordSince(Timing.LOAD_PHASE, "store_points", phaseStart);
+        String baseVersion = this.createDatasetVersion(fingerprint);
+        TripDataset dataset = this.createDataset(trips, pubLineNameToTripIndex, vehRefToTripIndex, baseVersion);
+        phaseStart = this.metrics.recordSince(Timing.LOAD_PHASE, "index", phaseStart);
+        this.tripSimplifier.simplify(trips);
+        this.metrics.recordSince(Timing.LOAD_PHASE, "simplify", phaseStart);
+        long retainedBytes = this.logTripHeapUsage(trips) + this.logDictionaryHeapUsage(dictionaries);
+        return new Generation(number, this.parser.getRawDataPath(), baseVersion, dictionaries, retainedBytes, dataset, rawDataSize);
+    }
+
+    /**
+     * Loads a raw data file into a new generation and swaps it in for the generation being served. Requests
+     * keep being served from the current generation while the new one is loaded and its caches are warmed up,
+     * see {@link DatasetLoadedEvent}, and requests that started before the swap complete on it. The current generation is released once they have, or once the drain
+     * timeout has passed.<br></br>
+     * <br></br>
+     * Ingesting waits until the new generation is served, and then continues from the end of the new file.
+     * The new file is encoded with new {@link Dictionaries}, so values that only the replaced file had are
+     * released with its generation.
+     * If loading fails, the current generation keeps being served, and its dictionaries stay current.
+     *
+     * @param rawDataPath The raw data file to load, which also becomes the file appended rows are ingested from.
+     * @param drainTimeoutMs How long to wait for requests on the current generation to complete.
+     * @return The version of the new dataset.
+     * @throws CsvParsingException If the raw data file could not be parsed.
+     */
+    public String reload(Path rawDataPath, long drainTimeoutMs) {
+        Generation previous;
+        Generation next;
+        String previousVersion;
+        synchronized (this.updateLock) {
+            previous = this.generation;
+            previousVersion = previous.dataset.getVersion();
+            int timerID = timer.startTimer();
+            this.parser.setRawDataPath(rawDataPath);
+            // Requests on the current generation never encode, they look keys up in its indexes
+            Dictionaries.replace(new Dictionaries());
+            try {
+                next = this.loadGeneration(previous.number + 1);
+            } catch (RuntimeException e) {
+                this.parser.setRawDataPath(previous.rawDataPath);
+                Dictionaries.replace(previous.dictionaries);
+                throw e;
+            }
+            // The response cache and the pregenerated tiles are warmed up before the new data is served
+            this.eventPublisher.publishEvent(new DatasetLoadedEvent(next.dataset));
+            this.generation = next;
+            logger.info("Swapped in generation " + next.number + " loaded from " + rawDataPath + " in " + timer.getPrettyTime(timerID));
+        }
+        this.eventPublisher.publishEvent(new DatasetUpdatedEvent(next.dataset, previousVersion, null));
+        this.drain(previous, drainTimeoutMs);
+        return next.baseVersion;
+    }
+
+    /**
+     * Pins the dataset being served to the current thread, so that every call made while handling a request
+     * is answered from the same dataset, and its generation is not released while the request is in flight.
+     * Must be followed by {@link #unpin()} in a finally block.
+     *
+     * @return false if the thread already pins a dataset, in which case {@link #unpin()} must not be called.
+     */
+    public boolean pin() {
+        if (this.pins.get() != null) {
+            return false;
+        }
+        while (true) {
+            Generation current = this.generation;
+            current.readers.incrementAndGet();
+            // A generation replaced in between may already be draining, so it must not be pinned
+            if (current == this.generation) {
+                this.pins.set(new Pin(current, current.dataset));
+                return true;
+            }
+            current.readers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Releases the dataset pinned by {@link #pin()}.
+     */
+    public void unpin() {
+        Pin pin = this.pins.get();
+        if (pin != null) {
+            this.pins.remove();
+            pin.generation().readers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Appends the rows appended to the raw data file since it was loaded, or since the previous call, see
+     * {@link #ingest(List)}.
+     *
+     * @return The number of records parsed.
+     * @throws CsvParsingException If the raw data file could not be read.
+     */
+    public int ingestAppended() {
+        synchronized (this.updateLock) {
+            Generation current = this.generation;
+            long parseStart = System.nanoTime();
+            MappedCsvParser.Section section = this.parser.parseAppended(current.rawDataSize);
+            if (!section.records().isEmpty()) {
+                // Polls that find nothing are not timed
+                this.metrics.recordSince(Timing.INGEST_PHASE, "parse", parseStart);
+                this.ingest(section.records());
+            }
+            current.rawDataSize = section.end();
+            return section.records().size();
+        }
+    }
+
+    /**
+     * Adds records received after start up, e.g. rows appended to the raw data file, to the trips being served.
+     * <p>
+     * Records are grouped by composite key and split into trips by {@code TRIP_WINDOW}, like at start up. The
+     * first trip of a group extends the latest trip of the key if it is within {@code TRIP_WINDOW} of it, any
+     * other trip is opened as a new trip. Records are expected to arrive roughly in time order, records more
+     * than {@code TRIP_WINDOW} before the latest trip of their key open a trip of their own rather than being
+     * merged into an older trip.<br></br>
+     * <br></br>
+     * A new dataset is built from the previous one, with the line and vehicle indexes rebuilt from the previous
+     * ones, and published when it is complete, after which a {@link DatasetUpdatedEvent} is published. Readers
+     * keep using the dataset they started with and never wait. Calls are serialized. Nothing of a batch is kept
+     * if it fails before its dataset is published, so the same records can be ingested again.
+     *
+     * @param records The records to add.
+     */
+    public void ingest(List<BusRecordEntity> records) {
+        synchronized (this.updateLock) {
+            int timerID = timer.startTimer();
+            long phaseStart = System.nanoTime();
+            Generation generation = this.generation;
+            TripDataset current = generation.dataset;
+            if (generation.latestTripByKey == null) {
+                generation.latestTripByKey = this.indexLatestTrips(current.getTrips(), generation.dictionaries);
+            }
+
+            int naProximityCode = Dictionaries.ARRIVAL_PROXIMITY_TEXTS.lookup("NA");
+            Map<CompositeKey, List<BusRecordEntity>> groups = records.stream()
+                .filter(record -> isValidRecord(record, naProximityCode))
+                .collect(Collectors.groupingBy(this::createCompositeKey));
+            if (groups.isEmpty()) {
+                return;
+            }
+            List<CompositeKey> keys = new ArrayList<>(groups.keySet());
+            keys.sort(CompositeKey.VALUE_ORDER);
+            phaseStart = this.metrics.recordSince(Timing.INGEST_PHASE, "group", phaseStart);
+
+            List<BusTrip> trips = new ArrayList<>(current.getTrips());
+            TripIndex.Builder lineIndexBuilder = current.getPubLineNameToTripIndex().toBuilder();
+            TripIndex.Builder vehicleIndexBuilder = current.getVehRefToTripIndex().toBuilder();
+            BitSet changedTrips = new BitSet();
+            // Merged into the generation once the dataset is published, so a failed batch can be retried
+            Map<CompositeKey, Integer> latestTrips = new HashMap<>();
+            int numExtended = 0;
+            int numOpened = 0;
+
+            for (CompositeKey key : keys) {
+                List<BusRecordEntity> group = groups.get(key);
+                group.sort(null);
+                Integer latest = generation.latestTripByKey.get(key);
+                for (List<BusRecordEntity> run : splitIntoRuns(group)) {
+                    if (latest != null && isContinuation(trips.get(latest), run)) {
+                        trips.set(latest, trips.get(latest).extend(run));
+                        changedTrips.set(latest);
+                        numExtended++;
+                        continue;
+                    }
+
+                    BusTrip trip = new BusTrip(run);
+                    trips.add(trip);
+                    int index = trips.size() - 1;
+                    lineIndexBuilder.add(key.publishedLineName(), index);
+                    vehicleIndexBuilder.add(key.vehicleRef(), index);
+                    changedTrips.set(index);
+                    numOpened++;
+                    if (latest == null || trip.getStartEpochSecond() >= trips.get(latest).getStartEpochSecond()) {
+                        latest = index;
+                    }
+                }
+                latestTrips.put(key, latest);
+            }
+            phaseStart = this.metrics.recordSince(Timing.INGEST_PHASE, "sessionize", phaseStart);
+
+            List<BusTrip> changed = changedTrips.stream().mapToObj(trips::get).collect(Collectors.toList());
+            this.pointStorage.store(changed);
+            phaseStart = this.metrics.recordSince(Timing.INGEST_PHASE, "store_points", phaseStart);
+            this.tripSimplifier.simplify(changed);
+            phaseStart = this.metrics.recordSince(Timing.INGEST_PHASE, "simplify", phaseStart);
+
+            String version = generation.baseVersion + "-" + (generation.numIngestedBatches + 1);
+            TripDataset updated = current.update(trips, lineIndexBuilder.build(), vehicleIndexBuilder.build(), changedTrips, version);
+            if (updated.getNumUnindexedTrips() > Math.max(MIN_UNINDEXED_TRIPS, trips.size() / UNINDEXED_TRIPS_FRACTION)) {
+                updated = updated.reindex();
+            }
+            this.metrics.recordSince(Timing.INGEST_PHASE, "index", phaseStart);
+            generation.dataset = updated;
+            generation.latestTripByKey.putAll(latestTrips);
+            generation.numIngestedBatches++;
+            this.metrics.increment(Counter.INGESTED_RECORDS, records.size());
+            this.metrics.increment(Counter.INGESTED_BATCHES, 1);
+            logger.info("Ingested " + records.size() + " records, extending " + numExtended + " and opening " + numOpened + " trips, in " + timer.getPrettyTime(timerID));
+
+            this.eventPublisher.publishEvent(new DatasetUpdatedEvent(updated, current.getVersion(), changed));
+        }
     }
 
     // ================== UTILS ==================
-    
+
+    /**
+     * Waits for the requests pinning a replaced generation to complete, then releases it.
+     */
+    private void drain(Generation previous, long timeoutMs) {
+        int timerID = timer.startTimer();
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000;
+        try {
+            while (previous.readers.get() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int readers = previous.readers.get();
+        if (readers > 0) {
+            logger.warn("Generation " + previous.number + " is still pinned by " + readers + " requests after " + timeoutMs + "ms, releasing it anyway");
+        }
+        // Requests still in flight keep their own reference to the dataset
+        previous.dataset = null;
+        previous.latestTripByKey = null;
+        logger.info("Released generation " + previous.number + " after draining for " + timer.getPrettyTime(timerID));
+    }
+
     /**
-     * Adds a trip to the list of trips based on provided records and trip metadata.
-     * Also updates mapping indexes for quick lookup.
+     * Creates the dataset of the trips, building the interval indexes over their start and end times, used to
+     * find the trips active within a time window, and the spatial index over their paths, used to find the trips
+     * passing through an area, without scanning all trips.
+     */
+    private TripDataset createDataset(
+        List<BusTrip> trips,
+        TripIndex pubLineNameToTripIndex,
+        TripIndex vehRefToTripIndex,
+        String version
+    ) {
+        int timerID = timer.startTimer();
+        TripDataset dataset = TripDataset.create(trips, pubLineNameToTripIndex, vehRefToTripIndex, version);
+        logger.info("Built time and spatial indexes of " + trips.size() + " trips in " + timer.getPrettyTime(timerID));
+        return dataset;
+    }
+
+    /**
+     * Fingerprints the parsed rows of the raw data file, see {@link SnapshotStore#fingerprintRawData(long)}.
      *
-     * @param trips List of BusTrip to which the new trip will be added.
-     * @param tripRecords List of BusRecordEntity representing the records for a single trip.
-     * @param publishLineName The published line name of the trip.
-     * @param vehicleRef The vehicle reference of the trip.
+     * @return The fingerprint, or null if the file cannot be read, in which case no snapshot is written.
      */
-    private void addTrip(List<BusTrip> trips, List<BusRecordEntity> tripRecords, String publishLineName, String vehicleRef) {
-        BusTrip newTrip = new BusTrip(tripRecords);
-        trips.add(newTrip);
+    private byte[] fingerprintRawData(long size) {
+        try {
+            return this.snapshotStore.fingerprintRawData(size);
+        } catch (IOException e) {
+            logger.warn("Could not fingerprint raw data, dataset version falls back to start up time", e);
+            return null;
+        }
+    }
+
+    /**
+     * Creates the dataset version from the fingerprint of the loaded raw data. If the file could not be
+     * fingerprinted, the start up time is used, so the version is only stable for this process.
+     */
+    private String createDatasetVersion(byte[] fingerprint) {
+        return fingerprint == null ? Long.toHexString(System.currentTimeMillis()) : SnapshotStore.toVersion(fingerprint);
+    }
+
+    /**
+     * Logs the estimated heap retained by the trips, in total and per million points,
+     * so that the footprint of the trip store can be tracked as the data grows, and the points stored outside
+     * the heap if any.
+     *
+     * @return The estimated size in bytes.
+     */
+    private long logTripHeapUsage(List<BusTrip> trips) {
+        long numPoints = 0;
+        long retainedBytes = 0;
+        long offHeapBytes = 0;
+        for (BusTrip trip : trips) {
+            numPoints += trip.getNumPoints();
+            retainedBytes += trip.estimateRetainedBytes();
+            offHeapBytes += trip.getOffHeapBytes();
+        }
 
-        this.pubLineNameToTripIndex.putIfAbsent(publishLineName, new ArrayList<Integer>());
-        this.vehRefToTripIndex.putIfAbsent(vehicleRef, new ArrayList<Integer>());
+        long bytesPerMillionPoints = numPoints == 0 ? 0 : retainedBytes * 1_000_000 / numPoints;
+        logger.info(String.format(
+            "%d trips with %d points retain ~%.1fMB (%.1fMB per million points)",
+            trips.size(), numPoints, retainedBytes / (1024.0 * 1024), bytesPerMillionPoints / (1024.0 * 1024)
+        ));
+        if (offHeapBytes > 0) {
+            logger.info(String.format("Points stored outside the heap take %.1fMB", offHeapBytes / (1024.0 * 1024)));
+        }
+        return retainedBytes;
+    }
+
+    /**
+     * Logs the number of values of the dictionaries and the estimated heap they retain.
+     *
+     * @return The estimated size in bytes.
+     */
+    private long logDictionaryHeapUsage(Dictionaries dictionaries) {
+        long retainedBytes = dictionaries.estimateRetainedBytes();
+        logger.info(String.format(
+            "Dictionaries of %d lines, %d vehicles and %d stops retain ~%.1fMB",
+            dictionaries.getPublishedLineNames().size(), dictionaries.getVehicleRefs().size(),
+            dictionaries.getStopNames().size(), retainedBytes / (1024.0 * 1024)
+        ));
+        return retainedBytes;
+    }
+
+    /**
+     * Adds a trip to the list of trips and updates the mapping indexes for quick lookup.
+     *
+     * @param trips List of BusTrip to which the new trip will be added.
+     * @param trip The trip to add.
+     * @param publishLineName The published line name code of the trip.
+     * @param vehicleRef The vehicle reference code of the trip.
+     * @param pubLineNameToTripIndex The builder of the index of the trips of each published line name.
+     * @param vehRefToTripIndex The builder of the index of the trips of each vehicle reference.
+     */
+    private void addTrip(
+        List<BusTrip> trips,
+        BusTrip trip,
+        int publishLineName,
+        int vehicleRef,
+        TripIndex.Builder pubLineNameToTripIndex,
+        TripIndex.Builder vehRefToTripIndex
+    ) {
+        trips.add(trip);
 
         int index = trips.size() - 1;
-        this.pubLineNameToTripIndex.get(publishLineName).add(index);
-        this.vehRefToTripIndex.get(vehicleRef).add(index);
+        pubLineNameToTripIndex.add(publishLineName, index);
+        vehRefToTripIndex.add(vehicleRef, index);
+    }
+
+    /**
+     * Finds the latest trip of every composite key, which records received later may extend.
+     */
+    private HashMap<CompositeKey, Integer> indexLatestTrips(List<BusTrip> trips, Dictionaries dictionaries) {
+        HashMap<CompositeKey, Integer> result = new HashMap<>();
+        for (int i = 0; i < trips.size(); i++) {
+            BusTrip trip = trips.get(i);
+            CompositeKey key = new CompositeKey(
+                dictionaries.getPublishedLineNames().lookup(trip.getPublishedLineName()),
+                dictionaries.getVehicleRefs().lookup(trip.getVehicleRef()),
+                trip.getDirectionRef(),
+                dictionaries.getStopNames().lookup(trip.getOriginName()),
+                dictionaries.getStopNames().lookup(trip.getDestinationName())
+            );
+            Integer latest = result.get(key);
+            if (latest == null || trip.getStartEpochSecond() >= trips.get(latest).getStartEpochSecond()) {
+                result.put(key, i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether a run of records, sorted by time, is within {@code TRIP_WINDOW} of a trip, before or after it,
+     * or overlaps it, in which case it belongs to that trip.
+     */
+    private boolean isContinuation(BusTrip trip, List<BusRecordEntity> run) {
+        long runStart = run.get(0).getExpectedArrivalTime().toEpochSecond(ZoneOffset.UTC);
+        long runEnd = run.get(run.size() - 1).getExpectedArrivalTime().toEpochSecond(ZoneOffset.UTC);
+        // Whole minutes, like isNewTrip
+        return (runStart - trip.getEndEpochSecond()) / 60 <= TRIP_WINDOW
+            && (trip.getStartEpochSecond() - runEnd) / 60 <= TRIP_WINDOW;
     }
 
      /**
@@ -100,11 +609,13 @@ public class BusTripDataProvider {
      * - DistanceFromStop is not null<br></br>
      *
      * @param record The BusRecordEntity to check.
+     * @param naProximityCode The dictionary code of "NA" arrival proximity texts, or -1 if no record has had one.
      * @return true if the record is valid, false otherwise.
      */
-    private boolean isValidRecord(BusRecordEntity record) {
+    private boolean isValidRecord(BusRecordEntity record, int naProximityCode) {
+        // -1 is also the code of a null text, which must not be mistaken for "NA"
         return record.getExpectedArrivalTime() != null &&
-            !record.getArrivalProximityText().equals("NA") &&
+            (naProximityCode == -1 || record.getArrivalProximityTextCode() != naProximityCode) &&
             record.getDistanceFromStop() != null;
     } 
 
@@ -122,66 +633,124 @@ public class BusTripDataProvider {
      * - Origin and destination<br></br>
      *
      * @param record The BusRecordEntity for which to create the key.
-     * @return A string representing the composite key.
+     * @return The composite key of the record.
      */
-    private String createCompositeKey(BusRecordEntity record) {
-        return Stream.of(
-            record.getPublishedLineName(),
-            record.getVehicleRef(),
-            String.valueOf(record.getDirectionRef()),
-            record.getOriginName(),
-            record.getDestinationName()
-        ).collect(Collectors.joining("|"));
+    private CompositeKey createCompositeKey(BusRecordEntity record) {
+        return new CompositeKey(
+            record.getPublishedLineNameCode(),
+            record.getVehicleRefCode(),
+            record.getDirectionRef(),
+            record.getOriginNameCode(),
+            record.getDestinationNameCode()
+        );
     }
 
     /**
-     * Validate groups records by their composite keys.
+     * Composite key of a record, made up of dictionary codes, see {@link #createCompositeKey(BusRecordEntity)}.
+     */
+    record CompositeKey(int publishedLineName, int vehicleRef, int directionRef, int originName, int destinationName) {
+        /**
+         * Orders keys by their values rather than their codes. Codes are assigned in the order the parser
+         * threads first see each value, so they may differ between runs while the values do not.
+         * Keys are decoded with the {@link Dictionaries#current() current} dictionaries, which encoded them.
+         */
+        static final Comparator<CompositeKey> VALUE_ORDER = Comparator
+            .comparing((CompositeKey key) -> decode(Dictionaries.current().getPublishedLineNames(), key.publishedLineName()), NULLS_FIRST)
+            .thenComparing(key -> decode(Dictionaries.current().getVehicleRefs(), key.vehicleRef()), NULLS_FIRST)
+            .thenComparingInt(CompositeKey::directionRef)
+            .thenComparing(key -> decode(Dictionaries.current().getStopNames(), key.originName()), NULLS_FIRST)
+            .thenComparing(key -> decode(Dictionaries.current().getStopNames(), key.destinationName()), NULLS_FIRST);
+
+        private static String decode(StringDictionary dictionary, int code) {
+            return code == BusRecordEntity.NULL_CODE ? null : dictionary.decode(code);
+        }
+    }
+
+    /**
+     * Validate groups records by their composite keys. Records are grouped in parallel, and the records
+     * of each group keep their file order.
      *
      * @return A map of grouped bus records, where each key is a composite key and each value is a list of records.
      */
-    private Map<String, List<BusRecordEntity>> groupRecordsByCompositeKey() {
-        return this.busRecords.stream()
-            .filter(this::isValidRecord)
-            .sorted()
+    // Package-private for the trip construction benchmark
+    Map<CompositeKey, List<BusRecordEntity>> groupRecordsByCompositeKey(List<BusRecordEntity> busRecords) {
+        int naProximityCode = Dictionaries.ARRIVAL_PROXIMITY_TEXTS.lookup("NA");
+        return busRecords.parallelStream()
+            .filter(record -> isValidRecord(record, naProximityCode))
             .collect(Collectors.groupingBy(this::createCompositeKey));
     }
 
     /**
-     * Generates all bus trips from the grouped bus records. busRecordMaps must be populated before this
-     * method is called. 
+     * Generates all bus trips from the grouped bus records.<br></br>
+     * <br></br>
+     * Each group is sorted and split into trips on the fork-join pool. The trips are then added, and the
+     * indexes updated, on the calling thread in {@link CompositeKey#VALUE_ORDER}, so the result does not
+     * depend on the number of threads or the order in which groups finish.
      *
+     * @param busRecordsMap The records grouped by composite key.
+     * @param pubLineNameToTripIndex Filled with the trips of each published line name.
+     * @param vehRefToTripIndex Filled with the trips of each vehicle reference.
      * @return A list of BusTrip objects created from the grouped records.
      */
-    private List<BusTrip> constructTripsFromRecords() {
+    // Package-private for the trip construction benchmark
+    List<BusTrip> constructTripsFromRecords(
+        Map<CompositeKey, List<BusRecordEntity>> busRecordsMap,
+        TripIndex.Builder pubLineNameToTripIndex,
+        TripIndex.Builder vehRefToTripIndex
+    ) {
+        List<CompositeKey> keys = new ArrayList<>(busRecordsMap.keySet());
+        keys.sort(CompositeKey.VALUE_ORDER);
+
+        List<List<BusTrip>> tripsByKey = keys.parallelStream()
+            .map(key -> splitIntoTrips(busRecordsMap.get(key)))
+            .collect(Collectors.toList());
+
         List<BusTrip> result = new ArrayList<>();
-        final int publishLineKeyIndex = 0;
-        final int vehicleRefKeyIndex = 1;
-    
-        for (String tripCompositeKey : this.busRecordsMap.keySet()) {
-            List<BusRecordEntity> records = this.busRecordsMap.get(tripCompositeKey);
-            String publishLineName = tripCompositeKey.split("\\|")[publishLineKeyIndex];
-            String vehicleRef = tripCompositeKey.split("\\|")[vehicleRefKeyIndex];
-    
-            List<BusRecordEntity> currentTripRecords = new ArrayList<>();
-            BusRecordEntity prevRecord = null;
-    
-            for (BusRecordEntity record : records) {
-                if (currentTripRecords.isEmpty() || isNewTrip(prevRecord, record)) {
-                    if (!currentTripRecords.isEmpty()) {
-                        addTrip(result, currentTripRecords, publishLineName, vehicleRef);
-                        currentTripRecords = new ArrayList<>();
-                    }
-                    currentTripRecords.add(record);
-                } else {
-                    currentTripRecords.add(record);
-                }
-                prevRecord = record;
+        for (int i = 0; i < keys.size(); i++) {
+            CompositeKey key = keys.get(i);
+            for (BusTrip trip : tripsByKey.get(i)) {
+                addTrip(result, trip, key.publishedLineName(), key.vehicleRef(), pubLineNameToTripIndex, vehRefToTripIndex);
             }
-    
-            if (!currentTripRecords.isEmpty()) {
-                addTrip(result, currentTripRecords, publishLineName, vehicleRef);
+        }
+        return result;
+    }
+
+    /**
+     * Sorts the records of a group by expected arrival time and splits them into trips wherever
+     * consecutive records are more than {@code TRIP_WINDOW} minutes apart. The sort is stable, so
+     * records with the same time keep their file order.
+     *
+     * @param records The records of a group, sorted in place.
+     * @return The trips of the group, in time order.
+     */
+    private List<BusTrip> splitIntoTrips(List<BusRecordEntity> records) {
+        records.sort(null);
+
+        List<BusTrip> result = new ArrayList<>();
+        for (List<BusRecordEntity> run : splitIntoRuns(records)) {
+            result.add(new BusTrip(run));
+        }
+        return result;
+    }
+
+    /**
+     * Splits records sorted by expected arrival time wherever consecutive records are more than
+     * {@code TRIP_WINDOW} minutes apart.
+     *
+     * @return Views of the runs of records, in time order.
+     */
+    private List<List<BusRecordEntity>> splitIntoRuns(List<BusRecordEntity> records) {
+        List<List<BusRecordEntity>> result = new ArrayList<>();
+        int runStart = 0;
+        for (int i = 1; i < records.size(); i++) {
+            if (isNewTrip(records.get(i - 1), records.get(i))) {
+                result.add(records.subList(runStart, i));
+                runStart = i;
             }
         }
+        if (!records.isEmpty()) {
+            result.add(records.subList(runStart, records.size()));
+        }
         return result;
     }
 
@@ -198,37 +767,113 @@ public class BusTripDataProvider {
 
     // ================== GETTERS ==================
     public List<String> getAllPublishedLineName() {
-        List<String> result = new ArrayList<>(pubLineNameToTripIndex.keySet());
-        Collections.sort(result);
-        return result;
+        return current().getAllPublishedLineName();
     }
 
     public List<String> getAllVehicleRef() {
-        List<String> result = new ArrayList<>(vehRefToTripIndex.keySet());
-        Collections.sort(result);
-        return result;
+        return current().getAllVehicleRef();
+    }
+
+    /**
+     * @return An identifier of the data being served, which changes whenever the data may have changed.
+     */
+    public String getDatasetVersion() {
+        return current().getVersion();
+    }
+
+    /**
+     * @return The version of the dataset served to new requests. Differs from {@link #getDatasetVersion()} while
+     * a request pinned to a dataset that has since been replaced is handled.
+     */
+    public String getLatestDatasetVersion() {
+        return this.generation.dataset.getVersion();
+    }
+
+    /**
+     * @return The size of the raw data file when it was loaded, or up to which appended rows were ingested.
+     */
+    public long getRawDataSize() {
+        return this.generation.rawDataSize;
+    }
+
+    /**
+     * @return The estimated heap retained by the trips and dictionaries of the generation being served, when
+     * it was loaded.
+     */
+    public long getRetainedBytes() {
+        return this.generation.retainedBytes;
+    }
+
+    /**
+     * @return The number of the generation being served, 1 until the data is reloaded.
+     */
+    public long getGenerationNumber() {
+        return this.generation.number;
+    }
+
+    /**
+     * @return The dataset being served, e.g. to report its size.
+     */
+    public TripDataset getDataset() {
+        return current();
     }
 
     public List<BusTrip> getTrips() {
-        return trips;
+        return current().getTrips();
     }
 
     public List<BusTrip> getTripByPublishedLineName(String publishedLineName) {
-        return getTripByType("publishedLineName", publishedLineName);
+        return current().getTripByPublishedLineName(publishedLineName);
     }
 
     public List<BusTrip> getTripByVehicleRef(String vehicleRef) {
-        return getTripByType("vehicleRef", vehicleRef);
+        return current().getTripByVehicleRef(vehicleRef);
     }
 
-    private List<BusTrip> getTripByType (String type, String value) {
-        HashMap<String, List<Integer>> map = type.equals("publishedLineName") ? pubLineNameToTripIndex : vehRefToTripIndex;
-        List<BusTrip> result = new ArrayList<>();
-        List<Integer> tripIndexes = map.get(value);
-        for (Integer index : tripIndexes) {
-            result.add(trips.get(index));
-        }
+    /**
+     * Finds the trips active at any time within a time window, i.e. starting at or before its end and ending
+     * at or after its start.
+     *
+     * @param from Start of the time window.
+     * @param to End of the time window.
+     * @param publishedLineName The published line name the trips must have, or null for trips of all lines.
+     * @return The matching trips, ordered by start time. Empty if the line is unknown or the window is empty.
+     */
+    public List<BusTrip> getTripByTimeWindow(LocalDateTime from, LocalDateTime to, String publishedLineName) {
+        return current().getTripByTimeWindow(from, to, publishedLineName);
+    }
 
-        return result;
+    /**
+     * Finds the trips whose path passes through a bounding box, optionally only those active within a time window.
+     *
+     * @param minLongitude West edge of the box.
+     * @param minLatitude South edge of the box.
+     * @param maxLongitude East edge of the box.
+     * @param maxLatitude North edge of the box.
+     * @param from Start of the time window, or null for no time window.
+     * @param to End of the time window, or null for no time window.
+     * @param clip Whether to return only the parts of the trips passing through the box, see
+     * {@link TripSpatialIndex#findIntersectingFragments}. Each part is returned as a trip of its own, and is
+     * matched against the time window by its own start and end times.
+     * @return The matching trips or parts of trips.
+     */
+    public List<BusTrip> getTripByBoundingBox(
+        double minLongitude,
+        double minLatitude,
+        double maxLongitude,
+        double maxLatitude,
+        LocalDateTime from,
+        LocalDateTime to,
+        boolean clip
+    ) {
+        return current().getTripByBoundingBox(minLongitude, minLatitude, maxLongitude, maxLatitude, from, to, clip);
+    }
+
+    /**
+     * @return The dataset pinned by the current request, or else the dataset being served.
+     */
+    private TripDataset current() {
+        Pin pin = this.pins.get();
+        return pin != null ? pin.dataset() : this.generation.dataset;
     }
 }
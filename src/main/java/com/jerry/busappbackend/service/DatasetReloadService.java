@@ -0,0 +1,214 @@
+package com.jerry.busappbackend.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.jerry.busappbackend.exception.InsufficientMemoryException;
+import com.jerry.busappbackend.util.CsvParser;
+import com.jerry.busappbackend.util.MemoryTracker;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Service for reloading the data from a raw data file, e.g. the next month's file, without a restart.
+ * <p>
+ * Reloads run one at a time on a background thread, see {@link BusTripDataProvider#reload}. Requests keep being
+ * served from the current data while the new data is loaded.<br></br>
+ * <br></br>
+ * Both generations of the data are in the heap until the swap, so a reload is refused unless the heap can
+ * grow by the estimated size of the new generation, multiplied by a headroom factor for the records and
+ * temporary structures used while loading it. The new generation is estimated from the retained size of
+ * the current one, scaled by the size of the new raw data file.<br></br>
+ * <br></br>
+ * Reloads can only load files directly inside the data directory, which are requested by their file name, so
+ * the endpoint cannot be used to read, or probe for, other files on the server.<br></br>
+ * <br></br>
+ * Configuration:<br></br>
+ * - {@code app.data.reload.enabled}: Whether reloads can be requested<br></br>
+ * - {@code app.data.reload.directory}: Directory of the files that can be loaded, defaults to the directory of
+ * {@code app.data.path}<br></br>
+ * - {@code app.data.reload.heap-headroom}: Multiple of the estimated size of the new generation that must be
+ * available in the heap<br></br>
+ * - {@code app.data.reload.drain-timeout-ms}: How long requests on the previous generation are waited for
+ * before it is released<br></br>
+ */
+@Service
+public class DatasetReloadService {
+    private static final Logger logger = LogManager.getLogger(DatasetReloadService.class);
+
+    private final boolean enabled;
+    private final double heapHeadroom;
+    private final long drainTimeoutMs;
+    private final String directoryString;
+    // Resolved once the parser is injected, as it defaults to the directory of the raw data file
+    private Path directory;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "dataset-reload");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    // Outcome of the latest reload, for the status endpoint
+    private volatile Map<String, Object> lastReload = Map.of();
+
+    @Autowired
+    BusTripDataProvider dataProvider;
+
+    @Autowired
+    CsvParser parser;
+
+    public DatasetReloadService(
+        @Value("${app.data.reload.enabled:false}") boolean enabled,
+        @Value("${app.data.reload.heap-headroom:4.0}") double heapHeadroom,
+        @Value("${app.data.reload.drain-timeout-ms:30000}") long drainTimeoutMs,
+        @Value("${app.data.reload.directory:}") String directoryString
+    ) {
+        if (heapHeadroom < 1) {
+            throw new IllegalArgumentException("Reload heap headroom must be at least 1: " + heapHeadroom);
+        }
+        this.enabled = enabled;
+        this.heapHeadroom = heapHeadroom;
+        this.drainTimeoutMs = drainTimeoutMs;
+        this.directoryString = directoryString;
+    }
+
+    @PostConstruct
+    private void resolveDirectory() throws IOException {
+        Path path = this.directoryString == null || this.directoryString.isBlank()
+            ? parser.getRawDataPath().toAbsolutePath().getParent()
+            : Paths.get(this.directoryString);
+        this.directory = path.toRealPath();
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Starts reloading the data in the background.
+     *
+     * @param fileName The name of the raw data file to load, in the data directory, or null to load the current
+     * file again.
+     * @throws IllegalArgumentException If the name is not that of a file in the data directory.
+     * @throws IllegalStateException If a reload is already running.
+     * @throws InsufficientMemoryException If the new data is not expected to fit in the heap next to the current data.
+     */
+    public void startReload(String fileName) {
+        Path rawDataPath = fileName == null ? parser.getRawDataPath() : resolveFile(fileName);
+        if (!this.running.compareAndSet(false, true)) {
+            throw new IllegalStateException("A reload is already running");
+        }
+
+        try {
+            checkHeap(rawDataPath);
+            this.executor.execute(() -> reload(rawDataPath));
+        } catch (RuntimeException e) {
+            this.running.set(false);
+            throw e;
+        }
+    }
+
+    /**
+     * @return Whether a reload is running, and the outcome of the latest reload.
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("running", this.running.get());
+        status.put("rawDataPath", parser.getRawDataPath().toString());
+        status.put("datasetVersion", dataProvider.getDatasetVersion());
+        status.put("lastReload", this.lastReload);
+        return status;
+    }
+
+    @PreDestroy
+    private void stop() {
+        this.executor.shutdownNow();
+    }
+
+    // ================== UTILS ==================
+
+    /**
+     * Resolves the name of a file in the data directory. Names of files elsewhere, of directories, and of files
+     * that do not exist are refused alike, so callers cannot tell which files exist outside the directory.
+     */
+    private Path resolveFile(String fileName) {
+        IllegalArgumentException notFound = new IllegalArgumentException("No raw data file named " + fileName + " in the data directory");
+        Path name;
+        try {
+            name = Paths.get(fileName);
+        } catch (InvalidPathException e) {
+            throw notFound;
+        }
+        if (name.getNameCount() != 1 || name.isAbsolute()) {
+            throw notFound;
+        }
+        try {
+            // Links are followed, so they cannot point outside the directory either
+            Path file = this.directory.resolve(name).toRealPath();
+            if (!this.directory.equals(file.getParent()) || !Files.isRegularFile(file)) {
+                throw notFound;
+            }
+            return file;
+        } catch (IOException e) {
+            throw notFound;
+        }
+    }
+
+    private void reload(Path rawDataPath) {
+        Map<String, Object> outcome = new LinkedHashMap<>();
+        outcome.put("rawDataPath", rawDataPath.toString());
+        try {
+            outcome.put("datasetVersion", dataProvider.reload(rawDataPath, this.drainTimeoutMs));
+            outcome.put("succeeded", true);
+        } catch (RuntimeException e) {
+            logger.error("Failed to reload the data from " + rawDataPath + ", the previous data is still being served", e);
+            outcome.put("succeeded", false);
+            outcome.put("error", e.getMessage());
+        } finally {
+            this.lastReload = outcome;
+            this.running.set(false);
+        }
+    }
+
+    /**
+     * Refuses the reload unless the heap can grow by the estimated size of the new generation times the headroom.
+     * The size is scaled from the trips and dictionaries retained by the generation being served.
+     */
+    private void checkHeap(Path rawDataPath) {
+        long newSize;
+        try {
+            newSize = Files.size(rawDataPath);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read the size of the raw data file: " + rawDataPath, e);
+        }
+
+        double bytesPerRawByte = (double) dataProvider.getRetainedBytes() / Math.max(1, dataProvider.getRawDataSize());
+        long requiredBytes = (long) (newSize * bytesPerRawByte * this.heapHeadroom);
+        long availableBytes = MemoryTracker.getAvailableMemory();
+        if (requiredBytes > availableBytes) {
+            throw new InsufficientMemoryException(String.format(
+                "Reloading %s needs ~%.1fMB of heap, but only %.1fMB is available",
+                rawDataPath, requiredBytes / (1024.0 * 1024), availableBytes / (1024.0 * 1024)
+            ));
+        }
+        logger.info(String.format("Reloading %s, needs ~%.1fMB of heap, %.1fMB available",
+            rawDataPath, requiredBytes / (1024.0 * 1024), availableBytes / (1024.0 * 1024)));
+    }
+}
@@ -1,14 +1,15 @@
 package com.jerry.busappbackend.service;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
-import com.fasterxml.jackson.databind.json.JsonMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.jerry.busappbackend.exception.InvalidGeoJsonException;
 import com.jerry.busappbackend.model.BusTrip;
+import com.jerry.busappbackend.model.PointCursor;
+import com.jerry.busappbackend.util.TripSimplifier;
 
 import com.networknt.schema.JsonSchema;
 import com.networknt.schema.JsonSchemaFactory;
@@ -18,18 +19,14 @@ import com.networknt.schema.SchemaValidatorsConfig;
 import com.networknt.schema.SpecVersion.VersionFlag;
 import com.networknt.schema.ValidationMessage;
 
-import org.locationtech.jts.geom.Coordinate;
-import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.geom.GeometryFactory;
-import org.locationtech.jts.geom.LineString;
-import org.locationtech.jts.geom.Point;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.geotools.api.feature.simple.SimpleFeature;
-import org.geotools.api.feature.simple.SimpleFeatureType;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
-import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 
-import java.util.Arrays;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.util.Set;
 
@@ -38,31 +35,94 @@ import java.util.Set;
  * Service class for building GeoJSON representations of bus trip data.
  * <p>
  * This class provides functionality to convert lists of {@link BusTrip} objects into a standardized GeoJSON format.
- * It includes support for validating the generated GeoJSON against a predefined schema to ensure it meets the
- * GeoJSON specifications.
+ * Trips are written token by token with a Jackson {@link JsonGenerator}, so no intermediate feature objects,
+ * JSON tree or string is built on the streaming path. It also includes support for validating the generated
+ * GeoJSON against a predefined schema to ensure it meets the GeoJSON specifications.
+ * <p>
+ * Trips can also be written as a sequence of features, one per line, see {@link SequenceFormat}, so that clients
+ * can process them as they arrive.
+ * <p>
+ * Trips can be written at a simplification level precomputed by {@link TripSimplifier}, in which case only the
+ * kept points are written, numbered in order. Coordinates are rounded to {@code app.geojson.coordinate-precision}
+ * decimal places, if set.
+ * <p>
+ * The builder holds no per-request state and is safe to share between concurrent requests.
  */
 @Service
 public class GeoJsonBuilder {
-    SimpleFeatureType featureType;
-    ObjectMapper mapper;
-    SimpleFeatureBuilder featureBuilder;
-    GeometryFactory geometryFactory;
-    JsonSchema geoJsonSchema;
+    /**
+     * Version of the rendered output, to be incremented whenever the output for the same trips changes,
+     * since it is part of the ETags of cached responses.
+     */
+    public static final int OUTPUT_VERSION = 1;
+
+    // Features written between flushes of a sequence, so that clients receive them in chunks as they are written
+    private static final int SEQUENCE_FLUSH_INTERVAL = 64;
 
-    public GeoJsonBuilder() {
-        SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+    /**
+     * Formats that write each trip as a feature of its own, instead of wrapping them in a FeatureCollection.
+     */
+    public enum SequenceFormat {
+        /** Newline delimited JSON, a feature per line */
+        NDJSON("ndjson", "application/x-ndjson", false),
+        /** GeoJSON text sequence (RFC 8142), a feature per line, each preceded by a record separator */
+        GEOJSON_SEQ("geojsonseq", "application/geo+json-seq", true);
+
+        private final String name;
+        private final String mediaType;
+        private final boolean recordSeparated;
 
-        typeBuilder.setName("FeatureCollection");
+        SequenceFormat(String name, String mediaType, boolean recordSeparated) {
+            this.name = name;
+            this.mediaType = mediaType;
+            this.recordSeparated = recordSeparated;
+        }
 
-        typeBuilder.add("geometry", Geometry.class);
-        typeBuilder.add("properties", String[][].class);
+        /**
+         * @return The name of the format, as requested and in cache keys and ETags.
+         */
+        public String getName() {
+            return this.name;
+        }
 
-        featureType = typeBuilder.buildFeatureType();
+        public String getMediaType() {
+            return this.mediaType;
+        }
+
+        /**
+         * @param name The name of a format, may be null.
+         * @return The sequence format of the name, or null if it is not a sequence format.
+         */
+        public static SequenceFormat fromName(String name) {
+            for (SequenceFormat format : values()) {
+                if (format.name.equals(name)) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final JsonFactory jsonFactory;
+    private final ObjectMapper mapper;
+    private final JsonSchema geoJsonSchema;
+
+    private final int coordinatePrecision;
+    private final double coordinateScale;
+
+    /**
+     * @param coordinatePrecision The number of decimal places coordinates are rounded to, or -1 to write them
+     * in full.
+     */
+    public GeoJsonBuilder(@Value("${app.geojson.coordinate-precision:-1}") int coordinatePrecision) {
+        if (coordinatePrecision > 15) {
+            throw new IllegalArgumentException("GeoJson coordinate precision must be at most 15: " + coordinatePrecision);
+        }
+        this.coordinatePrecision = coordinatePrecision < 0 ? -1 : coordinatePrecision;
+        this.coordinateScale = Math.pow(10, this.coordinatePrecision);
 
-        this.featureBuilder = new SimpleFeatureBuilder(featureType);
-        this.geometryFactory = new GeometryFactory();
-        
         this.mapper = new ObjectMapper();
+        this.jsonFactory = this.mapper.getFactory();
 
         // Creating schema for validation
         JsonSchemaFactory jsonSchemaFactory = JsonSchemaFactory.getInstance(VersionFlag.V7, builder -> 
@@ -75,7 +135,106 @@ public class GeoJsonBuilder {
     }
 
     /**
-     * Builds a GeoJSON string from a list of {@link BusTrip} instances.
+     * Streams the GeoJSON FeatureCollection for a list of {@link BusTrip} instances directly to an output stream.
+     * Nothing beyond the generator's own buffer is held in memory, so the cost of a request no longer scales
+     * with the size of the rendered payload.
+     * <p>
+     * The output is not validated, see {@link #build(List)} or {@link #validate(byte[])} for that, and
+     * {@link GeoJsonValidator} for when responses are validated.
+     * <p>
+     * The output stream is flushed but not closed, that is left to the owner of the stream.
+     *
+     * @param trips List of {@link BusTrip} instances to be converted into GeoJSON format.
+     * @param out The stream the UTF-8 encoded GeoJSON is written to.
+     * @throws IOException If writing to the output stream fails.
+     */
+    public void write(List<BusTrip> trips, OutputStream out) throws IOException {
+        write(trips, TripSimplifier.FULL_DETAIL, out);
+    }
+
+    /**
+     * Streams the GeoJSON FeatureCollection for a list of {@link BusTrip} instances at a simplification level,
+     * see {@link #write(List, OutputStream)}.
+     *
+     * @param trips List of {@link BusTrip} instances to be converted into GeoJSON format.
+     * @param level The simplification level, or {@link TripSimplifier#FULL_DETAIL}.
+     * @param out The stream the UTF-8 encoded GeoJSON is written to.
+     * @throws IOException If writing to the output stream fails.
+     */
+    public void write(List<BusTrip> trips, int level, OutputStream out) throws IOException {
+        try (JsonGenerator generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            writeFeatureCollection(trips, level, generator);
+        }
+    }
+
+    /**
+     * Streams the trips as a sequence of GeoJSON features, one per line, to an output stream. The stream is
+     * flushed every few features, so with a servlet output stream the features are sent in chunks while the
+     * rest are written, and only the generator's own buffer is held in memory.
+     * <p>
+     * The output stream is flushed but not closed, that is left to the owner of the stream.
+     *
+     * @param trips List of {@link BusTrip} instances to be converted into GeoJSON features.
+     * @param level The simplification level, or {@link TripSimplifier#FULL_DETAIL}.
+     * @param format The sequence format to write.
+     * @param out The stream the UTF-8 encoded features are written to.
+     * @throws IOException If writing to the output stream fails.
+     */
+    public void writeSequence(List<BusTrip> trips, int level, SequenceFormat format, OutputStream out) throws IOException {
+        try (JsonGenerator generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            // The separators are written explicitly
+            generator.setRootValueSeparator(null);
+            int numWritten = 0;
+            for (BusTrip trip : trips) {
+                if (format.recordSeparated) {
+                    generator.writeRaw('\u001e');
+                }
+                writeFeature(trip, trip.getSimplifiedPoints(level), generator);
+                generator.writeRaw('\n');
+                if (++numWritten % SEQUENCE_FLUSH_INTERVAL == 0) {
+                    generator.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Renders the GeoJSON FeatureCollection for a list of {@link BusTrip} instances into a byte array,
+     * e.g. to be cached.
+     *
+     * @param trips List of {@link BusTrip} instances to be converted into GeoJSON format.
+     * @return The UTF-8 encoded GeoJSON.
+     */
+    public byte[] render(List<BusTrip> trips) {
+        return render(trips, TripSimplifier.FULL_DETAIL);
+    }
+
+    /**
+     * Renders the GeoJSON FeatureCollection for a list of {@link BusTrip} instances at a simplification level
+     * into a byte array.
+     *
+     * @param trips List of {@link BusTrip} instances to be converted into GeoJSON format.
+     * @param level The simplification level, or {@link TripSimplifier#FULL_DETAIL}.
+     * @return The UTF-8 encoded GeoJSON.
+     */
+    public byte[] render(List<BusTrip> trips, int level) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write(trips, level, out);
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not perform any I/O
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Builds a GeoJSON string from a list of {@link BusTrip} instances and validates it against the schema.
+     * <p>
+     * Prefer {@link #write(List, OutputStream)} when serving requests, this method materialises the whole
+     * payload and parses it again for validation.
      *
      * @param trips List of {@link BusTrip} instances to be converted into GeoJSON format.
      * @return A string representing the GeoJSON data of the bus trips.
@@ -83,124 +242,172 @@ public class GeoJsonBuilder {
      * @throws JsonProcessingException If there is an error in processing JSON data during GeoJSON generation.
      */
     public String build(List<BusTrip> trips) throws InvalidGeoJsonException, JsonProcessingException {
-        List<SimpleFeature> features = trips.stream()
-            .map(this::buildFeature)
-            .toList();
-                
-        ArrayNode featuresArray = mapper.createArrayNode();
-        features.stream().forEach(feature -> {
-
-            // Create geometry node
-            Geometry geometry = (Geometry) feature.getDefaultGeometry();
-            ObjectNode geometryNode = this.createGeometryNode(geometry.getGeometryType(), geometry.getCoordinates());
-
-            // Create properties node
-            String[][] properties = (String[][]) feature.getAttribute("properties");
-            ObjectNode propertiesNode = this.createPropertiesNode(properties);
-            
-            // Combine into feature node
-            ObjectNode featureNode = mapper.createObjectNode();
-            featureNode.put("type", "Feature");
-            featureNode.set("geometry", geometryNode);
-            featureNode.set("properties", propertiesNode);
-
-            // Add to features node
-            featuresArray.add(featureNode);
-        });
-
-        // Create feature collection node 
-        ObjectNode featureCollection = mapper.createObjectNode();
-        featureCollection.put("type", "FeatureCollection");
-        featureCollection.set("features", featuresArray);
-
-        // Convert to string and validate
-        ObjectWriter writer = mapper.writerWithDefaultPrettyPrinter();
-        String geoJsonString =  writer.writeValueAsString(featureCollection);
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = jsonFactory.createGenerator(writer)) {
+            writeFeatureCollection(trips, TripSimplifier.FULL_DETAIL, generator);
+        } catch (JsonProcessingException e) {
+            throw e;
+        } catch (IOException e) {
+            // StringWriter does not perform any I/O
+            throw new UncheckedIOException(e);
+        }
+
+        String geoJsonString = writer.toString();
         validateGeoJson(geoJsonString);
 
         return geoJsonString;
     }
 
     /**
-     * Helper method to build a {@link SimpleFeature} from a {@link BusTrip}.
-     * This method creates geometrical data points or lines based on the coordinates provided in the trip data.
+     * @return The number of decimal places coordinates are rounded to, or -1 if they are written in full.
+     */
+    public int getCoordinatePrecision() {
+        return this.coordinatePrecision;
+    }
+
+    /**
+     * Writes the FeatureCollection wrapping a feature for every trip.
+     *
+     * @param trips The trips to be written as features.
+     * @param level The simplification level to write the trips at.
+     * @param generator The generator to write to.
+     * @throws IOException If the generator fails to write.
+     */
+    private void writeFeatureCollection(List<BusTrip> trips, int level, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("type", "FeatureCollection");
+        generator.writeArrayFieldStart("features");
+        for (BusTrip trip : trips) {
+            writeFeature(trip, trip.getSimplifiedPoints(level), generator);
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    /**
+     * Writes a single Feature for a {@link BusTrip}. Trips with more than one point are written as a
+     * LineString, otherwise as a Point.
      *
      * @param trip The {@link BusTrip} instance from which to construct the feature.
-     * @return A {@link SimpleFeature} representing the geographical attributes of the trip.
-     */
-    private SimpleFeature buildFeature(BusTrip trip) {
-        if (trip.getCoords().length > 1) {
-            // Add line string to builder
-            Coordinate[] coords = Arrays.stream(trip.getCoords())
-                .map(coord -> new Coordinate(coord[0], coord[1]))
-                .toArray(Coordinate[]::new);
-            
-            LineString lineString = geometryFactory.createLineString(coords);
-            
-            featureBuilder.add(lineString);
-        } else {
-            // Add point to builder
-            double[] coord = trip.getCoords()[0];
+     * @param points The indexes of the points to write, or null to write every point.
+     * @param generator The generator to write to.
+     * @throws IOException If the generator fails to write.
+     */
+    private void writeFeature(BusTrip trip, int[] points, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("type", "Feature");
 
-            Point point = geometryFactory.createPoint(new Coordinate(coord[0], coord[1]));
-            
-            featureBuilder.add(point);
-        }
+        generator.writeFieldName("geometry");
+        writeGeometry(trip, points, generator);
 
-        // Add properties to builder
-        featureBuilder.add(trip.getAllPointInfo());
+        generator.writeFieldName("properties");
+        writeProperties(trip, points, generator);
 
-        // Build feature and return
-        return featureBuilder.buildFeature(null);
+        generator.writeEndObject();
     }
 
     /**
-     * Creates a geometry node for the GeoJSON structure. This node describes the type of geometry (e.g., Point, LineString)
+     * Writes the geometry object of a feature. This object describes the type of geometry (e.g., Point, LineString)
      * and includes coordinates formatted appropriately.
      *
-     * @param geometryType The type of geometry to be created (e.g., "Point", "LineString").
-     * @param coords The coordinates that make up the geometry.
-     * @return An {@link ObjectNode} representing the geometry part of a GeoJSON feature.
-     */
-    private ObjectNode createGeometryNode(String geometryType, Coordinate[] coords) {
-        ObjectNode geometryNode = mapper.createObjectNode();
-        
-        // Set geometry type 
-        geometryNode.put("type", geometryType);
-
-        // Set coordinates
-        ArrayNode coordinatesNode = mapper.createArrayNode();
-        
-        if (geometryType.equals("Point")) {
-            coordinatesNode.add(coords[0].x);
-            coordinatesNode.add(coords[0].y); 
+     * @param trip The trip whose points make up the geometry.
+     * @param points The indexes of the points to write, or null to write every point.
+     * @param generator The generator to write to.
+     * @throws IOException If the generator fails to write.
+     */
+    private void writeGeometry(BusTrip trip, int[] points, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+
+        int numPoints = points == null ? trip.getNumPoints() : points.length;
+        PointCursor cursor = trip.cursor();
+        if (numPoints > 1) {
+            generator.writeStringField("type", "LineString");
+            generator.writeArrayFieldStart("coordinates");
+            for (int i = 0; i < numPoints; i++) {
+                cursor.moveTo(points == null ? i : points[i]);
+                writeCoordinate(cursor.getLongitude(), cursor.getLatitude(), generator);
+            }
+            generator.writeEndArray();
         } else {
-            Arrays.stream(coords).forEach(coord -> {
-                ArrayNode coordinateNode = mapper.createArrayNode();
-                coordinateNode.add(coord.x);
-                coordinateNode.add(coord.y);
-                coordinatesNode.add(coordinateNode);
-            });
+            generator.writeStringField("type", "Point");
+            generator.writeFieldName("coordinates");
+            cursor.moveTo(0);
+            writeCoordinate(cursor.getLongitude(), cursor.getLatitude(), generator);
         }
-        geometryNode.set("coordinates", coordinatesNode);
 
-        return geometryNode;
+        generator.writeEndObject();
+    }
+
+    private void writeCoordinate(double longitude, double latitude, JsonGenerator generator) throws IOException {
+        generator.writeStartArray();
+        generator.writeNumber(roundCoordinate(longitude));
+        generator.writeNumber(roundCoordinate(latitude));
+        generator.writeEndArray();
+    }
+
+    private double roundCoordinate(double coordinate) {
+        if (this.coordinatePrecision < 0) {
+            return coordinate;
+        }
+        return Math.round(coordinate * this.coordinateScale) / this.coordinateScale;
     }
 
     /**
-     * Constructs a properties node for the GeoJSON structure. This node includes various properties associated
-     * with the bus trip. Refer to {@link BusTrip} class definition for detailed list of properties.
+     * Writes the properties object of a feature. This object includes various properties associated
+     * with the bus trip, followed by the details of every point:<br></br>
+     * - "Point n geom" - The coordinates of the point<br></br>
+     * - "Point n arrival" - The arrival proximity text<br></br>
+     * - "Point n dist from stop" - The distance from the next stop<br></br>
+     * - "Point n time" - The expected arrival time at the next stop<br></br>
+     * All values are written as strings. When a simplified path is written, only the kept points are listed
+     * and numbered.
      *
-     * @param properties An array of string pairs representing the property names and values to be included in the GeoJSON.
-     * @return An {@link ObjectNode} representing the properties part of a GeoJSON feature.
+     * @param trip The trip whose properties are written.
+     * @param points The indexes of the points to write, or null to write every point.
+     * @param generator The generator to write to.
+     * @throws IOException If the generator fails to write.
      */
-    private ObjectNode createPropertiesNode(String[][] properties) {
-        ObjectNode propertiesNode = mapper.createObjectNode();
-        Arrays.stream(properties).forEach(property -> { 
-            propertiesNode.put(property[0], property[1]);
-        });
+    private void writeProperties(BusTrip trip, int[] points, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("VehicleRef", trip.getVehicleRef());
+        generator.writeStringField("PublishedLineName", trip.getPublishedLineName());
+        generator.writeStringField("DirectionRef", String.valueOf(trip.getDirectionRef()));
+        generator.writeStringField("OriginName", trip.getOriginName());
+        generator.writeStringField("DestinationName", trip.getDestinationName());
+        generator.writeStringField("StartTime", BusTrip.formatTime(trip.getStartEpochSecond()));
+        generator.writeStringField("EndTime", BusTrip.formatTime(trip.getEndEpochSecond()));
+        int numPoints = points == null ? trip.getNumPoints() : points.length;
+        generator.writeStringField("NumOfPoints", String.valueOf(numPoints));
+
+        PointCursor cursor = trip.cursor();
+        for (int i = 0; i < numPoints; i++) {
+            cursor.moveTo(points == null ? i : points[i]);
+            String prefix = "Point " + (i + 1);
+            generator.writeStringField(prefix + " geom", "MyLatLong(longitude=" + roundCoordinate(cursor.getLongitude()) + ", latitude=" + roundCoordinate(cursor.getLatitude()) + ")");
+            generator.writeStringField(prefix + " arrival", cursor.getArrivalProximityText());
+            generator.writeStringField(prefix + " dist from stop", String.valueOf(cursor.getDistanceFromStop()));
+            generator.writeStringField(prefix + " time", BusTrip.formatTime(cursor.getArrivalTime()));
+        }
+        generator.writeEndObject();
+    }
 
-        return propertiesNode;
+    /**
+     * Validates rendered GeoJSON, e.g. from {@link #render(List)}, against the predefined schema.
+     *
+     * @param geoJson The UTF-8 encoded GeoJSON to be validated.
+     * @throws InvalidGeoJsonException If the GeoJSON does not meet the schema requirements or cannot be parsed.
+     */
+    public void validate(byte[] geoJson) throws InvalidGeoJsonException {
+        JsonNode geoJsonNode;
+        try {
+            geoJsonNode = mapper.readTree(geoJson);
+        } catch (IOException e) {
+            throw new InvalidGeoJsonException("Rendered GeoJson could not be parsed: " + e.getMessage());
+        }
+        Set<ValidationMessage> assertions = this.geoJsonSchema.validate(geoJsonNode);
+        if (assertions.size() != 0) {
+            throw new InvalidGeoJsonException(assertions, geoJsonNode);
+        }
     }
 
     /**
@@ -212,11 +419,10 @@ public class GeoJsonBuilder {
      * @throws JsonProcessingException If there is an error in parsing the GeoJSON string.
      */
     private void validateGeoJson(String geoJson) throws InvalidGeoJsonException, JsonProcessingException {
-        JsonNode geoJsonNode = JsonMapper.builder().build().readTree(geoJson);
+        JsonNode geoJsonNode = mapper.readTree(geoJson);
         Set<ValidationMessage> assertions = this.geoJsonSchema.validate(geoJsonNode);
         if (assertions.size() != 0) {
             throw new InvalidGeoJsonException(assertions, geoJsonNode);
         }
     }
 }
-
@@ -0,0 +1,485 @@
+package com.jerry.busappbackend.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import com.jerry.busappbackend.exception.InvalidGeoJsonException;
+import com.jerry.busappbackend.exception.RenderRejectedException;
+import com.jerry.busappbackend.model.BusTrip;
+import com.jerry.busappbackend.util.RequestTimings;
+import com.jerry.busappbackend.util.RequestTimings.Phase;
+import com.jerry.busappbackend.util.Timer;
+import com.jerry.busappbackend.util.TripSimplifier;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Cache of rendered responses, GeoJSON and vector tiles, held as encoded byte arrays.
+ * <p>
+ * A query renders to the same bytes for as long as the dataset version stays the same, so it only has to be
+ * rendered once per version. All entries are dropped when the version changes, e.g. after records are ingested,
+ * and requests still running on the previous version render without the cache.
+ * Entries are evicted least recently used first once their total size exceeds the byte budget,
+ * and responses larger than the budget are never cached. Each entry is charged a fixed overhead on top of its
+ * bytes, and empty responses, i.e. tiles without trips, and the responses of unknown lines and vehicles are
+ * not cached, so requests for arbitrary tiles or names cannot grow the cache without bound.<br></br>
+ * <br></br>
+ * Configuration:<br></br>
+ * - {@code app.cache.responses.enabled}: Whether responses are cached<br></br>
+ * - {@code app.cache.responses.max-bytes}: Byte budget of the cached responses<br></br>
+ * - {@code app.cache.responses.warm-up-lines}: Number of lines, with the most trips, rendered at start up and
+ * before a reloaded dataset is served<br></br>
+ * - {@code app.cache.responses.coalesce-timeout-ms}: Time a request waits for the same response being rendered
+ * by another request<br></br>
+ * <p>
+ * Concurrent misses for the same response are coalesced: the first request renders it, and the others wait for
+ * its rendering instead of each rendering it again, e.g. when a popular line is opened on many screens at once.
+ * <p>
+ * Responses are versioned by strong ETags derived from the dataset version and the output format, so clients
+ * can revalidate without anything being rendered. Each simplification level and coordinate precision is a
+ * format of its own.
+ */
+@Service
+public class GeoJsonResponseCache {
+    private static final Logger logger = LogManager.getLogger(GeoJsonResponseCache.class);
+
+    public static final String FORMAT_GEOJSON = "geojson";
+
+    // Heap taken by an entry besides its response and queried value: the map entry, the key and the array header
+    private static final long ENTRY_OVERHEAD_BYTES = 128;
+
+    /**
+     * Types of query a response can be cached for.
+     */
+    public enum QueryType {
+        PUBLISHED_LINE_NAME,
+        VEHICLE_REF,
+        TILE
+    }
+
+    /**
+     * Key of a cached response.
+     *
+     * @param type The type of query.
+     * @param value The queried value.
+     * @param format The format the response is rendered in.
+     */
+    public record CacheKey(QueryType type, String value, String format) {}
+
+    /**
+     * Key of a response being rendered. Requests only wait for a rendering of the dataset version they would
+     * render themselves.
+     */
+    private record FlightKey(CacheKey key, String version) {}
+
+    /**
+     * Renders a response on a cache miss.
+     *
+     * @param <E> The exception rendering may fail with.
+     */
+    @FunctionalInterface
+    public interface Renderer<E extends Exception> {
+        byte[] render() throws E;
+    }
+
+    private final boolean enabled;
+    private final long maxBytes;
+    private final int warmUpLines;
+    private final long coalesceTimeoutMs;
+
+    // Access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<CacheKey, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+    // The dataset version the entries were rendered from
+    private String entriesVersion;
+    // Responses rendered for a reloaded dataset before it is served, cached once it is
+    private String warmedUpVersion;
+    private Map<CacheKey, byte[]> warmedUpEntries = Map.of();
+    // Renderings in progress, completed with the response or the failure of the rendering
+    private final ConcurrentHashMap<FlightKey, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    @Autowired
+    BusTripDataProvider dataProvider;
+
+    @Autowired
+    GeoJsonBuilder geoJsonBuilder;
+
+    @Autowired
+    GeoJsonValidator geoJsonValidator;
+
+    @Autowired
+    TripSimplifier tripSimplifier;
+
+    @Autowired
+    RenderBulkhead renderBulkhead;
+
+    @Autowired
+    Timer timer;
+
+    public GeoJsonResponseCache(
+        @Value("${app.cache.responses.enabled:true}") boolean enabled,
+        @Value("${app.cache.responses.max-bytes:268435456}") long maxBytes,
+        @Value("${app.cache.responses.warm-up-lines:0}") int warmUpLines,
+        @Value("${app.cache.responses.coalesce-timeout-ms:30000}") long coalesceTimeoutMs
+    ) {
+        if (coalesceTimeoutMs <= 0) {
+            throw new IllegalArgumentException("Response coalescing timeout must be positive: " + coalesceTimeoutMs);
+        }
+        this.enabled = enabled;
+        this.maxBytes = maxBytes;
+        this.warmUpLines = warmUpLines;
+        this.coalesceTimeoutMs = coalesceTimeoutMs;
+    }
+
+    /**
+     * Renders the lines with the most trips, as configured by {@code app.cache.responses.warm-up-lines}.
+     *
+     * @throws InvalidGeoJsonException If a rendered line is validated and is invalid.
+     */
+    @PostConstruct
+    private void warmUp() throws InvalidGeoJsonException {
+        if (!this.enabled || this.warmUpLines <= 0) {
+            return;
+        }
+
+        TripDataset dataset = dataProvider.getDataset();
+        Map<CacheKey, byte[]> rendered = renderWarmUp(dataset);
+        synchronized (this.entries) {
+            this.entriesVersion = dataset.getVersion();
+            rendered.forEach((key, response) -> put(key, response, dataset.getVersion()));
+        }
+    }
+
+    /**
+     * Renders the warm-up lines of a reloaded dataset before it is served, so they are cached as soon as it is.
+     * The reload goes ahead without them if a rendering is invalid.
+     */
+    @EventListener
+    public void onDatasetLoaded(BusTripDataProvider.DatasetLoadedEvent event) {
+        if (!this.enabled || this.warmUpLines <= 0) {
+            return;
+        }
+
+        try {
+            Map<CacheKey, byte[]> rendered = renderWarmUp(event.dataset());
+            synchronized (this.entries) {
+                this.warmedUpVersion = event.dataset().getVersion();
+                this.warmedUpEntries = rendered;
+            }
+        } catch (InvalidGeoJsonException e) {
+            logger.error("Failed to warm up the response cache for dataset " + event.dataset().getVersion(), e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Returns the GeoJSON of the trips matching a query, rendering and caching it on a miss.
+     * Renderings are validated as decided by {@link GeoJsonValidator}, before they are cached.
+     * Rendering waits for a permit of the {@link RenderBulkhead}.
+     *
+     * @param type The type of query.
+     * @param value The queried value.
+     * @param level The simplification level, or {@link TripSimplifier#FULL_DETAIL}.
+     * @return The UTF-8 encoded GeoJSON.
+     * @throws InvalidGeoJsonException If the rendering is validated and is invalid.
+     * @throws RenderRejectedException If the response is not cached and the render queue is full.
+     */
+    public byte[] getGeoJson(QueryType type, String value, int level) throws InvalidGeoJsonException {
+        String format = getGeoJsonFormat(level);
+        Renderer<InvalidGeoJsonException> renderer = () -> {
+            List<BusTrip> trips = getTrips(type, value);
+            try (RenderBulkhead.Permit permit = renderBulkhead.acquire()) {
+                RequestTimings.enter(Phase.RENDER);
+                byte[] geoJson = geoJsonBuilder.render(trips, level);
+                if (geoJsonValidator.shouldValidate()) {
+                    RequestTimings.enter(Phase.VALIDATE);
+                    geoJsonValidator.validate(geoJson, type + " " + value + " (" + format + ")");
+                }
+                return geoJson;
+            }
+        };
+        if (getTrips(type, value).isEmpty()) {
+            // Unknown names are cheap to render and not cached, so made up names cannot fill the cache
+            return renderer.render();
+        }
+        return get(new CacheKey(type, value, format), renderer);
+    }
+
+    /**
+     * Names the format of GeoJSON rendered at a simplification level, e.g. "geojson-z12", or "geojson-z12-p5"
+     * when coordinates are rounded to 5 decimal places.
+     *
+     * @param level The simplification level, or {@link TripSimplifier#FULL_DETAIL}.
+     * @return The name of the format, for cache keys and ETags.
+     */
+    public String getGeoJsonFormat(int level) {
+        return getGeoJsonFormat(FORMAT_GEOJSON, level);
+    }
+
+    /**
+     * Names a format of GeoJSON rendered at a simplification level, see {@link #getGeoJsonFormat(int)}.
+     *
+     * @param baseFormat The name of the unsimplified format, e.g. "geojson" or the name of a sequence format.
+     * @param level The simplification level, or {@link TripSimplifier#FULL_DETAIL}.
+     * @return The name of the format, for cache keys and ETags.
+     */
+    public String getGeoJsonFormat(String baseFormat, int level) {
+        String format = baseFormat;
+        if (level != TripSimplifier.FULL_DETAIL) {
+            format += "-z" + tripSimplifier.getZoom(level);
+        }
+        if (geoJsonBuilder.getCoordinatePrecision() >= 0) {
+            format += "-p" + geoJsonBuilder.getCoordinatePrecision();
+        }
+        return format;
+    }
+
+    /**
+     * Returns a cached response, or renders and caches it on a miss. Rendering happens outside the lock.
+     * Concurrent misses for the same key and dataset version are coalesced, only the first renders the response
+     * and the others wait for it, up to the coalescing timeout, and get its response or its failure. Requests
+     * on a dataset that has been replaced since they started neither read nor drop the cached responses, and
+     * render their own.
+     *
+     * @param key The key of the response.
+     * @param renderer Renders the response on a miss.
+     * @return The encoded response.
+     * @throws E If the renderer fails, e.g. validation, nothing is cached in that case. Requests waiting for the
+     * rendering fail with the same exception.
+     * @throws RenderRejectedException If the response was being rendered by another request and was not ready
+     * within the coalescing timeout.
+     */
+    public <E extends Exception> byte[] get(CacheKey key, Renderer<E> renderer) throws E {
+        if (!this.enabled) {
+            return renderer.render();
+        }
+
+        String version = dataProvider.getDatasetVersion();
+        boolean replaced = false;
+        synchronized (this.entries) {
+            if (!version.equals(this.entriesVersion)) {
+                // Requests pinned to a replaced dataset render without the cache, rather than dropping the
+                // entries of the dataset being served
+                replaced = !version.equals(dataProvider.getLatestDatasetVersion());
+                if (!replaced) {
+                    this.entries.clear();
+                    this.totalBytes = 0;
+                    this.entriesVersion = version;
+                    if (version.equals(this.warmedUpVersion)) {
+                        this.warmedUpEntries.forEach((warmedUpKey, response) -> put(warmedUpKey, response, version));
+                    }
+                    this.warmedUpVersion = null;
+                    this.warmedUpEntries = Map.of();
+                }
+            }
+            byte[] cached = replaced ? null : this.entries.get(key);
+            if (cached != null) {
+                this.hits.incrementAndGet();
+                return cached;
+            }
+        }
+        if (replaced) {
+            this.misses.incrementAndGet();
+            return renderer.render();
+        }
+
+        FlightKey flightKey = new FlightKey(key, version);
+        CompletableFuture<byte[]> flight = new CompletableFuture<>();
+        CompletableFuture<byte[]> leader = this.inFlight.putIfAbsent(flightKey, flight);
+        if (leader != null) {
+            this.coalesced.incrementAndGet();
+            return this.<E>await(leader, key);
+        }
+
+        this.misses.incrementAndGet();
+        try {
+            byte[] rendered = renderer.render();
+            put(key, rendered, version);
+            flight.complete(rendered);
+            return rendered;
+        } catch (Throwable e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            // Cached by now, so requests arriving after this are hits
+            this.inFlight.remove(flightKey, flight);
+        }
+    }
+
+    /**
+     * Creates the strong ETag of the responses in a format. Responses only change with the dataset and the
+     * renderer, and an ETag only has to be unique per URL, so the query itself is not part of it.
+     *
+     * @param format The format of the response.
+     * @return The quoted ETag.
+     */
+    public String getETag(String format) {
+        return "\"" + dataProvider.getDatasetVersion() + "-" + format + "-" + GeoJsonBuilder.OUTPUT_VERSION + "\"";
+    }
+
+    /**
+     * Checks an If-None-Match header against an ETag, using weak comparison as required for If-None-Match.
+     *
+     * @param ifNoneMatch The value of the If-None-Match header, may be null.
+     * @param etag The current ETag.
+     * @return true if the client's copy is current and a 304 can be sent.
+     */
+    public static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*")) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The hit, miss, eviction and coalesced counts, and the number and total size of the cached responses.
+     * Coalesced requests waited for another request's rendering, and are counted as neither hits nor misses.
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("hits", this.hits.get());
+        stats.put("misses", this.misses.get());
+        stats.put("evictions", this.evictions.get());
+        stats.put("coalesced", this.coalesced.get());
+        synchronized (this.entries) {
+            stats.put("entries", (long) this.entries.size());
+            stats.put("bytes", this.totalBytes);
+        }
+        stats.put("maxBytes", this.maxBytes);
+        return stats;
+    }
+
+    // ================== UTILS ==================
+
+    /**
+     * Renders the lines of a dataset with the most trips, see {@code app.cache.responses.warm-up-lines}.
+     *
+     * @return The responses by key, in the order the lines were rendered.
+     * @throws InvalidGeoJsonException If a rendered line is validated and is invalid.
+     */
+    private Map<CacheKey, byte[]> renderWarmUp(TripDataset dataset) throws InvalidGeoJsonException {
+        int timerID = timer.startTimer();
+        List<String> lines = dataset.getAllPublishedLineName().stream()
+            .sorted((a, b) -> Integer.compare(
+                dataset.getTripByPublishedLineName(b).size(),
+                dataset.getTripByPublishedLineName(a).size()
+            ))
+            .limit(this.warmUpLines)
+            .toList();
+
+        String format = getGeoJsonFormat(TripSimplifier.FULL_DETAIL);
+        Map<CacheKey, byte[]> rendered = new LinkedHashMap<>();
+        long totalBytes = 0;
+        for (String line : lines) {
+            byte[] geoJson = geoJsonBuilder.render(dataset.getTripByPublishedLineName(line), TripSimplifier.FULL_DETAIL);
+            if (geoJsonValidator.shouldValidate()) {
+                geoJsonValidator.validate(geoJson, QueryType.PUBLISHED_LINE_NAME + " " + line + " (" + format + ")");
+            }
+            rendered.put(new CacheKey(QueryType.PUBLISHED_LINE_NAME, line, format), geoJson);
+            totalBytes += geoJson.length;
+        }
+        logger.info("Warmed up the response cache with " + lines.size() + " lines (" + totalBytes + " bytes) of dataset " + dataset.getVersion() + " in " + timer.getPrettyTime(timerID));
+        return rendered;
+    }
+
+    /**
+     * Waits for the rendering of another request, see {@link #get}.
+     *
+     * @throws E The exception the rendering failed with.
+     */
+    @SuppressWarnings("unchecked")
+    private <E extends Exception> byte[] await(CompletableFuture<byte[]> flight, CacheKey key) throws E {
+        try {
+            return flight.get(this.coalesceTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new RenderRejectedException("Timed out waiting for the rendering of " + key + " after " + this.coalesceTimeoutMs + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RenderRejectedException("Interrupted waiting for the rendering of " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            // The renderers of a key fail with the same checked exceptions
+            throw (E) cause;
+        }
+    }
+
+    private List<BusTrip> getTrips(QueryType type, String value) {
+        return type == QueryType.PUBLISHED_LINE_NAME
+            ? dataProvider.getTripByPublishedLineName(value)
+            : dataProvider.getTripByVehicleRef(value);
+    }
+
+    /**
+     * Caches a response, evicting the least recently used responses until the total size is within budget.
+     * Responses rendered from a dataset version that is no longer cached, and empty responses, are dropped.
+     */
+    private void put(CacheKey key, byte[] response, String version) {
+        if (response.length == 0 || getEntryBytes(key, response) > this.maxBytes) {
+            return;
+        }
+
+        synchronized (this.entries) {
+            if (!version.equals(this.entriesVersion)) {
+                return;
+            }
+            byte[] previous = this.entries.put(key, response);
+            this.totalBytes += getEntryBytes(key, response) - (previous == null ? 0 : getEntryBytes(key, previous));
+
+            Iterator<Map.Entry<CacheKey, byte[]>> leastRecentlyUsed = this.entries.entrySet().iterator();
+            while (this.totalBytes > this.maxBytes && leastRecentlyUsed.hasNext()) {
+                Map.Entry<CacheKey, byte[]> entry = leastRecentlyUsed.next();
+                this.totalBytes -= getEntryBytes(entry.getKey(), entry.getValue());
+                leastRecentlyUsed.remove();
+                this.evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return The bytes an entry is charged against the byte budget, including its overhead.
+     */
+    private static long getEntryBytes(CacheKey key, byte[] response) {
+        return ENTRY_OVERHEAD_BYTES + key.value().length() + response.length;
+    }
+}
@@ -0,0 +1,210 @@
+package com.jerry.busappbackend.service;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.jerry.busappbackend.exception.InvalidGeoJsonException;
+import com.jerry.busappbackend.model.BusTrip;
+import com.jerry.busappbackend.util.Timer;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Decides when rendered GeoJSON is validated against the GeoJSON schema.
+ * <p>
+ * Validation parses the whole response again and runs the schema over it, which costs about as much as
+ * rendering it, so it can be moved off the request path with {@code app.geojson.validation.mode}:<br></br>
+ * - {@code always}: Every rendered response is validated before it is sent<br></br>
+ * - {@code sampled}: A fraction ({@code app.geojson.validation.sample-rate}) of rendered responses is validated
+ * in the background, failures are logged and counted but the response is still sent<br></br>
+ * - {@code startup}: One rendering of every line and vehicle is validated during start up, which fails if any
+ * of them is invalid, after which the renderer is trusted<br></br>
+ */
+@Service
+public class GeoJsonValidator {
+    private static final Logger logger = LogManager.getLogger(GeoJsonValidator.class);
+
+    private static final int SAMPLE_QUEUE_SIZE = 16;
+
+    /**
+     * Modes of validation, see {@link GeoJsonValidator}.
+     */
+    public enum Mode {
+        ALWAYS,
+        SAMPLED,
+        STARTUP
+    }
+
+    private final Mode mode;
+    private final double sampleRate;
+    private ThreadPoolExecutor sampleExecutor;
+
+    private final AtomicLong validated = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    @Autowired
+    BusTripDataProvider dataProvider;
+
+    @Autowired
+    GeoJsonBuilder geoJsonBuilder;
+
+    @Autowired
+    Timer timer;
+
+    public GeoJsonValidator(
+        @Value("${app.geojson.validation.mode:always}") String modeName,
+        @Value("${app.geojson.validation.sample-rate:0.01}") double sampleRate
+    ) {
+        try {
+            this.mode = Mode.valueOf(modeName.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown GeoJson validation mode: " + modeName);
+        }
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("GeoJson validation sample rate must be between 0 and 1: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    @PostConstruct
+    private void initialise() {
+        if (this.mode == Mode.SAMPLED) {
+            // Samples are dropped rather than queued without bound when validation falls behind
+            this.sampleExecutor = new ThreadPoolExecutor(
+                1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(SAMPLE_QUEUE_SIZE),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "geojson-validator");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, executor) -> this.dropped.incrementAndGet()
+            );
+        } else if (this.mode == Mode.STARTUP) {
+            validateAll();
+        }
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        if (this.sampleExecutor != null) {
+            this.sampleExecutor.shutdownNow();
+        }
+    }
+
+    public Mode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * Decides whether a rendered response should be passed to {@link #validate(byte[], String)}.
+     * In sampled mode every call draws a new sample.
+     *
+     * @return true if the response should be validated.
+     */
+    public boolean shouldValidate() {
+        switch (this.mode) {
+            case ALWAYS:
+                return true;
+            case SAMPLED:
+                return ThreadLocalRandom.current().nextDouble() < this.sampleRate;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Validates a rendered response. In sampled mode the response is validated in the background and
+     * this method returns immediately, otherwise it is validated before returning.
+     *
+     * @param geoJson The UTF-8 encoded GeoJSON.
+     * @param description What the response is for, used when logging failures.
+     * @throws InvalidGeoJsonException If the response is validated immediately and is invalid.
+     */
+    public void validate(byte[] geoJson, String description) throws InvalidGeoJsonException {
+        if (this.mode == Mode.SAMPLED) {
+            this.sampleExecutor.execute(() -> {
+                try {
+                    validateNow(geoJson, description);
+                } catch (InvalidGeoJsonException e) {
+                    // Already recorded
+                }
+            });
+            return;
+        }
+        validateNow(geoJson, description);
+    }
+
+    /**
+     * @return The number of responses validated, the number that failed, and the number of samples dropped
+     * because validation fell behind.
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("validated", this.validated.get());
+        stats.put("failures", this.failures.get());
+        stats.put("dropped", this.dropped.get());
+        return stats;
+    }
+
+    // ================== UTILS ==================
+
+    private void validateNow(byte[] geoJson, String description) throws InvalidGeoJsonException {
+        try {
+            geoJsonBuilder.validate(geoJson);
+            this.validated.incrementAndGet();
+        } catch (InvalidGeoJsonException e) {
+            this.validated.incrementAndGet();
+            this.failures.incrementAndGet();
+            logger.error("Invalid GeoJson rendered for: " + description, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Renders and validates the trips of every line and vehicle.
+     *
+     * @throws IllegalStateException If any rendering is invalid.
+     */
+    private void validateAll() {
+        int timerID = timer.startTimer();
+        List<String> lines = dataProvider.getAllPublishedLineName();
+        List<String> vehicles = dataProvider.getAllVehicleRef();
+
+        long numInvalid = lines.parallelStream()
+            .filter(line -> !isValid(dataProvider.getTripByPublishedLineName(line), "line " + line))
+            .count();
+        numInvalid += vehicles.parallelStream()
+            .filter(vehicle -> !isValid(dataProvider.getTripByVehicleRef(vehicle), "vehicle " + vehicle))
+            .count();
+
+        if (numInvalid > 0) {
+            throw new IllegalStateException(numInvalid + " renderings failed GeoJson validation during start up");
+        }
+        logger.info("Validated GeoJson of " + lines.size() + " lines and " + vehicles.size() + " vehicles in " + timer.getPrettyTime(timerID));
+    }
+
+    private boolean isValid(List<BusTrip> trips, String description) {
+        try {
+            validateNow(geoJsonBuilder.render(trips), description);
+            return true;
+        } catch (InvalidGeoJsonException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.jerry.busappbackend.service;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.jerry.busappbackend.util.CsvParser;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Service for following the raw data file as rows are appended to it, adding the new records to the trips
+ * being served without a restart.
+ * <p>
+ * The file is polled on a single background thread. Each poll has {@link BusTripDataProvider#ingestAppended}
+ * parse the complete rows written since the previous poll and add them, requests keep being served from the
+ * previous dataset until the new one is published. After a reload, the reloaded file is followed.<br></br>
+ * <br></br>
+ * Configuration:<br></br>
+ * - {@code app.ingest.enabled}: Whether the raw data file is followed<br></br>
+ * - {@code app.ingest.poll-interval-ms}: Time between the end of a poll and the start of the next<br></br>
+ */
+@Service
+public class LiveIngestService {
+    private static final Logger logger = LogManager.getLogger(LiveIngestService.class);
+
+    private final boolean enabled;
+    private final long pollIntervalMs;
+
+    private ScheduledExecutorService executor;
+
+    @Autowired
+    BusTripDataProvider dataProvider;
+
+    @Autowired
+    CsvParser parser;
+
+    public LiveIngestService(
+        @Value("${app.ingest.enabled:false}") boolean enabled,
+        @Value("${app.ingest.poll-interval-ms:5000}") long pollIntervalMs
+    ) {
+        if (pollIntervalMs <= 0) {
+            throw new IllegalArgumentException("Ingest poll interval must be positive: " + pollIntervalMs);
+        }
+        this.enabled = enabled;
+        this.pollIntervalMs = pollIntervalMs;
+    }
+
+    @PostConstruct
+    private void start() {
+        if (!this.enabled) {
+            return;
+        }
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "live-ingest");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::poll, this.pollIntervalMs, this.pollIntervalMs, TimeUnit.MILLISECONDS);
+        logger.info("Following " + parser.getRawDataPath() + " from offset " + dataProvider.getRawDataSize() + " every " + this.pollIntervalMs + " ms");
+    }
+
+    @PreDestroy
+    private void stop() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+    }
+
+    // ================== UTILS ==================
+
+    /**
+     * Ingests the rows appended since the previous poll. Failures are logged and the rows are retried on the
+     * next poll, an exception would cancel the schedule.
+     */
+    private void poll() {
+        try {
+            dataProvider.ingestAppended();
+        } catch (RuntimeException e) {
+            logger.error("Failed to ingest rows appended to " + parser.getRawDataPath() + " after offset " + dataProvider.getRawDataSize(), e);
+        }
+    }
+}
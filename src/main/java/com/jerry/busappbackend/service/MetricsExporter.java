@@ -0,0 +1,208 @@
+package com.jerry.busappbackend.service;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.jerry.busappbackend.model.BusTrip;
+import com.jerry.busappbackend.util.LatencyHistogram;
+import com.jerry.busappbackend.util.MemoryTracker;
+import com.jerry.busappbackend.util.MetricsRegistry;
+import com.jerry.busappbackend.util.MetricsRegistry.Counter;
+import com.jerry.busappbackend.util.MetricsRegistry.Timing;
+import com.jerry.busappbackend.util.TripPointStorage;
+
+/**
+ * Service for exporting the metrics of the application in the Prometheus text format, for the metrics endpoint.
+ * <p>
+ * Exported metrics:<br></br>
+ * - Durations recorded in the {@link MetricsRegistry}, as summaries with the 50th, 90th, 99th and 99.9th
+ * percentiles since start up, and a {@code _max} gauge<br></br>
+ * - Counts of loaded and ingested records, trips and generations<br></br>
+ * - Counters of the response cache, the GeoJSON validator and the render bulkhead, see their {@code getStats}<br></br>
+ * - The heap used, and the estimated heap retained by the trips and the line and vehicle indexes<br></br>
+ * - The memory taken by points stored outside the heap, see {@link TripPointStorage}<br></br>
+ * - Collections and time spent by each garbage collector<br></br>
+ * <br></br>
+ * The retained sizes are estimated once per dataset version, as it means visiting every trip.
+ */
+@Service
+public class MetricsExporter {
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    /**
+     * Estimated retained sizes of the dataset of a version.
+     */
+    private record RetainedBytes(String version, long trips, long pubLineNameIndex, long vehRefIndex, long offHeapPoints) {}
+
+    private volatile RetainedBytes retainedBytes;
+
+    @Autowired
+    MetricsRegistry metrics;
+
+    @Autowired
+    BusTripDataProvider dataProvider;
+
+    @Autowired
+    GeoJsonResponseCache responseCache;
+
+    @Autowired
+    GeoJsonValidator geoJsonValidator;
+
+    @Autowired
+    RenderBulkhead renderBulkhead;
+
+    @Autowired
+    TripPointStorage pointStorage;
+
+    /**
+     * @return All metrics, in the Prometheus text exposition format, version 0.0.4.
+     */
+    public String export() {
+        StringBuilder out = new StringBuilder(8192);
+
+        for (Timing timing : Timing.values()) {
+            writeSummary(out, timing);
+        }
+        for (Counter counter : Counter.values()) {
+            writeMetric(out, counter.getMetricName(), "counter", counter.getHelp(), metrics.getCount(counter));
+        }
+
+        TripDataset dataset = dataProvider.getDataset();
+        writeMetric(out, "bus_app_trips", "gauge", "Trips being served", dataset.getTrips().size());
+        writeMetric(out, "bus_app_unindexed_trips", "gauge", "Trips added or extended since the time and spatial indexes were built",
+            dataset.getNumUnindexedTrips());
+        writeMetric(out, "bus_app_dataset_generation", "gauge", "Number of the generation being served, incremented by reloads",
+            dataProvider.getGenerationNumber());
+        writeMetric(out, "bus_app_raw_data_bytes", "gauge", "Bytes of the raw data file loaded or ingested", dataProvider.getRawDataSize());
+
+        Map<String, Long> cacheStats = responseCache.getStats();
+        writeMetric(out, "bus_app_response_cache_hits_total", "counter", "Responses served from the response cache", cacheStats.get("hits"));
+        writeMetric(out, "bus_app_response_cache_misses_total", "counter", "Responses rendered on a cache miss", cacheStats.get("misses"));
+        writeMetric(out, "bus_app_response_cache_coalesced_total", "counter", "Renders saved by waiting for the same response rendered by another request",
+            cacheStats.get("coalesced"));
+        writeMetric(out, "bus_app_response_cache_evictions_total", "counter", "Responses evicted from the response cache", cacheStats.get("evictions"));
+        writeMetric(out, "bus_app_response_cache_entries", "gauge", "Responses in the response cache", cacheStats.get("entries"));
+        writeMetric(out, "bus_app_response_cache_bytes", "gauge", "Bytes of the responses in the response cache", cacheStats.get("bytes"));
+        writeMetric(out, "bus_app_response_cache_max_bytes", "gauge", "Byte budget of the response cache", cacheStats.get("maxBytes"));
+
+        Map<String, Long> validatorStats = geoJsonValidator.getStats();
+        writeMetric(out, "bus_app_geojson_validated_total", "counter", "Rendered GeoJSON responses validated", validatorStats.get("validated"));
+        writeMetric(out, "bus_app_geojson_invalid_total", "counter", "Rendered GeoJSON responses that failed validation", validatorStats.get("failures"));
+        writeMetric(out, "bus_app_geojson_validation_dropped_total", "counter", "Sampled GeoJSON responses dropped without being validated",
+            validatorStats.get("dropped"));
+
+        Map<String, Long> bulkheadStats = renderBulkhead.getStats();
+        writeMetric(out, "bus_app_render_admitted_total", "counter", "Renders admitted by the render bulkhead", bulkheadStats.get("admitted"));
+        writeMetric(out, "bus_app_render_rejected_total", "counter", "Requests shed with a 503 because the render queue was full",
+            bulkheadStats.get("rejected"));
+        writeMetric(out, "bus_app_render_timed_out_total", "counter", "Requests shed with a 503 after waiting for the render queue timeout",
+            bulkheadStats.get("timedOut"));
+        writeMetric(out, "bus_app_render_active", "gauge", "Responses being rendered", bulkheadStats.get("active"));
+        writeMetric(out, "bus_app_render_queued", "gauge", "Requests waiting to render", bulkheadStats.get("queued"));
+
+        writeMetric(out, "bus_app_heap_used_bytes", "gauge", "Bytes of the heap in use, including uncollected garbage", MemoryTracker.getUsedBytes());
+        writeMetric(out, "bus_app_heap_peak_used_bytes", "gauge", "Sum of the peak bytes used by each heap pool since start up",
+            MemoryTracker.getPeakUsedBytes());
+        writeMetric(out, "bus_app_heap_committed_bytes", "gauge", "Bytes of heap reserved by the JVM", MemoryTracker.getCommittedBytes());
+        writeMetric(out, "bus_app_heap_max_bytes", "gauge", "Bytes the heap can grow to", MemoryTracker.getMaxBytes());
+
+        RetainedBytes retained = getRetainedBytes(dataset);
+        writeHeader(out, "bus_app_retained_bytes", "gauge", "Estimated bytes of heap retained by the data being served, by structure");
+        writeSample(out, "bus_app_retained_bytes", "structure", "trips", retained.trips());
+        writeSample(out, "bus_app_retained_bytes", "structure", "published_line_index", retained.pubLineNameIndex());
+        writeSample(out, "bus_app_retained_bytes", "structure", "vehicle_index", retained.vehRefIndex());
+        writeMetric(out, "bus_app_off_heap_point_bytes", "gauge", "Bytes of the points of the trips being served stored outside the heap",
+            retained.offHeapPoints());
+        writeMetric(out, "bus_app_off_heap_point_allocated_bytes_total", "counter",
+            "Bytes of direct buffers allocated for points, including buffers released since", pointStorage.getAllocatedOffHeapBytes());
+
+        Map<String, Long> gcTimes = MemoryTracker.getGcTimeMs();
+        writeHeader(out, "bus_app_gc_collections_total", "counter", "Collections by garbage collector");
+        for (Map.Entry<String, Long> entry : MemoryTracker.getGcCollections().entrySet()) {
+            writeSample(out, "bus_app_gc_collections_total", "collector", entry.getKey(), entry.getValue());
+        }
+        writeHeader(out, "bus_app_gc_seconds_total", "counter", "Time spent in collections by garbage collector");
+        for (Map.Entry<String, Long> entry : gcTimes.entrySet()) {
+            out.append("bus_app_gc_seconds_total{collector=\"").append(escapeLabel(entry.getKey())).append("\"} ")
+                .append(entry.getValue() / 1e3).append('\n');
+        }
+
+        return out.toString();
+    }
+
+    // ================== UTILS ==================
+
+    private RetainedBytes getRetainedBytes(TripDataset dataset) {
+        RetainedBytes retained = this.retainedBytes;
+        if (retained != null && retained.version().equals(dataset.getVersion())) {
+            return retained;
+        }
+
+        long tripBytes = 0;
+        long offHeapBytes = 0;
+        for (BusTrip trip : dataset.getTrips()) {
+            tripBytes += trip.estimateRetainedBytes();
+            offHeapBytes += trip.getOffHeapBytes();
+        }
+        retained = new RetainedBytes(
+            dataset.getVersion(),
+            tripBytes,
+            dataset.getPubLineNameToTripIndex().estimateRetainedBytes(),
+            dataset.getVehRefToTripIndex().estimateRetainedBytes(),
+            offHeapBytes
+        );
+        this.retainedBytes = retained;
+        return retained;
+    }
+
+    private void writeSummary(StringBuilder out, Timing timing) {
+        String name = timing.getMetricName();
+        String labelName = timing.getLabelName();
+        // Sorted, so the output is stable between scrapes
+        Map<String, LatencyHistogram> histograms = new TreeMap<>(metrics.getHistograms(timing));
+
+        writeHeader(out, name, "summary", timing.getHelp());
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            String label = labelName + "=\"" + escapeLabel(entry.getKey()) + "\"";
+            LatencyHistogram histogram = entry.getValue();
+            for (double quantile : QUANTILES) {
+                out.append(name).append('{').append(label).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(toSeconds(histogram.getValueAtQuantile(quantile))).append('\n');
+            }
+            out.append(name).append("_sum{").append(label).append("} ").append(toSeconds(histogram.getSum())).append('\n');
+            out.append(name).append("_count{").append(label).append("} ").append(histogram.getCount()).append('\n');
+        }
+
+        writeHeader(out, name + "_max", "gauge", "Longest " + Character.toLowerCase(timing.getHelp().charAt(0)) + timing.getHelp().substring(1));
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            out.append(name).append("_max{").append(labelName).append("=\"").append(escapeLabel(entry.getKey())).append("\"} ")
+                .append(toSeconds(entry.getValue().getMax())).append('\n');
+        }
+    }
+
+    private static double toSeconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static void writeMetric(StringBuilder out, String name, String type, String help, long value) {
+        writeHeader(out, name, type, help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void writeHeader(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeSample(StringBuilder out, String name, String labelName, String labelValue, long value) {
+        out.append(name).append('{').append(labelName).append("=\"").append(escapeLabel(labelValue)).append("\"} ")
+            .append(value).append('\n');
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,151 @@
+package com.jerry.busappbackend.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.jerry.busappbackend.exception.RenderRejectedException;
+import com.jerry.busappbackend.util.RequestTimings;
+import com.jerry.busappbackend.util.RequestTimings.Phase;
+
+/**
+ * Limits the number of GeoJSON responses rendered at the same time, so requests for huge lines cannot take
+ * every request thread and starve the cheap endpoints, e.g. the lists of lines and vehicles and {@code /ready}.
+ * <p>
+ * Rendering needs a permit. Requests that find every permit taken wait in a bounded queue, and are rejected
+ * once the queue is full or they have waited for the queue timeout, to be answered with a 503 and a
+ * Retry-After header. Responses served from the response cache do not render, and need no permit.<br></br>
+ * <br></br>
+ * Streamed responses are rendered as they are written, so they hold their permit until the client has read
+ * the response.<br></br>
+ * <br></br>
+ * Configuration:<br></br>
+ * - {@code app.render.max-concurrent}: Number of responses rendered at the same time, defaults to the number
+ * of available processors<br></br>
+ * - {@code app.render.queue-capacity}: Number of requests that can wait for a permit<br></br>
+ * - {@code app.render.queue-timeout-ms}: Time a request waits for a permit before it is rejected<br></br>
+ * - {@code app.render.retry-after-seconds}: Retry-After of rejected requests<br></br>
+ */
+@Service
+public class RenderBulkhead {
+
+    /**
+     * A permit to render, released when closed.
+     */
+    public final class Permit implements AutoCloseable {
+        private boolean released = false;
+
+        private Permit() {}
+
+        @Override
+        public void close() {
+            if (!this.released) {
+                this.released = true;
+                permits.release();
+            }
+        }
+    }
+
+    private final int maxConcurrent;
+    private final int queueCapacity;
+    private final long queueTimeoutMs;
+    private final int retryAfterSeconds;
+
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    public RenderBulkhead(
+        @Value("${app.render.max-concurrent:0}") int maxConcurrent,
+        @Value("${app.render.queue-capacity:32}") int queueCapacity,
+        @Value("${app.render.queue-timeout-ms:10000}") long queueTimeoutMs,
+        @Value("${app.render.retry-after-seconds:2}") int retryAfterSeconds
+    ) {
+        if (maxConcurrent < 0) {
+            throw new IllegalArgumentException("Maximum concurrent renders must not be negative: " + maxConcurrent);
+        }
+        if (queueCapacity < 0) {
+            throw new IllegalArgumentException("Render queue capacity must not be negative: " + queueCapacity);
+        }
+        if (queueTimeoutMs < 0) {
+            throw new IllegalArgumentException("Render queue timeout must not be negative: " + queueTimeoutMs);
+        }
+        if (retryAfterSeconds < 1) {
+            throw new IllegalArgumentException("Render Retry-After must be at least 1 second: " + retryAfterSeconds);
+        }
+        this.maxConcurrent = maxConcurrent == 0 ? Runtime.getRuntime().availableProcessors() : maxConcurrent;
+        this.queueCapacity = queueCapacity;
+        this.queueTimeoutMs = queueTimeoutMs;
+        this.retryAfterSeconds = retryAfterSeconds;
+        // Fair, so queued requests are admitted in the order they arrived
+        this.permits = new Semaphore(this.maxConcurrent, true);
+    }
+
+    /**
+     * Takes a permit to render, waiting in the queue if none is free. Time spent waiting is reported as
+     * {@link Phase#QUEUE}.
+     *
+     * @return The permit, to be closed once rendering is done.
+     * @throws RenderRejectedException If the queue is full, the request waited for the queue timeout, or it was
+     * interrupted while waiting.
+     */
+    public Permit acquire() {
+        if (this.permits.tryAcquire()) {
+            this.admitted.incrementAndGet();
+            return new Permit();
+        }
+
+        if (this.queued.incrementAndGet() > this.queueCapacity) {
+            this.queued.decrementAndGet();
+            this.rejected.incrementAndGet();
+            throw new RenderRejectedException("The render queue is full");
+        }
+        RequestTimings.enter(Phase.QUEUE);
+        try {
+            if (!this.permits.tryAcquire(this.queueTimeoutMs, TimeUnit.MILLISECONDS)) {
+                this.timedOut.incrementAndGet();
+                throw new RenderRejectedException("Timed out waiting to render after " + this.queueTimeoutMs + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.rejected.incrementAndGet();
+            throw new RenderRejectedException("Interrupted waiting to render");
+        } finally {
+            this.queued.decrementAndGet();
+        }
+        this.admitted.incrementAndGet();
+        return new Permit();
+    }
+
+    /**
+     * @return The number of seconds rejected requests are asked to wait before retrying.
+     */
+    public int getRetryAfterSeconds() {
+        return this.retryAfterSeconds;
+    }
+
+    /**
+     * @return The number of requests admitted, rejected because the queue was full, and rejected after waiting
+     * for the queue timeout, the number of responses being rendered and requests waiting, and the limits.
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("admitted", this.admitted.get());
+        stats.put("rejected", this.rejected.get());
+        stats.put("timedOut", this.timedOut.get());
+        stats.put("active", (long) (this.maxConcurrent - this.permits.availablePermits()));
+        stats.put("queued", (long) this.queued.get());
+        stats.put("maxConcurrent", (long) this.maxConcurrent);
+        stats.put("queueCapacity", (long) this.queueCapacity);
+        return stats;
+    }
+}
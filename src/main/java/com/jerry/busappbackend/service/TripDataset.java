@@ -0,0 +1,313 @@
+package com.jerry.busappbackend.service;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import com.jerry.busappbackend.model.BusTrip;
+import com.jerry.busappbackend.util.IntervalIndex;
+import com.jerry.busappbackend.util.TripIndex;
+import com.jerry.busappbackend.util.TripSpatialIndex;
+
+/**
+ * Immutable set of trips and the indexes over them, as served by {@link BusTripDataProvider}.
+ * <p>
+ * A dataset is never modified once it is published. Updates build a new dataset, sharing everything that did
+ * not change with the previous one, and publish it with a single reference swap, so readers never lock and
+ * always see one consistent dataset.<br></br>
+ * <br></br>
+ * Trips are referred to by their index within the list of trips. An update may replace the trip at an index
+ * with an extended version of it, or add trips at the end, but never moves or removes trips, so the line and
+ * vehicle indexes only ever grow. The time and spatial indexes are expensive to build, so trips replaced or
+ * added since they were built are marked as unindexed instead. Queries check unindexed trips one by one and
+ * ignore their stale entries in the indexes, until the indexes are rebuilt.
+ */
+public class TripDataset {
+    private final List<BusTrip> trips;
+
+    // Indexes the trips of each published line name and vehicle reference
+    private final TripIndex pubLineNameToTripIndex;
+    private final TripIndex vehRefToTripIndex;
+
+    // Indexes the start and end times of the trips, of all trips and of the trips of each published line
+    private final IntervalIndex tripTimeIndex;
+    private final Map<Integer, IntervalIndex> pubLineNameToTimeIndex;
+
+    // Indexes the paths of the trips
+    private final TripSpatialIndex tripSpatialIndex;
+
+    // Trips that are missing from, or stale in, the time and spatial indexes
+    private final BitSet unindexedTrips;
+
+    private final String version;
+
+    private TripDataset(
+        List<BusTrip> trips,
+        TripIndex pubLineNameToTripIndex,
+        TripIndex vehRefToTripIndex,
+        IntervalIndex tripTimeIndex,
+        Map<Integer, IntervalIndex> pubLineNameToTimeIndex,
+        TripSpatialIndex tripSpatialIndex,
+        BitSet unindexedTrips,
+        String version
+    ) {
+        this.trips = trips;
+        this.pubLineNameToTripIndex = pubLineNameToTripIndex;
+        this.vehRefToTripIndex = vehRefToTripIndex;
+        this.tripTimeIndex = tripTimeIndex;
+        this.pubLineNameToTimeIndex = pubLineNameToTimeIndex;
+        this.tripSpatialIndex = tripSpatialIndex;
+        this.unindexedTrips = unindexedTrips;
+        this.version = version;
+    }
+
+    /**
+     * Creates a dataset, building its time and spatial indexes.
+     *
+     * @param trips The trips, which must not be modified afterwards.
+     * @param pubLineNameToTripIndex The index of the trips of each published line name.
+     * @param vehRefToTripIndex The index of the trips of each vehicle reference.
+     * @param version Identifies the data of the dataset.
+     */
+    public static TripDataset create(
+        List<BusTrip> trips,
+        TripIndex pubLineNameToTripIndex,
+        TripIndex vehRefToTripIndex,
+        String version
+    ) {
+        Map<Integer, IntervalIndex> pubLineNameToTimeIndex = new HashMap<>();
+        for (int i = 0; i < pubLineNameToTripIndex.size(); i++) {
+            pubLineNameToTimeIndex.put(pubLineNameToTripIndex.getCode(i), createTimeIndex(trips, pubLineNameToTripIndex.copyTripIds(i)));
+        }
+        return new TripDataset(
+            trips,
+            pubLineNameToTripIndex,
+            vehRefToTripIndex,
+            createTimeIndex(trips, IntStream.range(0, trips.size()).toArray()),
+            pubLineNameToTimeIndex,
+            new TripSpatialIndex(trips),
+            new BitSet(),
+            version
+        );
+    }
+
+    /**
+     * Creates a dataset that shares its time and spatial indexes with this one, with the given trips marked as
+     * unindexed in addition to those already unindexed.
+     *
+     * @param trips The trips, made up of the trips of this dataset with some replaced and some added at the end.
+     * @param pubLineNameToTripIndex The index of the trips of each published line name.
+     * @param vehRefToTripIndex The index of the trips of each vehicle reference.
+     * @param changedTrips The indexes of the replaced and added trips.
+     * @param version Identifies the data of the new dataset.
+     */
+    public TripDataset update(
+        List<BusTrip> trips,
+        TripIndex pubLineNameToTripIndex,
+        TripIndex vehRefToTripIndex,
+        BitSet changedTrips,
+        String version
+    ) {
+        BitSet unindexedTrips = (BitSet) this.unindexedTrips.clone();
+        unindexedTrips.or(changedTrips);
+        return new TripDataset(
+            trips,
+            pubLineNameToTripIndex,
+            vehRefToTripIndex,
+            this.tripTimeIndex,
+            this.pubLineNameToTimeIndex,
+            this.tripSpatialIndex,
+            unindexedTrips,
+            version
+        );
+    }
+
+    /**
+     * @return A dataset of the same trips, with the time and spatial indexes rebuilt to include every trip.
+     */
+    public TripDataset reindex() {
+        return create(this.trips, this.pubLineNameToTripIndex, this.vehRefToTripIndex, this.version);
+    }
+
+    public int getNumUnindexedTrips() {
+        return this.unindexedTrips.cardinality();
+    }
+
+    public String getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return The trips, which must not be modified.
+     */
+    public List<BusTrip> getTrips() {
+        return this.trips;
+    }
+
+    /**
+     * @return The index of the trips of each published line name.
+     */
+    public TripIndex getPubLineNameToTripIndex() {
+        return this.pubLineNameToTripIndex;
+    }
+
+    /**
+     * @return The index of the trips of each vehicle reference.
+     */
+    public TripIndex getVehRefToTripIndex() {
+        return this.vehRefToTripIndex;
+    }
+
+    // ================== QUERIES ==================
+
+    /**
+     * @return The published line names, sorted, as an unmodifiable list.
+     */
+    public List<String> getAllPublishedLineName() {
+        return this.pubLineNameToTripIndex.getKeys();
+    }
+
+    /**
+     * @return The vehicle references, sorted, as an unmodifiable list.
+     */
+    public List<String> getAllVehicleRef() {
+        return this.vehRefToTripIndex.getKeys();
+    }
+
+    /**
+     * @return An unmodifiable view of the trips of the line, empty if there are none.
+     */
+    public List<BusTrip> getTripByPublishedLineName(String publishedLineName) {
+        return this.pubLineNameToTripIndex.getTrips(publishedLineName, this.trips);
+    }
+
+    /**
+     * @return An unmodifiable view of the trips of the vehicle, empty if there are none.
+     */
+    public List<BusTrip> getTripByVehicleRef(String vehicleRef) {
+        return this.vehRefToTripIndex.getTrips(vehicleRef, this.trips);
+    }
+
+    /**
+     * See {@link BusTripDataProvider#getTripByTimeWindow(LocalDateTime, LocalDateTime, String)}.
+     */
+    public List<BusTrip> getTripByTimeWindow(LocalDateTime from, LocalDateTime to, String publishedLineName) {
+        IntervalIndex index = this.tripTimeIndex;
+        if (publishedLineName != null) {
+            // The codes are those of the dictionaries the dataset was built with, which may no longer be current
+            int position = this.pubLineNameToTripIndex.find(publishedLineName);
+            index = position < 0 ? null : this.pubLineNameToTimeIndex.get(this.pubLineNameToTripIndex.getCode(position));
+            if (index == null && this.unindexedTrips.isEmpty()) {
+                return new ArrayList<>();
+            }
+        }
+
+        long fromSecond = from.toEpochSecond(ZoneOffset.UTC);
+        long toSecond = to.toEpochSecond(ZoneOffset.UTC);
+        List<BusTrip> result = new ArrayList<>();
+        if (index != null) {
+            for (int tripIndex : index.findOverlapping(fromSecond, toSecond)) {
+                if (!this.unindexedTrips.get(tripIndex)) {
+                    result.add(this.trips.get(tripIndex));
+                }
+            }
+        }
+        if (this.unindexedTrips.isEmpty()) {
+            return result;
+        }
+
+        for (int i = this.unindexedTrips.nextSetBit(0); i >= 0; i = this.unindexedTrips.nextSetBit(i + 1)) {
+            BusTrip trip = this.trips.get(i);
+            if (trip.getStartEpochSecond() <= toSecond && trip.getEndEpochSecond() >= fromSecond
+                && (publishedLineName == null || publishedLineName.equals(trip.getPublishedLineName()))) {
+                result.add(trip);
+            }
+        }
+        // Stable, so indexed trips with the same start keep their order
+        result.sort(Comparator.comparingLong(BusTrip::getStartEpochSecond));
+        return result;
+    }
+
+    /**
+     * See {@link BusTripDataProvider#getTripByBoundingBox}.
+     */
+    public List<BusTrip> getTripByBoundingBox(
+        double minLongitude,
+        double minLatitude,
+        double maxLongitude,
+        double maxLatitude,
+        LocalDateTime from,
+        LocalDateTime to,
+        boolean clip
+    ) {
+        List<BusTrip> matches = new ArrayList<>();
+        if (clip) {
+            List<TripSpatialIndex.Fragment> fragments = new ArrayList<>();
+            for (TripSpatialIndex.Fragment fragment : this.tripSpatialIndex.findIntersectingFragments(minLongitude, minLatitude, maxLongitude, maxLatitude)) {
+                if (!this.unindexedTrips.get(fragment.trip())) {
+                    fragments.add(fragment);
+                }
+            }
+            for (int i = this.unindexedTrips.nextSetBit(0); i >= 0; i = this.unindexedTrips.nextSetBit(i + 1)) {
+                TripSpatialIndex.addFragments(i, this.trips.get(i), minLongitude, minLatitude, maxLongitude, maxLatitude, fragments);
+            }
+            if (!this.unindexedTrips.isEmpty()) {
+                fragments.sort(Comparator.comparingInt(TripSpatialIndex.Fragment::trip));
+            }
+            for (TripSpatialIndex.Fragment fragment : fragments) {
+                matches.add(this.trips.get(fragment.trip()).slice(fragment.fromPoint(), fragment.toPoint()));
+            }
+        } else {
+            List<Integer> tripIndexes = new ArrayList<>();
+            for (Integer tripIndex : this.tripSpatialIndex.findIntersecting(minLongitude, minLatitude, maxLongitude, maxLatitude)) {
+                if (!this.unindexedTrips.get(tripIndex)) {
+                    tripIndexes.add(tripIndex);
+                }
+            }
+            for (int i = this.unindexedTrips.nextSetBit(0); i >= 0; i = this.unindexedTrips.nextSetBit(i + 1)) {
+                if (TripSpatialIndex.pathIntersects(this.trips.get(i), minLongitude, minLatitude, maxLongitude, maxLatitude)) {
+                    tripIndexes.add(i);
+                }
+            }
+            if (!this.unindexedTrips.isEmpty()) {
+                Collections.sort(tripIndexes);
+            }
+            for (Integer tripIndex : tripIndexes) {
+                matches.add(this.trips.get(tripIndex));
+            }
+        }
+
+        if (from == null || to == null) {
+            return matches;
+        }
+        long fromSecond = from.toEpochSecond(ZoneOffset.UTC);
+        long toSecond = to.toEpochSecond(ZoneOffset.UTC);
+        List<BusTrip> result = new ArrayList<>();
+        for (BusTrip trip : matches) {
+            if (trip.getStartEpochSecond() <= toSecond && trip.getEndEpochSecond() >= fromSecond) {
+                result.add(trip);
+            }
+        }
+        return result;
+    }
+
+    // ================== UTILS ==================
+
+    private static IntervalIndex createTimeIndex(List<BusTrip> trips, int[] tripIndexes) {
+        long[] starts = new long[tripIndexes.length];
+        long[] ends = new long[tripIndexes.length];
+        for (int i = 0; i < tripIndexes.length; i++) {
+            BusTrip trip = trips.get(tripIndexes[i]);
+            starts[i] = trip.getStartEpochSecond();
+            ends[i] = trip.getEndEpochSecond();
+        }
+        return new IntervalIndex(tripIndexes, starts, ends);
+    }
+}
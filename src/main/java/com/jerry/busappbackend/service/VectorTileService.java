@@ -0,0 +1,498 @@
+package com.jerry.busappbackend.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import com.jerry.busappbackend.model.BusTrip;
+import com.jerry.busappbackend.model.PointCursor;
+import com.jerry.busappbackend.service.BusTripDataProvider.DatasetLoadedEvent;
+import com.jerry.busappbackend.service.BusTripDataProvider.DatasetUpdatedEvent;
+import com.jerry.busappbackend.service.GeoJsonResponseCache.CacheKey;
+import com.jerry.busappbackend.service.GeoJsonResponseCache.QueryType;
+import com.jerry.busappbackend.util.RequestTimings;
+import com.jerry.busappbackend.util.RequestTimings.Phase;
+import com.jerry.busappbackend.util.Timer;
+import com.jerry.busappbackend.util.TripSimplifier;
+import com.jerry.busappbackend.util.VectorTileEncoder;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Service for rendering the paths of all trips as Mapbox Vector Tiles, addressed by Web Mercator zoom level
+ * and tile column and row.
+ * <p>
+ * Each trip in a tile is a line feature of the "trips" layer, with its PublishedLineName, VehicleRef and
+ * DirectionRef as attributes. Paths are simplified for the zoom level with the levels precomputed by
+ * {@link TripSimplifier}, then projected, clipped to the tile and its buffer, and quantized to the tile's extent.
+ * <br></br>
+ * <br></br>
+ * Configuration:<br></br>
+ * - {@code app.tiles.pregenerate-max-zoom}: Highest zoom level whose tiles are all rendered at start up and
+ * kept in memory, -1 for none<br></br>
+ * - {@code app.tiles.max-zoom}: Highest zoom level tiles can be requested for<br></br>
+ * <p>
+ * Tiles above the pregenerated zoom levels are rendered on request and kept in the response cache.<br></br>
+ * <br></br>
+ * The pregenerated tiles are updated on a background thread whenever the dataset changes, so ingesting never
+ * waits for them. After an ingest only the tiles covered by the opened and extended trips are rendered again.
+ * Until the tiles of the new dataset are ready, tiles of all zoom levels are served through the response cache.
+ * A reloaded dataset has all of its tiles rendered before it is served.
+ */
+@Service
+public class VectorTileService {
+    private static final Logger logger = LogManager.getLogger(VectorTileService.class);
+
+    public static final String FORMAT_MVT = "mvt";
+    public static final String LAYER_NAME = "trips";
+
+    private static final int EXTENT = 4096;
+    // Lines are clipped this far outside of the tile, so they join up seamlessly with the neighbouring tiles
+    private static final int BUFFER = 64;
+
+    private final int pregenerateMaxZoom;
+    private final int maxZoom;
+
+    private volatile PregeneratedTiles pregeneratedTiles = new PregeneratedTiles(null, Map.of());
+    // Dataset updates not yet applied to the pregenerated tiles, in the order they were published
+    private final ConcurrentLinkedQueue<DatasetUpdatedEvent> pendingUpdates = new ConcurrentLinkedQueue<>();
+    // Held while the pregenerated tiles are rendered, so updates are applied one at a time and in order
+    private final Object pregenerateLock = new Object();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tile-pregeneration");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param version The dataset version the tiles were rendered from.
+     * @param tiles The tiles by tile id, see {@link #tileId}.
+     */
+    private record PregeneratedTiles(String version, Map<Long, byte[]> tiles) {}
+
+    @Autowired
+    BusTripDataProvider dataProvider;
+
+    @Autowired
+    GeoJsonResponseCache responseCache;
+
+    @Autowired
+    TripSimplifier tripSimplifier;
+
+    @Autowired
+    Timer timer;
+
+    public VectorTileService(
+        @Value("${app.tiles.pregenerate-max-zoom:10}") int pregenerateMaxZoom,
+        @Value("${app.tiles.max-zoom:20}") int maxZoom
+    ) {
+        if (maxZoom < 0 || maxZoom > 30) {
+            throw new IllegalArgumentException("Tile max zoom must be between 0 and 30: " + maxZoom);
+        }
+        this.pregenerateMaxZoom = Math.min(pregenerateMaxZoom, maxZoom);
+        this.maxZoom = maxZoom;
+    }
+
+    /**
+     * Renders every tile containing trips, up to the configured zoom level, from the dataset served at start up.
+     */
+    @PostConstruct
+    private void pregenerateAll() {
+        if (this.pregenerateMaxZoom < 0) {
+            return;
+        }
+        synchronized (this.pregenerateLock) {
+            this.pregeneratedTiles = pregenerate(dataProvider.getDataset());
+        }
+    }
+
+    /**
+     * Queues the update of the pregenerated tiles to the new dataset, which is applied on a background thread.
+     */
+    @EventListener
+    public void onDatasetUpdated(DatasetUpdatedEvent event) {
+        if (this.pregenerateMaxZoom < 0) {
+            return;
+        }
+        this.pendingUpdates.add(event);
+        this.executor.execute(this::applyPendingUpdates);
+    }
+
+    /**
+     * Renders every tile of a reloaded dataset before it is served. Updates of the dataset being replaced that
+     * have not been applied yet are dropped.
+     */
+    @EventListener
+    public void onDatasetLoaded(DatasetLoadedEvent event) {
+        if (this.pregenerateMaxZoom < 0) {
+            return;
+        }
+        synchronized (this.pregenerateLock) {
+            this.pendingUpdates.clear();
+            this.pregeneratedTiles = pregenerate(event.dataset());
+        }
+    }
+
+    @PreDestroy
+    private void stop() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Checks whether a tile address is valid and within the configured zoom levels.
+     */
+    public boolean isValidTile(int z, int x, int y) {
+        return z >= 0 && z <= this.maxZoom && x >= 0 && y >= 0 && x < (1L << z) && y < (1L << z);
+    }
+
+    /**
+     * Gets the vector tile at an address, from the pregenerated tiles or the response cache, rendering it on a miss.
+     *
+     * @param z The zoom level.
+     * @param x The column of the tile, counting from the west.
+     * @param y The row of the tile, counting from the north.
+     * @return The encoded tile, empty if no trips pass through it.
+     */
+    public byte[] getTile(int z, int x, int y) {
+        PregeneratedTiles pregenerated = this.pregeneratedTiles;
+        if (z <= this.pregenerateMaxZoom && dataProvider.getDatasetVersion().equals(pregenerated.version())) {
+            // Every tile with trips was pregenerated
+            return pregenerated.tiles().getOrDefault(tileId(z, x, y), new byte[0]);
+        }
+        TripDataset dataset = dataProvider.getDataset();
+        return responseCache.get(new CacheKey(QueryType.TILE, z + "/" + x + "/" + y, FORMAT_MVT), () -> render(dataset, z, x, y));
+    }
+
+    // ================== UTILS ==================
+
+    /**
+     * Applies the queued dataset updates to the pregenerated tiles. Consecutive ingests are applied together,
+     * rendering the tiles covered by any of their changed trips from the latest of their datasets. All tiles
+     * are rendered if the data was reloaded, or an update is missing in between.
+     */
+    private void applyPendingUpdates() {
+        synchronized (this.pregenerateLock) {
+            PregeneratedTiles tiles = this.pregeneratedTiles;
+            String version = tiles.version();
+            TripDataset dataset = null;
+            List<BusTrip> changedTrips = new ArrayList<>();
+            boolean renderAll = false;
+            DatasetUpdatedEvent event;
+            while ((event = this.pendingUpdates.poll()) != null) {
+                if (event.version().equals(version)) {
+                    continue;
+                }
+                if (event.changedTrips() == null || !event.previousVersion().equals(version)) {
+                    renderAll = true;
+                } else {
+                    changedTrips.addAll(event.changedTrips());
+                }
+                dataset = event.dataset();
+                version = event.version();
+            }
+            if (dataset == null) {
+                return;
+            }
+
+            if (renderAll) {
+                this.pregeneratedTiles = pregenerate(dataset);
+                return;
+            }
+            int timerID = timer.startTimer();
+            Set<Long> tileIds = new HashSet<>();
+            double buffer = (double) BUFFER / EXTENT;
+            for (BusTrip trip : changedTrips) {
+                double[] bounds = getBounds(List.of(trip));
+                if (bounds != null) {
+                    collectTiles(bounds, buffer, tileIds);
+                }
+            }
+            Map<Long, byte[]> updated = new HashMap<>(tiles.tiles());
+            Map<Long, byte[]> rendered = renderTiles(dataset, tileIds);
+            for (Long tileId : tileIds) {
+                byte[] tile = rendered.get(tileId);
+                if (tile == null) {
+                    updated.remove(tileId);
+                } else {
+                    updated.put(tileId, tile);
+                }
+            }
+            this.pregeneratedTiles = new PregeneratedTiles(version, updated);
+            logger.info("Updated " + tileIds.size() + " pregenerated vector tiles for " + changedTrips.size() + " changed trips in " + timer.getPrettyTime(timerID));
+        }
+    }
+
+    /**
+     * Renders every tile containing trips, up to the configured zoom level, in parallel.
+     */
+    private PregeneratedTiles pregenerate(TripDataset dataset) {
+        int timerID = timer.startTimer();
+        Set<Long> tileIds = new HashSet<>();
+        double[] bounds = getBounds(dataset.getTrips());
+        if (bounds != null) {
+            collectTiles(bounds, (double) BUFFER / EXTENT, tileIds);
+        }
+        Map<Long, byte[]> rendered = renderTiles(dataset, tileIds);
+
+        long totalBytes = rendered.values().stream().mapToLong(tile -> tile.length).sum();
+        logger.info("Pregenerated " + rendered.size() + " vector tiles up to zoom " + this.pregenerateMaxZoom + " (" + totalBytes + " bytes) in " + timer.getPrettyTime(timerID));
+        return new PregeneratedTiles(dataset.getVersion(), rendered);
+    }
+
+    /**
+     * Adds the ids of the tiles, up to the configured zoom level, within or near bounds.
+     *
+     * @param bounds West, south, east and north.
+     * @param buffer How far beyond the bounds tiles are added, as a fraction of a tile.
+     */
+    private void collectTiles(double[] bounds, double buffer, Set<Long> tileIds) {
+        for (int z = 0; z <= this.pregenerateMaxZoom; z++) {
+            int minX = (int) Math.floor(projectX(bounds[0], z) - buffer);
+            int maxX = (int) Math.floor(projectX(bounds[2], z) + buffer);
+            // Rows count down from the north
+            int minY = (int) Math.floor(projectY(bounds[3], z) - buffer);
+            int maxY = (int) Math.floor(projectY(bounds[1], z) + buffer);
+            for (int x = Math.max(minX, 0); x <= Math.min(maxX, (1 << z) - 1); x++) {
+                for (int y = Math.max(minY, 0); y <= Math.min(maxY, (1 << z) - 1); y++) {
+                    tileIds.add(tileId(z, x, y));
+                }
+            }
+        }
+    }
+
+    /**
+     * Renders tiles in parallel.
+     *
+     * @return The tiles with trips, by tile id.
+     */
+    private Map<Long, byte[]> renderTiles(TripDataset dataset, Set<Long> tileIds) {
+        Map<Long, byte[]> rendered = new HashMap<>();
+        tileIds.parallelStream()
+            .map(tileId -> Map.entry(tileId, render(dataset, tileZ(tileId), tileX(tileId), tileY(tileId))))
+            .filter(tile -> tile.getValue().length > 0)
+            .forEachOrdered(tile -> rendered.put(tile.getKey(), tile.getValue()));
+        return rendered;
+    }
+
+    /**
+     * Renders a tile from the trips whose paths pass through it or its buffer.
+     */
+    private byte[] render(TripDataset dataset, int z, int x, int y) {
+        double buffer = (double) BUFFER / EXTENT;
+        double west = unprojectX(x - buffer, z);
+        double east = unprojectX(x + 1 + buffer, z);
+        double north = unprojectY(y - buffer, z);
+        double south = unprojectY(y + 1 + buffer, z);
+        List<BusTrip> trips = dataset.getTripByBoundingBox(west, south, east, north, null, null, false);
+        RequestTimings.enter(Phase.RENDER);
+
+        VectorTileEncoder encoder = new VectorTileEncoder(LAYER_NAME, EXTENT);
+        LineClipper clipper = new LineClipper(-BUFFER, EXTENT + BUFFER);
+        int level = tripSimplifier.getLevel(z, null);
+        double scale = (double) EXTENT;
+        for (BusTrip trip : trips) {
+            int[] points = trip.getSimplifiedPoints(level);
+            int numPoints = points == null ? trip.getNumPoints() : points.length;
+            if (numPoints < 2) {
+                continue;
+            }
+
+            clipper.reset();
+            PointCursor cursor = trip.cursor();
+            double previousX = 0;
+            double previousY = 0;
+            for (int i = 0; i < numPoints; i++) {
+                cursor.moveTo(points == null ? i : points[i]);
+                double tileX = (projectX(cursor.getLongitude(), z) - x) * scale;
+                double tileY = (projectY(cursor.getLatitude(), z) - y) * scale;
+                if (i > 0) {
+                    clipper.addSegment(previousX, previousY, tileX, tileY);
+                }
+                previousX = tileX;
+                previousY = tileY;
+            }
+            clipper.endPart();
+
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            attributes.put("PublishedLineName", trip.getPublishedLineName());
+            attributes.put("VehicleRef", trip.getVehicleRef());
+            attributes.put("DirectionRef", trip.getDirectionRef());
+            encoder.addLineFeature(clipper.parts, clipper.numParts, clipper.partLengths, attributes);
+        }
+        return encoder.encode();
+    }
+
+    /**
+     * @return The bounds of the points of trips as west, south, east and north, or null if there are no points.
+     */
+    private static double[] getBounds(List<BusTrip> trips) {
+        double[] bounds = { Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+        for (BusTrip trip : trips) {
+            PointCursor cursor = trip.cursor();
+            for (int i = 0; i < trip.getNumPoints(); i++) {
+                cursor.moveTo(i);
+                bounds[0] = Math.min(bounds[0], cursor.getLongitude());
+                bounds[1] = Math.min(bounds[1], cursor.getLatitude());
+                bounds[2] = Math.max(bounds[2], cursor.getLongitude());
+                bounds[3] = Math.max(bounds[3], cursor.getLatitude());
+            }
+        }
+        return bounds[0] > bounds[2] ? null : bounds;
+    }
+
+    private static long tileId(int z, int x, int y) {
+        // Zoom levels go up to 30, so columns and rows fit in 30 bits each
+        return ((long) z << 60) | ((long) x << 30) | y;
+    }
+
+    private static int tileZ(long tileId) {
+        return (int) (tileId >>> 60);
+    }
+
+    private static int tileX(long tileId) {
+        return (int) ((tileId >>> 30) & ((1 << 30) - 1));
+    }
+
+    private static int tileY(long tileId) {
+        return (int) (tileId & ((1 << 30) - 1));
+    }
+
+    /**
+     * Projects a longitude to a Web Mercator tile column, with the fraction being the position within the tile.
+     */
+    private static double projectX(double longitude, int z) {
+        return (longitude + 180) / 360 * (1L << z);
+    }
+
+    /**
+     * Projects a latitude to a Web Mercator tile row, with the fraction being the position within the tile.
+     */
+    private static double projectY(double latitude, int z) {
+        double radians = Math.toRadians(latitude);
+        return (1 - Math.log(Math.tan(radians) + 1 / Math.cos(radians)) / Math.PI) / 2 * (1L << z);
+    }
+
+    private static double unprojectX(double column, int z) {
+        return column / (1L << z) * 360 - 180;
+    }
+
+    private static double unprojectY(double row, int z) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * row / (1L << z)))));
+    }
+
+    /**
+     * Clips the segments of a line to a square in tile coordinates and quantizes them, splitting the line into
+     * parts where it leaves the square. Consecutive points that quantize to the same coordinates are merged.
+     * The buffers are reused between lines.
+     */
+    private static class LineClipper {
+        private final double min;
+        private final double max;
+
+        int[][] parts = new int[4][];
+        int[] partLengths = new int[4];
+        int numParts = 0;
+        // Length of the part being built, which is parts[numParts]
+        private int currentLength = 0;
+
+        LineClipper(double min, double max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        void reset() {
+            this.numParts = 0;
+            this.currentLength = 0;
+        }
+
+        /**
+         * Clips a segment with Liang-Barsky, continuing the current part if the segment starts within the square.
+         */
+        void addSegment(double x1, double y1, double x2, double y2) {
+            double dx = x2 - x1;
+            double dy = y2 - y1;
+            double[] p = { -dx, dx, -dy, dy };
+            double[] q = { x1 - this.min, this.max - x1, y1 - this.min, this.max - y1 };
+
+            double enter = 0;
+            double exit = 1;
+            for (int i = 0; i < 4; i++) {
+                if (p[i] == 0) {
+                    if (q[i] < 0) {
+                        endPart();
+                        return;
+                    }
+                } else {
+                    double t = q[i] / p[i];
+                    if (p[i] < 0) {
+                        enter = Math.max(enter, t);
+                    } else {
+                        exit = Math.min(exit, t);
+                    }
+                }
+            }
+            if (enter > exit) {
+                endPart();
+                return;
+            }
+
+            if (enter > 0) {
+                // Enters the square, so it cannot continue the previous part
+                endPart();
+            }
+            if (this.currentLength == 0) {
+                addPoint(x1 + enter * dx, y1 + enter * dy);
+            }
+            addPoint(x1 + exit * dx, y1 + exit * dy);
+            if (exit < 1) {
+                endPart();
+            }
+        }
+
+        /**
+         * Ends the current part, dropping it if all of its points quantized to the same coordinates.
+         */
+        void endPart() {
+            if (this.currentLength >= 4) {
+                this.partLengths[this.numParts] = this.currentLength;
+                this.numParts++;
+            }
+            this.currentLength = 0;
+        }
+
+        private void addPoint(double x, double y) {
+            int quantizedX = (int) Math.round(x);
+            int quantizedY = (int) Math.round(y);
+            if (this.numParts == this.parts.length) {
+                this.parts = Arrays.copyOf(this.parts, this.parts.length * 2);
+                this.partLengths = Arrays.copyOf(this.partLengths, this.partLengths.length * 2);
+            }
+            int[] part = this.parts[this.numParts];
+            if (this.currentLength >= 2 && part[this.currentLength - 2] == quantizedX && part[this.currentLength - 1] == quantizedY) {
+                return;
+            }
+            if (part == null || part.length < this.currentLength + 2) {
+                part = part == null ? new int[64] : Arrays.copyOf(part, part.length * 2);
+                this.parts[this.numParts] = part;
+            }
+            part[this.currentLength++] = quantizedX;
+            part[this.currentLength++] = quantizedY;
+        }
+    }
+}
@@ -1,157 +1,282 @@
 package com.jerry.busappbackend.util;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Reader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import com.jerry.busappbackend.entity.BusRecordEntity;
 import com.jerry.busappbackend.exception.CsvParsingException;
 import com.opencsv.CSVReader;
-import com.opencsv.CSVWriter;
+import com.opencsv.CSVReaderBuilder;
 import com.opencsv.bean.CsvToBean;
 import com.opencsv.bean.CsvToBeanBuilder;
-import com.opencsv.exceptions.CsvValidationException;
+import com.opencsv.processor.RowProcessor;
 
+/**
+ * Cleans and parses the raw bus record CSV file in a single streaming pass.
+ * <p>
+ * Problematic values are handled while the rows are read, so no intermediate files are written:<br></br>
+ * - Commas within the {@code (non-public,for GEO)} values are removed<br></br>
+ * - "NA" distances and expected arrival times are treated as null<br></br>
+ * - Rows with invalid latitude/longitude values are skipped<br></br>
+ * <p>
+ * The number of rows read is limited by {@code app.data.max-rows}.
+ */
 @Component
 public class CsvParser {
 
     private static final Logger logger = LogManager.getLogger(CsvParser.class);
 
-    private Path dir;
-    private Path finalDataPath;
-    private Path tempDataPath;
-    private final int NUM_ROWS = 100000;
-    private Path rawDataPath;
+    /**
+     * Engines available for parsing the raw data file.
+     */
+    public enum Engine {
+        /** Memory-mapped, multi-threaded parsing with {@link MappedCsvParser} */
+        MAPPED,
+        /** Single threaded, reflection based parsing with OpenCSV's {@link CsvToBean} */
+        OPENCSV
+    }
+
+    // Changed when the data is reloaded from another file
+    private volatile Path rawDataPath;
+    private long maxRows;
+    private Engine engine;
+    private int numThreads;
+    private long parsedSize;
 
-    public CsvParser(@Value("${app.data.path}") String rawDataPathString) {
+    @Autowired
+    Timer timer;
+
+    public CsvParser(
+        @Value("${app.data.path}") String rawDataPathString,
+        @Value("${app.data.max-rows:100000}") long maxRows,
+        @Value("${app.data.parser.engine:mapped}") String engineName,
+        @Value("${app.data.parser.threads:0}") int numThreads
+    ) {
         if (rawDataPathString == null || rawDataPathString.trim().isEmpty()) {
             throw new IllegalArgumentException("Raw data file path must be provided.");
         }
 
         Path rawDataPath = Paths.get(rawDataPathString);
-        this.dir = rawDataPath.getParent();
 
         if (!Files.exists(rawDataPath)) {
             throw new IllegalArgumentException("Raw data file does not exist at the provided path: " + rawDataPathString);
         }
 
+        this.rawDataPath = rawDataPath;
+        this.maxRows = maxRows;
+
+        try {
+            this.engine = Engine.valueOf(engineName.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown parser engine: " + engineName);
+        }
+        this.numThreads = numThreads;
+    }
+
+    public Path getRawDataPath() {
+        return this.rawDataPath;
+    }
+
+    /**
+     * Switches to another raw data file, e.g. to reload the data from the next month's file.
+     *
+     * @param rawDataPath The raw data file, which must exist.
+     */
+    public void setRawDataPath(Path rawDataPath) {
+        if (!Files.isRegularFile(rawDataPath)) {
+            throw new IllegalArgumentException("Raw data file does not exist at the provided path: " + rawDataPath);
+        }
+        this.rawDataPath = rawDataPath;
+    }
+
+    public long getMaxRows() {
+        return this.maxRows;
+    }
 
-        this.rawDataPath = Paths.get(rawDataPathString);
-        
-        String filenameWithExtension = rawDataPath.getFileName().toString();
-        String filename = filenameWithExtension.replaceFirst("[.][^.]+$", "");
-        this.finalDataPath = this.dir == null ? Paths.get(filename + "_clean.csv") : this.dir.resolve(filename + "_clean.csv");  
-        this.tempDataPath = this.dir == null ? Paths.get(filename + "_temp.csv") : this.dir.resolve(filename + "_temp.csv");      
+    /**
+     * @return The size of the raw data file when it was last parsed. Rows appended after it was parsed start
+     * at this offset.
+     */
+    public long getParsedSize() {
+        return this.parsedSize;
     }
 
+    /**
+     * Cleans and parses the raw data file into bus records.
+     * The engine used is configured with {@code app.data.parser.engine}.
+     *
+     * @return The parsed bus records, in file order.
+     */
     public List<BusRecordEntity> parse() {
-        if (!Files.exists(this.finalDataPath)) {
-            logger.info("Cleaning data");
-            cleanData();
+        int timerID = timer.startTimer();
+        List<BusRecordEntity> busRecords = this.engine == Engine.MAPPED ? parseMapped() : parseOpenCsv();
+        logger.info("Parsed " + busRecords.size() + " records with the " + this.engine + " engine in " + timer.getPrettyTime(timerID));
+        return busRecords;
+    }
+
+    /**
+     * Parses the complete rows appended to the raw data file since it was a given size, see
+     * {@link MappedCsvParser#parseAppended(long)}. Appended rows are always parsed with the mapped engine,
+     * and the row limit does not apply.
+     *
+     * @param offset The size of the file when it was last parsed.
+     * @return The parsed records and the offset to continue from.
+     */
+    public MappedCsvParser.Section parseAppended(long offset) {
+        try {
+            return new MappedCsvParser(this.rawDataPath, this.numThreads, 0).parseAppended(offset);
+        } catch (IOException e) {
+            CsvParsingException exception = new CsvParsingException(e);
+            logger.error("Failed to parse appended raw data at: " + this.rawDataPath.toString(), exception);
+            throw exception;
         }
+    }
+
+    private List<BusRecordEntity> parseMapped() {
         try {
-            CsvToBean<BusRecordEntity> csvToBean = new CsvToBeanBuilder<BusRecordEntity>(new CSVReader(new FileReader(this.finalDataPath.toString())))
-                .withType(BusRecordEntity.class)
-                .build();
-            List<BusRecordEntity> busRecords = csvToBean.parse();
+            MappedCsvParser parser = new MappedCsvParser(this.rawDataPath, this.numThreads, this.maxRows);
+            List<BusRecordEntity> busRecords = parser.parse();
+            this.parsedSize = parser.getFileSize();
             return busRecords;
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             CsvParsingException exception = new CsvParsingException(e);
-            logger.error("Clean data not found at: " + this.finalDataPath.toString(), exception);
+            logger.error("Failed to parse raw data at: " + this.rawDataPath.toString(), exception);
             throw exception;
         }
     }
 
-    private void cleanData() {
-        // Handle values resulting in extra column
-        try (
-            BufferedReader br = new BufferedReader(new FileReader(rawDataPath.toString()));
-            BufferedWriter bw = new BufferedWriter(new FileWriter(this.finalDataPath.toString()));
-        ) {
-            // Removing values that will result in an extra column 
-            String errorString1 = " ( non-public,for GEO)";
-            String errorString2 = " (non-public,for GEO)";
-
-            bw.write(br.readLine());
-
-            bw.newLine();
-                
-            for (int i = 0; i < NUM_ROWS; i++) {
-                String rawRow = br.readLine();
-                rawRow = rawRow.replace(errorString1, "(non-public for GEO)");
-                rawRow = rawRow.replace(errorString2, "(non-public for GEO)");            
-                bw.write(rawRow);
-                bw.newLine();
-            }
+    private List<BusRecordEntity> parseOpenCsv() {
+        // Unlike the mapped engine, rows appended while the file is read are also parsed, so they may be ingested twice
+        try {
+            this.parsedSize = Files.size(this.rawDataPath);
         } catch (IOException e) {
             CsvParsingException exception = new CsvParsingException(e);
-            logger.error("IOException during comma removal", e);
+            logger.error("Failed to read the size of raw data at: " + this.rawDataPath.toString(), exception);
             throw exception;
         }
-
-        // Handle Null or NA values
-        try (
-            CSVReader reader = new CSVReader(new FileReader(this.finalDataPath.toString()));
-            CSVWriter writer = new CSVWriter(new FileWriter(this.tempDataPath.toString()));
+        try (CSVReader reader = new CSVReaderBuilder(new CleaningReader(new BufferedReader(new FileReader(this.rawDataPath.toString())), this.maxRows))
+            .withRowProcessor(new NullValueProcessor())
+            .build()
         ) {
-            writer.writeNext(reader.readNext());
-
-            String[] nextLine;
-            while ((nextLine = reader.readNext()) != null) {
-                try {
-                    nextLine = cleanRow(nextLine);
-                    writer.writeNext(nextLine);
-                } catch (NumberFormatException e) {
-                    logger.error("Number format exception for row: {}", Arrays.toString(nextLine), e);
-                } catch (IllegalArgumentException e) {
-                    logger.error("Invalid latitude/longitude values for row: {}", Arrays.toString(nextLine), e);
-                }
-            }
-        } catch (IOException | CsvValidationException e) {
+            CsvToBean<BusRecordEntity> csvToBean = new CsvToBeanBuilder<BusRecordEntity>(reader)
+                .withType(BusRecordEntity.class)
+                .withFilter(this::hasValidLocation)
+                .build();
+            List<BusRecordEntity> busRecords = csvToBean.parse();
+            return busRecords;
+        } catch (IOException e) {
             CsvParsingException exception = new CsvParsingException(e);
-            logger.error("IOException occurred while cleaning row", exception);
+            logger.error("Failed to parse raw data at: " + this.rawDataPath.toString(), exception);
             throw exception;
         }
+    }
 
+    /**
+     * Checks that a row's latitude and longitude are numbers within range.
+     *
+     * @param row The row to check.
+     * @return true if the row should be parsed, false if it should be skipped.
+     */
+    private boolean hasValidLocation(String[] row) {
         try {
-            Files.delete(this.finalDataPath);
-            Files.move(this.tempDataPath, this.finalDataPath);        
-        } catch (IOException e) {
-            CsvParsingException exception = new CsvParsingException(e);
-            logger.error("There was an error creating the clean data file", exception);
-            throw exception;
+            double latitude = Double.parseDouble(row[Columns.VehicleLocation_Latitude.getIndex()]);
+            double longitude = Double.parseDouble(row[Columns.VehicleLocation_Longitude.getIndex()]);
+
+            if (latitude > 90.0 || latitude < -90.0 || longitude > 180.0 || longitude < -180.0) {
+                logger.error("Invalid latitude/longitude values for row: {}", Arrays.toString(row));
+                return false;
+            }
+            return true;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            logger.error("Number format exception for row: {}", Arrays.toString(row), e);
+            return false;
         }
     }
 
-    private String[] cleanRow(String[] row) throws NumberFormatException, IllegalArgumentException {
-        if (row[Columns.DistanceFromStop.getIndex()].equals("NA")) {
-            row[Columns.DistanceFromStop.getIndex()] = "";
+    /**
+     * Replaces "NA" distances and expected arrival times with an empty string, which OpenCSV handles as null.
+     */
+    private static class NullValueProcessor implements RowProcessor {
+        @Override
+        public String processColumnItem(String column) {
+            return column;
         }
 
-        if (row[Columns.ExpectedArrivalTime.getIndex()].equals("NA")) {
-            row[Columns.ExpectedArrivalTime.getIndex()] = "";
+        @Override
+        public void processRow(String[] row) {
+            int[] nullableColumns = { Columns.DistanceFromStop.getIndex(), Columns.ExpectedArrivalTime.getIndex() };
+            for (int index : nullableColumns) {
+                if (index < row.length && "NA".equals(row[index])) {
+                    row[index] = "";
+                }
+            }
+        }
+    }
+
+    /**
+     * Reader over the raw data file that removes the commas within the {@code (non-public,for GEO)} values
+     * line by line, and stops after the header and the maximum number of rows.
+     */
+    private static class CleaningReader extends Reader {
+        private static final String ERROR_STRING_1 = " ( non-public,for GEO)";
+        private static final String ERROR_STRING_2 = " (non-public,for GEO)";
+        private static final String REPLACEMENT = "(non-public for GEO)";
+
+        private final BufferedReader reader;
+        private final long maxLines;
+        private long linesRead = 0;
+        private String currentLine = "";
+        private int position = 0;
+
+        /**
+         * @param reader Reader over the raw data file.
+         * @param maxRows Maximum number of data rows, a value below 1 reads the whole file.
+         */
+        CleaningReader(BufferedReader reader, long maxRows) {
+            this.reader = reader;
+            this.maxLines = maxRows > 0 ? maxRows + 1 : Long.MAX_VALUE;
         }
 
-        double latitude = Double.parseDouble(row[Columns.VehicleLocation_Latitude.getIndex()]);
-        double longitude = Double.parseDouble(row[Columns.VehicleLocation_Longitude.getIndex()]);
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            if (position == currentLine.length()) {
+                if (linesRead == maxLines) {
+                    return -1;
+                }
+
+                String line = reader.readLine();
+                if (line == null) {
+                    return -1;
+                }
+                linesRead++;
 
-        if (latitude > 90.0 || latitude < -90.0 || longitude > 180.0 || longitude < -180.0) {
-            throw new IllegalArgumentException("Latitude or longitude values are out of range.");
+                currentLine = line.replace(ERROR_STRING_1, REPLACEMENT).replace(ERROR_STRING_2, REPLACEMENT) + "\n";
+                position = 0;
+            }
+
+            int count = Math.min(length, currentLine.length() - position);
+            currentLine.getChars(position, position + count, buffer, offset);
+            position += count;
+            return count;
         }
 
-        return row;
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
     }
 }
@@ -0,0 +1,66 @@
+package com.jerry.busappbackend.util;
+
+/**
+ * Dictionaries shared by all records and trips of a generation for the string columns with few distinct values.
+ * <p>
+ * There are only a few hundred lines and a few thousand vehicles and stops, but millions of records,
+ * so records and trips hold int codes into these dictionaries instead of their own string instances.
+ * Origin and destination names are both stop names and share a dictionary.
+ * <p>
+ * Records are encoded with the {@link #current()} set. A reload makes a new set current before parsing the
+ * new file, so the values of a replaced file are released with its generation rather than kept for the
+ * lifetime of the process. Arrival proximity texts are the exception: trips keep their codes across
+ * generations, and the dictionary is bounded by the short codes, so it is shared by all generations.
+ */
+public final class Dictionaries {
+    // Codes are stored as shorts by trips
+    public static final StringDictionary ARRIVAL_PROXIMITY_TEXTS = new StringDictionary(Columns.ArrivalProximityText.getColumnName(), Short.MAX_VALUE);
+
+    private static volatile Dictionaries current = new Dictionaries();
+
+    private final StringDictionary publishedLineNames = new StringDictionary(Columns.PublishedLineName.getColumnName(), Integer.MAX_VALUE);
+    private final StringDictionary vehicleRefs = new StringDictionary(Columns.VehicleRef.getColumnName(), Integer.MAX_VALUE);
+    private final StringDictionary stopNames = new StringDictionary("StopName", Integer.MAX_VALUE);
+
+    /**
+     * @return The set records are being encoded with.
+     */
+    public static Dictionaries current() {
+        return current;
+    }
+
+    /**
+     * Makes a set current, so records parsed from now on are encoded with it. Must only be called while no
+     * records are being parsed or ingested.
+     *
+     * @param dictionaries The set to encode records with.
+     * @return The set that was current, e.g. to restore it if loading a new generation fails.
+     */
+    public static Dictionaries replace(Dictionaries dictionaries) {
+        Dictionaries previous = current;
+        current = dictionaries;
+        return previous;
+    }
+
+    public StringDictionary getPublishedLineNames() {
+        return this.publishedLineNames;
+    }
+
+    public StringDictionary getVehicleRefs() {
+        return this.vehicleRefs;
+    }
+
+    public StringDictionary getStopNames() {
+        return this.stopNames;
+    }
+
+    /**
+     * Estimates the heap retained by the values and codes of the set.
+     *
+     * @return The estimated size in bytes.
+     */
+    public long estimateRetainedBytes() {
+        return this.publishedLineNames.estimateRetainedBytes() + this.vehicleRefs.estimateRetainedBytes()
+            + this.stopNames.estimateRetainedBytes();
+    }
+}
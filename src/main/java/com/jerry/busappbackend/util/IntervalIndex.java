@@ -0,0 +1,118 @@
+package com.jerry.busappbackend.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * Immutable index of closed intervals [start, end], each identified by an int id, answering which intervals
+ * overlap a query interval.
+ * <p>
+ * Intervals are sorted by start, and the sorted array is treated as an implicit balanced binary search tree,
+ * the root being the middle element of the array and the children the middles of each half. Each element
+ * also stores the maximum end within its subtree, so subtrees that end before the query are skipped, and
+ * subtrees that start after it are never visited. A query takes O(log n + k) time in practice, for k results.
+ */
+public class IntervalIndex {
+    private final int[] ids;
+    private final long[] starts;
+    private final long[] ends;
+    // Maximum end within the subtree rooted at each element
+    private final long[] maxEnds;
+
+    /**
+     * @param ids The ids of the intervals.
+     * @param starts The start of each interval.
+     * @param ends The end of each interval, not before its start.
+     */
+    public IntervalIndex(int[] ids, long[] starts, long[] ends) {
+        int size = ids.length;
+        Integer[] order = IntStream.range(0, size).boxed().toArray(Integer[]::new);
+        // Stable, so intervals with the same start keep the order they were given in
+        Arrays.sort(order, Comparator.comparingLong(i -> starts[i]));
+
+        this.ids = new int[size];
+        this.starts = new long[size];
+        this.ends = new long[size];
+        for (int i = 0; i < size; i++) {
+            this.ids[i] = ids[order[i]];
+            this.starts[i] = starts[order[i]];
+            this.ends[i] = ends[order[i]];
+        }
+
+        this.maxEnds = new long[size];
+        computeMaxEnds(0, size);
+    }
+
+    /**
+     * Finds the intervals overlapping [from, to], i.e. those starting at or before {@code to}
+     * and ending at or after {@code from}.
+     *
+     * @param from Start of the query interval.
+     * @param to End of the query interval.
+     * @return The ids of the overlapping intervals, ordered by start.
+     */
+    public int[] findOverlapping(long from, long to) {
+        if (from > to) {
+            return new int[0];
+        }
+        Ids result = new Ids();
+        collectOverlapping(0, this.ids.length, from, to, result);
+        return Arrays.copyOf(result.ids, result.size);
+    }
+
+    public int size() {
+        return this.ids.length;
+    }
+
+    // ================== UTILS ==================
+
+    private long computeMaxEnds(int low, int high) {
+        if (low >= high) {
+            return Long.MIN_VALUE;
+        }
+        int mid = (low + high) >>> 1;
+        long maxEnd = Math.max(this.ends[mid], Math.max(computeMaxEnds(low, mid), computeMaxEnds(mid + 1, high)));
+        this.maxEnds[mid] = maxEnd;
+        return maxEnd;
+    }
+
+    /**
+     * Collects the overlapping intervals of the subtree made up of the elements [low, high), in order.
+     */
+    private void collectOverlapping(int low, int high, long from, long to, Ids result) {
+        if (low >= high) {
+            return;
+        }
+        int mid = (low + high) >>> 1;
+        if (this.maxEnds[mid] < from) {
+            // Everything in this subtree ends before the query
+            return;
+        }
+
+        collectOverlapping(low, mid, from, to, result);
+        if (this.starts[mid] > to) {
+            // This element and everything to its right start after the query
+            return;
+        }
+        if (this.ends[mid] >= from) {
+            result.add(this.ids[mid]);
+        }
+        collectOverlapping(mid + 1, high, from, to, result);
+    }
+
+    /**
+     * The ids found by a query, in a growable array, so they are not boxed.
+     */
+    private static final class Ids {
+        int[] ids = new int[16];
+        int size;
+
+        void add(int id) {
+            if (this.size == this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, this.size * 2);
+            }
+            this.ids[this.size++] = id;
+        }
+    }
+}
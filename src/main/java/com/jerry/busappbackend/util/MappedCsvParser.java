@@ -0,0 +1,787 @@
+package com.jerry.busappbackend.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.jerry.busappbackend.entity.BusRecordEntity;
+
+/**
+ * Cleans and parses the raw bus record CSV file into {@link BusRecordEntity} objects in a single pass, without OpenCSV.
+ * <p>
+ * The file is memory-mapped and split into line-aligned chunks, which are parsed in parallel.
+ * Only the columns used by {@link BusRecordEntity} are decoded, directly from the mapped bytes into
+ * typed fields, so no reflection is involved and no strings are created for unused cells.
+ * String columns are encoded into the shared {@link Dictionaries}, each chunk caches the codes of the values
+ * it has seen by their bytes, so a string is only created the first time a chunk sees a value.
+ * Records are returned in file order, the same order OpenCSV would produce.
+ * <p>
+ * Cleaning happens while each row is parsed:<br></br>
+ * - Commas within the {@code (non-public,for GEO)} values are removed<br></br>
+ * - Empty and "NA" distances and expected arrival times become null<br></br>
+ * - Rows with unparsable or out of range coordinates are skipped<br></br>
+ * <p>
+ * Both quoted and unquoted fields are supported, quoted fields may not contain line breaks.
+ * Rows that cannot be parsed are logged and skipped.
+ */
+public class MappedCsvParser {
+    private static final Logger logger = LogManager.getLogger(MappedCsvParser.class);
+
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+    private static final int MAX_CHUNK_SIZE = 1 << 28;
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final int SCAN_BUFFER_SIZE = 1 << 16;
+    private static final int MAX_LINE_LENGTH = 1 << 16;
+
+    // Values containing a comma that results in an extra column, and what they are replaced with
+    private static final byte[][] NON_PUBLIC_FOR_GEO = {
+        " ( non-public,for GEO)".getBytes(StandardCharsets.US_ASCII),
+        " (non-public,for GEO)".getBytes(StandardCharsets.US_ASCII)
+    };
+    private static final byte[] NON_PUBLIC_FOR_GEO_REPLACEMENT = "(non-public for GEO)".getBytes(StandardCharsets.US_ASCII);
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final Path path;
+    private final int numThreads;
+    private final long maxRows;
+
+    // Position of each used column within a row, resolved from the header
+    private int directionRefIndex;
+    private int publishedLineNameIndex;
+    private int originNameIndex;
+    private int destinationNameIndex;
+    private int vehicleRefIndex;
+    private int latitudeIndex;
+    private int longitudeIndex;
+    private int arrivalProximityTextIndex;
+    private int distanceFromStopIndex;
+    private int expectedArrivalTimeIndex;
+    private int numColumns;
+
+    private final AtomicInteger skippedRows = new AtomicInteger();
+    private long fileSize;
+
+    /**
+     * @param path Path to the CSV file, the first line must be the header.
+     * @param numThreads Number of threads used to parse chunks, a value below 1 uses all available processors.
+     * @param maxRows Maximum number of data rows read from the file, a value below 1 reads the whole file.
+     */
+    public MappedCsvParser(Path path, int numThreads, long maxRows) {
+        this.path = path;
+        this.numThreads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * Parses the rows of the file, up to the maximum number of rows.
+     *
+     * @return The parsed records, in file order.
+     * @throws IOException If the file cannot be read or its header is missing a required column.
+     */
+    public List<BusRecordEntity> parse() throws IOException {
+        try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+            this.fileSize = channel.size();
+            long dataStart = readHeader(channel);
+            long dataEnd = this.maxRows > 0 ? skipLines(channel, dataStart, this.maxRows) : this.fileSize;
+            return parseSection(channel, dataStart, dataEnd);
+        }
+    }
+
+    /**
+     * Parses the complete rows appended to the file since it was a given size, e.g. when tailing a file that
+     * new rows are written to. A row still being written, i.e. without its newline, is left for the next call.
+     * The row limit does not apply.
+     *
+     * @param offset The size of the file when it was last parsed, which must be at a line boundary.
+     * @return The parsed records, in file order, and the offset to continue from.
+     * @throws IOException If the file cannot be read, its header is missing a required column, or it is
+     * smaller than the offset, e.g. because it was replaced.
+     */
+    public Section parseAppended(long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+            this.fileSize = channel.size();
+            if (this.fileSize < offset) {
+                throw new IOException(this.path + " is smaller than when it was last parsed, it may have been replaced");
+            }
+            long dataStart = Math.max(readHeader(channel), offset);
+            long dataEnd = lastLineEnd(channel, dataStart, this.fileSize);
+            return new Section(parseSection(channel, dataStart, dataEnd), dataEnd);
+        }
+    }
+
+    /**
+     * @return The size of the file when it was last parsed. Rows beyond it were not read.
+     */
+    public long getFileSize() {
+        return this.fileSize;
+    }
+
+    /**
+     * Records parsed from a section of the file.
+     *
+     * @param records The parsed records, in file order.
+     * @param end The file offset right after the last row of the section.
+     */
+    public record Section(List<BusRecordEntity> records, long end) {}
+
+    /**
+     * Splits the rows in [dataStart, dataEnd) into chunks and parses them in parallel.
+     *
+     * @return The parsed records, in file order.
+     */
+    private List<BusRecordEntity> parseSection(FileChannel channel, long dataStart, long dataEnd) throws IOException {
+        List<long[]> chunks = splitIntoChunks(channel, dataStart, dataEnd);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.numThreads, Math.max(chunks.size(), 1)));
+        try {
+            List<Future<List<BusRecordEntity>>> futures = new ArrayList<>();
+            for (long[] chunk : chunks) {
+                futures.add(executor.submit(() -> parseChunk(channel, chunk[0], chunk[1])));
+            }
+
+            List<List<BusRecordEntity>> chunkResults = new ArrayList<>();
+            int totalRecords = 0;
+            for (Future<List<BusRecordEntity>> future : futures) {
+                List<BusRecordEntity> chunkResult = future.get();
+                totalRecords += chunkResult.size();
+                chunkResults.add(chunkResult);
+            }
+
+            List<BusRecordEntity> result = new ArrayList<>(totalRecords);
+            chunkResults.forEach(result::addAll);
+
+            if (this.skippedRows.get() > 0) {
+                logger.warn("Skipped " + this.skippedRows.get() + " rows that could not be parsed");
+            }
+            logger.debug("Parsed " + chunks.size() + " chunks using " + this.numThreads + " threads");
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing " + this.path, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to parse " + this.path, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // ================== CHUNKING ==================
+
+    /**
+     * Reads the header line and resolves the position of every used column.
+     *
+     * @param channel Channel of the CSV file.
+     * @return The file offset of the first data row.
+     * @throws IOException If the header cannot be read or a required column is missing.
+     */
+    private long readHeader(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(channel.size(), MAX_LINE_LENGTH));
+        channel.read(buffer, 0);
+        buffer.flip();
+
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+
+        int start = 0;
+        // Skip UTF-8 byte order mark
+        if (bytes.length >= 3 && (bytes[0] & 0xFF) == 0xEF && (bytes[1] & 0xFF) == 0xBB && (bytes[2] & 0xFF) == 0xBF) {
+            start = 3;
+        }
+
+        int end = start;
+        while (end < bytes.length && bytes[end] != '\n') {
+            end++;
+        }
+        if (end == bytes.length && end == MAX_LINE_LENGTH) {
+            throw new IOException("Header line is too long in " + this.path);
+        }
+
+        int lineEnd = end > start && bytes[end - 1] == '\r' ? end - 1 : end;
+        byte[] headerLine = Arrays.copyOfRange(bytes, start, lineEnd);
+        LineTokenizer tokenizer = new LineTokenizer(256);
+        int fields = tokenizer.tokenize(headerLine, headerLine.length);
+
+        List<String> header = new ArrayList<>();
+        for (int i = 0; i < fields; i++) {
+            header.add(tokenizer.string(headerLine, i));
+        }
+
+        this.numColumns = header.size();
+        this.directionRefIndex = columnIndex(header, Columns.DirectionRef);
+        this.publishedLineNameIndex = columnIndex(header, Columns.PublishedLineName);
+        this.originNameIndex = columnIndex(header, Columns.OriginName);
+        this.destinationNameIndex = columnIndex(header, Columns.DestinationName);
+        this.vehicleRefIndex = columnIndex(header, Columns.VehicleRef);
+        this.latitudeIndex = columnIndex(header, Columns.VehicleLocation_Latitude);
+        this.longitudeIndex = columnIndex(header, Columns.VehicleLocation_Longitude);
+        this.arrivalProximityTextIndex = columnIndex(header, Columns.ArrivalProximityText);
+        this.distanceFromStopIndex = columnIndex(header, Columns.DistanceFromStop);
+        this.expectedArrivalTimeIndex = columnIndex(header, Columns.ExpectedArrivalTime);
+
+        return Math.min(end + 1, channel.size());
+    }
+
+    private int columnIndex(List<String> header, Columns column) throws IOException {
+        int index = header.indexOf(column.getColumnName());
+        if (index < 0) {
+            throw new IOException("Column " + column.getColumnName() + " is missing from the header of " + this.path);
+        }
+        return index;
+    }
+
+    /**
+     * Finds the end of the section made up of the given number of lines. Only newlines are scanned for, so this is
+     * much cheaper than parsing and lets a row limit be applied before the rows are split between threads.
+     *
+     * @param channel Channel of the CSV file.
+     * @param start File offset of the first line.
+     * @param numLines Number of lines to skip.
+     * @return The file offset right after the last line, or the file size if the file has fewer lines.
+     * @throws IOException If the file cannot be read.
+     */
+    private long skipLines(FileChannel channel, long start, long numLines) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long fileSize = channel.size();
+        long position = start;
+        long linesFound = 0;
+        while (position < fileSize) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n' && ++linesFound == numLines) {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return fileSize;
+    }
+
+    /**
+     * Finds the end of the last complete line within [start, end), scanning backwards from the end.
+     *
+     * @return The file offset right after the last newline, or start if there is no complete line.
+     */
+    private long lastLineEnd(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long position = end;
+        while (position > start) {
+            int length = (int) Math.min(SCAN_BUFFER_SIZE, position - start);
+            buffer.clear();
+            buffer.limit(length);
+            int read = 0;
+            while (read < length) {
+                int bytes = channel.read(buffer, position - length + read);
+                if (bytes <= 0) {
+                    throw new IOException("Unexpected end of " + this.path);
+                }
+                read += bytes;
+            }
+            for (int i = length - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return position - length + i + 1;
+                }
+            }
+            position -= length;
+        }
+        return start;
+    }
+
+    /**
+     * Splits the data section of the file into chunks that start and end on line boundaries.
+     *
+     * @param channel Channel of the CSV file.
+     * @param dataStart File offset of the first data row.
+     * @param dataEnd File offset right after the last data row.
+     * @return A list of [start, end) file offsets.
+     * @throws IOException If the file cannot be read.
+     */
+    private List<long[]> splitIntoChunks(FileChannel channel, long dataStart, long dataEnd) throws IOException {
+        long dataSize = dataEnd - dataStart;
+        long targetChunkSize = dataSize / ((long) this.numThreads * CHUNKS_PER_THREAD);
+        targetChunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, targetChunkSize));
+
+        List<long[]> chunks = new ArrayList<>();
+        long chunkStart = dataStart;
+        while (chunkStart < dataEnd) {
+            long chunkEnd = chunkStart + targetChunkSize >= dataEnd
+                ? dataEnd
+                : Math.min(nextLineStart(channel, chunkStart + targetChunkSize), dataEnd);
+            chunks.add(new long[] { chunkStart, chunkEnd });
+            chunkStart = chunkEnd;
+        }
+        return chunks;
+    }
+
+    /**
+     * Finds the offset of the first line starting at or after the given position.
+     */
+    private long nextLineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long fileSize = channel.size();
+        while (position < fileSize) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return fileSize;
+    }
+
+    // ================== PARSING ==================
+
+    /**
+     * Maps and parses all rows within a chunk.
+     *
+     * @param channel Channel of the CSV file.
+     * @param start File offset of the first byte of the chunk.
+     * @param end File offset one past the last byte of the chunk.
+     * @return The parsed records of the chunk, in file order.
+     * @throws IOException If the chunk cannot be mapped.
+     */
+    private List<BusRecordEntity> parseChunk(FileChannel channel, long start, long end) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        int size = buffer.limit();
+
+        List<BusRecordEntity> records = new ArrayList<>();
+        // Room for the extra columns created by unescaped commas
+        LineTokenizer tokenizer = new LineTokenizer(this.numColumns + 4);
+        ColumnEncoders encoders = new ColumnEncoders(Dictionaries.current());
+        byte[] line = new byte[1024];
+
+        int lineStart = 0;
+        while (lineStart < size) {
+            int lineEnd = lineStart;
+            while (lineEnd < size && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+
+            int length = lineEnd - lineStart;
+            if (length > 0 && buffer.get(lineEnd - 1) == '\r') {
+                length--;
+            }
+            if (length > line.length) {
+                line = new byte[Math.max(length, line.length * 2)];
+            }
+            buffer.get(lineStart, line, 0, length);
+
+            if (length > 0) {
+                BusRecordEntity record = parseRecord(line, length, tokenizer, encoders);
+                if (record != null) {
+                    records.add(record);
+                } else {
+                    this.skippedRows.incrementAndGet();
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return records;
+    }
+
+    /**
+     * Decodes a single row into a {@link BusRecordEntity}.
+     *
+     * @return The parsed record, or null if the row is malformed.
+     */
+    private BusRecordEntity parseRecord(byte[] line, int length, LineTokenizer tokenizer, ColumnEncoders encoders) {
+        int fields = tokenizer.tokenize(line, length);
+        if (fields > this.numColumns) {
+            length = removeNonPublicForGeoCommas(line, length);
+            fields = tokenizer.tokenize(line, length);
+        }
+        if (fields != this.numColumns) {
+            logger.debug("Row has " + fields + " columns, expected " + this.numColumns + ": " + new String(line, 0, length, StandardCharsets.UTF_8));
+            return null;
+        }
+
+        try {
+            BusRecordEntity record = new BusRecordEntity();
+            record.setDirectionRef(parseInt(line, tokenizer, this.directionRefIndex));
+            record.setPublishedLineNameCode(encoders.publishedLineNames.encode(line, tokenizer, this.publishedLineNameIndex));
+            record.setOriginNameCode(encoders.stopNames.encode(line, tokenizer, this.originNameIndex));
+            record.setDestinationNameCode(encoders.stopNames.encode(line, tokenizer, this.destinationNameIndex));
+            record.setVehicleRefCode(encoders.vehicleRefs.encode(line, tokenizer, this.vehicleRefIndex));
+
+            double latitude = parseDouble(line, tokenizer, this.latitudeIndex);
+            double longitude = parseDouble(line, tokenizer, this.longitudeIndex);
+            if (latitude > 90.0 || latitude < -90.0 || longitude > 180.0 || longitude < -180.0) {
+                logger.debug("Invalid latitude/longitude values for row: " + new String(line, 0, length, StandardCharsets.UTF_8));
+                return null;
+            }
+            record.setVehicleLocationLatitude(latitude);
+            record.setVehicleLocationLongitude(longitude);
+
+            record.setArrivalProximityTextCode(encoders.arrivalProximityTexts.encode(line, tokenizer, this.arrivalProximityTextIndex));
+
+            if (!isNull(line, tokenizer, this.distanceFromStopIndex)) {
+                record.setDistanceFromStop(parseInt(line, tokenizer, this.distanceFromStopIndex));
+            }
+            if (!isNull(line, tokenizer, this.expectedArrivalTimeIndex)) {
+                record.setExpectedArrivalTime(parseDateTime(line, tokenizer, this.expectedArrivalTimeIndex));
+            }
+            return record;
+        } catch (NumberFormatException e) {
+            logger.debug("Could not parse row: " + new String(line, 0, length, StandardCharsets.UTF_8), e);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the {@code (non-public,for GEO)} values in place, which contain an unescaped comma
+     * and therefore result in an extra column.
+     *
+     * @return The new length of the line.
+     */
+    private static int removeNonPublicForGeoCommas(byte[] line, int length) {
+        for (byte[] pattern : NON_PUBLIC_FOR_GEO) {
+            int i = indexOf(line, length, pattern, 0);
+            while (i >= 0) {
+                byte[] replacement = NON_PUBLIC_FOR_GEO_REPLACEMENT;
+                System.arraycopy(replacement, 0, line, i, replacement.length);
+                System.arraycopy(line, i + pattern.length, line, i + replacement.length, length - i - pattern.length);
+                length -= pattern.length - replacement.length;
+                i = indexOf(line, length, pattern, i + replacement.length);
+            }
+        }
+        return length;
+    }
+
+    private static int indexOf(byte[] line, int length, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (line[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * A field is null if it is empty or contains "NA".
+     */
+    private static boolean isNull(byte[] line, LineTokenizer tokenizer, int field) {
+        int start = tokenizer.start(field);
+        int length = tokenizer.end(field) - start;
+        return length == 0 || (length == 2 && line[start] == 'N' && line[start + 1] == 'A');
+    }
+
+    private static int parseInt(byte[] line, LineTokenizer tokenizer, int field) {
+        int i = tokenizer.start(field);
+        int end = tokenizer.end(field);
+        if (i == end) {
+            throw new NumberFormatException("Empty integer field");
+        }
+
+        boolean negative = line[i] == '-';
+        if (negative || line[i] == '+') {
+            i++;
+        }
+        if (i == end || end - i > 9) {
+            return Integer.parseInt(tokenizer.asciiString(line, field));
+        }
+
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid integer: " + tokenizer.asciiString(line, field));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a plain decimal such as "-73.946258" exactly. When both the digits and the power of ten are
+     * exactly representable as doubles a single division is correctly rounded, which gives the same result as
+     * {@link Double#parseDouble(String)}. Anything else falls back to it.
+     */
+    private static double parseDouble(byte[] line, LineTokenizer tokenizer, int field) {
+        int i = tokenizer.start(field);
+        int end = tokenizer.end(field);
+
+        boolean negative = i < end && line[i] == '-';
+        if (negative || (i < end && line[i] == '+')) {
+            i++;
+        }
+
+        long mantissa = 0;
+        int numDigits = 0;
+        int fractionDigits = -1;
+        for (; i < end; i++) {
+            byte b = line[i];
+            if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9 || numDigits >= 15) {
+                return Double.parseDouble(tokenizer.asciiString(line, field));
+            }
+            mantissa = mantissa * 10 + digit;
+            numDigits++;
+            if (fractionDigits >= 0) {
+                fractionDigits++;
+            }
+        }
+        if (numDigits == 0) {
+            return Double.parseDouble(tokenizer.asciiString(line, field));
+        }
+
+        double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a timestamp in the "yyyy-MM-dd HH:mm:ss" format.
+     */
+    private static LocalDateTime parseDateTime(byte[] line, LineTokenizer tokenizer, int field) {
+        int s = tokenizer.start(field);
+        if (tokenizer.end(field) - s != 19 || line[s + 4] != '-' || line[s + 7] != '-' || line[s + 10] != ' '
+            || line[s + 13] != ':' || line[s + 16] != ':') {
+            throw new NumberFormatException("Invalid timestamp: " + tokenizer.asciiString(line, field));
+        }
+
+        try {
+            return LocalDateTime.of(
+                digits(line, s, 4),
+                digits(line, s + 5, 2),
+                digits(line, s + 8, 2),
+                digits(line, s + 11, 2),
+                digits(line, s + 14, 2),
+                digits(line, s + 17, 2)
+            );
+        } catch (RuntimeException e) {
+            throw new NumberFormatException("Invalid timestamp: " + tokenizer.asciiString(line, field));
+        }
+    }
+
+    private static int digits(byte[] line, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException();
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Splits a line into fields, recording the offsets of each field instead of copying it.
+     * Surrounding quotes are excluded from the offsets, and escaped quotes ("") are only
+     * unescaped when the field is turned into a string.
+     * <p>
+     * Instances are reused between lines and are not thread safe.
+     */
+    static class LineTokenizer {
+        private final int maxFields;
+        private final int[] starts;
+        private final int[] ends;
+        private final boolean[] escaped;
+
+        LineTokenizer(int maxFields) {
+            this.maxFields = maxFields;
+            this.starts = new int[maxFields];
+            this.ends = new int[maxFields];
+            this.escaped = new boolean[maxFields];
+        }
+
+        /**
+         * @return The number of fields found, at most the maximum number of fields.
+         */
+        int tokenize(byte[] line, int length) {
+            int field = 0;
+            int i = 0;
+            while (field < this.maxFields) {
+                if (i < length && line[i] == '"') {
+                    int start = i + 1;
+                    int j = start;
+                    boolean hasEscapes = false;
+                    while (j < length) {
+                        if (line[j] == '"') {
+                            if (j + 1 < length && line[j + 1] == '"') {
+                                hasEscapes = true;
+                                j += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        j++;
+                    }
+                    this.starts[field] = start;
+                    this.ends[field] = Math.min(j, length);
+                    this.escaped[field] = hasEscapes;
+
+                    i = j + 1;
+                    while (i < length && line[i] != ',') {
+                        i++;
+                    }
+                } else {
+                    int start = i;
+                    while (i < length && line[i] != ',') {
+                        i++;
+                    }
+                    this.starts[field] = start;
+                    this.ends[field] = i;
+                    this.escaped[field] = false;
+                }
+                field++;
+
+                if (i >= length) {
+                    break;
+                }
+                i++;
+            }
+            return field;
+        }
+
+        int start(int field) {
+            return this.starts[field];
+        }
+
+        int end(int field) {
+            return this.ends[field];
+        }
+
+        boolean isEscaped(int field) {
+            return this.escaped[field];
+        }
+
+        String string(byte[] line, int field) {
+            String value = new String(line, this.starts[field], this.ends[field] - this.starts[field], StandardCharsets.UTF_8);
+            return this.escaped[field] ? value.replace("\"\"", "\"") : value;
+        }
+
+        String asciiString(byte[] line, int field) {
+            return new String(line, this.starts[field], this.ends[field] - this.starts[field], StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * The code caches of a chunk, one per dictionary of the {@link Dictionaries#current() current} set.
+     */
+    static class ColumnEncoders {
+        final CodeCache publishedLineNames;
+        final CodeCache vehicleRefs;
+        final CodeCache stopNames;
+        final CodeCache arrivalProximityTexts = new CodeCache(Dictionaries.ARRIVAL_PROXIMITY_TEXTS);
+
+        ColumnEncoders(Dictionaries dictionaries) {
+            this.publishedLineNames = new CodeCache(dictionaries.getPublishedLineNames());
+            this.vehicleRefs = new CodeCache(dictionaries.getVehicleRefs());
+            this.stopNames = new CodeCache(dictionaries.getStopNames());
+        }
+    }
+
+    /**
+     * Caches the dictionary codes of a column's values by their raw bytes, using open addressing.
+     * Nearly every value is a repeat, so nearly every field is encoded without creating a string
+     * or touching the shared dictionary.
+     * <p>
+     * Instances are not thread safe.
+     */
+    static class CodeCache {
+        private final StringDictionary dictionary;
+        private byte[][] keys = new byte[64][];
+        private int[] hashes = new int[64];
+        private int[] codes = new int[64];
+        private int size = 0;
+
+        CodeCache(StringDictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        /**
+         * @return The dictionary code of the field's value.
+         */
+        int encode(byte[] line, LineTokenizer tokenizer, int field) {
+            // Escaped fields differ from their value, they are rare enough to always encode the string
+            if (tokenizer.isEscaped(field)) {
+                return this.dictionary.encode(tokenizer.string(line, field));
+            }
+
+            int start = tokenizer.start(field);
+            int end = tokenizer.end(field);
+            int hash = 1;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + line[i];
+            }
+
+            int mask = this.keys.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (this.keys[slot] != null) {
+                if (this.hashes[slot] == hash && Arrays.equals(this.keys[slot], 0, this.keys[slot].length, line, start, end)) {
+                    return this.codes[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            int code = this.dictionary.encode(tokenizer.string(line, field));
+            this.keys[slot] = Arrays.copyOfRange(line, start, end);
+            this.hashes[slot] = hash;
+            this.codes[slot] = code;
+            if (++this.size * 2 > this.keys.length) {
+                grow();
+            }
+            return code;
+        }
+
+        private void grow() {
+            byte[][] oldKeys = this.keys;
+            int[] oldHashes = this.hashes;
+            int[] oldCodes = this.codes;
+            this.keys = new byte[oldKeys.length * 2][];
+            this.hashes = new int[oldKeys.length * 2];
+            this.codes = new int[oldKeys.length * 2];
+
+            int mask = this.keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == null) {
+                    continue;
+                }
+                int slot = (oldHashes[i] ^ (oldHashes[i] >>> 16)) & mask;
+                while (this.keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                this.keys[slot] = oldKeys[i];
+                this.hashes[slot] = oldHashes[i];
+                this.codes[slot] = oldCodes[i];
+            }
+        }
+    }
+}
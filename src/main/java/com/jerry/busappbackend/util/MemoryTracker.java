@@ -1,6 +1,12 @@
 package com.jerry.busappbackend.util;
 
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.text.DecimalFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -38,6 +44,72 @@ public class MemoryTracker {
             "\t" + DECIMAL_FORMAT.get().format(freeMemory) + "GB available";
     }
 
+    /**
+     * @return The bytes the heap can still grow by, i.e. the maximum heap size less the used heap, which
+     * includes garbage that has not been collected yet.
+     */
+    public static long getAvailableMemory() {
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /**
+     * @return The bytes of the heap in use, including garbage that has not been collected yet.
+     */
+    public static long getUsedBytes() {
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * @return The bytes of heap currently reserved by the JVM.
+     */
+    public static long getCommittedBytes() {
+        return runtime.totalMemory();
+    }
+
+    /**
+     * @return The bytes the heap can grow to.
+     */
+    public static long getMaxBytes() {
+        return runtime.maxMemory();
+    }
+
+    /**
+     * @return The sum of the most bytes each heap pool has used since start up. The pools peak at different
+     * times, so this is an upper bound of the peak heap usage.
+     */
+    public static long getPeakUsedBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * @return The number of collections of each garbage collector since start up, by collector name.
+     */
+    public static Map<String, Long> getGcCollections() {
+        Map<String, Long> collections = new LinkedHashMap<>();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections.put(collector.getName(), Math.max(0, collector.getCollectionCount()));
+        }
+        return collections;
+    }
+
+    /**
+     * @return The milliseconds spent in each garbage collector since start up, by collector name. For the
+     * collectors of G1 and the parallel collector this is the time the application was paused.
+     */
+    public static Map<String, Long> getGcTimeMs() {
+        Map<String, Long> times = new LinkedHashMap<>();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            times.put(collector.getName(), Math.max(0, collector.getCollectionTime()));
+        }
+        return times;
+    }
+
     public static String getAllMemory() {
         String maxMemory = getMaxMemory();
         String memoryUsage = getMemoryUsage();
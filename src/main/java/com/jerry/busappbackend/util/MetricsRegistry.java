@@ -0,0 +1,125 @@
+package com.jerry.busappbackend.util;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Durations and counts recorded while the application runs, exported by {@code MetricsExporter}.
+ * <p>
+ * Unlike {@link Timer}, which formats a duration for a single log line, durations are kept in a
+ * {@link LatencyHistogram} per timing and label, e.g. per controller method, so their percentiles can be tracked
+ * over time. Everything is kept since start up.
+ */
+@Component
+public class MetricsRegistry {
+
+    /**
+     * A family of durations, each with one label.
+     */
+    public enum Timing {
+        REQUEST("bus_app_request_duration_seconds", "handler", "Time to handle requests, by controller method"),
+        REQUEST_PHASE("bus_app_request_phase_duration_seconds", "phase", "Time spent by requests in each phase, see RequestTimings"),
+        LOAD_PHASE("bus_app_load_phase_duration_seconds", "phase", "Time spent by each phase of loading the data, on start up and reload"),
+        INGEST_PHASE("bus_app_ingest_phase_duration_seconds", "phase", "Time spent by each phase of ingesting appended records");
+
+        private final String metricName;
+        private final String labelName;
+        private final String help;
+
+        Timing(String metricName, String labelName, String help) {
+            this.metricName = metricName;
+            this.labelName = labelName;
+            this.help = help;
+        }
+
+        public String getMetricName() {
+            return this.metricName;
+        }
+
+        public String getLabelName() {
+            return this.labelName;
+        }
+
+        public String getHelp() {
+            return this.help;
+        }
+    }
+
+    public enum Counter {
+        LOADED_RECORDS("bus_app_loaded_records_total", "Records parsed while loading the data, on start up and reload"),
+        INGESTED_RECORDS("bus_app_ingested_records_total", "Appended records ingested"),
+        INGESTED_BATCHES("bus_app_ingested_batches_total", "Batches of appended records ingested");
+
+        private final String metricName;
+        private final String help;
+
+        Counter(String metricName, String help) {
+            this.metricName = metricName;
+            this.help = help;
+        }
+
+        public String getMetricName() {
+            return this.metricName;
+        }
+
+        public String getHelp() {
+            return this.help;
+        }
+    }
+
+    private final Map<Timing, ConcurrentHashMap<String, LatencyHistogram>> histograms = new EnumMap<>(Timing.class);
+    private final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+
+    public MetricsRegistry() {
+        for (Timing timing : Timing.values()) {
+            this.histograms.put(timing, new ConcurrentHashMap<>());
+        }
+        for (Counter counter : Counter.values()) {
+            this.counters.put(counter, new LongAdder());
+        }
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param timing The family of the duration.
+     * @param label The value of the family's label, e.g. the name of a phase.
+     * @param nanos The duration in nanoseconds.
+     */
+    public void record(Timing timing, String label, long nanos) {
+        this.histograms.get(timing).computeIfAbsent(label, key -> new LatencyHistogram()).record(nanos);
+    }
+
+    /**
+     * Records the duration from a start time until now.
+     *
+     * @param timing The family of the duration.
+     * @param label The value of the family's label, e.g. the name of a phase.
+     * @param startNanos The start time, from {@link System#nanoTime()}.
+     * @return The current time, to start timing the next phase from.
+     */
+    public long recordSince(Timing timing, String label, long startNanos) {
+        long now = System.nanoTime();
+        record(timing, label, now - startNanos);
+        return now;
+    }
+
+    public void increment(Counter counter, long delta) {
+        this.counters.get(counter).add(delta);
+    }
+
+    /**
+     * @return The histograms of a family, by label value.
+     */
+    public Map<String, LatencyHistogram> getHistograms(Timing timing) {
+        return this.histograms.get(timing);
+    }
+
+    public long getCount(Counter counter) {
+        return this.counters.get(counter).sum();
+    }
+}
@@ -0,0 +1,125 @@
+package com.jerry.busappbackend.util;
+
+/**
+ * Time spent by the current request in each phase of serving it, for the request log.
+ * <p>
+ * A request starts in {@link Phase#PARSE}, which covers dispatching the request and binding its parameters, and
+ * handlers call {@link #enter} as they move on to the next phase. Phases are not nested, entering a phase ends the
+ * previous one, and a phase may be entered more than once. Phases are only reported for requests whose handler
+ * entered any, the time of other requests is reported as a total only.<br></br>
+ * <br></br>
+ * The timings are held per thread, so calls from threads not serving a request, e.g. pregenerating vector tiles,
+ * are ignored.
+ */
+public class RequestTimings {
+
+    public enum Phase {
+        PARSE("parse"),
+        LOOKUP("lookup"),
+        QUEUE("queue"),
+        RENDER("render"),
+        VALIDATE("validate"),
+        WRITE("write");
+
+        private final String name;
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+    }
+
+    private static final ThreadLocal<RequestTimings> current = new ThreadLocal<>();
+
+    private final long startNanos;
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private Phase phase = Phase.PARSE;
+    private long phaseStartNanos;
+    private boolean entered;
+    private long totalNanos = -1;
+
+    private RequestTimings() {
+        this.startNanos = System.nanoTime();
+        this.phaseStartNanos = this.startNanos;
+    }
+
+    /**
+     * Starts timing the request served by the current thread.
+     *
+     * @return The timings of the request.
+     */
+    public static RequestTimings start() {
+        RequestTimings timings = new RequestTimings();
+        current.set(timings);
+        return timings;
+    }
+
+    /**
+     * Ends the current phase of the request served by the current thread, if any, and starts another.
+     *
+     * @param phase The phase the request moves on to.
+     */
+    public static void enter(Phase phase) {
+        RequestTimings timings = current.get();
+        if (timings == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        timings.phaseNanos[timings.phase.ordinal()] += now - timings.phaseStartNanos;
+        timings.phase = phase;
+        timings.phaseStartNanos = now;
+        timings.entered = true;
+    }
+
+    /**
+     * @return The timings of the request served by the current thread, or null if none were started.
+     */
+    public static RequestTimings current() {
+        return current.get();
+    }
+
+    /**
+     * Ends the last phase and stops timing the request served by the current thread.
+     *
+     * @return The timings of the request, or null if none were started.
+     */
+    public static RequestTimings finish() {
+        RequestTimings timings = current.get();
+        if (timings == null) {
+            return null;
+        }
+        current.remove();
+        long now = System.nanoTime();
+        timings.phaseNanos[timings.phase.ordinal()] += now - timings.phaseStartNanos;
+        timings.totalNanos = now - timings.startNanos;
+        return timings;
+    }
+
+    /**
+     * @return Whether the handler entered any phase, otherwise only the total is meaningful.
+     */
+    public boolean hasPhases() {
+        return this.entered;
+    }
+
+    /**
+     * @return The time spent in a phase so far, in nanoseconds.
+     */
+    public long getNanos(Phase phase) {
+        long nanos = this.phaseNanos[phase.ordinal()];
+        if (this.totalNanos < 0 && phase == this.phase) {
+            nanos += System.nanoTime() - this.phaseStartNanos;
+        }
+        return nanos;
+    }
+
+    /**
+     * @return The time from the start to the end of the request, in nanoseconds, or -1 if it has not finished.
+     */
+    public long getTotalNanos() {
+        return this.totalNanos;
+    }
+}
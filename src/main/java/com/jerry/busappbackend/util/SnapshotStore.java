@@ -0,0 +1,655 @@
+package com.jerry.busappbackend.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.jerry.busappbackend.entity.BusRecordEntity;
+import com.jerry.busappbackend.model.BusTrip;
+
+/**
+ * Persists the processed bus trip data to a versioned, binary columnar snapshot, so that restarts
+ * do not have to parse the raw data file and construct the trips again.
+ * <p>
+ * The snapshot is made up of a fixed size header followed by sections, one per column:<br></br>
+ * - Header: magic, format version, fingerprint of the parsed raw data, the position of the section table, and
+ * the size of the raw data that was parsed<br></br>
+ * - A shared dictionary of every string value, which string columns refer to by code<br></br>
+ * - One section per trip column, and one per point column with the points of all trips concatenated<br></br>
+ * - The published line name and vehicle reference indexes, in the same offsets + trip indexes layout<br></br>
+ * <p>
+ * The records themselves are not stored, as the trips hold every point that is served, so the size of the
+ * snapshot and the time taken to load it grow with the number of points kept rather than the number of rows.
+ * <p>
+ * A snapshot is only loaded if its format version matches, and the raw data file starts with the rows it was
+ * made from, otherwise the data is processed from the raw data file again and a new snapshot is written. Rows
+ * appended to the file since then are not part of the snapshot, and are ingested from the parsed size on.
+ * Each section is memory-mapped and bulk copied into arrays, from which the trips are rebuilt, so loading skips
+ * CSV parsing and grouping records into trips.
+ */
+@Component
+public class SnapshotStore {
+    private static final Logger logger = LogManager.getLogger(SnapshotStore.class);
+
+    private static final byte[] MAGIC = "BUSSNAP\0".getBytes(StandardCharsets.US_ASCII);
+    // Increment whenever the layout, or the way records and trips are processed, changes
+    private static final int FORMAT_VERSION = 5;
+    private static final int HEADER_SIZE = 64;
+    private static final int FINGERPRINT_SIZE = 32;
+    private static final int FINGERPRINT_SAMPLE_SIZE = 1 << 20;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private static final int NULL_CODE = -1;
+
+    /**
+     * Sections of the snapshot, in the order they are written.
+     */
+    private enum Section {
+        STRINGS,
+        TRIP_PUBLISHED_LINE_NAME,
+        TRIP_VEHICLE_REF,
+        TRIP_DIRECTION_REF,
+        TRIP_ORIGIN_NAME,
+        TRIP_DESTINATION_NAME,
+        TRIP_POINT_OFFSETS,
+        POINT_LONGITUDE,
+        POINT_LATITUDE,
+        POINT_ARRIVAL_TIME,
+        POINT_DISTANCE_FROM_STOP,
+        POINT_ARRIVAL_PROXIMITY_TEXT,
+        LINE_INDEX_KEYS,
+        LINE_INDEX_OFFSETS,
+        LINE_INDEX_TRIPS,
+        VEHICLE_INDEX_KEYS,
+        VEHICLE_INDEX_OFFSETS,
+        VEHICLE_INDEX_TRIPS
+    }
+
+    /**
+     * The processed data held by the snapshot.
+     */
+    public static class Snapshot {
+        private final List<BusTrip> trips;
+        private final TripIndex pubLineNameToTripIndex;
+        private final TripIndex vehRefToTripIndex;
+        private final long rawDataSize;
+        private final byte[] rawDataFingerprint;
+
+        /**
+         * @param rawDataSize The size of the raw data the trips were built from.
+         * @param rawDataFingerprint The fingerprint of that raw data, see {@link #fingerprintRawData(long)}.
+         */
+        public Snapshot(
+            List<BusTrip> trips,
+            TripIndex pubLineNameToTripIndex,
+            TripIndex vehRefToTripIndex,
+            long rawDataSize,
+            byte[] rawDataFingerprint
+        ) {
+            this.trips = trips;
+            this.pubLineNameToTripIndex = pubLineNameToTripIndex;
+            this.vehRefToTripIndex = vehRefToTripIndex;
+            this.rawDataSize = rawDataSize;
+            this.rawDataFingerprint = rawDataFingerprint;
+        }
+
+        public List<BusTrip> getTrips() {
+            return this.trips;
+        }
+
+        public TripIndex getPubLineNameToTripIndex() {
+            return this.pubLineNameToTripIndex;
+        }
+
+        public TripIndex getVehRefToTripIndex() {
+            return this.vehRefToTripIndex;
+        }
+
+        public long getRawDataSize() {
+            return this.rawDataSize;
+        }
+
+        public byte[] getRawDataFingerprint() {
+            return this.rawDataFingerprint;
+        }
+    }
+
+    private final boolean enabled;
+    private final String snapshotPathString;
+
+    @Autowired
+    CsvParser parser;
+
+    @Autowired
+    Timer timer;
+
+    public SnapshotStore(
+        @Value("${app.data.snapshot.enabled:true}") boolean enabled,
+        @Value("${app.data.snapshot.path:}") String snapshotPathString
+    ) {
+        this.enabled = enabled;
+        this.snapshotPathString = snapshotPathString;
+    }
+
+    /**
+     * Loads the snapshot if one exists for the current raw data file, or for the rows it started with before
+     * more were appended.
+     *
+     * @return The snapshot, or empty if snapshots are disabled, or the snapshot is missing, outdated or unreadable.
+     */
+    public Optional<Snapshot> load() {
+        Path snapshotPath = getSnapshotPath();
+        if (!this.enabled || !Files.exists(snapshotPath)) {
+            return Optional.empty();
+        }
+
+        int timerID = timer.startTimer();
+        try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            int version = header.getInt();
+            byte[] fingerprint = new byte[FINGERPRINT_SIZE];
+            header.get(fingerprint);
+            long sectionTableOffset = header.getLong();
+            int numSections = header.getInt();
+            long rawDataSize = header.getLong();
+
+            if (!Arrays.equals(magic, MAGIC) || version != FORMAT_VERSION || numSections != Section.values().length) {
+                logger.info("Snapshot at " + snapshotPath + " has an unsupported format, ignoring it");
+                return Optional.empty();
+            }
+            if (rawDataSize > Files.size(parser.getRawDataPath()) || !Arrays.equals(fingerprint, fingerprintRawData(rawDataSize))) {
+                logger.info("Snapshot at " + snapshotPath + " does not match the raw data file, ignoring it");
+                return Optional.empty();
+            }
+
+            ByteBuffer sectionTable = ByteBuffer.allocate(numSections * 2 * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(sectionTable, sectionTableOffset);
+            sectionTable.flip();
+            long[][] sections = new long[numSections][2];
+            for (long[] section : sections) {
+                section[0] = sectionTable.getLong();
+                section[1] = sectionTable.getLong();
+            }
+
+            Snapshot snapshot = readSnapshot(new SectionReader(channel, sections), rawDataSize, fingerprint);
+            logger.info("Loaded " + snapshot.getTrips().size() + " trips from snapshot in " + timer.getPrettyTime(timerID));
+            return Optional.of(snapshot);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to load snapshot at " + snapshotPath + ", processing raw data instead", e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the processed data. The snapshot is written to a temporary file first and then moved
+     * into place, so an interrupted write never leaves a partial snapshot behind. Failures are logged and ignored,
+     * the next start up will process the raw data file again.
+     *
+     * @param snapshot The data to persist.
+     */
+    public void save(Snapshot snapshot) {
+        if (!this.enabled) {
+            return;
+        }
+
+        Path snapshotPath = getSnapshotPath();
+        Path tempPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        int timerID = timer.startTimer();
+        try {
+            try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                SectionWriter writer = new SectionWriter(channel);
+                writeSnapshot(snapshot, writer);
+                long sectionTableOffset = writer.writeSectionTable();
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.put(MAGIC);
+                header.putInt(FORMAT_VERSION);
+                header.put(snapshot.getRawDataFingerprint());
+                header.putLong(sectionTableOffset);
+                header.putInt(Section.values().length);
+                header.putLong(snapshot.getRawDataSize());
+                header.rewind();
+                channel.write(header, 0);
+                channel.force(true);
+            }
+            Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Wrote snapshot to " + snapshotPath + " in " + timer.getPrettyTime(timerID));
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to write snapshot to " + snapshotPath, e);
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (IOException deleteException) {
+                logger.warn("Failed to delete " + tempPath, deleteException);
+            }
+        }
+    }
+
+    private Path getSnapshotPath() {
+        if (this.snapshotPathString != null && !this.snapshotPathString.isBlank()) {
+            return Paths.get(this.snapshotPathString);
+        }
+
+        Path rawDataPath = parser.getRawDataPath();
+        String filename = rawDataPath.getFileName().toString().replaceFirst("[.][^.]+$", "");
+        return rawDataPath.resolveSibling(filename + ".snapshot");
+    }
+
+    /**
+     * Identifies parsed raw data and the parse settings, e.g. to version responses derived from the data.
+     *
+     * @param fingerprint A fingerprint returned by {@link #fingerprintRawData(long)}.
+     * @return The hex encoded start of the fingerprint.
+     */
+    public static String toVersion(byte[] fingerprint) {
+        return HexFormat.of().formatHex(fingerprint, 0, 8);
+    }
+
+    /**
+     * Creates a fingerprint of the start of the raw data file that was parsed, and the settings used to parse it.
+     * Rows appended to the file after it was parsed do not change the fingerprint. To avoid reading the whole
+     * file on every start up, only the size, and the first and last megabyte of the parsed rows are hashed.
+     *
+     * @param size The size of the raw data that was parsed.
+     * @return A SHA-256 hash.
+     * @throws IOException If the raw data file cannot be read.
+     */
+    public byte[] fingerprintRawData(long size) throws IOException {
+        Path rawDataPath = parser.getRawDataPath();
+        try (FileChannel channel = FileChannel.open(rawDataPath, StandardOpenOption.READ)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+            ByteBuffer metadata = ByteBuffer.allocate(2 * Long.BYTES);
+            metadata.putLong(size);
+            metadata.putLong(parser.getMaxRows());
+            digest.update(metadata.array());
+
+            ByteBuffer sample = ByteBuffer.allocate((int) Math.min(size, FINGERPRINT_SAMPLE_SIZE));
+            channel.read(sample, 0);
+            sample.flip();
+            digest.update(sample);
+
+            sample.clear();
+            channel.read(sample, Math.max(0, size - sample.capacity()));
+            sample.flip();
+            digest.update(sample);
+
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ================== WRITING ==================
+
+    private void writeSnapshot(Snapshot snapshot, SectionWriter writer) throws IOException {
+        StringTable strings = new StringTable();
+
+        List<int[]> lineIndex = encodeIndex(snapshot.getPubLineNameToTripIndex(), strings);
+        List<int[]> vehicleIndex = encodeIndex(snapshot.getVehRefToTripIndex(), strings);
+
+        // Encode the trip strings up front, the dictionary is written first
+        for (BusTrip trip : snapshot.getTrips()) {
+            strings.encode(trip.getPublishedLineName());
+            strings.encode(trip.getVehicleRef());
+            strings.encode(trip.getOriginName());
+            strings.encode(trip.getDestinationName());
+            for (int i = 0; i < trip.getNumPoints(); i++) {
+                strings.encode(trip.getArrivalProximityText(i));
+            }
+        }
+
+        // Strings
+        writer.begin(Section.STRINGS);
+        writer.putInt(strings.values.size());
+        for (String value : strings.values) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writer.putInt(bytes.length);
+            writer.put(bytes);
+        }
+
+        // Trips
+        List<BusTrip> trips = snapshot.getTrips();
+        writer.begin(Section.TRIP_PUBLISHED_LINE_NAME);
+        for (BusTrip trip : trips) {
+            writer.putInt(strings.encode(trip.getPublishedLineName()));
+        }
+        writer.begin(Section.TRIP_VEHICLE_REF);
+        for (BusTrip trip : trips) {
+            writer.putInt(strings.encode(trip.getVehicleRef()));
+        }
+        writer.begin(Section.TRIP_DIRECTION_REF);
+        for (BusTrip trip : trips) {
+            writer.putInt(trip.getDirectionRef());
+        }
+        writer.begin(Section.TRIP_ORIGIN_NAME);
+        for (BusTrip trip : trips) {
+            writer.putInt(strings.encode(trip.getOriginName()));
+        }
+        writer.begin(Section.TRIP_DESTINATION_NAME);
+        for (BusTrip trip : trips) {
+            writer.putInt(strings.encode(trip.getDestinationName()));
+        }
+        writer.begin(Section.TRIP_POINT_OFFSETS);
+        int offset = 0;
+        writer.putInt(offset);
+        for (BusTrip trip : trips) {
+            offset += trip.getNumPoints();
+            writer.putInt(offset);
+        }
+
+        // Points of all trips
+        writer.begin(Section.POINT_LONGITUDE);
+        for (BusTrip trip : trips) {
+            for (int i = 0; i < trip.getNumPoints(); i++) {
+                writer.putDouble(trip.getLongitude(i));
+            }
+        }
+        writer.begin(Section.POINT_LATITUDE);
+        for (BusTrip trip : trips) {
+            for (int i = 0; i < trip.getNumPoints(); i++) {
+                writer.putDouble(trip.getLatitude(i));
+            }
+        }
+        writer.begin(Section.POINT_ARRIVAL_TIME);
+        for (BusTrip trip : trips) {
+            for (int i = 0; i < trip.getNumPoints(); i++) {
+                writer.putLong(trip.getArrivalTime(i));
+            }
+        }
+        writer.begin(Section.POINT_DISTANCE_FROM_STOP);
+        for (BusTrip trip : trips) {
+            for (int i = 0; i < trip.getNumPoints(); i++) {
+                writer.putInt(trip.getDistanceFromStop(i));
+            }
+        }
+        writer.begin(Section.POINT_ARRIVAL_PROXIMITY_TEXT);
+        for (BusTrip trip : trips) {
+            for (int i = 0; i < trip.getNumPoints(); i++) {
+                writer.putInt(strings.encode(trip.getArrivalProximityText(i)));
+            }
+        }
+
+        // Indexes
+        writer.writeInts(Section.LINE_INDEX_KEYS, lineIndex.get(0));
+        writer.writeInts(Section.LINE_INDEX_OFFSETS, lineIndex.get(1));
+        writer.writeInts(Section.LINE_INDEX_TRIPS, lineIndex.get(2));
+        writer.writeInts(Section.VEHICLE_INDEX_KEYS, vehicleIndex.get(0));
+        writer.writeInts(Section.VEHICLE_INDEX_OFFSETS, vehicleIndex.get(1));
+        writer.writeInts(Section.VEHICLE_INDEX_TRIPS, vehicleIndex.get(2));
+    }
+
+    /**
+     * Splits an index into its sorted keys, offsets and trip indexes, see {@link TripIndex}. Keys are written
+     * as strings, since the codes of the shared dictionaries depend on the order values were first seen in.
+     */
+    private List<int[]> encodeIndex(TripIndex index, StringTable strings) {
+        int[] keys = new int[index.size()];
+        for (int i = 0; i < index.size(); i++) {
+            keys[i] = strings.encode(index.getKey(i));
+        }
+        return List.of(keys, index.getOffsets(), index.getTripIds());
+    }
+
+    // ================== READING ==================
+
+    private Snapshot readSnapshot(SectionReader reader, long rawDataSize, byte[] rawDataFingerprint) throws IOException {
+        ByteBuffer stringBuffer = reader.map(Section.STRINGS);
+        String[] strings = new String[stringBuffer.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[stringBuffer.getInt()];
+            stringBuffer.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int[] tripLineCodes = reader.readInts(Section.TRIP_PUBLISHED_LINE_NAME);
+        int[] tripVehicleCodes = reader.readInts(Section.TRIP_VEHICLE_REF);
+        int[] tripDirections = reader.readInts(Section.TRIP_DIRECTION_REF);
+        int[] tripOriginCodes = reader.readInts(Section.TRIP_ORIGIN_NAME);
+        int[] tripDestinationCodes = reader.readInts(Section.TRIP_DESTINATION_NAME);
+        int[] pointOffsets = reader.readInts(Section.TRIP_POINT_OFFSETS);
+        double[] pointLongitudes = reader.readDoubles(Section.POINT_LONGITUDE);
+        double[] pointLatitudes = reader.readDoubles(Section.POINT_LATITUDE);
+        long[] pointTimes = reader.readLongs(Section.POINT_ARRIVAL_TIME);
+        int[] pointDistances = reader.readInts(Section.POINT_DISTANCE_FROM_STOP);
+        int[] pointProximityCodes = reader.readInts(Section.POINT_ARRIVAL_PROXIMITY_TEXT);
+
+        // Codes of the snapshot's dictionary, translated to the codes of the shared dictionary
+        short[] tripDictionaryCodes = new short[strings.length];
+        boolean[] isProximityText = new boolean[strings.length];
+        for (int code : pointProximityCodes) {
+            if (code != NULL_CODE && !isProximityText[code]) {
+                isProximityText[code] = true;
+                tripDictionaryCodes[code] = BusTrip.encodeArrivalProximityText(strings[code]);
+            }
+        }
+
+        List<BusTrip> trips = new ArrayList<>(tripLineCodes.length);
+        for (int i = 0; i < tripLineCodes.length; i++) {
+            int from = pointOffsets[i];
+            int to = pointOffsets[i + 1];
+            short[] tripProximityCodes = new short[to - from];
+            for (int j = from; j < to; j++) {
+                int code = pointProximityCodes[j];
+                tripProximityCodes[j - from] = code == NULL_CODE ? BusRecordEntity.NULL_CODE : tripDictionaryCodes[code];
+            }
+
+            trips.add(new BusTrip(
+                decode(strings, tripLineCodes[i]),
+                decode(strings, tripVehicleCodes[i]),
+                tripDirections[i],
+                decode(strings, tripOriginCodes[i]),
+                decode(strings, tripDestinationCodes[i]),
+                Arrays.copyOfRange(pointLongitudes, from, to),
+                Arrays.copyOfRange(pointLatitudes, from, to),
+                Arrays.copyOfRange(pointTimes, from, to),
+                Arrays.copyOfRange(pointDistances, from, to),
+                tripProximityCodes
+            ));
+        }
+
+        Dictionaries dictionaries = Dictionaries.current();
+        TripIndex lineIndex = decodeIndex(strings, dictionaries.getPublishedLineNames(),
+            reader.readInts(Section.LINE_INDEX_KEYS), reader.readInts(Section.LINE_INDEX_OFFSETS), reader.readInts(Section.LINE_INDEX_TRIPS));
+        TripIndex vehicleIndex = decodeIndex(strings, dictionaries.getVehicleRefs(),
+            reader.readInts(Section.VEHICLE_INDEX_KEYS), reader.readInts(Section.VEHICLE_INDEX_OFFSETS), reader.readInts(Section.VEHICLE_INDEX_TRIPS));
+
+        return new Snapshot(trips, lineIndex, vehicleIndex, rawDataSize, rawDataFingerprint);
+    }
+
+    private TripIndex decodeIndex(String[] strings, StringDictionary keyDictionary, int[] keys, int[] offsets, int[] tripIndexes) {
+        String[] keyValues = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keyValues[i] = decode(strings, keys[i]);
+        }
+        return TripIndex.of(keyDictionary, keyValues, offsets, tripIndexes);
+    }
+
+    private static String decode(String[] strings, int code) {
+        return code == NULL_CODE ? null : strings[code];
+    }
+
+    /**
+     * Assigns a code to every distinct string, in order of first occurrence.
+     */
+    private static class StringTable {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        int encode(String value) {
+            if (value == null) {
+                return NULL_CODE;
+            }
+            return codes.computeIfAbsent(value, key -> {
+                values.add(key);
+                return values.size() - 1;
+            });
+        }
+    }
+
+    /**
+     * Writes sections sequentially through a buffer, keeping track of where each section starts and ends.
+     */
+    private static class SectionWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private final long[][] sections = new long[Section.values().length][2];
+        private long position = HEADER_SIZE;
+        private Section current;
+
+        SectionWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void begin(Section section) throws IOException {
+            end();
+            this.current = section;
+            this.sections[section.ordinal()][0] = this.position;
+        }
+
+        void writeInts(Section section, int[] values) throws IOException {
+            begin(section);
+            for (int value : values) {
+                putInt(value);
+            }
+        }
+
+        void putInt(int value) throws IOException {
+            ensureCapacity(Integer.BYTES);
+            this.buffer.putInt(value);
+            this.position += Integer.BYTES;
+        }
+
+        void putLong(long value) throws IOException {
+            ensureCapacity(Long.BYTES);
+            this.buffer.putLong(value);
+            this.position += Long.BYTES;
+        }
+
+        void putDouble(double value) throws IOException {
+            ensureCapacity(Double.BYTES);
+            this.buffer.putDouble(value);
+            this.position += Double.BYTES;
+        }
+
+        void put(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                ensureCapacity(1);
+                int count = Math.min(this.buffer.remaining(), bytes.length - offset);
+                this.buffer.put(bytes, offset, count);
+                offset += count;
+            }
+            this.position += bytes.length;
+        }
+
+        /**
+         * Ends the last section and writes the table of section offsets and lengths.
+         *
+         * @return The position of the section table.
+         */
+        long writeSectionTable() throws IOException {
+            end();
+            long tableOffset = this.position;
+            for (long[] section : this.sections) {
+                putLong(section[0]);
+                putLong(section[1]);
+            }
+            flush();
+            return tableOffset;
+        }
+
+        private void end() {
+            if (this.current != null) {
+                long[] section = this.sections[this.current.ordinal()];
+                section[1] = this.position - section[0];
+                this.current = null;
+            }
+        }
+
+        private void ensureCapacity(int bytes) throws IOException {
+            if (this.buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            this.buffer.flip();
+            long writePosition = this.position - this.buffer.remaining();
+            while (this.buffer.hasRemaining()) {
+                writePosition += this.channel.write(this.buffer, writePosition);
+            }
+            this.buffer.clear();
+        }
+    }
+
+    /**
+     * Memory-maps and bulk decodes individual sections.
+     */
+    private static class SectionReader {
+        private final FileChannel channel;
+        private final long[][] sections;
+
+        SectionReader(FileChannel channel, long[][] sections) {
+            this.channel = channel;
+            this.sections = sections;
+        }
+
+        ByteBuffer map(Section section) throws IOException {
+            long[] location = this.sections[section.ordinal()];
+            if (location[1] > Integer.MAX_VALUE) {
+                throw new IOException("Section " + section + " is too large to be mapped");
+            }
+            MappedByteBuffer buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, location[0], location[1]);
+            return buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        int[] readInts(Section section) throws IOException {
+            ByteBuffer buffer = map(section);
+            int[] values = new int[buffer.remaining() / Integer.BYTES];
+            buffer.asIntBuffer().get(values);
+            return values;
+        }
+
+        long[] readLongs(Section section) throws IOException {
+            ByteBuffer buffer = map(section);
+            long[] values = new long[buffer.remaining() / Long.BYTES];
+            buffer.asLongBuffer().get(values);
+            return values;
+        }
+
+        double[] readDoubles(Section section) throws IOException {
+            ByteBuffer buffer = map(section);
+            double[] values = new double[buffer.remaining() / Double.BYTES];
+            buffer.asDoubleBuffer().get(values);
+            return values;
+        }
+    }
+}
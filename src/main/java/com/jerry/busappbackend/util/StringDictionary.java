@@ -0,0 +1,104 @@
+package com.jerry.busappbackend.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps strings to dense int codes, in order of first occurrence, so that columns with few distinct values
+ * can be stored as codes instead of separate string instances.
+ * <p>
+ * Encoding is thread safe. Decoding never locks, and codes are never reassigned, so a code
+ * stays valid for the lifetime of the dictionary.
+ */
+public class StringDictionary {
+    // The string and its bytes, the map entry and boxed code, and the slots of the table and the values array
+    private static final long VALUE_OVERHEAD_BYTES = 96;
+
+    private final String name;
+    private final int maxSize;
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[16];
+    private int size = 0;
+    private long valueBytes = 0;
+
+    /**
+     * @param name Name of the dictionary, used in error messages.
+     * @param maxSize Maximum number of distinct values.
+     */
+    public StringDictionary(String name, int maxSize) {
+        this.name = name;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the code of a value, assigning the next code if the value has not been seen before.
+     *
+     * @param value The value to encode, must not be null.
+     * @return The code of the value.
+     * @throws IllegalStateException If the dictionary is full.
+     */
+    public int encode(String value) {
+        Integer code = this.codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        return add(value);
+    }
+
+    private synchronized int add(String value) {
+        Integer code = this.codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        if (this.size == this.maxSize) {
+            throw new IllegalStateException("Dictionary " + this.name + " is full, it holds at most " + this.maxSize + " values");
+        }
+
+        String[] current = this.values;
+        if (this.size == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[this.size] = value;
+        // Publish the array before the code, so a code is never seen before its value
+        this.values = current;
+        this.codes.put(value, this.size);
+        this.valueBytes += VALUE_OVERHEAD_BYTES + value.length();
+        return this.size++;
+    }
+
+    /**
+     * Returns the code of a value without adding it to the dictionary, so that looking up values that
+     * are not in the data, e.g. from a request, does not grow the dictionary.
+     *
+     * @param value The value to look up.
+     * @return The code of the value, or -1 if the value is not in the dictionary.
+     */
+    public int lookup(String value) {
+        Integer code = value == null ? null : this.codes.get(value);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * @param code A code returned by {@link #encode(String)}.
+     * @return The value of the code.
+     */
+    public String decode(int code) {
+        return this.values[code];
+    }
+
+    /**
+     * @return The number of distinct values.
+     */
+    public int size() {
+        return this.codes.size();
+    }
+
+    /**
+     * Estimates the heap retained by the values and their codes, assuming values of single byte characters.
+     *
+     * @return The estimated size in bytes.
+     */
+    public synchronized long estimateRetainedBytes() {
+        return this.valueBytes;
+    }
+}
@@ -0,0 +1,313 @@
+package com.jerry.busappbackend.util;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import com.jerry.busappbackend.entity.BusRecordEntity;
+
+/**
+ * Immutable index of the trips of each value of a column, e.g. of each published line name, in compressed
+ * sparse row form:<br></br>
+ * - keys: The distinct values, sorted<br></br>
+ * - codes: The dictionary code of each key<br></br>
+ * - offsets: The trips of the i-th key are at tripIds[offsets[i]] up to tripIds[offsets[i + 1]]<br></br>
+ * - tripIds: The indexes of the trips, in ascending order for each key<br></br>
+ * <br></br>
+ * Lookups binary search the keys and return views of the trips, without boxing or copying. The sorted keys
+ * also serve the lists of all values. An index is built with a {@link Builder}, and grown by building a new
+ * index from it, see {@link #toBuilder()}.
+ */
+public final class TripIndex {
+    // Object header and fields, the header of each array and the view of the keys
+    private static final long OBJECT_OVERHEAD_BYTES = 40;
+    private static final long ARRAY_OVERHEAD_BYTES = 16;
+    private static final long KEY_LIST_BYTES = 32;
+    private static final long REFERENCE_BYTES = 4;
+
+    private static final Comparator<String> KEY_ORDER = Comparator.nullsFirst(Comparator.naturalOrder());
+
+    private final StringDictionary dictionary;
+    private final String[] keys;
+    private final int[] codes;
+    private final int[] offsets;
+    private final int[] tripIds;
+    private final List<String> keyList;
+
+    private TripIndex(StringDictionary dictionary, String[] keys, int[] codes, int[] offsets, int[] tripIds) {
+        this.dictionary = dictionary;
+        this.keys = keys;
+        this.codes = codes;
+        this.offsets = offsets;
+        this.tripIds = tripIds;
+        this.keyList = Collections.unmodifiableList(Arrays.asList(keys));
+    }
+
+    /**
+     * @param dictionary The dictionary of the column's values.
+     * @return A builder of a new index.
+     */
+    public static Builder builder(StringDictionary dictionary) {
+        return new Builder(new TripIndex(dictionary, new String[0], new int[0], new int[1], new int[0]));
+    }
+
+    /**
+     * Creates an index from its rows, e.g. as read from a snapshot. The arrays are used as is.
+     *
+     * @param keys The distinct values, sorted.
+     * @param offsets The start of the trips of each key, followed by the number of trips.
+     * @param tripIds The indexes of the trips of each key.
+     * @throws IllegalArgumentException If the keys are not sorted, or the offsets do not match the trips.
+     */
+    public static TripIndex of(StringDictionary dictionary, String[] keys, int[] offsets, int[] tripIds) {
+        if (offsets.length != keys.length + 1 || offsets[0] != 0 || offsets[keys.length] != tripIds.length) {
+            throw new IllegalArgumentException("Offsets of " + keys.length + " keys do not match " + tripIds.length + " trips");
+        }
+        int[] codes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            if (i > 0 && KEY_ORDER.compare(keys[i - 1], keys[i]) >= 0) {
+                throw new IllegalArgumentException("Keys are not sorted: " + keys[i - 1] + ", " + keys[i]);
+            }
+            if (offsets[i] > offsets[i + 1]) {
+                throw new IllegalArgumentException("Offsets of key " + keys[i] + " are decreasing");
+            }
+            codes[i] = keys[i] == null ? BusRecordEntity.NULL_CODE : dictionary.encode(keys[i]);
+        }
+        return new TripIndex(dictionary, keys, codes, offsets, tripIds);
+    }
+
+    /**
+     * @return A builder of a new index with the trips of this index, and the trips added to the builder.
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * @return The number of keys.
+     */
+    public int size() {
+        return this.keys.length;
+    }
+
+    /**
+     * @return All keys, sorted, as an unmodifiable list.
+     */
+    public List<String> getKeys() {
+        return this.keyList;
+    }
+
+    public String getKey(int position) {
+        return this.keys[position];
+    }
+
+    /**
+     * @return The dictionary code of a key.
+     */
+    public int getCode(int position) {
+        return this.codes[position];
+    }
+
+    /**
+     * @return The position of a key, or -1 if the index does not contain it.
+     */
+    public int find(String key) {
+        int position = Arrays.binarySearch(this.keys, key, KEY_ORDER);
+        return position < 0 ? -1 : position;
+    }
+
+    /**
+     * @return A copy of the indexes of the trips of a key, in ascending order.
+     */
+    public int[] copyTripIds(int position) {
+        return Arrays.copyOfRange(this.tripIds, this.offsets[position], this.offsets[position + 1]);
+    }
+
+    /**
+     * Looks up the trips of a key.
+     *
+     * @param trips The trips the index refers to.
+     * @return An unmodifiable view of the trips of the key, in the order of their indexes, empty if the index
+     * does not contain the key.
+     */
+    public <T> List<T> getTrips(String key, List<T> trips) {
+        int position = find(key);
+        if (position < 0) {
+            return Collections.emptyList();
+        }
+        return new TripView<>(trips, this.tripIds, this.offsets[position], this.offsets[position + 1]);
+    }
+
+    /**
+     * @return The start of the trips of each key, followed by the number of trips, which must not be modified.
+     */
+    public int[] getOffsets() {
+        return this.offsets;
+    }
+
+    /**
+     * @return The indexes of the trips of all keys, which must not be modified.
+     */
+    public int[] getTripIds() {
+        return this.tripIds;
+    }
+
+    /**
+     * Estimates the heap retained by the index, excluding the key strings, which are shared with the dictionary.
+     *
+     * @return The estimated size in bytes.
+     */
+    public long estimateRetainedBytes() {
+        return OBJECT_OVERHEAD_BYTES + KEY_LIST_BYTES + 4 * ARRAY_OVERHEAD_BYTES
+            + (long) this.keys.length * (REFERENCE_BYTES + Integer.BYTES)
+            + (long) this.offsets.length * Integer.BYTES
+            + (long) this.tripIds.length * Integer.BYTES;
+    }
+
+    /**
+     * Collects trips to add to an index. Trips of a key are kept in the order they are added, after the trips
+     * of the key already in the index, so trips must be added in ascending order of their index.
+     */
+    public static final class Builder {
+        private final TripIndex base;
+        private int[] codes = new int[64];
+        private int[] tripIds = new int[64];
+        private int size;
+
+        private Builder(TripIndex base) {
+            this.base = base;
+        }
+
+        /**
+         * @param code The dictionary code of the trip's value.
+         * @param tripId The index of the trip.
+         */
+        public Builder add(int code, int tripId) {
+            if (this.size == this.codes.length) {
+                this.codes = Arrays.copyOf(this.codes, this.size * 2);
+                this.tripIds = Arrays.copyOf(this.tripIds, this.size * 2);
+            }
+            this.codes[this.size] = code;
+            this.tripIds[this.size] = tripId;
+            this.size++;
+            return this;
+        }
+
+        public TripIndex build() {
+            if (this.size == 0) {
+                return this.base;
+            }
+
+            // Keys of the codes added, and whether the index already contains them
+            Map<Integer, Integer> basePositions = new HashMap<>();
+            int numNewKeys = 0;
+            for (int i = 0; i < this.size; i++) {
+                if (!basePositions.containsKey(this.codes[i])) {
+                    int position = this.base.find(decode(this.codes[i]));
+                    basePositions.put(this.codes[i], position);
+                    if (position < 0) {
+                        numNewKeys++;
+                    }
+                }
+            }
+
+            // Keys of the new index, with the keys of the index first, then sorted
+            int numKeys = this.base.keys.length + numNewKeys;
+            String[] unsortedKeys = Arrays.copyOf(this.base.keys, numKeys);
+            int[] unsortedCodes = Arrays.copyOf(this.base.codes, numKeys);
+            int next = this.base.keys.length;
+            for (Map.Entry<Integer, Integer> entry : basePositions.entrySet()) {
+                if (entry.getValue() < 0) {
+                    unsortedKeys[next] = decode(entry.getKey());
+                    unsortedCodes[next] = entry.getKey();
+                    next++;
+                }
+            }
+            Integer[] order = new Integer[numKeys];
+            for (int i = 0; i < numKeys; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> KEY_ORDER.compare(unsortedKeys[a], unsortedKeys[b]));
+
+            String[] keys = new String[numKeys];
+            int[] codes = new int[numKeys];
+            Map<Integer, Integer> positions = new HashMap<>();
+            int[] counts = new int[numKeys];
+            for (int position = 0; position < numKeys; position++) {
+                int source = order[position];
+                keys[position] = unsortedKeys[source];
+                codes[position] = unsortedCodes[source];
+                if (source < this.base.keys.length) {
+                    counts[position] = this.base.offsets[source + 1] - this.base.offsets[source];
+                }
+                if (basePositions.containsKey(codes[position])) {
+                    positions.put(codes[position], position);
+                }
+            }
+            for (int i = 0; i < this.size; i++) {
+                counts[positions.get(this.codes[i])]++;
+            }
+
+            int[] offsets = new int[numKeys + 1];
+            for (int position = 0; position < numKeys; position++) {
+                offsets[position + 1] = offsets[position] + counts[position];
+            }
+            int[] tripIds = new int[offsets[numKeys]];
+            // The next free slot of each key, after the trips already in the index
+            int[] ends = new int[numKeys];
+            for (int position = 0; position < numKeys; position++) {
+                int source = order[position];
+                ends[position] = offsets[position];
+                if (source < this.base.keys.length) {
+                    int from = this.base.offsets[source];
+                    int length = this.base.offsets[source + 1] - from;
+                    System.arraycopy(this.base.tripIds, from, tripIds, ends[position], length);
+                    ends[position] += length;
+                }
+            }
+            for (int i = 0; i < this.size; i++) {
+                tripIds[ends[positions.get(this.codes[i])]++] = this.tripIds[i];
+            }
+            return new TripIndex(this.base.dictionary, keys, codes, offsets, tripIds);
+        }
+
+        private String decode(int code) {
+            return code == BusRecordEntity.NULL_CODE ? null : this.base.dictionary.decode(code);
+        }
+    }
+
+    /**
+     * Unmodifiable view of the trips of a key.
+     */
+    private static final class TripView<T> extends AbstractList<T> implements RandomAccess {
+        private final List<T> trips;
+        private final int[] tripIds;
+        private final int from;
+        private final int to;
+
+        TripView(List<T> trips, int[] tripIds, int from, int to) {
+            this.trips = trips;
+            this.tripIds = tripIds;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public T get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size());
+            }
+            return this.trips.get(this.tripIds[this.from + index]);
+        }
+
+        @Override
+        public int size() {
+            return this.to - this.from;
+        }
+    }
+}
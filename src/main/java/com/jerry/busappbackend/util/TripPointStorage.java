@@ -0,0 +1,94 @@
+package com.jerry.busappbackend.util;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.jerry.busappbackend.model.BusTrip;
+import com.jerry.busappbackend.model.CompressedTripPoints;
+import com.jerry.busappbackend.model.OffHeapPointArena;
+
+/**
+ * Moves the points of trips into the configured storage before they are served. Trips are created with their
+ * points on the heap, and trips created by slicing or extending a trip keep them there until they are stored.
+ * <p>
+ * Storage modes:<br></br>
+ * - {@code heap}: Primitive arrays on the heap<br></br>
+ * - {@code off-heap}: Direct byte buffers outside the heap, see {@link OffHeapPointArena}. Points are no longer
+ * copied by the garbage collector or counted in the heap size, at the cost of a bounds check and a native read
+ * per value<br></br>
+ * - {@code compressed}: Delta and varint encoded byte arrays on the heap, see {@link CompressedTripPoints}. Points
+ * take about a quarter of the heap, coordinates are rounded to 1e-6 degrees, and reading them takes more CPU<br></br>
+ * <br></br>
+ * Configuration:<br></br>
+ * - {@code app.data.points.storage}: The storage mode<br></br>
+ * - {@code app.data.points.off-heap-chunk-bytes}: The size of the direct buffers trips are packed into<br></br>
+ */
+@Component
+public class TripPointStorage {
+    private static final Logger logger = LogManager.getLogger(TripPointStorage.class);
+
+    /**
+     * Storage modes of the points of trips.
+     */
+    public enum Mode {
+        HEAP,
+        OFF_HEAP,
+        COMPRESSED
+    }
+
+    private final Mode mode;
+    // Shared by all generations, chunks are released with the trips in them
+    private final OffHeapPointArena arena;
+
+    @Autowired
+    Timer timer;
+
+    public TripPointStorage(
+        @Value("${app.data.points.storage:heap}") String modeName,
+        @Value("${app.data.points.off-heap-chunk-bytes:67108864}") int offHeapChunkBytes
+    ) {
+        try {
+            this.mode = Mode.valueOf(modeName.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown point storage: " + modeName);
+        }
+        this.arena = this.mode == Mode.OFF_HEAP ? new OffHeapPointArena(offHeapChunkBytes) : null;
+    }
+
+    /**
+     * Moves the points of trips that are not served yet into the configured storage.
+     *
+     * @param trips The trips to store.
+     */
+    public void store(List<BusTrip> trips) {
+        if (this.mode == Mode.HEAP) {
+            return;
+        }
+        int timerID = timer.startTimer();
+        if (this.mode == Mode.COMPRESSED) {
+            trips.parallelStream().forEach(CompressedTripPoints::store);
+        } else {
+            for (BusTrip trip : trips) {
+                this.arena.store(trip);
+            }
+        }
+        logger.info("Stored the points of " + trips.size() + " trips " + this.mode + " in " + timer.getPrettyTime(timerID));
+    }
+
+    public Mode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * @return The bytes of direct buffers allocated for points since start up, including buffers released since.
+     */
+    public long getAllocatedOffHeapBytes() {
+        return this.arena == null ? 0 : this.arena.getAllocatedBytes();
+    }
+}
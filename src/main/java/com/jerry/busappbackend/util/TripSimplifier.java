@@ -0,0 +1,221 @@
+package com.jerry.busappbackend.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.jerry.busappbackend.model.BusTrip;
+import com.jerry.busappbackend.model.PointCursor;
+
+/**
+ * Precomputes simplified versions of every trip's path, one per configured zoom level, so that requests for
+ * a zoomed out map do not send more points than can be seen, and do no simplification work themselves.
+ * <p>
+ * Paths are simplified with Douglas-Peucker, using the size of a pixel at each zoom level as the tolerance.
+ * Simplified versions are stored as the indexes of the points that are kept, so kept points keep their
+ * properties. The first and last points are always kept.<br></br>
+ * <br></br>
+ * The zoom levels are configured with {@code app.geojson.simplification.zooms}. A request for a zoom level is
+ * served with the simplification of the closest configured zoom level at or above it, and requests beyond the
+ * highest configured zoom level are served in full detail.
+ */
+@Component
+public class TripSimplifier {
+    private static final Logger logger = LogManager.getLogger(TripSimplifier.class);
+
+    /** Level of a trip's unsimplified path */
+    public static final int FULL_DETAIL = -1;
+
+    private static final int TILE_SIZE = 256;
+
+    private final int[] zooms;
+    private final double[] tolerances;
+
+    @Autowired
+    Timer timer;
+
+    /**
+     * @param zooms The zoom levels to precompute simplifications for.
+     */
+    public TripSimplifier(@Value("${app.geojson.simplification.zooms:10,12,14}") int[] zooms) {
+        this.zooms = Arrays.stream(zooms).sorted().distinct().toArray();
+        this.tolerances = new double[this.zooms.length];
+        for (int i = 0; i < this.zooms.length; i++) {
+            this.tolerances[i] = pixelSize(this.zooms[i]);
+        }
+    }
+
+    /**
+     * Computes and stores the simplified paths of all trips, in parallel.
+     *
+     * @param trips The trips to simplify.
+     */
+    public void simplify(List<BusTrip> trips) {
+        if (this.zooms.length == 0) {
+            return;
+        }
+        int timerID = timer.startTimer();
+        trips.parallelStream().forEach(trip -> {
+            // Points are decoded once per trip, as Douglas-Peucker reads them many times and out of order
+            int numPoints = trip.getNumPoints();
+            double[] xs = new double[numPoints];
+            double[] ys = new double[numPoints];
+            PointCursor cursor = trip.cursor();
+            for (int i = 0; i < numPoints; i++) {
+                cursor.moveTo(i);
+                xs[i] = cursor.getLongitude();
+                ys[i] = cursor.getLatitude();
+            }
+            scaleLatitudes(ys);
+
+            int[][] levels = new int[this.zooms.length][];
+            for (int level = 0; level < this.zooms.length; level++) {
+                int[] keptPoints = simplify(xs, ys, this.tolerances[level]);
+                // Paths that cannot be simplified refer to the full path instead of a copy of it
+                levels[level] = keptPoints.length == trip.getNumPoints() ? null : keptPoints;
+            }
+            trip.setSimplifiedPoints(levels);
+        });
+        logger.info("Simplified " + trips.size() + " trips for zoom levels " + Arrays.toString(this.zooms) + " in " + timer.getPrettyTime(timerID));
+    }
+
+    /**
+     * Finds the level to serve a request with.
+     *
+     * @param zoom The zoom level of the map, or null.
+     * @param tolerance The maximum error, in degrees of longitude, or null. Used if no zoom level is given.
+     * @return The most simplified level that is still accurate enough, or {@link #FULL_DETAIL}.
+     */
+    public int getLevel(Integer zoom, Double tolerance) {
+        if (zoom != null) {
+            for (int level = 0; level < this.zooms.length; level++) {
+                if (this.zooms[level] >= zoom) {
+                    return level;
+                }
+            }
+        } else if (tolerance != null) {
+            for (int level = 0; level < this.tolerances.length; level++) {
+                if (this.tolerances[level] <= tolerance) {
+                    return level;
+                }
+            }
+        }
+        return FULL_DETAIL;
+    }
+
+    /**
+     * @return The zoom level a level was simplified for, or -1 for {@link #FULL_DETAIL}.
+     */
+    public int getZoom(int level) {
+        return level == FULL_DETAIL ? -1 : this.zooms[level];
+    }
+
+    // ================== UTILS ==================
+
+    /**
+     * The width of a pixel in degrees of longitude at a Web Mercator zoom level.
+     */
+    private static double pixelSize(int zoom) {
+        return 360.0 / (TILE_SIZE * Math.pow(2, zoom));
+    }
+
+    /**
+     * Scales latitudes in place by the inverse cosine of the trip's latitude, so distances are measured in
+     * degrees of longitude as they would be on a Web Mercator map.
+     */
+    private static void scaleLatitudes(double[] latitudes) {
+        double latitudeScale = 1 / Math.cos(Math.toRadians(latitudes[0]));
+        for (int i = 0; i < latitudes.length; i++) {
+            latitudes[i] *= latitudeScale;
+        }
+    }
+
+    /**
+     * Simplifies a trip's path with Douglas-Peucker.
+     *
+     * @param xs The longitudes of the trip's points.
+     * @param ys The latitudes of the trip's points, see {@link #scaleLatitudes(double[])}.
+     * @return The indexes of the kept points, in order.
+     */
+    private static int[] simplify(double[] xs, double[] ys, double tolerance) {
+        int numPoints = xs.length;
+        if (numPoints <= 2) {
+            return identity(numPoints);
+        }
+
+        boolean[] isKept = new boolean[numPoints];
+        isKept[0] = true;
+        isKept[numPoints - 1] = true;
+
+        // Ranges still to be simplified, as pairs of first and last point
+        int[] stack = new int[2 * numPoints];
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        stack[stackSize++] = numPoints - 1;
+        while (stackSize > 0) {
+            int last = stack[--stackSize];
+            int first = stack[--stackSize];
+
+            double x1 = xs[first];
+            double y1 = ys[first];
+            double x2 = xs[last];
+            double y2 = ys[last];
+
+            double maxDistance = -1;
+            int farthest = -1;
+            for (int i = first + 1; i < last; i++) {
+                double distance = segmentDistance(xs[i], ys[i], x1, y1, x2, y2);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = i;
+                }
+            }
+
+            if (maxDistance > tolerance) {
+                isKept[farthest] = true;
+                stack[stackSize++] = first;
+                stack[stackSize++] = farthest;
+                stack[stackSize++] = farthest;
+                stack[stackSize++] = last;
+            }
+        }
+
+        int numKept = 0;
+        for (boolean kept : isKept) {
+            if (kept) {
+                numKept++;
+            }
+        }
+        int[] keptPoints = new int[numKept];
+        for (int i = 0, j = 0; i < numPoints; i++) {
+            if (isKept[i]) {
+                keptPoints[j++] = i;
+            }
+        }
+        return keptPoints;
+    }
+
+    /**
+     * Distance from (x, y) to the segment (x1, y1) to (x2, y2).
+     */
+    private static double segmentDistance(double x, double y, double x1, double y1, double x2, double y2) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, ((x - x1) * dx + (y - y1) * dy) / lengthSquared));
+        return Math.hypot(x - (x1 + t * dx), y - (y1 + t * dy));
+    }
+
+    private static int[] identity(int size) {
+        int[] result = new int[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = i;
+        }
+        return result;
+    }
+}
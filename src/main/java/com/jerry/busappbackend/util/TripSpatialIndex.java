@@ -0,0 +1,204 @@
+package com.jerry.busappbackend.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import com.jerry.busappbackend.model.BusTrip;
+import com.jerry.busappbackend.model.PointCursor;
+
+/**
+ * Immutable spatial index over the paths of a list of trips, answering which trips, or which parts of them,
+ * pass through a bounding box.
+ * <p>
+ * Each trip's path is cut into runs of consecutive points, and the bounding envelope of every run is inserted
+ * into a JTS {@link STRtree}. Consecutive runs share their boundary point, so every segment of a path lies
+ * within the envelope of some run. A query looks up the runs whose envelopes intersect the box, then tests
+ * the segments of each candidate trip against the box exactly.
+ * <p>
+ * Coordinates are longitude (x) and latitude (y).
+ */
+public class TripSpatialIndex {
+    // Larger runs mean fewer entries in the tree but looser envelopes
+    private static final int POINTS_PER_RUN = 16;
+
+    /**
+     * A range of consecutive points of a trip.
+     *
+     * @param trip The index of the trip.
+     * @param fromPoint The first point of the range.
+     * @param toPoint The last point of the range, inclusive.
+     */
+    public record Fragment(int trip, int fromPoint, int toPoint) {}
+
+    private final List<BusTrip> trips;
+    private final STRtree tree = new STRtree();
+
+    /**
+     * @param trips The trips to index, referred to by their index within this list.
+     */
+    public TripSpatialIndex(List<BusTrip> trips) {
+        this.trips = trips;
+        for (int i = 0; i < trips.size(); i++) {
+            BusTrip trip = trips.get(i);
+            PointCursor cursor = trip.cursor();
+            int lastPoint = trip.getNumPoints() - 1;
+            int runStart = 0;
+            do {
+                int runEnd = Math.min(runStart + POINTS_PER_RUN, lastPoint);
+                Envelope envelope = new Envelope();
+                for (int point = runStart; point <= runEnd; point++) {
+                    cursor.moveTo(point);
+                    envelope.expandToInclude(cursor.getLongitude(), cursor.getLatitude());
+                }
+                this.tree.insert(envelope, new Fragment(i, runStart, runEnd));
+                runStart = runEnd;
+            } while (runStart < lastPoint);
+        }
+        this.tree.build();
+    }
+
+    /**
+     * Finds the trips whose path passes through a bounding box.
+     *
+     * @return The indexes of the matching trips, in ascending order.
+     */
+    public List<Integer> findIntersecting(double minLongitude, double minLatitude, double maxLongitude, double maxLatitude) {
+        BitSet candidates = findCandidates(minLongitude, minLatitude, maxLongitude, maxLatitude);
+
+        List<Integer> result = new ArrayList<>();
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (pathIntersects(this.trips.get(i), minLongitude, minLatitude, maxLongitude, maxLatitude)) {
+                result.add(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the parts of trip paths that pass through a bounding box. A fragment is a maximal range of points
+     * whose segments all intersect the box, so it includes the points just outside of the box that its first
+     * and last segments come from and go to.
+     *
+     * @return The matching fragments, ordered by trip index and then by point.
+     */
+    public List<Fragment> findIntersectingFragments(double minLongitude, double minLatitude, double maxLongitude, double maxLatitude) {
+        BitSet candidates = findCandidates(minLongitude, minLatitude, maxLongitude, maxLatitude);
+
+        List<Fragment> result = new ArrayList<>();
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            addFragments(i, this.trips.get(i), minLongitude, minLatitude, maxLongitude, maxLatitude, result);
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether a single trip's path passes through a bounding box, without using an index, e.g. for
+     * trips added after the index was built.
+     */
+    public static boolean pathIntersects(BusTrip trip, double minLongitude, double minLatitude, double maxLongitude, double maxLatitude) {
+        PointCursor from = trip.cursor();
+        PointCursor to = trip.cursor();
+        for (int point = 0; point < trip.getNumPoints(); point++) {
+            if (intersects(from, to, point, trip.getNumPoints(), minLongitude, minLatitude, maxLongitude, maxLatitude)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the fragments of a single trip's path that pass through a bounding box, see
+     * {@link #findIntersectingFragments(double, double, double, double)}, without using an index.
+     *
+     * @param tripIndex The index the fragments refer to.
+     */
+    public static void addFragments(
+        int tripIndex,
+        BusTrip trip,
+        double minLongitude,
+        double minLatitude,
+        double maxLongitude,
+        double maxLatitude,
+        List<Fragment> result
+    ) {
+        PointCursor from = trip.cursor();
+        PointCursor to = trip.cursor();
+        int fragmentStart = -1;
+        for (int point = 0; point < trip.getNumPoints(); point++) {
+            boolean isInside = intersects(from, to, point, trip.getNumPoints(), minLongitude, minLatitude, maxLongitude, maxLatitude);
+            if (isInside && fragmentStart < 0) {
+                fragmentStart = point;
+            } else if (!isInside && fragmentStart >= 0) {
+                result.add(new Fragment(tripIndex, fragmentStart, point));
+                fragmentStart = -1;
+            }
+        }
+        if (fragmentStart >= 0) {
+            result.add(new Fragment(tripIndex, fragmentStart, trip.getNumPoints() - 1));
+        }
+    }
+
+    // ================== UTILS ==================
+
+    private BitSet findCandidates(double minLongitude, double minLatitude, double maxLongitude, double maxLatitude) {
+        BitSet candidates = new BitSet(this.trips.size());
+        Envelope box = new Envelope(minLongitude, maxLongitude, minLatitude, maxLatitude);
+        this.tree.query(box, item -> candidates.set(((Fragment) item).trip()));
+        return candidates;
+    }
+
+    /**
+     * Checks whether the segment from a point to the next intersects the box. For the last point of a trip,
+     * checks whether the point itself lies within the box.
+     *
+     * @param from A cursor of the trip, moved to the point.
+     * @param to Another cursor of the trip, moved to the next point. Each cursor only moves forward when the
+     * points are checked in order.
+     */
+    private static boolean intersects(PointCursor from, PointCursor to, int point, int numPoints, double minX, double minY, double maxX, double maxY) {
+        from.moveTo(point);
+        double x1 = from.getLongitude();
+        double y1 = from.getLatitude();
+        if (point == numPoints - 1) {
+            return x1 >= minX && x1 <= maxX && y1 >= minY && y1 <= maxY;
+        }
+        to.moveTo(point + 1);
+        return segmentIntersects(x1, y1, to.getLongitude(), to.getLatitude(), minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Liang-Barsky test of whether the segment (x1, y1) to (x2, y2) intersects the box.
+     */
+    static boolean segmentIntersects(double x1, double y1, double x2, double y2, double minX, double minY, double maxX, double maxY) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double[] p = { -dx, dx, -dy, dy };
+        double[] q = { x1 - minX, maxX - x1, y1 - minY, maxY - y1 };
+
+        double enter = 0;
+        double exit = 1;
+        for (int i = 0; i < 4; i++) {
+            if (p[i] == 0) {
+                // Parallel to this edge, and outside of it
+                if (q[i] < 0) {
+                    return false;
+                }
+            } else {
+                double t = q[i] / p[i];
+                if (p[i] < 0) {
+                    enter = Math.max(enter, t);
+                } else {
+                    exit = Math.min(exit, t);
+                }
+                if (enter > exit) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
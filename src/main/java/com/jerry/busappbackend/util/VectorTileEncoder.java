@@ -0,0 +1,227 @@
+package com.jerry.busappbackend.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encodes a single layer of line features as a Mapbox Vector Tile (version 2.1 of the specification), which is
+ * a protocol buffer message. The encoding is written by hand, as only a few fields of the format are needed.
+ * <p>
+ * Geometries are given in tile coordinates, i.e. integers from 0 to the extent of the tile, and may extend into
+ * the buffer around the tile. Attribute keys and values are shared between features, as the format requires.
+ * <p>
+ * An encoder builds one tile and is not thread safe.
+ */
+public class VectorTileEncoder {
+    private static final int LAYER_VERSION = 2;
+
+    // Field numbers of the vector tile protocol buffer schema
+    private static final int TILE_LAYERS = 3;
+    private static final int LAYER_VERSION_FIELD = 15;
+    private static final int LAYER_NAME = 1;
+    private static final int LAYER_FEATURES = 2;
+    private static final int LAYER_KEYS = 3;
+    private static final int LAYER_VALUES = 4;
+    private static final int LAYER_EXTENT = 5;
+    private static final int FEATURE_TAGS = 2;
+    private static final int FEATURE_TYPE = 3;
+    private static final int FEATURE_GEOMETRY = 4;
+    private static final int VALUE_STRING = 1;
+    private static final int VALUE_INT = 4;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+
+    private static final int GEOM_TYPE_LINESTRING = 2;
+    private static final int COMMAND_MOVE_TO = 1;
+    private static final int COMMAND_LINE_TO = 2;
+
+    private final String layerName;
+    private final int extent;
+
+    private final Map<String, Integer> keys = new LinkedHashMap<>();
+    private final Map<Object, Integer> values = new LinkedHashMap<>();
+    private final ByteArrayOutputStream features = new ByteArrayOutputStream();
+    private int numFeatures = 0;
+
+    // Reused between features
+    private final ProtoWriter tags = new ProtoWriter();
+    private final ProtoWriter geometry = new ProtoWriter();
+    private final ProtoWriter feature = new ProtoWriter();
+
+    /**
+     * @param layerName The name of the layer.
+     * @param extent The size of the tile in tile coordinates, usually 4096.
+     */
+    public VectorTileEncoder(String layerName, int extent) {
+        this.layerName = layerName;
+        this.extent = extent;
+    }
+
+    /**
+     * Adds a line feature made up of one or more parts.
+     *
+     * @param parts The parts of the line, each as x and y tile coordinates interleaved, with at least two points.
+     * @param numParts The number of parts to use from {@code parts}.
+     * @param partLengths The number of coordinates, i.e. twice the number of points, of each part.
+     * @param attributes The attributes of the feature, with String, Integer or Long values.
+     */
+    public void addLineFeature(int[][] parts, int numParts, int[] partLengths, Map<String, Object> attributes) {
+        if (numParts == 0) {
+            return;
+        }
+
+        this.tags.reset();
+        for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            if (attribute.getValue() == null) {
+                continue;
+            }
+            this.tags.writeVarint(this.keys.computeIfAbsent(attribute.getKey(), key -> this.keys.size()));
+            this.tags.writeVarint(this.values.computeIfAbsent(normaliseValue(attribute.getValue()), value -> this.values.size()));
+        }
+
+        // Geometry commands move a cursor, so coordinates are encoded relative to the previous point
+        this.geometry.reset();
+        int cursorX = 0;
+        int cursorY = 0;
+        for (int part = 0; part < numParts; part++) {
+            int[] coordinates = parts[part];
+            int numPoints = partLengths[part] / 2;
+            this.geometry.writeVarint(command(COMMAND_MOVE_TO, 1));
+            this.geometry.writeVarint(zigZag(coordinates[0] - cursorX));
+            this.geometry.writeVarint(zigZag(coordinates[1] - cursorY));
+            this.geometry.writeVarint(command(COMMAND_LINE_TO, numPoints - 1));
+            for (int i = 1; i < numPoints; i++) {
+                this.geometry.writeVarint(zigZag(coordinates[2 * i] - coordinates[2 * i - 2]));
+                this.geometry.writeVarint(zigZag(coordinates[2 * i + 1] - coordinates[2 * i - 1]));
+            }
+            cursorX = coordinates[2 * numPoints - 2];
+            cursorY = coordinates[2 * numPoints - 1];
+        }
+
+        this.feature.reset();
+        this.feature.writeBytesField(FEATURE_TAGS, this.tags);
+        this.feature.writeVarintField(FEATURE_TYPE, GEOM_TYPE_LINESTRING);
+        this.feature.writeBytesField(FEATURE_GEOMETRY, this.geometry);
+
+        ProtoWriter.writeTag(this.features, LAYER_FEATURES, WIRE_LENGTH_DELIMITED);
+        ProtoWriter.writeVarint(this.features, this.feature.size());
+        this.feature.writeTo(this.features);
+        this.numFeatures++;
+    }
+
+    public int getNumFeatures() {
+        return this.numFeatures;
+    }
+
+    /**
+     * @return The encoded tile, empty if no features were added.
+     */
+    public byte[] encode() {
+        if (this.numFeatures == 0) {
+            return new byte[0];
+        }
+
+        ProtoWriter layer = new ProtoWriter();
+        layer.writeVarintField(LAYER_VERSION_FIELD, LAYER_VERSION);
+        layer.writeStringField(LAYER_NAME, this.layerName);
+        layer.buffer().writeBytes(this.features.toByteArray());
+        for (String key : this.keys.keySet()) {
+            layer.writeStringField(LAYER_KEYS, key);
+        }
+        ProtoWriter value = new ProtoWriter();
+        for (Object attributeValue : this.values.keySet()) {
+            value.reset();
+            if (attributeValue instanceof Long number) {
+                value.writeVarintField(VALUE_INT, number);
+            } else {
+                value.writeStringField(VALUE_STRING, (String) attributeValue);
+            }
+            layer.writeBytesField(LAYER_VALUES, value);
+        }
+        layer.writeVarintField(LAYER_EXTENT, this.extent);
+
+        ProtoWriter tile = new ProtoWriter();
+        tile.writeBytesField(TILE_LAYERS, layer);
+        return tile.buffer().toByteArray();
+    }
+
+    // ================== UTILS ==================
+
+    private static Object normaliseValue(Object value) {
+        if (value instanceof Integer number) {
+            return number.longValue();
+        }
+        if (value instanceof Long) {
+            return value;
+        }
+        return value.toString();
+    }
+
+    private static int command(int id, int count) {
+        return (id & 0x7) | (count << 3);
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * Minimal protocol buffer writer over a growable byte buffer.
+     */
+    private static class ProtoWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        ByteArrayOutputStream buffer() {
+            return this.out;
+        }
+
+        int size() {
+            return this.out.size();
+        }
+
+        void reset() {
+            this.out.reset();
+        }
+
+        void writeTo(ByteArrayOutputStream target) {
+            target.writeBytes(this.out.toByteArray());
+        }
+
+        void writeVarint(long value) {
+            writeVarint(this.out, value);
+        }
+
+        void writeVarintField(int field, long value) {
+            writeTag(this.out, field, WIRE_VARINT);
+            writeVarint(this.out, value);
+        }
+
+        void writeStringField(int field, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeTag(this.out, field, WIRE_LENGTH_DELIMITED);
+            writeVarint(this.out, bytes.length);
+            this.out.writeBytes(bytes);
+        }
+
+        void writeBytesField(int field, ProtoWriter message) {
+            writeTag(this.out, field, WIRE_LENGTH_DELIMITED);
+            writeVarint(this.out, message.size());
+            this.out.writeBytes(message.out.toByteArray());
+        }
+
+        static void writeTag(ByteArrayOutputStream out, int field, int wireType) {
+            writeVarint(out, (field << 3) | wireType);
+        }
+
+        static void writeVarint(ByteArrayOutputStream out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+}
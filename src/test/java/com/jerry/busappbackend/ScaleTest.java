@@ -0,0 +1,325 @@
+package com.jerry.busappbackend;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jerry.busappbackend.util.SyntheticDataGenerator;
+
+/**
+ * Scale test, which starts the application on synthetic data files of increasing size and records how long it
+ * takes to start, the peak heap and the latency of each endpoint, to find out where the design stops working.
+ * <p>
+ * Only runs when {@code scale.rows} is set, e.g.
+ * {@code ./mvnw test -Dtest=ScaleTest -Dscale.rows=100000,1000000,10000000,50000000}.<br></br>
+ * <br></br>
+ * Each size is served by a new JVM, so startup includes the JVM and Spring, and one size failing, e.g. running
+ * out of heap, does not affect the next. Data files are written by {@link SyntheticDataGenerator} and kept for
+ * later runs.<br></br>
+ * <br></br>
+ * Configuration (system properties):<br></br>
+ * - {@code scale.rows}: Comma separated numbers of rows<br></br>
+ * - {@code scale.heap}: Maximum heap of the application, defaults to 8g<br></br>
+ * - {@code scale.requests}: Requests per endpoint, defaults to 50<br></br>
+ * - {@code scale.startup-timeout-minutes}: Time allowed to start, defaults to 30<br></br>
+ * - {@code scale.dir}: Directory of the data files, application logs and report, defaults to target/scale<br></br>
+ * - {@code scale.app-args}: More arguments of the application, separated by spaces, e.g.
+ * {@code --app.data.points.storage=off-heap} to compare point storage modes<br></br>
+ * - {@code scale.report}: Name of the report, defaults to report, e.g. to keep the reports of several modes<br></br>
+ */
+@EnabledIfSystemProperty(named = "scale.rows", matches = ".+")
+class ScaleTest {
+    private static final String CONTEXT_PATH = "/api/v1/bus_trip";
+    private static final long SEED = 1;
+    private static final LocalDate START_DATE = LocalDate.of(2017, 6, 1);
+
+    /**
+     * Latencies of the requests to an endpoint, in milliseconds. The first request is kept apart, as it
+     * fills the response cache.
+     */
+    private record Latencies(double firstMs, double p50Ms, double p99Ms, double maxMs, int errors) {}
+
+    private record Result(
+        long rows,
+        String failure,
+        double startupSeconds,
+        long trips,
+        long peakHeapBytes,
+        long retainedTripBytes,
+        long offHeapPointBytes,
+        long gcCollections,
+        double gcSeconds,
+        Map<String, Latencies> latencies
+    ) {}
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+    private final Path dir = Paths.get(System.getProperty("scale.dir", "target/scale"));
+    private final String heap = System.getProperty("scale.heap", "8g");
+    private final int numRequests = Integer.parseInt(System.getProperty("scale.requests", "50"));
+    private final long startupTimeoutMinutes = Long.parseLong(System.getProperty("scale.startup-timeout-minutes", "30"));
+    private final List<String> appArgs = Arrays.stream(System.getProperty("scale.app-args", "").trim().split("\\s+"))
+        .filter(arg -> !arg.isEmpty())
+        .toList();
+    private final String reportName = System.getProperty("scale.report", "report");
+
+    @Test
+    void scale() throws Exception {
+        Files.createDirectories(this.dir);
+
+        List<Result> results = new ArrayList<>();
+        for (String rows : System.getProperty("scale.rows").split(",")) {
+            Result result = run(Long.parseLong(rows.trim()));
+            results.add(result);
+            // Report after every size, as the larger sizes take a long time
+            Files.writeString(this.dir.resolve(this.reportName + ".md"), formatReport(results));
+        }
+        System.out.println(formatReport(results));
+
+        assertTrue(results.stream().anyMatch(result -> result.failure() == null), "The application did not start at any size");
+    }
+
+    // ================== UTILS ==================
+
+    private Result run(long rows) throws Exception {
+        Path rawDataPath = this.dir.resolve("rows-" + rows + ".csv");
+        if (!Files.exists(rawDataPath)) {
+            Path partial = this.dir.resolve("rows-" + rows + ".csv.partial");
+            SyntheticDataGenerator.generate(SyntheticDataGenerator.Config.forRows(rows, SEED), partial);
+            Files.move(partial, rawDataPath);
+        }
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        String baseUrl = "http://localhost:" + port + CONTEXT_PATH;
+
+        List<String> command = new ArrayList<>(List.of(
+            Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+            "-Xmx" + this.heap,
+            "-XX:+ExitOnOutOfMemoryError",
+            "-cp", System.getProperty("java.class.path"),
+            BusAppBackendApplication.class.getName(),
+            "--server.port=" + port,
+            "--app.data.path=" + rawDataPath.toAbsolutePath(),
+            "--app.data.max-rows=0",
+            // Measure parsing and aggregation, not loading a snapshot of an earlier run
+            "--app.data.snapshot.enabled=false",
+            "--app.ingest.enabled=false"
+        ));
+        command.addAll(this.appArgs);
+        Path log = this.dir.resolve("app-" + rows + ".log");
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log.toFile()).start();
+        try {
+            String failure = waitUntilReady(process, baseUrl, log);
+            if (failure != null) {
+                return new Result(rows, failure, 0, 0, 0, 0, 0, 0, 0, Map.of());
+            }
+            double startupSeconds = (System.nanoTime() - start) / 1e9;
+
+            Map<String, Latencies> latencies = measureEndpoints(baseUrl);
+            Map<String, Double> metrics = getMetrics(baseUrl);
+            return new Result(
+                rows,
+                null,
+                startupSeconds,
+                metrics.getOrDefault("bus_app_trips", 0.0).longValue(),
+                metrics.getOrDefault("bus_app_heap_peak_used_bytes", 0.0).longValue(),
+                metrics.getOrDefault("bus_app_retained_bytes{structure=\"trips\"}", 0.0).longValue(),
+                metrics.getOrDefault("bus_app_off_heap_point_bytes", 0.0).longValue(),
+                (long) sumSamples(metrics, "bus_app_gc_collections_total"),
+                sumSamples(metrics, "bus_app_gc_seconds_total"),
+                latencies
+            );
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * Polls the ready endpoint until it responds, the application exits or the startup timeout passes.
+     *
+     * @return Why the application did not start, or null if it is ready.
+     */
+    private String waitUntilReady(Process process, String baseUrl, Path log) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(this.startupTimeoutMinutes);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/ready")).timeout(Duration.ofSeconds(5)).build();
+        while (System.nanoTime() < deadline) {
+            if (!process.isAlive()) {
+                String output = Files.readString(log, StandardCharsets.ISO_8859_1);
+                return output.contains("OutOfMemoryError") || output.contains("InsufficientMemoryException")
+                    ? "out of memory"
+                    : "exited with code " + process.exitValue();
+            }
+            try {
+                if (this.client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    return null;
+                }
+            } catch (IOException e) {
+                // Not listening yet
+            }
+            Thread.sleep(200);
+        }
+        return "did not start within " + this.startupTimeoutMinutes + " minutes";
+    }
+
+    /**
+     * Requests each endpoint, cycling through the published lines and vehicles, so most requests of the
+     * GeoJSON endpoints are for a different line or vehicle.
+     */
+    private Map<String, Latencies> measureEndpoints(String baseUrl) throws Exception {
+        List<String> lines = getList(baseUrl + "/getPubLineName");
+        List<String> vehicles = getList(baseUrl + "/getVehRef");
+        // A 15 minute window and a ~1km box in Manhattan, at the busiest time of the first day
+        String from = START_DATE + "T08:00:00";
+        String to = START_DATE + "T08:15:00";
+        int tileX = (int) Math.floor((-73.98 + 180) / 360 * (1 << 14));
+        int tileY = (int) Math.floor((1 - Math.log(Math.tan(Math.toRadians(40.75)) + 1 / Math.cos(Math.toRadians(40.75))) / Math.PI) / 2 * (1 << 14));
+
+        Map<String, List<String>> endpoints = new LinkedHashMap<>();
+        endpoints.put("getPubLineName", List.of("/getPubLineName"));
+        endpoints.put("getVehRef", List.of("/getVehRef"));
+        endpoints.put("getBusTripByPubLineName", lines.stream().map(line -> "/getBusTripByPubLineName/" + encode(line)).toList());
+        endpoints.put("getBusTripByVehRef", vehicles.stream().map(vehicle -> "/getBusTripByVehRef/" + encode(vehicle)).toList());
+        endpoints.put("getBusTripByTimeWindow", List.of("/getBusTripByTimeWindow?from=" + from + "&to=" + to));
+        endpoints.put("getBusTripByBoundingBox", List.of(
+            "/getBusTripByBoundingBox?minLongitude=-73.99&minLatitude=40.745&maxLongitude=-73.97&maxLatitude=40.755"));
+        endpoints.put("tiles", List.of("/tiles/14/" + tileX + "/" + tileY));
+        endpoints.put("metrics", List.of("/metrics"));
+
+        Map<String, Latencies> result = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> endpoint : endpoints.entrySet()) {
+            result.put(endpoint.getKey(), measure(baseUrl, endpoint.getValue()));
+        }
+        return result;
+    }
+
+    private Latencies measure(String baseUrl, List<String> paths) throws Exception {
+        double[] millis = new double[this.numRequests];
+        int errors = 0;
+        for (int i = 0; i < this.numRequests; i++) {
+            // Spread the requests over the paths, e.g. over all lines rather than the first few
+            String path = paths.get((int) ((long) i * paths.size() / this.numRequests));
+            HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path)).timeout(Duration.ofMinutes(5)).build();
+            long start = System.nanoTime();
+            HttpResponse<Void> response = this.client.send(request, HttpResponse.BodyHandlers.discarding());
+            millis[i] = (System.nanoTime() - start) / 1e6;
+            if (response.statusCode() >= 400) {
+                errors++;
+            }
+        }
+
+        double first = millis[0];
+        Arrays.sort(millis);
+        return new Latencies(first, percentile(millis, 0.5), percentile(millis, 0.99), millis[millis.length - 1], errors);
+    }
+
+    private static double percentile(double[] sorted, double quantile) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)];
+    }
+
+    private List<String> getList(String url) throws Exception {
+        HttpResponse<String> response = this.client.send(HttpRequest.newBuilder(URI.create(url)).build(), HttpResponse.BodyHandlers.ofString());
+        List<String> values = this.mapper.readValue(response.body(), new TypeReference<List<String>>() {});
+        return values.isEmpty() ? List.of("") : values;
+    }
+
+    /**
+     * @return The samples of the metrics endpoint, by name and labels.
+     */
+    private Map<String, Double> getMetrics(String baseUrl) throws Exception {
+        HttpResponse<String> response = this.client.send(
+            HttpRequest.newBuilder(URI.create(baseUrl + "/metrics")).build(), HttpResponse.BodyHandlers.ofString());
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (String line : response.body().split("\n")) {
+            int separator = line.lastIndexOf(' ');
+            if (line.startsWith("#") || separator < 0) {
+                continue;
+            }
+            try {
+                result.put(line.substring(0, separator), Double.parseDouble(line.substring(separator + 1)));
+            } catch (NumberFormatException e) {
+                // Not a sample
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The sum of the samples of a metric over all its labels, e.g. over all garbage collectors.
+     */
+    private static double sumSamples(Map<String, Double> metrics, String name) {
+        return metrics.entrySet().stream()
+            .filter(entry -> entry.getKey().equals(name) || entry.getKey().startsWith(name + "{"))
+            .mapToDouble(Map.Entry::getValue)
+            .sum();
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    private String formatReport(List<Result> results) {
+        StringBuilder out = new StringBuilder();
+        out.append("# Scale test\n\nHeap: ").append(this.heap).append(", requests per endpoint: ").append(this.numRequests);
+        if (!this.appArgs.isEmpty()) {
+            out.append(", arguments: ").append(String.join(" ", this.appArgs));
+        }
+        out.append("\n\n");
+        out.append("| Rows | Startup (s) | Trips | Peak heap (MB) | Trips retained (MB) | Points off heap (MB) | GCs | GC time (s) |\n");
+        out.append("| --- | --- | --- | --- | --- | --- | --- | --- |\n");
+        for (Result result : results) {
+            if (result.failure() != null) {
+                out.append(String.format("| %,d | %s | | | | | | |%n", result.rows(), result.failure()));
+                continue;
+            }
+            out.append(String.format("| %,d | %.1f | %,d | %,d | %,d | %,d | %,d | %.2f |%n",
+                result.rows(), result.startupSeconds(), result.trips(), result.peakHeapBytes() >> 20, result.retainedTripBytes() >> 20,
+                result.offHeapPointBytes() >> 20, result.gcCollections(), result.gcSeconds()));
+        }
+
+        for (Result result : results) {
+            if (result.failure() != null) {
+                continue;
+            }
+            out.append(String.format("%n## %,d rows%n%n", result.rows()));
+            out.append("| Endpoint | First (ms) | p50 (ms) | p99 (ms) | Max (ms) | Errors |\n");
+            out.append("| --- | --- | --- | --- | --- | --- |\n");
+            for (Map.Entry<String, Latencies> entry : result.latencies().entrySet()) {
+                Latencies latencies = entry.getValue();
+                out.append(String.format("| %s | %.1f | %.1f | %.1f | %.1f | %d |%n", entry.getKey(),
+                    latencies.firstMs(), latencies.p50Ms(), latencies.p99Ms(), latencies.maxMs(), latencies.errors()));
+            }
+        }
+        return out.toString();
+    }
+}
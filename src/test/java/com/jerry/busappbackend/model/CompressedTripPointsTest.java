@@ -0,0 +1,166 @@
+package com.jerry.busappbackend.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that compressed points decode to the points they were encoded from, by index and by cursor, at the
+ * boundaries of the blocks and for values whose differences are negative or large.
+ */
+class CompressedTripPointsTest {
+    // Coordinates are rounded to 6 decimals
+    private static final double COORDINATE_TOLERANCE = 5e-7;
+
+    @Test
+    void decodesPointsByIndex() {
+        int[] sizes = {1, CompressedTripPoints.BLOCK_SIZE - 1, CompressedTripPoints.BLOCK_SIZE,
+            CompressedTripPoints.BLOCK_SIZE + 1, 2 * CompressedTripPoints.BLOCK_SIZE + 1, 500};
+        Random random = new Random(1);
+        for (int size : sizes) {
+            HeapTripPoints points = randomPoints(size, random);
+            CompressedTripPoints compressed = CompressedTripPoints.encode(points);
+
+            assertEquals(size, compressed.size());
+            for (int point = 0; point < size; point++) {
+                assertPoint(points, point, compressed.getLongitude(point), compressed.getLatitude(point),
+                    compressed.getArrivalTime(point), compressed.getDistanceFromStop(point),
+                    compressed.getArrivalProximityCode(point));
+            }
+        }
+    }
+
+    @Test
+    void decodesPointsByCursor() {
+        HeapTripPoints points = randomPoints(5 * CompressedTripPoints.BLOCK_SIZE + 3, new Random(2));
+        CompressedTripPoints compressed = CompressedTripPoints.encode(points);
+
+        PointCursor cursor = compressed.cursor();
+        for (int point = 0; point < points.size(); point++) {
+            cursor.moveTo(point);
+            assertPoint(points, point, cursor);
+        }
+    }
+
+    @Test
+    void cursorMovesBackwardsAndAcrossBlocks() {
+        HeapTripPoints points = randomPoints(4 * CompressedTripPoints.BLOCK_SIZE, new Random(3));
+        CompressedTripPoints compressed = CompressedTripPoints.encode(points);
+        int last = points.size() - 1;
+        int[] moves = {last, 0, CompressedTripPoints.BLOCK_SIZE, CompressedTripPoints.BLOCK_SIZE - 1,
+            CompressedTripPoints.BLOCK_SIZE + 5, CompressedTripPoints.BLOCK_SIZE + 2, 3 * CompressedTripPoints.BLOCK_SIZE,
+            3 * CompressedTripPoints.BLOCK_SIZE, 7, last};
+
+        PointCursor cursor = compressed.cursor();
+        for (int point : moves) {
+            cursor.moveTo(point);
+            assertPoint(points, point, cursor);
+        }
+    }
+
+    @Test
+    void decodesNegativeAndLargeValues() {
+        HeapTripPoints points = new HeapTripPoints(
+            new double[] {-73.999999, 180, -180, 0, -0.000001, 73.5},
+            new double[] {40.123456, -90, 90, 0, 0.000001, -40.5},
+            new long[] {1_496_300_000L, 0, Long.MAX_VALUE / 4, -1, 4_102_444_800L, 1_496_300_000L},
+            new int[] {0, Integer.MAX_VALUE, Integer.MIN_VALUE, -1, 1, 300},
+            new short[] {0, Short.MAX_VALUE, Short.MIN_VALUE, -1, 1, 2});
+        CompressedTripPoints compressed = CompressedTripPoints.encode(points);
+
+        PointCursor cursor = compressed.cursor();
+        for (int point = 0; point < points.size(); point++) {
+            cursor.moveTo(point);
+            assertPoint(points, point, cursor);
+        }
+    }
+
+    @Test
+    void roundsCoordinatesToSixDecimals() {
+        HeapTripPoints points = new HeapTripPoints(new double[] {-73.9876544, -73.9876546}, new double[] {40.7000004, 40.7000006},
+            new long[] {0, 0}, new int[] {0, 0}, new short[] {0, 0});
+        CompressedTripPoints compressed = CompressedTripPoints.encode(points);
+
+        assertEquals(-73.987654, compressed.getLongitude(0), 1e-9);
+        assertEquals(-73.987655, compressed.getLongitude(1), 1e-9);
+        assertEquals(40.7, compressed.getLatitude(0), 1e-9);
+        assertEquals(40.700001, compressed.getLatitude(1), 1e-9);
+    }
+
+    @Test
+    void rejectsPointsOutOfRange() {
+        CompressedTripPoints compressed = CompressedTripPoints.encode(randomPoints(CompressedTripPoints.BLOCK_SIZE + 1, new Random(4)));
+        PointCursor cursor = compressed.cursor();
+
+        assertThrows(IndexOutOfBoundsException.class, () -> cursor.moveTo(-1));
+        assertThrows(IndexOutOfBoundsException.class, () -> cursor.moveTo(CompressedTripPoints.BLOCK_SIZE + 1));
+        assertThrows(IndexOutOfBoundsException.class, () -> compressed.getLongitude(CompressedTripPoints.BLOCK_SIZE + 1));
+    }
+
+    @Test
+    void storeReplacesPointsOfTrip() {
+        HeapTripPoints points = randomPoints(40, new Random(5));
+        BusTrip trip = new BusTrip("M15", "NYCT_1", 0, "Origin", "Destination", points.longitudes, points.latitudes,
+            points.arrivalTimes, points.distancesFromStop, points.arrivalProximityCodes);
+
+        CompressedTripPoints.store(trip);
+        TripPoints stored = trip.getPoints();
+        CompressedTripPoints.store(trip);
+
+        assertTrue(stored instanceof CompressedTripPoints);
+        assertSame(stored, trip.getPoints());
+        assertTrue(stored.estimateHeapBytes() < points.estimateHeapBytes());
+        assertEquals(0, stored.getOffHeapBytes());
+        PointCursor cursor = trip.cursor();
+        for (int point = 0; point < points.size(); point++) {
+            cursor.moveTo(point);
+            assertPoint(points, point, cursor);
+        }
+    }
+
+    // ================== UTILS ==================
+    /**
+     * Points of a bus moving around Manhattan, with times and distances that go up and down.
+     */
+    private static HeapTripPoints randomPoints(int size, Random random) {
+        double[] longitudes = new double[size];
+        double[] latitudes = new double[size];
+        long[] times = new long[size];
+        int[] distances = new int[size];
+        short[] codes = new short[size];
+        double longitude = -73.97;
+        double latitude = 40.77;
+        long time = 1_496_300_000L;
+        for (int i = 0; i < size; i++) {
+            longitude += (random.nextDouble() - 0.5) * 0.01;
+            latitude += (random.nextDouble() - 0.5) * 0.01;
+            time += random.nextInt(120) - 10;
+            longitudes[i] = longitude;
+            latitudes[i] = latitude;
+            times[i] = time;
+            distances[i] = random.nextInt(2000);
+            codes[i] = (short) random.nextInt(4);
+        }
+        return new HeapTripPoints(longitudes, latitudes, times, distances, codes);
+    }
+
+    private static void assertPoint(HeapTripPoints expected, int point, PointCursor cursor) {
+        assertPoint(expected, point, cursor.getLongitude(), cursor.getLatitude(), cursor.getArrivalTime(),
+            cursor.getDistanceFromStop(), cursor.getArrivalProximityCode());
+    }
+
+    private static void assertPoint(HeapTripPoints expected, int point, double longitude, double latitude, long time,
+                                    int distance, short proximityCode) {
+        String message = "Point " + point;
+        assertEquals(expected.getLongitude(point), longitude, COORDINATE_TOLERANCE, message);
+        assertEquals(expected.getLatitude(point), latitude, COORDINATE_TOLERANCE, message);
+        assertEquals(expected.getArrivalTime(point), time, message);
+        assertEquals(expected.getDistanceFromStop(point), distance, message);
+        assertEquals(expected.getArrivalProximityCode(point), proximityCode, message);
+    }
+}
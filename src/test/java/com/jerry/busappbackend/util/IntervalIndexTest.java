@@ -0,0 +1,119 @@
+package com.jerry.busappbackend.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the interval index against scanning all intervals, including intervals whose subtree is only
+ * reached through the maximum end of its parent, and queries at the ends of the intervals.
+ */
+class IntervalIndexTest {
+
+    @Test
+    void findsSameIntervalsAsScan() {
+        Random random = new Random(1);
+        for (int size : new int[] {1, 2, 3, 10, 1000}) {
+            long[][] intervals = randomIntervals(size, random);
+            IntervalIndex index = index(intervals);
+
+            assertEquals(size, index.size());
+            for (int query = 0; query < 500; query++) {
+                long from = random.nextInt(12_000) - 1000;
+                long to = from + random.nextInt(query % 2 == 0 ? 50 : 3000);
+                assertArrayEquals(scan(intervals, from, to), index.findOverlapping(from, to), "Query [" + from + ", " + to + "]");
+            }
+        }
+    }
+
+    @Test
+    void findsLongIntervalAmongShortOnes() {
+        // The long interval starts first, so it is in the left subtree of intervals that end before the query
+        int size = 101;
+        long[][] intervals = new long[size][];
+        intervals[0] = new long[] {0, 0, 10_000};
+        for (int i = 1; i < size; i++) {
+            intervals[i] = new long[] {i, i * 10L, i * 10L + 5};
+        }
+        IntervalIndex index = index(intervals);
+
+        assertArrayEquals(new int[] {0}, index.findOverlapping(5000, 5000));
+        assertArrayEquals(new int[] {0, 50}, index.findOverlapping(502, 503));
+        assertArrayEquals(new int[] {0}, index.findOverlapping(10_000, 20_000));
+        assertArrayEquals(new int[0], index.findOverlapping(10_001, 20_000));
+        assertArrayEquals(scan(intervals, 7, 5000), index.findOverlapping(7, 5000));
+    }
+
+    @Test
+    void includesIntervalsTouchingQuery() {
+        IntervalIndex index = index(new long[][] {{1, 10, 20}, {2, 20, 30}, {3, 31, 31}});
+
+        assertArrayEquals(new int[] {1, 2}, index.findOverlapping(20, 20));
+        assertArrayEquals(new int[] {1}, index.findOverlapping(0, 10));
+        assertArrayEquals(new int[0], index.findOverlapping(0, 9));
+        assertArrayEquals(new int[] {3}, index.findOverlapping(31, 31));
+        assertArrayEquals(new int[0], index.findOverlapping(32, 40));
+        assertArrayEquals(new int[] {2, 3}, index.findOverlapping(21, 100));
+    }
+
+    @Test
+    void findsNothingForEmptyQueryOrIndex() {
+        IntervalIndex index = index(new long[][] {{1, 10, 20}});
+        IntervalIndex empty = index(new long[0][]);
+
+        assertEquals(0, index.findOverlapping(20, 10).length);
+        assertEquals(0, empty.size());
+        assertEquals(0, empty.findOverlapping(Long.MIN_VALUE, Long.MAX_VALUE).length);
+    }
+
+    @Test
+    void keepsOrderOfIntervalsWithSameStart() {
+        IntervalIndex index = index(new long[][] {{7, 10, 50}, {3, 5, 10}, {9, 10, 11}, {1, 10, 10}, {4, 0, 100}});
+
+        assertArrayEquals(new int[] {4, 3, 7, 9, 1}, index.findOverlapping(10, 10));
+        assertArrayEquals(new int[] {4, 7, 9}, index.findOverlapping(11, 11));
+    }
+
+    // ================== UTILS ==================
+    /**
+     * @return Intervals as {id, start, end}, mostly short, some long, and some sharing a start.
+     */
+    private static long[][] randomIntervals(int size, Random random) {
+        long[][] intervals = new long[size][];
+        for (int i = 0; i < size; i++) {
+            long start = random.nextInt(100) == 0 ? 0 : random.nextInt(10_000);
+            long length = random.nextInt(20) == 0 ? random.nextInt(5000) : random.nextInt(100);
+            intervals[i] = new long[] {i, start, start + length};
+        }
+        return intervals;
+    }
+
+    private static IntervalIndex index(long[][] intervals) {
+        int[] ids = new int[intervals.length];
+        long[] starts = new long[intervals.length];
+        long[] ends = new long[intervals.length];
+        for (int i = 0; i < intervals.length; i++) {
+            ids[i] = (int) intervals[i][0];
+            starts[i] = intervals[i][1];
+            ends[i] = intervals[i][2];
+        }
+        return new IntervalIndex(ids, starts, ends);
+    }
+
+    /**
+     * @return The ids of the intervals overlapping [from, to], ordered by start, then in the order given.
+     */
+    private static int[] scan(long[][] intervals, long from, long to) {
+        long[][] sorted = intervals.clone();
+        Arrays.sort(sorted, Comparator.comparingLong(interval -> interval[1]));
+        return Arrays.stream(sorted)
+            .filter(interval -> interval[1] <= to && interval[2] >= from)
+            .mapToInt(interval -> (int) interval[0])
+            .toArray();
+    }
+}
@@ -0,0 +1,402 @@
+package com.jerry.busappbackend.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Generates raw data files in the format of the MTA bus data, for benchmarks and scale tests that cannot rely
+ * on the Kaggle file being available.
+ * <p>
+ * The output is deterministic for a seed, and reproduces what the parser and the trip construction have to
+ * deal with:<br></br>
+ * - The header and column order of {@link Columns}, unquoted like the original file, rows in time order<br></br>
+ * - Lines with a fixed route each, served by vehicles driving it back and forth from early morning to late
+ * evening, reporting a GPS position with a few meters of noise every {@code reportIntervalSeconds}<br></br>
+ * - Layovers at the end of the route, some longer than the 25 minute trip window, which start a new trip<br></br>
+ * - "NA" arrival proximity, distance and arrival times for a fraction of the rows<br></br>
+ * - Stop names with the unescaped {@code (non-public,for GEO)} suffix, in both spellings of the original file<br></br>
+ * - Scheduled arrival times past 24:00 for trips running past midnight<br></br>
+ * <br></br>
+ * Rows are written as they are generated, so files of tens of millions of rows take no more memory than a small one.
+ * Run {@link #main} to write a file: {@code <output path> <rows> [seed [lines vehicles-per-line days]]}, where the
+ * number of lines, vehicles and days are picked for the number of rows unless given, and 0 rows means no limit.
+ */
+public class SyntheticDataGenerator {
+
+    private static final String[] LINE_PREFIXES = { "B", "M", "Q", "Bx", "S" };
+    private static final String[] STREETS = {
+        "BROADWAY", "AMSTERDAM AV", "LEXINGTON AV", "FLATBUSH AV", "NOSTRAND AV", "QUEENS BL", "JAMAICA AV",
+        "GRAND CONCOURSE", "FORDHAM RD", "ATLANTIC AV", "NORTHERN BL", "MAIN ST", "HYLAN BL", "RICHMOND AV",
+        "KINGS HWY", "CHURCH AV", "UTICA AV", "MERRICK BL", "ROCKAWAY BL", "WEBSTER AV"
+    };
+    private static final String NON_PUBLIC_FOR_GEO = " (non-public,for GEO)";
+    private static final String NON_PUBLIC_FOR_GEO_SPACED = " ( non-public,for GEO)";
+
+    // Area the routes are laid out in, roughly the five boroughs
+    private static final double MIN_LONGITUDE = -74.20;
+    private static final double MAX_LONGITUDE = -73.75;
+    private static final double MIN_LATITUDE = 40.55;
+    private static final double MAX_LATITUDE = 40.88;
+    private static final double METERS_PER_DEGREE_LATITUDE = 111_320;
+    private static final double METERS_PER_DEGREE_LONGITUDE = 84_300;
+
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+    // Records of the same vehicle further apart than this belong to different trips
+    private static final int TRIP_WINDOW_SECONDS = 25 * 60;
+
+    /**
+     * Settings of a generated file.
+     *
+     * @param seed Seed of the random numbers, the same settings and seed generate the same file.
+     * @param numLines Number of published lines.
+     * @param vehiclesPerLine Number of vehicles serving each line.
+     * @param numDays Number of days, starting at {@code startDate}.
+     * @param startDate First day of the data.
+     * @param reportIntervalSeconds Time between the positions reported by a vehicle.
+     * @param naFraction Fraction of the rows with "NA" arrival proximity, distance and arrival times.
+     * @param nonPublicForGeoFraction Fraction of the stops whose name has the {@code (non-public,for GEO)} suffix.
+     * @param maxRows Maximum number of rows, the file ends early once it is reached.
+     */
+    public record Config(
+        long seed,
+        int numLines,
+        int vehiclesPerLine,
+        int numDays,
+        LocalDate startDate,
+        int reportIntervalSeconds,
+        double naFraction,
+        double nonPublicForGeoFraction,
+        long maxRows
+    ) {
+        public Config {
+            if (numLines <= 0 || vehiclesPerLine <= 0 || numDays <= 0 || reportIntervalSeconds <= 0) {
+                throw new IllegalArgumentException("Lines, vehicles, days and report interval must be positive");
+            }
+        }
+
+        /**
+         * Settings for a number of rows, with more lines and days for more rows. A vehicle reports about
+         * 1,100 positions a day, so there are enough days to reach the number of rows.
+         *
+         * @param rows The number of rows to generate.
+         * @param seed Seed of the random numbers.
+         */
+        public static Config forRows(long rows, long seed) {
+            int numLines = (int) Math.min(320, Math.max(3, (rows + 39_999) / 40_000));
+            int vehiclesPerLine = 20;
+            long rowsPerDay = (long) numLines * vehiclesPerLine * 1_100;
+            int numDays = (int) Math.min(31, Math.max(1, (rows + rowsPerDay - 1) / rowsPerDay));
+            return new Config(seed, numLines, vehiclesPerLine, numDays, LocalDate.of(2017, 6, 1), 30, 0.02, 0.05, rows);
+        }
+    }
+
+    private record Stop(String name, double longitude, double latitude) {}
+
+    private static final class Route {
+        final String lineName;
+        final List<Stop> stops = new ArrayList<>();
+        // Distance along the route of each stop, in meters
+        double[] distances;
+
+        Route(String lineName) {
+            this.lineName = lineName;
+        }
+
+        double getLength() {
+            return this.distances[this.distances.length - 1];
+        }
+    }
+
+    private static final class Vehicle {
+        final String vehicleRef;
+        final Route route;
+        final int serviceStart;
+        final int serviceEnd;
+        int directionRef;
+        double position;
+        double speed;
+        int resumeAt;
+
+        Vehicle(String vehicleRef, Route route, int serviceStart, int serviceEnd) {
+            this.vehicleRef = vehicleRef;
+            this.route = route;
+            this.serviceStart = serviceStart;
+            this.serviceEnd = serviceEnd;
+        }
+    }
+
+    private final Config config;
+    private final SplittableRandom random;
+    private final StringBuilder row = new StringBuilder(256);
+
+    private SyntheticDataGenerator(Config config) {
+        this.config = config;
+        this.random = new SplittableRandom(config.seed());
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || (args.length > 3 && args.length != 6)) {
+            System.err.println("Usage: SyntheticDataGenerator <output path> <rows> [seed [lines vehicles-per-line days]]");
+            System.exit(1);
+        }
+        long maxRows = Long.parseLong(args[1]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        Config config = args.length > 3
+            ? new Config(seed, Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]),
+                LocalDate.of(2017, 6, 1), 30, 0.02, 0.05, maxRows > 0 ? maxRows : Long.MAX_VALUE)
+            : Config.forRows(maxRows, seed);
+        long rows = generate(config, Paths.get(args[0]));
+        System.out.println("Wrote " + rows + " rows to " + args[0]);
+    }
+
+    /**
+     * Writes a raw data file.
+     *
+     * @param config The settings of the file.
+     * @param path The file to write, replaced if it exists.
+     * @return The number of rows written, excluding the header.
+     * @throws IOException If the file could not be written.
+     */
+    public static long generate(Config config, Path path) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.US_ASCII)) {
+            return generate(config, out);
+        }
+    }
+
+    /**
+     * Writes the rows of a raw data file, with its header, see {@link #generate(Config, Path)}.
+     */
+    public static long generate(Config config, Writer out) throws IOException {
+        return new SyntheticDataGenerator(config).write(out);
+    }
+
+    // ================== UTILS ==================
+
+    private long write(Writer out) throws IOException {
+        for (Columns column : Columns.values()) {
+            out.write(column.getIndex() == 0 ? "" : ",");
+            out.write(column.getColumnName());
+        }
+        out.write('\n');
+
+        List<Route> routes = new ArrayList<>();
+        for (int i = 0; i < this.config.numLines(); i++) {
+            routes.add(createRoute(LINE_PREFIXES[i % LINE_PREFIXES.length] + (i / LINE_PREFIXES.length + 1)));
+        }
+
+        int interval = this.config.reportIntervalSeconds();
+        long numRows = 0;
+        for (int day = 0; day < this.config.numDays(); day++) {
+            LocalDate date = this.config.startDate().plusDays(day);
+            // Vehicles report at a fixed offset within the interval, so rows are generated in time order
+            List<List<Vehicle>> vehiclesByOffset = new ArrayList<>();
+            for (int i = 0; i < interval; i++) {
+                vehiclesByOffset.add(new ArrayList<>());
+            }
+            int vehicleNumber = 0;
+            for (Route route : routes) {
+                for (int i = 0; i < this.config.vehiclesPerLine(); i++) {
+                    int serviceStart = 5 * 3600 + this.random.nextInt(3 * 3600);
+                    int serviceEnd = 19 * 3600 + this.random.nextInt(5 * 3600);
+                    Vehicle vehicle = new Vehicle("NYCT_" + (1000 + vehicleNumber++), route, serviceStart, serviceEnd);
+                    vehicle.directionRef = this.random.nextInt(2);
+                    vehicle.position = this.random.nextDouble() * route.getLength();
+                    vehicle.speed = 3 + this.random.nextDouble() * 5;
+                    vehicle.resumeAt = serviceStart;
+                    vehiclesByOffset.get(this.random.nextInt(interval)).add(vehicle);
+                }
+            }
+
+            for (int second = 0; second < SECONDS_PER_DAY; second++) {
+                for (Vehicle vehicle : vehiclesByOffset.get(second % interval)) {
+                    if (second < vehicle.resumeAt || second >= vehicle.serviceEnd) {
+                        continue;
+                    }
+                    if (numRows == this.config.maxRows()) {
+                        return numRows;
+                    }
+                    writeRow(out, vehicle, date, second);
+                    numRows++;
+                    move(vehicle, second);
+                }
+            }
+        }
+        return numRows;
+    }
+
+    /**
+     * Lays out a route of 15 to 40 stops, each a few hundred meters from the previous one, heading in a
+     * slowly changing direction.
+     */
+    private Route createRoute(String lineName) {
+        Route route = new Route(lineName);
+        int numStops = 15 + this.random.nextInt(26);
+        double longitude = MIN_LONGITUDE + this.random.nextDouble() * (MAX_LONGITUDE - MIN_LONGITUDE);
+        double latitude = MIN_LATITUDE + this.random.nextDouble() * (MAX_LATITUDE - MIN_LATITUDE);
+        double heading = this.random.nextDouble() * 2 * Math.PI;
+        String street = STREETS[this.random.nextInt(STREETS.length)];
+
+        route.distances = new double[numStops];
+        for (int i = 0; i < numStops; i++) {
+            String name = street + "/" + (i + 1) * 3 + " ST";
+            double suffix = this.random.nextDouble();
+            if (suffix < this.config.nonPublicForGeoFraction() / 2) {
+                name += NON_PUBLIC_FOR_GEO_SPACED;
+            } else if (suffix < this.config.nonPublicForGeoFraction()) {
+                name += NON_PUBLIC_FOR_GEO;
+            }
+            route.stops.add(new Stop(name, longitude, latitude));
+
+            double step = 250 + this.random.nextDouble() * 350;
+            if (i > 0) {
+                route.distances[i] = route.distances[i - 1] + distance(route.stops.get(i - 1), route.stops.get(i));
+            }
+            heading += (this.random.nextDouble() - 0.5) * 0.6;
+            double nextLongitude = longitude + Math.cos(heading) * step / METERS_PER_DEGREE_LONGITUDE;
+            double nextLatitude = latitude + Math.sin(heading) * step / METERS_PER_DEGREE_LATITUDE;
+            if (nextLongitude < MIN_LONGITUDE || nextLongitude > MAX_LONGITUDE || nextLatitude < MIN_LATITUDE || nextLatitude > MAX_LATITUDE) {
+                // Turn back at the edge of the area, so no two stops are at the same place
+                heading += Math.PI;
+                nextLongitude = longitude + Math.cos(heading) * step / METERS_PER_DEGREE_LONGITUDE;
+                nextLatitude = latitude + Math.sin(heading) * step / METERS_PER_DEGREE_LATITUDE;
+            }
+            longitude = nextLongitude;
+            latitude = nextLatitude;
+        }
+        return route;
+    }
+
+    /**
+     * Moves a vehicle on by one report interval. At the end of the route it turns around after a layover,
+     * which is longer than the trip window a third of the time.
+     */
+    private void move(Vehicle vehicle, int second) {
+        vehicle.position += vehicle.speed * this.config.reportIntervalSeconds() * (0.7 + this.random.nextDouble() * 0.6);
+        if (vehicle.position < vehicle.route.getLength()) {
+            return;
+        }
+        vehicle.position = 0;
+        vehicle.directionRef = 1 - vehicle.directionRef;
+        int layover = this.random.nextInt(3) == 0
+            ? TRIP_WINDOW_SECONDS + 60 + this.random.nextInt(30 * 60)
+            : 3 * 60 + this.random.nextInt(10 * 60);
+        vehicle.resumeAt = second + layover;
+    }
+
+    private void writeRow(Writer out, Vehicle vehicle, LocalDate date, int second) throws IOException {
+        Route route = vehicle.route;
+        int numStops = route.stops.size();
+        // Direction 1 drives the stops in reverse, its distances count from the last stop
+        boolean reversed = vehicle.directionRef == 1;
+        Stop origin = route.stops.get(reversed ? numStops - 1 : 0);
+        Stop destination = route.stops.get(reversed ? 0 : numStops - 1);
+
+        int segment = 1;
+        while (segment < numStops - 1 && route.distances[segment] < vehicle.position) {
+            segment++;
+        }
+        double fraction = (vehicle.position - route.distances[segment - 1]) / (route.distances[segment] - route.distances[segment - 1]);
+        Stop from = route.stops.get(reversed ? numStops - segment : segment - 1);
+        Stop to = route.stops.get(reversed ? numStops - 1 - segment : segment);
+        double longitude = from.longitude() + (to.longitude() - from.longitude()) * fraction + this.random.nextGaussian() * 5 / METERS_PER_DEGREE_LONGITUDE;
+        double latitude = from.latitude() + (to.latitude() - from.latitude()) * fraction + this.random.nextGaussian() * 5 / METERS_PER_DEGREE_LATITUDE;
+        int distanceFromStop = (int) Math.max(0, route.distances[segment] - vehicle.position);
+        int expectedArrival = second + (int) (distanceFromStop / vehicle.speed);
+
+        StringBuilder row = this.row;
+        row.setLength(0);
+        appendDateTime(row, date, second).append(',');
+        row.append(vehicle.directionRef).append(',');
+        row.append(route.lineName).append(',');
+        row.append(origin.name()).append(',');
+        appendCoordinate(row, origin.latitude()).append(',');
+        appendCoordinate(row, origin.longitude()).append(',');
+        row.append(destination.name()).append(',');
+        appendCoordinate(row, destination.latitude()).append(',');
+        appendCoordinate(row, destination.longitude()).append(',');
+        row.append(vehicle.vehicleRef).append(',');
+        appendCoordinate(row, latitude).append(',');
+        appendCoordinate(row, longitude).append(',');
+        row.append(to.name()).append(',');
+        if (this.random.nextDouble() < this.config.naFraction()) {
+            row.append("NA,NA,NA,NA");
+        } else {
+            row.append(getProximityText(distanceFromStop)).append(',');
+            row.append(distanceFromStop).append(',');
+            appendDateTime(row, date, expectedArrival).append(',');
+            // Trips after midnight keep counting the hours of the day they started on
+            appendTime(row, expectedArrival - 60 + this.random.nextInt(240));
+        }
+        row.append('\n');
+        out.append(row);
+    }
+
+    private static String getProximityText(int distanceFromStop) {
+        if (distanceFromStop < 50) {
+            return "at stop";
+        } else if (distanceFromStop < 150) {
+            return "approaching";
+        } else if (distanceFromStop < 400) {
+            return "< 1 stop away";
+        }
+        return "1 stop away";
+    }
+
+    /**
+     * Appends a date and time as "yyyy-MM-dd HH:mm:ss", moving on to the next days past midnight.
+     */
+    private static StringBuilder appendDateTime(StringBuilder row, LocalDate date, int secondOfDay) {
+        LocalDate day = date.plusDays(secondOfDay / SECONDS_PER_DAY);
+        row.append(day).append(' ');
+        return appendTime(row, secondOfDay % SECONDS_PER_DAY);
+    }
+
+    /**
+     * Appends a time as "HH:mm:ss", with hours past 23 for times past midnight.
+     */
+    private static StringBuilder appendTime(StringBuilder row, int seconds) {
+        seconds = Math.max(0, seconds);
+        appendTwoDigits(row, seconds / 3600).append(':');
+        appendTwoDigits(row, seconds / 60 % 60).append(':');
+        return appendTwoDigits(row, seconds % 60);
+    }
+
+    private static StringBuilder appendTwoDigits(StringBuilder row, int value) {
+        if (value < 10) {
+            row.append('0');
+        }
+        return row.append(value);
+    }
+
+    /**
+     * Appends a coordinate with 6 decimal places, without the cost of {@link String#format}.
+     */
+    private static StringBuilder appendCoordinate(StringBuilder row, double value) {
+        long micros = Math.round(value * 1_000_000);
+        if (micros < 0) {
+            row.append('-');
+            micros = -micros;
+        }
+        row.append(micros / 1_000_000).append('.');
+        long fraction = micros % 1_000_000;
+        for (long divisor = 100_000; divisor > fraction && divisor > 1; divisor /= 10) {
+            row.append('0');
+        }
+        return row.append(fraction);
+    }
+
+    private static double distance(Stop a, Stop b) {
+        double dx = (b.longitude() - a.longitude()) * METERS_PER_DEGREE_LONGITUDE;
+        double dy = (b.latitude() - a.latitude()) * METERS_PER_DEGREE_LATITUDE;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
@@ -0,0 +1,203 @@
+package com.jerry.busappbackend.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+import com.jerry.busappbackend.entity.BusRecordEntity;
+
+/**
+ * Checks the trip index against grouping the trips by key, including indexes grown with
+ * {@link TripIndex#toBuilder()} and indexes read back with {@link TripIndex#of}.
+ */
+class TripIndexTest {
+    private static final int NUM_TRIPS = 2000;
+    private static final int NUM_KEYS = 50;
+
+    @Test
+    void findsTripsOfEachKey() {
+        StringDictionary dictionary = new StringDictionary("test", 1000);
+        String[] tripKeys = randomKeys(NUM_TRIPS, new Random(1));
+        TripIndex index = build(dictionary, tripKeys, 0, NUM_TRIPS);
+
+        assertIndex(groupByKey(tripKeys, NUM_TRIPS), index, tripKeys);
+    }
+
+    @Test
+    void sortsKeysWithNullFirst() {
+        StringDictionary dictionary = new StringDictionary("test", 1000);
+        String[] tripKeys = {"M15", null, "B1", "M15", "Q10", null};
+        TripIndex index = build(dictionary, tripKeys, 0, tripKeys.length);
+
+        assertEquals(Arrays.asList(null, "B1", "M15", "Q10"), index.getKeys());
+        assertArrayEquals(new int[] {1, 5}, index.copyTripIds(index.find(null)));
+        assertEquals(BusRecordEntity.NULL_CODE, index.getCode(index.find(null)));
+        assertEquals(dictionary.lookup("M15"), index.getCode(index.find("M15")));
+    }
+
+    @Test
+    void returnsNoTripsOfUnknownKey() {
+        StringDictionary dictionary = new StringDictionary("test", 1000);
+        String[] tripKeys = {"M15", "B1"};
+        TripIndex index = build(dictionary, tripKeys, 0, tripKeys.length);
+
+        assertEquals(-1, index.find("Q10"));
+        assertTrue(index.getTrips("Q10", Arrays.asList(tripKeys)).isEmpty());
+        assertEquals(-1, index.find(null));
+    }
+
+    @Test
+    void emptyBuilderReturnsEmptyIndex() {
+        TripIndex index = TripIndex.builder(new StringDictionary("test", 1000)).build();
+
+        assertEquals(0, index.size());
+        assertArrayEquals(new int[] {0}, index.getOffsets());
+        assertEquals(0, index.getTripIds().length);
+        assertTrue(index.getTrips("M15", List.of()).isEmpty());
+    }
+
+    @Test
+    void mergedIndexEqualsIndexBuiltAtOnce() {
+        StringDictionary dictionary = new StringDictionary("test", 1000);
+        Random random = new Random(2);
+        String[] tripKeys = randomKeys(NUM_TRIPS, random);
+
+        // Grow the index in batches of random size, some of which only add trips to existing keys
+        TripIndex merged = TripIndex.builder(dictionary).build();
+        int from = 0;
+        while (from < NUM_TRIPS) {
+            int to = Math.min(NUM_TRIPS, from + 1 + random.nextInt(300));
+            TripIndex.Builder builder = merged.toBuilder();
+            for (int i = from; i < to; i++) {
+                builder.add(encode(dictionary, tripKeys[i]), i);
+            }
+            merged = builder.build();
+            from = to;
+        }
+        TripIndex built = build(dictionary, tripKeys, 0, NUM_TRIPS);
+
+        assertEquals(built.getKeys(), merged.getKeys());
+        assertArrayEquals(built.getOffsets(), merged.getOffsets());
+        assertArrayEquals(built.getTripIds(), merged.getTripIds());
+        for (int position = 0; position < built.size(); position++) {
+            assertEquals(built.getCode(position), merged.getCode(position));
+        }
+        assertIndex(groupByKey(tripKeys, NUM_TRIPS), merged, tripKeys);
+    }
+
+    @Test
+    void mergeDoesNotModifyBase() {
+        StringDictionary dictionary = new StringDictionary("test", 1000);
+        String[] tripKeys = {"M15", "B1", "M15", "Q10", "B1"};
+        TripIndex base = build(dictionary, tripKeys, 0, 3);
+        int[] offsets = base.getOffsets().clone();
+        int[] tripIds = base.getTripIds().clone();
+
+        TripIndex.Builder builder = base.toBuilder();
+        for (int i = 3; i < tripKeys.length; i++) {
+            builder.add(encode(dictionary, tripKeys[i]), i);
+        }
+        TripIndex merged = builder.build();
+
+        assertEquals(List.of("B1", "M15"), base.getKeys());
+        assertArrayEquals(offsets, base.getOffsets());
+        assertArrayEquals(tripIds, base.getTripIds());
+        assertEquals(List.of("B1", "M15", "Q10"), merged.getKeys());
+        assertArrayEquals(new int[] {1, 4}, merged.copyTripIds(merged.find("B1")));
+        assertSame(base, base.toBuilder().build());
+    }
+
+    @Test
+    void indexOfRowsEqualsBuiltIndex() {
+        StringDictionary dictionary = new StringDictionary("test", 1000);
+        String[] tripKeys = randomKeys(NUM_TRIPS, new Random(3));
+        TripIndex built = build(dictionary, tripKeys, 0, NUM_TRIPS);
+
+        // As read from a snapshot, with a new dictionary, so the codes are assigned again
+        StringDictionary readDictionary = new StringDictionary("test", 1000);
+        TripIndex read = TripIndex.of(readDictionary, built.getKeys().toArray(new String[0]),
+            built.getOffsets(), built.getTripIds());
+
+        assertEquals(built.getKeys(), read.getKeys());
+        for (int position = 0; position < read.size(); position++) {
+            String key = read.getKey(position);
+            assertEquals(key == null ? BusRecordEntity.NULL_CODE : readDictionary.lookup(key), read.getCode(position));
+        }
+        assertIndex(groupByKey(tripKeys, NUM_TRIPS), read, tripKeys);
+    }
+
+    @Test
+    void rejectsInvalidRows() {
+        StringDictionary dictionary = new StringDictionary("test", 1000);
+
+        assertThrows(IllegalArgumentException.class,
+            () -> TripIndex.of(dictionary, new String[] {"M15", "B1"}, new int[] {0, 1, 2}, new int[] {0, 1}));
+        assertThrows(IllegalArgumentException.class,
+            () -> TripIndex.of(dictionary, new String[] {"B1", "B1"}, new int[] {0, 1, 2}, new int[] {0, 1}));
+        assertThrows(IllegalArgumentException.class,
+            () -> TripIndex.of(dictionary, new String[] {"B1", null}, new int[] {0, 1, 2}, new int[] {0, 1}));
+        assertThrows(IllegalArgumentException.class,
+            () -> TripIndex.of(dictionary, new String[] {"B1", "M15"}, new int[] {0, 1}, new int[] {0, 1}));
+        assertThrows(IllegalArgumentException.class,
+            () -> TripIndex.of(dictionary, new String[] {"B1", "M15"}, new int[] {0, 1, 3}, new int[] {0, 1}));
+        assertThrows(IllegalArgumentException.class,
+            () -> TripIndex.of(dictionary, new String[] {"B1", "M15"}, new int[] {0, 2, 1}, new int[] {0}));
+    }
+
+    // ================== UTILS ==================
+    private static String[] randomKeys(int numTrips, Random random) {
+        String[] keys = new String[numTrips];
+        for (int i = 0; i < numTrips; i++) {
+            int key = random.nextInt(NUM_KEYS + 1);
+            keys[i] = key == NUM_KEYS ? null : "L" + key;
+        }
+        return keys;
+    }
+
+    private static TripIndex build(StringDictionary dictionary, String[] tripKeys, int from, int to) {
+        TripIndex.Builder builder = TripIndex.builder(dictionary);
+        for (int i = from; i < to; i++) {
+            builder.add(encode(dictionary, tripKeys[i]), i);
+        }
+        return builder.build();
+    }
+
+    private static int encode(StringDictionary dictionary, String key) {
+        return key == null ? BusRecordEntity.NULL_CODE : dictionary.encode(key);
+    }
+
+    private static Map<String, List<Integer>> groupByKey(String[] tripKeys, int numTrips) {
+        Map<String, List<Integer>> groups = new TreeMap<>(Comparator.nullsFirst(Comparator.naturalOrder()));
+        for (int i = 0; i < numTrips; i++) {
+            groups.computeIfAbsent(tripKeys[i], key -> new ArrayList<>()).add(i);
+        }
+        return groups;
+    }
+
+    private static void assertIndex(Map<String, List<Integer>> expected, TripIndex index, String[] tripKeys) {
+        List<Integer> trips = new ArrayList<>();
+        for (int i = 0; i < tripKeys.length; i++) {
+            trips.add(i);
+        }
+
+        assertEquals(new ArrayList<>(expected.keySet()), index.getKeys());
+        for (Map.Entry<String, List<Integer>> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), index.getTrips(entry.getKey(), trips));
+            assertArrayEquals(entry.getValue().stream().mapToInt(Integer::intValue).toArray(),
+                index.copyTripIds(index.find(entry.getKey())));
+        }
+        assertEquals(tripKeys.length, index.getTripIds().length);
+    }
+}
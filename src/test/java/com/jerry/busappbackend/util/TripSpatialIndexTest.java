@@ -0,0 +1,182 @@
+package com.jerry.busappbackend.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.jerry.busappbackend.model.BusTrip;
+import com.jerry.busappbackend.util.TripSpatialIndex.Fragment;
+
+/**
+ * Checks the segment test and the fragments of single trips, and that the index finds the same trips and
+ * fragments as testing every trip without it.
+ */
+class TripSpatialIndexTest {
+
+    @Test
+    void segmentIntersectsBox() {
+        // Ends inside, crossing without an end inside, and along an edge
+        assertTrue(TripSpatialIndex.segmentIntersects(0.5, 0.5, 0.6, 0.6, 0, 0, 1, 1));
+        assertTrue(TripSpatialIndex.segmentIntersects(-1, 0.5, 2, 0.5, 0, 0, 1, 1));
+        assertTrue(TripSpatialIndex.segmentIntersects(-1, -1, 2, 2, 0, 0, 1, 1));
+        assertTrue(TripSpatialIndex.segmentIntersects(-1, 1, 2, 1, 0, 0, 1, 1));
+        // Through a corner only, and a single point inside
+        assertTrue(TripSpatialIndex.segmentIntersects(0, 2, 2, 0, 0, 0, 1, 1));
+        assertTrue(TripSpatialIndex.segmentIntersects(0.5, 0.5, 0.5, 0.5, 0, 0, 1, 1));
+    }
+
+    @Test
+    void segmentMissesBox() {
+        // Diagonal passing the corner, parallel outside, ending before the box, and a single point outside
+        assertFalse(TripSpatialIndex.segmentIntersects(0, 3, 3, 0, 0, 0, 1, 1));
+        assertFalse(TripSpatialIndex.segmentIntersects(-1, 1.5, 2, 1.5, 0, 0, 1, 1));
+        assertFalse(TripSpatialIndex.segmentIntersects(-2, 0.5, -0.1, 0.5, 0, 0, 1, 1));
+        assertFalse(TripSpatialIndex.segmentIntersects(2, 2, 2, 2, 0, 0, 1, 1));
+    }
+
+    @Test
+    void fragmentsIncludePointsOutsideOfBox() {
+        BusTrip trip = trip(0, 0, 1, 0, 2, 0, 3, 0, 4, 0, 5, 0, 6, 0);
+
+        assertEquals(List.of(new Fragment(7, 1, 4)), fragments(7, trip, 1.5, -1, 3.5, 1));
+        assertTrue(TripSpatialIndex.pathIntersects(trip, 1.5, -1, 3.5, 1));
+    }
+
+    @Test
+    void fragmentOfTripEndingInsideBox() {
+        BusTrip trip = trip(0, 0, 1, 0, 2, 0, 3, 0);
+
+        assertEquals(List.of(new Fragment(0, 2, 3)), fragments(0, trip, 2.5, -1, 5, 1));
+        assertEquals(List.of(new Fragment(0, 0, 3)), fragments(0, trip, -1, -1, 5, 1));
+    }
+
+    @Test
+    void fragmentsOfTripLeavingAndEnteringBox() {
+        BusTrip trip = trip(0, 0, 3, 0, 3, 5, 0, 5, 0, 0, 3, 0);
+
+        assertEquals(List.of(new Fragment(0, 0, 1), new Fragment(0, 4, 5)), fragments(0, trip, 1, -1, 2, 1));
+    }
+
+    @Test
+    void singlePointTrip() {
+        BusTrip trip = trip(1, 1);
+
+        assertEquals(List.of(new Fragment(0, 0, 0)), fragments(0, trip, 0, 0, 2, 2));
+        assertEquals(List.of(), fragments(0, trip, 1.5, 1.5, 2, 2));
+        assertEquals(List.of(0), new TripSpatialIndex(List.of(trip)).findIntersecting(0, 0, 2, 2));
+    }
+
+    @Test
+    void boxMissingAllTrips() {
+        List<BusTrip> trips = randomTrips(50, new Random(1));
+        TripSpatialIndex index = new TripSpatialIndex(trips);
+
+        assertTrue(index.findIntersecting(10, 10, 11, 11).isEmpty());
+        assertTrue(index.findIntersectingFragments(10, 10, 11, 11).isEmpty());
+    }
+
+    @Test
+    void indexFindsLongSegmentAtAnyPoint() {
+        // Trips that stay near (0, 0), then jump to near (10, 10), the jump being the only segment through the box
+        int size = 80;
+        List<BusTrip> trips = new ArrayList<>();
+        for (int jump = 1; jump < size; jump++) {
+            double[] coordinates = new double[2 * size];
+            for (int point = 0; point < size; point++) {
+                double offset = point < jump ? 0 : 10;
+                coordinates[2 * point] = offset + point * 0.001;
+                coordinates[2 * point + 1] = offset;
+            }
+            trips.add(trip(coordinates));
+        }
+        TripSpatialIndex index = new TripSpatialIndex(trips);
+
+        List<Integer> expectedTrips = new ArrayList<>();
+        List<Fragment> expectedFragments = new ArrayList<>();
+        for (int i = 0; i < trips.size(); i++) {
+            expectedTrips.add(i);
+            expectedFragments.add(new Fragment(i, i, i + 1));
+        }
+        assertEquals(expectedTrips, index.findIntersecting(4.9, 4.9, 5.2, 5.1));
+        assertEquals(expectedFragments, index.findIntersectingFragments(4.9, 4.9, 5.2, 5.1));
+    }
+
+    @Test
+    void indexFindsSameTripsAndFragmentsAsScan() {
+        Random random = new Random(2);
+        List<BusTrip> trips = randomTrips(200, random);
+        TripSpatialIndex index = new TripSpatialIndex(trips);
+
+        for (int query = 0; query < 300; query++) {
+            double minLongitude = random.nextDouble() * 1.2 - 0.1;
+            double minLatitude = random.nextDouble() * 1.2 - 0.1;
+            double size = query % 3 == 0 ? random.nextDouble() * 0.5 : random.nextDouble() * 0.02;
+            double maxLongitude = minLongitude + size;
+            double maxLatitude = minLatitude + size;
+
+            List<Integer> expectedTrips = new ArrayList<>();
+            List<Fragment> expectedFragments = new ArrayList<>();
+            for (int i = 0; i < trips.size(); i++) {
+                if (TripSpatialIndex.pathIntersects(trips.get(i), minLongitude, minLatitude, maxLongitude, maxLatitude)) {
+                    expectedTrips.add(i);
+                }
+                TripSpatialIndex.addFragments(i, trips.get(i), minLongitude, minLatitude, maxLongitude, maxLatitude, expectedFragments);
+            }
+
+            assertEquals(expectedTrips, index.findIntersecting(minLongitude, minLatitude, maxLongitude, maxLatitude));
+            assertEquals(expectedFragments, index.findIntersectingFragments(minLongitude, minLatitude, maxLongitude, maxLatitude));
+        }
+    }
+
+    // ================== UTILS ==================
+    /**
+     * @param coordinates The longitude and latitude of each point.
+     */
+    private static BusTrip trip(double... coordinates) {
+        int size = coordinates.length / 2;
+        double[] longitudes = new double[size];
+        double[] latitudes = new double[size];
+        for (int i = 0; i < size; i++) {
+            longitudes[i] = coordinates[2 * i];
+            latitudes[i] = coordinates[2 * i + 1];
+        }
+        return new BusTrip("M15", "NYCT_1", 0, "Origin", "Destination", longitudes, latitudes, new long[size],
+            new int[size], new short[size]);
+    }
+
+    /**
+     * Trips within [0, 1] in both axes, with paths from 1 point up to several runs of the index, and with
+     * segments long enough to cross small boxes without a point inside.
+     */
+    private static List<BusTrip> randomTrips(int numTrips, Random random) {
+        List<BusTrip> trips = new ArrayList<>();
+        for (int i = 0; i < numTrips; i++) {
+            int size = 1 + random.nextInt(i % 4 == 0 ? 100 : 20);
+            double[] coordinates = new double[2 * size];
+            double longitude = random.nextDouble();
+            double latitude = random.nextDouble();
+            double step = random.nextBoolean() ? 0.01 : 0.1;
+            for (int point = 0; point < size; point++) {
+                longitude = Math.min(1, Math.max(0, longitude + (random.nextDouble() - 0.5) * step));
+                latitude = Math.min(1, Math.max(0, latitude + (random.nextDouble() - 0.5) * step));
+                coordinates[2 * point] = longitude;
+                coordinates[2 * point + 1] = latitude;
+            }
+            trips.add(trip(coordinates));
+        }
+        return trips;
+    }
+
+    private static List<Fragment> fragments(int tripIndex, BusTrip trip, double minLongitude, double minLatitude,
+                                            double maxLongitude, double maxLatitude) {
+        List<Fragment> result = new ArrayList<>();
+        TripSpatialIndex.addFragments(tripIndex, trip, minLongitude, minLatitude, maxLongitude, maxLatitude, result);
+        return result;
+    }
+}
@@ -0,0 +1,181 @@
+package com.jerry.busappbackend.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Decodes the tiles written by the encoder, to check the layer, the geometry commands and the shared
+ * attribute keys and values against the vector tile specification.
+ */
+class VectorTileEncoderTest {
+    // Commands of the specification: MoveTo with a count of 1, and LineTo with a count of 1 or 2
+    private static final long MOVE_TO_ONE = 9;
+    private static final long LINE_TO_ONE = 10;
+    private static final long LINE_TO_TWO = 18;
+
+    /**
+     * A field of a protocol buffer message, with the value of a varint field or the bytes of a length
+     * delimited field.
+     */
+    private record Field(int number, long value, byte[] bytes) {}
+
+    @Test
+    void encodesLayer() {
+        VectorTileEncoder encoder = new VectorTileEncoder("trips", 4096);
+        encoder.addLineFeature(new int[][] {{0, 0, 10, 10}}, 1, new int[] {4}, Map.of());
+
+        List<Field> tile = parse(encoder.encode());
+        assertEquals(1, tile.size());
+        assertEquals(3, tile.get(0).number());
+        List<Field> layer = parse(tile.get(0).bytes());
+
+        assertEquals(2L, fields(layer, 15).get(0).value());
+        assertEquals("trips", string(fields(layer, 1).get(0)));
+        assertEquals(4096L, fields(layer, 5).get(0).value());
+        assertEquals(1, fields(layer, 2).size());
+        List<Field> feature = parse(fields(layer, 2).get(0).bytes());
+        // Line string
+        assertEquals(2L, fields(feature, 3).get(0).value());
+        assertEquals(1, encoder.getNumFeatures());
+    }
+
+    @Test
+    void encodesGeometryCommands() {
+        VectorTileEncoder encoder = new VectorTileEncoder("trips", 4096);
+        encoder.addLineFeature(new int[][] {{10, 20, 15, 18, 15, 318}}, 1, new int[] {6}, Map.of());
+
+        // MoveTo(10, 20), then LineTo by (5, -2) and (0, 300), zig-zag encoded
+        assertEquals(List.of(MOVE_TO_ONE, 20L, 40L, LINE_TO_TWO, 10L, 3L, 0L, 600L), geometries(encoder).get(0));
+    }
+
+    @Test
+    void encodesNegativeCoordinatesOfBuffer() {
+        VectorTileEncoder encoder = new VectorTileEncoder("trips", 4096);
+        encoder.addLineFeature(new int[][] {{-5, -1, 4100, -64}}, 1, new int[] {4}, Map.of());
+
+        assertEquals(List.of(MOVE_TO_ONE, 9L, 1L, LINE_TO_ONE, 8210L, 125L), geometries(encoder).get(0));
+    }
+
+    @Test
+    void movesCursorAcrossPartsOnly() {
+        VectorTileEncoder encoder = new VectorTileEncoder("trips", 4096);
+        // The parts array is longer than used, and the coordinates beyond each part's length are ignored
+        int[][] parts = {{0, 0, 100, 100, 7, 7}, {90, 110, 80, 120}, {1, 1, 2, 2}};
+        encoder.addLineFeature(parts, 2, new int[] {4, 4, 4}, Map.of());
+        encoder.addLineFeature(new int[][] {{50, 50, 60, 50}}, 1, new int[] {4}, Map.of());
+
+        List<List<Long>> geometries = geometries(encoder);
+        assertEquals(List.of(MOVE_TO_ONE, 0L, 0L, LINE_TO_ONE, 200L, 200L, MOVE_TO_ONE, 19L, 20L, LINE_TO_ONE, 19L, 20L),
+            geometries.get(0));
+        // Each feature starts from the origin of the tile
+        assertEquals(List.of(MOVE_TO_ONE, 100L, 100L, LINE_TO_ONE, 20L, 0L), geometries.get(1));
+    }
+
+    @Test
+    void sharesKeysAndValuesBetweenFeatures() {
+        VectorTileEncoder encoder = new VectorTileEncoder("trips", 4096);
+        Map<String, Object> first = new LinkedHashMap<>();
+        first.put("line", "M15");
+        first.put("direction", 1);
+        first.put("vehicle", null);
+        Map<String, Object> second = new LinkedHashMap<>();
+        second.put("direction", 1L);
+        second.put("line", "M15");
+        second.put("start", -5L);
+        encoder.addLineFeature(new int[][] {{0, 0, 1, 1}}, 1, new int[] {4}, first);
+        encoder.addLineFeature(new int[][] {{0, 0, 1, 1}}, 1, new int[] {4}, second);
+
+        List<Field> layer = parse(parse(encoder.encode()).get(0).bytes());
+        assertEquals(List.of("line", "direction", "start"), fields(layer, 3).stream().map(VectorTileEncoderTest::string).toList());
+        List<Field> values = fields(layer, 4);
+        assertEquals(3, values.size());
+        assertEquals("M15", string(parse(values.get(0).bytes()).get(0)));
+        // Integers and longs share the int value type
+        assertEquals(4, parse(values.get(1).bytes()).get(0).number());
+        assertEquals(1L, parse(values.get(1).bytes()).get(0).value());
+        assertEquals(-5L, parse(values.get(2).bytes()).get(0).value());
+
+        List<Field> features = fields(layer, 2);
+        assertEquals(List.of(0L, 0L, 1L, 1L), packed(fields(parse(features.get(0).bytes()), 2).get(0).bytes()));
+        assertEquals(List.of(1L, 1L, 0L, 0L, 2L, 2L), packed(fields(parse(features.get(1).bytes()), 2).get(0).bytes()));
+    }
+
+    @Test
+    void encodesNothingWithoutFeatures() {
+        VectorTileEncoder encoder = new VectorTileEncoder("trips", 4096);
+        encoder.addLineFeature(new int[0][], 0, new int[0], Map.of("line", "M15"));
+
+        assertEquals(0, encoder.getNumFeatures());
+        assertEquals(0, encoder.encode().length);
+    }
+
+    // ================== UTILS ==================
+    private static List<List<Long>> geometries(VectorTileEncoder encoder) {
+        List<Field> layer = parse(parse(encoder.encode()).get(0).bytes());
+        List<List<Long>> geometries = new ArrayList<>();
+        for (Field feature : fields(layer, 2)) {
+            geometries.add(packed(fields(parse(feature.bytes()), 4).get(0).bytes()));
+        }
+        return geometries;
+    }
+
+    private static List<Field> fields(List<Field> message, int number) {
+        return message.stream().filter(field -> field.number() == number).toList();
+    }
+
+    private static String string(Field field) {
+        return new String(field.bytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses a message made up of varint and length delimited fields, the only wire types of a tile.
+     */
+    private static List<Field> parse(byte[] bytes) {
+        List<Field> message = new ArrayList<>();
+        int[] offset = {0};
+        while (offset[0] < bytes.length) {
+            long tag = readVarint(bytes, offset);
+            int number = (int) (tag >>> 3);
+            int wireType = (int) (tag & 0x7);
+            if (wireType == 0) {
+                message.add(new Field(number, readVarint(bytes, offset), null));
+            } else if (wireType == 2) {
+                int length = (int) readVarint(bytes, offset);
+                message.add(new Field(number, 0, Arrays.copyOfRange(bytes, offset[0], offset[0] + length)));
+                offset[0] += length;
+            } else {
+                throw new AssertionError("Unexpected wire type " + wireType + " of field " + number);
+            }
+        }
+        return message;
+    }
+
+    private static List<Long> packed(byte[] bytes) {
+        List<Long> values = new ArrayList<>();
+        int[] offset = {0};
+        while (offset[0] < bytes.length) {
+            values.add(readVarint(bytes, offset));
+        }
+        return values;
+    }
+
+    private static long readVarint(byte[] bytes, int[] offset) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[offset[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+}